@@ -0,0 +1,19 @@
+package physics;
+
+import com.bulletphysics.dynamics.DynamicsWorld;
+
+/**
+ * Something that is added to the World as one Renderable but has rigid bodies of its own that
+ * can change over time (e.g. the chunks of a terrain). The World hands it its physics world
+ * instead of adding a single rigid body.
+ *
+ * @author Max
+ */
+public interface PhysicsContainer {
+
+	/**
+	 * Sets the physics world the rigid bodies are added to.
+	 * @param dynamicsWorld The physics world, null removes them from the current one.
+	 */
+	public void setDynamicsWorld(DynamicsWorld dynamicsWorld);
+}
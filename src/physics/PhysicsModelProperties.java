@@ -10,6 +10,10 @@ import java.util.Map;
  * @author Max
  */
 public class PhysicsModelProperties {
+	// Values of the "collisionShape" property. A convex hull of the vertices is the default,
+	// a triangle mesh follows the surface exactly but only works for static models (mass 0).
+	public static final String COLLISION_SHAPE_CONVEX_HULL = "convexHull";
+	public static final String COLLISION_SHAPE_TRIANGLE_MESH = "triangleMesh";
 
 	private Map<String, Object> properties;
 	
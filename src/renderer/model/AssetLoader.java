@@ -0,0 +1,93 @@
+package renderer.model;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lwjgl.util.vector.Vector3f;
+
+import physics.PhysicsModelProperties;
+
+/**
+ * Singleton service that loads models in the background. Loads run on a bounded pool of daemon
+ * threads, so many models (and their MTL libraries) can be read and parsed at once. Only CPU
+ * work happens here: the returned models are not bound, their OpenGL buffers and textures are
+ * created on the render thread the first time they are rendered (e.g. after World.addModelSync).
+ *
+ * @author Max
+ */
+public class AssetLoader {
+	private static AssetLoader instance = null;
+
+	private static final Object AssetLoaderLock = new Object();
+
+	private final ExecutorService executor;
+
+	private AssetLoader(int threadCount) {
+		executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "AssetLoader-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Gets the instance of this singleton. Lazily instantiates if not already created.
+	 * @return
+	 */
+	public static AssetLoader getInstance() {
+		synchronized (AssetLoaderLock) {
+			if (instance == null) {
+				instance = new AssetLoader(Runtime.getRuntime().availableProcessors());
+			}
+
+			return instance;
+		}
+	}
+
+	/**
+	 * Loads a model in the background.
+	 * @param file The OBJ file.
+	 * @param pos The initial position.
+	 * @param rigidBodyProp The physics properties.
+	 * @return a future that completes with the (unbound) model
+	 */
+	public CompletableFuture<ModelInt> loadObjModel(final File file, final Vector3f pos, final PhysicsModelProperties rigidBodyProp) {
+		return submit(new Callable<ModelInt>() {
+			@Override
+			public ModelInt call() throws Exception {
+				return ModelFactory.loadObjModel(file, pos, rigidBodyProp);
+			}
+		});
+	}
+
+	/**
+	 * Runs a task on the loader threads.
+	 * @param task
+	 * @return a future that completes with the result of the task, or exceptionally with the
+	 * exception it threw
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task) {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					future.complete(task.call());
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			}
+		});
+		return future;
+	}
+}
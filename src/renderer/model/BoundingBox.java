@@ -34,6 +34,7 @@ public class BoundingBox {
 	private Vector3f upperRightBack;
 	private Integer vaoId;
 	private Integer vboIndId;
+	private Integer vboPosId;
 	private boolean isBound;
 	private float[] vertexList = {};
 
@@ -53,6 +54,18 @@ public class BoundingBox {
 		isBound = false;
 	}
 	
+	/**
+	 * Copy constructor (the copy is not bound).
+	 * @param orig
+	 */
+	public BoundingBox(BoundingBox orig) {
+		lowerLeftFront = orig.lowerLeftFront == null ? null : new Vector3f(orig.lowerLeftFront);
+		upperRightBack = orig.upperRightBack == null ? null : new Vector3f(orig.upperRightBack);
+		vaoId = -1;
+		vboIndId = -1;
+		isBound = false;
+	}
+	
 	public boolean addVertex(float [] point) {		
 		if(isBound)
 			return false;
@@ -91,8 +104,8 @@ public class BoundingBox {
 		
 		vertexList = currentBounds();
 
-		int posVboId = GL15.glGenBuffers();
-		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, posVboId);
+		vboPosId = GL15.glGenBuffers();
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboPosId);
 		FloatBuffer buffer = BufferUtils.createFloatBuffer(vertexList.length);
 		buffer.put(vertexList);
 		buffer.flip();
@@ -113,6 +126,21 @@ public class BoundingBox {
 		return isBound;
 	}
 
+	/**
+	 * Deletes the OpenGL buffers of the box (it can be bound again afterwards).
+	 */
+	public void release() {
+		if(!isBound)
+			return;
+
+		GL30.glDeleteVertexArrays(vaoId);
+		GL15.glDeleteBuffers(vboPosId);
+		GL15.glDeleteBuffers(vboIndId);
+		vaoId = -1;
+		vboIndId = -1;
+		isBound = false;
+	}
+
 	public boolean isBound() {
 		return isBound;
 	}
@@ -125,6 +153,14 @@ public class BoundingBox {
 		return vboIndId;
 	}
 	
+	public Vector3f getLowerLeftFront() {
+		return lowerLeftFront;
+	}
+	
+	public Vector3f getUpperRightBack() {
+		return upperRightBack;
+	}
+	
 	public float[] getVertexList() {
 		return vertexList;
 	}
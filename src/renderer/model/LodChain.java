@@ -0,0 +1,200 @@
+package renderer.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Levels of detail of a Mesh. Every level is a simplified index buffer per batch (see
+ * MeshSimplifier) that refers to the vertices of the full resolution batch, so all levels share
+ * one vertex buffer. Level 0 is the mesh itself.
+ *
+ * A level is picked by the size of the mesh on screen: level i is used once the bounding sphere
+ * covers less than getScreenSize(i) of the screen height (see computeScreenSize).
+ *
+ * @author Max
+ */
+public class LodChain {
+	private final float[] triangleRatios;
+	private final float[] screenSizes;
+
+	// Per batch, the indices of every level
+	private final List<ByteBuffer[]> batchIndices;
+	private final List<int[]> batchIndexCounts;
+	private final List<Integer> batchIndexSizes;
+
+	/**
+	 * Simplifies every batch of a mesh down to the given fractions of its triangles. Each level
+	 * is simplified from the previous one and reordered for the vertex cache.
+	 * @param mesh
+	 * @param triangleRatios The fraction of triangles every level keeps (the first should be 1).
+	 * @param screenSizes The screen height fraction below which every level is used (the first
+	 * value is not used).
+	 */
+	public LodChain(Mesh mesh, float[] triangleRatios, float[] screenSizes) {
+		if (triangleRatios.length != screenSizes.length || triangleRatios.length == 0) {
+			throw new IllegalArgumentException("Every level of detail needs a triangle ratio and a screen size");
+		}
+		this.triangleRatios = triangleRatios.clone();
+		this.screenSizes = screenSizes.clone();
+		this.batchIndices = new ArrayList<>();
+		this.batchIndexCounts = new ArrayList<>();
+		this.batchIndexSizes = new ArrayList<>();
+
+		for (MeshBatch batch : mesh.getBatches()) {
+			int vertexCount = batch.getVertexCount();
+			float[] positions = new float[vertexCount * 3];
+			for (int v = 0; v < vertexCount; v++) {
+				positions[v * 3] = batch.getElement(v, 0);
+				positions[v * 3 + 1] = batch.getElement(v, 1);
+				positions[v * 3 + 2] = batch.getElement(v, 2);
+			}
+
+			int[] indices = new int[batch.getIndexCount()];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = batch.getIndex(i);
+			}
+
+			ByteBuffer[] levels = new ByteBuffer[triangleRatios.length];
+			int[] counts = new int[triangleRatios.length];
+			levels[0] = batch.getIndices();
+			counts[0] = batch.getIndexCount();
+
+			int indexCount = indices.length;
+			for (int level = 1; level < triangleRatios.length; level++) {
+				int target = (int) (batch.getIndexCount() / 3 * triangleRatios[level]) * 3;
+				indexCount = MeshSimplifier.simplify(indices, indexCount, positions, vertexCount, target);
+				MeshOptimizer.optimizeVertexCache(indices, indexCount, vertexCount);
+
+				levels[level] = BufferUtils.createByteBuffer(indexCount * batch.getIndexSize());
+				for (int i = 0; i < indexCount; i++) {
+					if (batch.getIndexSize() == 2) {
+						levels[level].putShort(i * 2, (short) indices[i]);
+					} else {
+						levels[level].putInt(i * 4, indices[i]);
+					}
+				}
+				counts[level] = indexCount;
+			}
+
+			batchIndices.add(levels);
+			batchIndexCounts.add(counts);
+			batchIndexSizes.add(batch.getIndexSize());
+		}
+	}
+
+	/**
+	 * Creates a chain from levels that were simplified before, e.g. read from the MeshCache.
+	 * @param triangleRatios
+	 * @param screenSizes
+	 * @param batchIndices Per batch, the indices of every level (level 0 are the batch's own).
+	 * @param batchIndexCounts Per batch, the number of indices of every level.
+	 * @param batchIndexSizes Per batch, the index size in bytes.
+	 */
+	LodChain(float[] triangleRatios, float[] screenSizes, List<ByteBuffer[]> batchIndices, List<int[]> batchIndexCounts,
+			List<Integer> batchIndexSizes) {
+		this.triangleRatios = triangleRatios.clone();
+		this.screenSizes = screenSizes.clone();
+		this.batchIndices = batchIndices;
+		this.batchIndexCounts = batchIndexCounts;
+		this.batchIndexSizes = batchIndexSizes;
+	}
+
+	/**
+	 * @param triangleRatios
+	 * @param screenSizes
+	 * @return if the chain was built with these levels
+	 */
+	public boolean hasLevels(float[] triangleRatios, float[] screenSizes) {
+		return Arrays.equals(this.triangleRatios, triangleRatios) && Arrays.equals(this.screenSizes, screenSizes);
+	}
+
+	/**
+	 * @return the number of levels (including the full resolution level 0)
+	 */
+	public int getLevelCount() {
+		return triangleRatios.length;
+	}
+
+	/**
+	 * @param level
+	 * @return the fraction of the triangles the level was simplified to
+	 */
+	public float getTriangleRatio(int level) {
+		return triangleRatios[level];
+	}
+
+	/**
+	 * @param level
+	 * @return the screen height fraction below which the level is used
+	 */
+	public float getScreenSize(int level) {
+		return screenSizes[level];
+	}
+
+	/**
+	 * Gets the indices of a batch at a level.
+	 * @param batch The index of the batch in the mesh.
+	 * @param level
+	 * @return a view of the indices (in the index size of the batch)
+	 */
+	public ByteBuffer getIndices(int batch, int level) {
+		ByteBuffer indices = batchIndices.get(batch)[level];
+		ByteBuffer view = indices.duplicate().order(indices.order());
+		view.clear().limit(batchIndexCounts.get(batch)[level] * batchIndexSizes.get(batch));
+		return view;
+	}
+
+	/**
+	 * @param batch The index of the batch in the mesh.
+	 * @param level
+	 * @return the number of indices of the batch at the level
+	 */
+	public int getIndexCount(int batch, int level) {
+		return batchIndexCounts.get(batch)[level];
+	}
+
+	/**
+	 * @param level
+	 * @return the number of triangles of all batches at the level
+	 */
+	public int getTriangleCount(int level) {
+		int count = 0;
+		for (int[] counts : batchIndexCounts) {
+			count += counts[level] / 3;
+		}
+		return count;
+	}
+
+	/**
+	 * Picks the level for a size on screen.
+	 * @param screenSize The fraction of the screen height the mesh covers (see computeScreenSize).
+	 * @return the level
+	 */
+	public int selectLevel(float screenSize) {
+		int level = 0;
+		for (int i = 1; i < screenSizes.length; i++) {
+			if (screenSize < screenSizes[i]) {
+				level = i;
+			}
+		}
+		return level;
+	}
+
+	/**
+	 * Computes the fraction of the screen height a bounding sphere covers.
+	 * @param radius The radius of the sphere.
+	 * @param distance The distance from the eye to the centre of the sphere.
+	 * @param fovY The vertical field of view (degrees).
+	 * @return the screen size (infinite if the eye is inside the sphere)
+	 */
+	public static float computeScreenSize(float radius, float distance, float fovY) {
+		if (distance <= radius) {
+			return Float.POSITIVE_INFINITY;
+		}
+		return radius / (distance * (float) Math.tan(Math.toRadians(fovY / 2)));
+	}
+}
@@ -0,0 +1,274 @@
+package renderer.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.BufferUtils;
+
+import texture.Material;
+import util.IntArray;
+import util.Triangulator;
+
+/**
+ * CPU side geometry of a Model, ready to be uploaded: one MeshBatch (deduplicated interleaved
+ * vertices and triangle indices) per material, plus the bounds of all vertices. A Mesh does not
+ * touch OpenGL, so it can be built, cached and loaded on any thread.
+ *
+ * @author Max
+ */
+public class Mesh {
+	private final List<MeshBatch> batches;
+	private final BoundingBox bounds;
+	private final boolean optimized;
+	private final LodChain lodChain;
+	
+	/**
+	 * Constructs a Mesh from already built batches.
+	 * @param batches
+	 * @param bounds The bounds of all vertices (not bound to OpenGL).
+	 */
+	public Mesh(List<MeshBatch> batches, BoundingBox bounds) {
+		this(batches, bounds, false);
+	}
+	
+	/**
+	 * Constructs a Mesh from already built batches.
+	 * @param batches
+	 * @param bounds The bounds of all vertices (not bound to OpenGL).
+	 * @param optimized If the batches were reordered by the MeshOptimizer.
+	 */
+	public Mesh(List<MeshBatch> batches, BoundingBox bounds, boolean optimized) {
+		this.batches = Collections.unmodifiableList(new ArrayList<MeshBatch>(batches));
+		this.bounds = bounds;
+		this.optimized = optimized;
+		this.lodChain = null;
+	}
+	
+	/**
+	 * The same batches with levels of detail (see withLodChain).
+	 */
+	Mesh(Mesh mesh, LodChain lodChain) {
+		this.batches = mesh.batches;
+		this.bounds = mesh.bounds;
+		this.optimized = mesh.optimized;
+		this.lodChain = lodChain;
+	}
+	
+	/**
+	 * Builds a Mesh from a list of faces. Faces are split up by material, polygons are
+	 * triangulated (see Triangulator) and identical vertices are only stored once.
+	 * @param faces
+	 * @return the mesh
+	 */
+	public static Mesh fromFaces(List<Face> faces) {
+		return fromFaces(faces, VertexWelder.forVertexData(0f, 0f, 0f));
+	}
+	
+	/**
+	 * Builds a Mesh from a list of faces. Faces are split up by material, polygons are
+	 * triangulated (see Triangulator) and vertices are merged by the welder.
+	 * @param faces
+	 * @param welder A welder for the VertexData layout (see VertexWelder.forVertexData).
+	 * @return the mesh
+	 */
+	public static Mesh fromFaces(List<Face> faces, VertexWelder welder) {
+		Map<Material, List<Face>> mapMaterialToFaces = new LinkedHashMap<>();
+		BoundingBox bounds = new BoundingBox();
+		Triangulator triangulator = new Triangulator();
+		
+		// Split the faces up by material
+		for (Face face : faces) {
+			List<Face> faceList = mapMaterialToFaces.get(face.getMaterial());
+			if (faceList == null) {
+				faceList = new ArrayList<>();
+				mapMaterialToFaces.put(face.getMaterial(), faceList);
+			}
+			faceList.add(face);
+		}
+		
+		List<MeshBatch> batches = new ArrayList<>();
+		float[] corners = new float[VertexData.elementCount];
+		IntArray indices = new IntArray(1024);
+		for (Map.Entry<Material, List<Face>> entry : mapMaterialToFaces.entrySet()) {
+			List<Face> materialFaces = entry.getValue();
+			
+			int maxCount = 3;
+			for (Face face : materialFaces) {
+				maxCount = Math.max(maxCount, face.getCount());
+			}
+			
+			welder.clear();
+			indices.clear();
+			float[] positions = new float[maxCount * 3];
+			int[] triangles = new int[(maxCount - 2) * 3];
+			
+			for (Face face : materialFaces) {
+				for (int i = 0; i < face.getCount(); i++) {
+					System.arraycopy(face.getVertex(i).getXYZ(), 0, positions, i * 3, 3);
+				}
+				
+				int triangleCount = triangulator.triangulate(positions, face.getCount(), triangles);
+				for (int i = 0; i < triangleCount * 3; i++) {
+					face.getVertex(triangles[i]).getElements(corners, 0);
+					indices.add(welder.add(corners, 0));
+				}
+			}
+			
+			int vertexCount = welder.getVertexCount();
+			int indexCount = indices.size();
+			float[] vertices = welder.getVertices().array();
+			for (int v = 0; v < vertexCount; v++) {
+				System.arraycopy(vertices, v * VertexData.elementCount, corners, 0, 3);
+				bounds.addVertex(corners);
+			}
+			
+			ByteBuffer vertexBytes = BufferUtils.createByteBuffer(vertexCount * VertexData.stride);
+			vertexBytes.asFloatBuffer().put(vertices, 0, vertexCount * VertexData.elementCount);
+			ByteBuffer indexBytes = BufferUtils.createByteBuffer(indexCount * 4);
+			indexBytes.asIntBuffer().put(indices.array(), 0, indexCount);
+			
+			batches.add(new MeshBatch(entry.getKey(), vertexBytes, vertexCount, indexBytes, indexCount));
+		}
+		
+		return new Mesh(batches, bounds);
+	}
+	
+	/**
+	 * Converts the mesh to the COMPACT vertex format (see VertexFormat). Batches with fewer
+	 * than 65536 vertices get 16-bit indices.
+	 * @return the compact mesh (this mesh if it already is compact)
+	 */
+	public Mesh compact() {
+		if (isCompact()) {
+			return this;
+		}
+		
+		List<MeshBatch> compactBatches = new ArrayList<>(batches.size());
+		for (MeshBatch batch : batches) {
+			compactBatches.add(batch.compact());
+		}
+		return new Mesh(compactBatches, bounds, optimized);
+	}
+	
+	/**
+	 * @return true if all batches are in the COMPACT vertex format
+	 */
+	public boolean isCompact() {
+		for (MeshBatch batch : batches) {
+			if (batch.getFormat() != VertexFormat.COMPACT) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Generates levels of detail for this mesh (see LodChain). Converting the mesh afterwards
+	 * (e.g. with compact()) drops the levels, so this should be the last step.
+	 * @param triangleRatios The fraction of triangles every level keeps (the first should be 1).
+	 * @param screenSizes The screen height fraction below which every level is used.
+	 * @return the mesh with the levels of detail
+	 */
+	public Mesh withLodChain(float[] triangleRatios, float[] screenSizes) {
+		return new Mesh(this, new LodChain(this, triangleRatios, screenSizes));
+	}
+	
+	/**
+	 * @return the levels of detail of this mesh, or null if it has none
+	 */
+	public LodChain getLodChain() {
+		return lodChain;
+	}
+	
+	/**
+	 * @return true if the batches were reordered by the MeshOptimizer
+	 */
+	public boolean isOptimized() {
+		return optimized;
+	}
+	
+	/**
+	 * Gets the average cache miss ratio: vertex shader invocations per triangle (see
+	 * MeshOptimizer.countCacheMisses). 0.5 is the best case for large regular meshes, 3 the worst.
+	 * @return the ACMR
+	 */
+	public float getACMR() {
+		int triangleCount = getTriangleCount();
+		return triangleCount == 0 ? 0f : countCacheMisses() / (float) triangleCount;
+	}
+	
+	/**
+	 * Gets the average transformed vertex ratio: vertex shader invocations per vertex. 1 is optimal.
+	 * @return the ATVR
+	 */
+	public float getATVR() {
+		int vertexCount = getVertexCount();
+		return vertexCount == 0 ? 0f : countCacheMisses() / (float) vertexCount;
+	}
+	
+	private int countCacheMisses() {
+		int misses = 0;
+		for (MeshBatch batch : batches) {
+			misses += MeshOptimizer.countCacheMisses(batch);
+		}
+		return misses;
+	}
+	
+	/**
+	 * @return the batches of this mesh (one per material)
+	 */
+	public List<MeshBatch> getBatches() {
+		return batches;
+	}
+	
+	/**
+	 * Returns the bounds of the mesh. This BoundingBox is never bound, Models bind their own copy.
+	 * @return the bounds
+	 */
+	public BoundingBox getBoundingBox() {
+		return bounds;
+	}
+	
+	/**
+	 * @return the number of (deduplicated) vertices in all batches
+	 */
+	public int getVertexCount() {
+		int count = 0;
+		for (MeshBatch batch : batches) {
+			count += batch.getVertexCount();
+		}
+		return count;
+	}
+	
+	/**
+	 * @return the number of triangles in all batches
+	 */
+	public int getTriangleCount() {
+		int count = 0;
+		for (MeshBatch batch : batches) {
+			count += batch.getIndexCount() / 3;
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the positions of all vertices, e.g. to build a collision shape.
+	 * @return xyz triples of every vertex
+	 */
+	public float[] getPositions() {
+		float[] positions = new float[getVertexCount() * 3];
+		int i = 0;
+		for (MeshBatch batch : batches) {
+			for (int v = 0; v < batch.getVertexCount(); v++) {
+				positions[i++] = batch.getElement(v, 0);
+				positions[i++] = batch.getElement(v, 1);
+				positions[i++] = batch.getElement(v, 2);
+			}
+		}
+		return positions;
+	}
+}
@@ -0,0 +1,163 @@
+package renderer.model;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.BufferUtils;
+
+import texture.Material;
+
+/**
+ * The part of a Mesh that is drawn with one material: an interleaved vertex buffer (in one of
+ * the VertexFormat layouts) and the triangle indices into it (16 or 32-bit). The buffers are
+ * direct and in native byte order so they can be handed to OpenGL as they are. They may be
+ * backed by a memory-mapped cache file, so they must be treated as read-only.
+ *
+ * @author Max
+ */
+public class MeshBatch {
+	// Batches with fewer vertices than this get 16-bit indices when compacted.
+	public static final int MAX_SHORT_INDEXED_VERTICES = 1 << 16;
+
+	private final Material material;
+	private final VertexFormat format;
+	private final ByteBuffer vertices;
+	private final ByteBuffer indices;
+	private final int vertexCount;
+	private final int indexCount;
+	private final int indexSize;
+
+	/**
+	 * Constructs a batch in the STANDARD format with 32-bit indices.
+	 * @param material The material every triangle of the batch is drawn with.
+	 * @param vertices vertexCount * VertexData.stride bytes of interleaved vertex data.
+	 * @param vertexCount The number of vertices.
+	 * @param indices indexCount 32-bit triangle indices.
+	 * @param indexCount The number of indices (3 per triangle).
+	 */
+	public MeshBatch(Material material, ByteBuffer vertices, int vertexCount, ByteBuffer indices, int indexCount) {
+		this(material, VertexFormat.STANDARD, vertices, vertexCount, indices, indexCount, 4);
+	}
+
+	/**
+	 * Constructs a batch.
+	 * @param material The material every triangle of the batch is drawn with.
+	 * @param format The layout of the vertex data.
+	 * @param vertices vertexCount * format.getStride() bytes of interleaved vertex data.
+	 * @param vertexCount The number of vertices.
+	 * @param indices indexCount triangle indices.
+	 * @param indexCount The number of indices (3 per triangle).
+	 * @param indexSize The size of an index in bytes (2 or 4).
+	 */
+	public MeshBatch(Material material, VertexFormat format, ByteBuffer vertices, int vertexCount,
+			ByteBuffer indices, int indexCount, int indexSize) {
+		this.material = material;
+		this.format = format;
+		this.vertices = vertices;
+		this.vertexCount = vertexCount;
+		this.indices = indices;
+		this.indexCount = indexCount;
+		this.indexSize = indexSize;
+	}
+
+	/**
+	 * Converts this batch to the COMPACT vertex format, with 16-bit indices if possible.
+	 * @return the compact batch (this batch if it already is compact)
+	 */
+	public MeshBatch compact() {
+		if (format == VertexFormat.COMPACT) {
+			return this;
+		}
+
+		int stride = VertexFormat.COMPACT.getStride();
+		ByteBuffer packed = BufferUtils.createByteBuffer(vertexCount * stride);
+		short[] normal = new short[2];
+		for (int v = 0; v < vertexCount; v++) {
+			int offset = v * stride;
+			packed.putFloat(offset + VertexFormat.COMPACT_POSITION_OFFSET, getElement(v, 0));
+			packed.putFloat(offset + VertexFormat.COMPACT_POSITION_OFFSET + 4, getElement(v, 1));
+			packed.putFloat(offset + VertexFormat.COMPACT_POSITION_OFFSET + 8, getElement(v, 2));
+
+			int n = VertexData.normalByteOffset / VertexData.elementBytes;
+			VertexFormat.encodeNormal(getElement(v, n), getElement(v, n + 1), getElement(v, n + 2), normal);
+			packed.putShort(offset + VertexFormat.COMPACT_NORMAL_OFFSET, normal[0]);
+			packed.putShort(offset + VertexFormat.COMPACT_NORMAL_OFFSET + 2, normal[1]);
+
+			int t = VertexData.textureByteOffset / VertexData.elementBytes;
+			packed.putShort(offset + VertexFormat.COMPACT_TEXTURE_OFFSET, VertexFormat.toHalfFloat(getElement(v, t)));
+			packed.putShort(offset + VertexFormat.COMPACT_TEXTURE_OFFSET + 2, VertexFormat.toHalfFloat(getElement(v, t + 1)));
+		}
+
+		int packedIndexSize = vertexCount < MAX_SHORT_INDEXED_VERTICES ? 2 : 4;
+		ByteBuffer packedIndices = BufferUtils.createByteBuffer(indexCount * packedIndexSize);
+		for (int i = 0; i < indexCount; i++) {
+			if (packedIndexSize == 2) {
+				packedIndices.putShort(i * 2, (short) getIndex(i));
+			} else {
+				packedIndices.putInt(i * 4, getIndex(i));
+			}
+		}
+
+		return new MeshBatch(material, VertexFormat.COMPACT, packed, vertexCount, packedIndices, indexCount, packedIndexSize);
+	}
+
+	public Material getMaterial() {
+		return material;
+	}
+
+	public VertexFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return a view of the vertex data, positioned at the first vertex
+	 */
+	public ByteBuffer getVertices() {
+		ByteBuffer view = vertices.duplicate().order(vertices.order());
+		view.clear().limit(vertexCount * format.getStride());
+		return view;
+	}
+
+	/**
+	 * @return a view of the index data, positioned at the first index
+	 */
+	public ByteBuffer getIndices() {
+		ByteBuffer view = indices.duplicate().order(indices.order());
+		view.clear().limit(indexCount * indexSize);
+		return view;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getIndexCount() {
+		return indexCount;
+	}
+
+	/**
+	 * @return the size of an index in bytes (2 or 4)
+	 */
+	public int getIndexSize() {
+		return indexSize;
+	}
+
+	/**
+	 * Gets a float element of a vertex. For the COMPACT format only the position (elements 0-2)
+	 * is stored as floats.
+	 * @param vertex The vertex index.
+	 * @param element The element (0-2 for the position, see VertexData for the layout).
+	 * @return the value
+	 */
+	public float getElement(int vertex, int element) {
+		return vertices.getFloat(vertex * format.getStride() + element * VertexData.elementBytes);
+	}
+
+	/**
+	 * Gets an index of the index buffer.
+	 * @param i
+	 * @return the vertex index
+	 */
+	public int getIndex(int i) {
+		return indexSize == 2 ? indices.getShort(i * 2) & 0xffff : indices.getInt(i * 4);
+	}
+}
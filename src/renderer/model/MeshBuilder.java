@@ -0,0 +1,386 @@
+package renderer.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.vector.Matrix4f;
+
+import texture.Material;
+import util.FloatArray;
+import util.IntArray;
+import util.Triangulator;
+
+/**
+ * Builds a Mesh straight from indexed OBJ data, without creating Face or VertexData objects.
+ * Face vertices are given as (position, texture, normal) index triples into flat attribute
+ * arrays. Every distinct triple of a material becomes one vertex, so vertices shared between
+ * faces are welded as the faces are added. All data is kept in primitive arrays (one set per
+ * material) until build() copies it into the buffers of the Mesh.
+ *
+ * @author Max
+ */
+public class MeshBuilder {
+	// Marks a missing texture or normal index.
+	public static final int ABSENT = -1;
+
+	private static final float[] NO_TEXTURE = {0f, 0f};
+	private static final float[] NO_NORMAL = {0f, 0f, 0f};
+
+	private final float[] positions;
+	private final float[] textures;
+	private final float[] normals;
+
+	private final Map<Material, Batch> batches = new LinkedHashMap<>();
+	private final BoundingBox bounds = new BoundingBox();
+	private final float[] point = new float[3];
+
+	// Scratch space for triangulating polygons.
+	private final Triangulator triangulator = new Triangulator();
+	private int[] corners = new int[8];
+	private float[] cornerPositions = new float[24];
+	private int[] triangles = new int[18];
+
+	/**
+	 * Constructs a builder over the attributes of an OBJ file.
+	 * @param positions xyz of every "v" record.
+	 * @param textures st of every "vt" record.
+	 * @param normals xyz of every "vn" record.
+	 */
+	public MeshBuilder(float[] positions, float[] textures, float[] normals) {
+		this.positions = positions;
+		this.textures = textures;
+		this.normals = normals;
+	}
+
+	/**
+	 * Adds a face. Polygons are triangulated (see Triangulator).
+	 * @param material The material of the face.
+	 * @param refs (position, texture, normal) index triples, 0-based, ABSENT if missing.
+	 * @param offset Offset of the first triple in refs.
+	 * @param count The number of face vertices.
+	 */
+	public void addFace(Material material, int[] refs, int offset, int count) {
+		if (count < 3) {
+			return;
+		}
+
+		Batch batch = batches.get(material);
+		if (batch == null) {
+			batch = new Batch(material);
+			batches.put(material, batch);
+		}
+
+		if (count == 3) {
+			batch.indices.add(batch.vertex(refs, offset), batch.vertex(refs, offset + 3), batch.vertex(refs, offset + 6));
+			return;
+		}
+
+		if (corners.length < count) {
+			corners = new int[count];
+			cornerPositions = new float[count * 3];
+			triangles = new int[(count - 2) * 3];
+		}
+		for (int k = 0; k < count; k++) {
+			corners[k] = batch.vertex(refs, offset + k * 3);
+			System.arraycopy(positions, refs[offset + k * 3] * 3, cornerPositions, k * 3, 3);
+		}
+
+		int triangleCount = triangulator.triangulate(cornerPositions, count, triangles);
+		for (int i = 0; i < triangleCount * 3; i++) {
+			batch.indices.add(corners[triangles[i]]);
+		}
+	}
+
+	/**
+	 * Copies the collected vertices and indices into a Mesh.
+	 * @return the mesh
+	 */
+	public Mesh build() {
+		List<MeshBatch> meshBatches = new ArrayList<>(batches.size());
+		for (Batch batch : batches.values()) {
+			int vertexCount = batch.vertices.size() / VertexData.elementCount;
+			int indexCount = batch.indices.size();
+
+			ByteBuffer vertexBytes = BufferUtils.createByteBuffer(vertexCount * VertexData.stride);
+			vertexBytes.asFloatBuffer().put(batch.vertices.array(), 0, batch.vertices.size());
+			ByteBuffer indexBytes = BufferUtils.createByteBuffer(indexCount * 4);
+			indexBytes.asIntBuffer().put(batch.indices.array(), 0, indexCount);
+
+			meshBatches.add(new MeshBatch(batch.material, vertexBytes, vertexCount, indexBytes, indexCount));
+		}
+		return new Mesh(meshBatches, bounds);
+	}
+
+	/**
+	 * Merges meshes into one Mesh in a single pass. The batches of all meshes are grouped by
+	 * material, the output buffers are sized up front and then every source mesh is transformed
+	 * and copied into its part of the output (in parallel on the common ForkJoinPool).
+	 * @param meshes The meshes to merge (all batches of a material must have the same vertex format).
+	 * @param transforms The transform of every mesh, or null to copy the meshes as they are.
+	 * @return the merged mesh
+	 */
+	public static Mesh merge(List<Mesh> meshes, List<Matrix4f> transforms) {
+		long start = System.currentTimeMillis();
+
+		// Give every source batch its range in the output batch of its material
+		Map<Material, MergedBatch> merged = new LinkedHashMap<>();
+		List<MergeTask> tasks = new ArrayList<>(meshes.size());
+		for (int m = 0; m < meshes.size(); m++) {
+			MergeTask task = new MergeTask(transforms == null ? null : transforms.get(m));
+			for (MeshBatch batch : meshes.get(m).getBatches()) {
+				MergedBatch target = merged.get(batch.getMaterial());
+				if (target == null) {
+					target = new MergedBatch(batch.getFormat());
+					merged.put(batch.getMaterial(), target);
+				} else if (target.format != batch.getFormat()) {
+					throw new IllegalArgumentException("Cannot merge batches with different vertex formats");
+				}
+
+				task.sources.add(batch);
+				task.targets.add(target);
+				task.offsets.add(target.vertexCount, target.indexCount);
+				target.vertexCount += batch.getVertexCount();
+				target.indexCount += batch.getIndexCount();
+			}
+			tasks.add(task);
+		}
+
+		for (MergedBatch target : merged.values()) {
+			target.allocate();
+		}
+		ForkJoinTask.invokeAll(tasks);
+
+		BoundingBox bounds = new BoundingBox();
+		for (MergeTask task : tasks) {
+			if (task.min != null) {
+				bounds.addVertex(task.min);
+				bounds.addVertex(task.max);
+			}
+		}
+
+		List<MeshBatch> meshBatches = new ArrayList<>(merged.size());
+		for (Map.Entry<Material, MergedBatch> entry : merged.entrySet()) {
+			MergedBatch target = entry.getValue();
+			meshBatches.add(new MeshBatch(entry.getKey(), target.format, target.vertices, target.vertexCount,
+					target.indices, target.indexCount, target.indexSize));
+		}
+
+		System.out.println("Mesh Merge Time: " + (System.currentTimeMillis() - start));
+		return new Mesh(meshBatches, bounds);
+	}
+
+	/**
+	 * An output batch of merge().
+	 */
+	private static class MergedBatch {
+		final VertexFormat format;
+		int vertexCount = 0;
+		int indexCount = 0;
+		int indexSize;
+		ByteBuffer vertices;
+		ByteBuffer indices;
+
+		MergedBatch(VertexFormat format) {
+			this.format = format;
+		}
+
+		void allocate() {
+			indexSize = format == VertexFormat.COMPACT && vertexCount < MeshBatch.MAX_SHORT_INDEXED_VERTICES ? 2 : 4;
+			vertices = BufferUtils.createByteBuffer(vertexCount * format.getStride());
+			indices = BufferUtils.createByteBuffer(indexCount * indexSize);
+		}
+	}
+
+	/**
+	 * Transforms the batches of one source mesh into their ranges of the output batches.
+	 */
+	private static class MergeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Matrix4f transform;
+		final List<MeshBatch> sources = new ArrayList<>();
+		final List<MergedBatch> targets = new ArrayList<>();
+
+		// Vertex and index offset of every source batch in its target
+		final IntArray offsets = new IntArray();
+
+		// Bounds of the transformed positions (null if there are none)
+		float[] min;
+		float[] max;
+
+		MergeTask(Matrix4f transform) {
+			this.transform = transform;
+		}
+
+		@Override
+		protected void compute() {
+			for (int b = 0; b < sources.size(); b++) {
+				copy(sources.get(b), targets.get(b), offsets.get(b * 2), offsets.get(b * 2 + 1));
+			}
+		}
+
+		private void copy(MeshBatch source, MergedBatch target, int vertexOffset, int indexOffset) {
+			int stride = source.getFormat().getStride();
+			ByteBuffer vertices = target.vertices.duplicate().order(target.vertices.order());
+			vertices.position(vertexOffset * stride);
+			vertices.put(source.getVertices());
+
+			boolean compact = source.getFormat() == VertexFormat.COMPACT;
+			float[] normal = new float[3];
+			short[] packed = new short[2];
+			for (int v = 0; v < source.getVertexCount(); v++) {
+				int base = (vertexOffset + v) * stride;
+				float x = vertices.getFloat(base), y = vertices.getFloat(base + 4), z = vertices.getFloat(base + 8);
+
+				if (transform != null) {
+					Matrix4f m = transform;
+					float w = compact ? 1f : vertices.getFloat(base + 12);
+					float tx = m.m00 * x + m.m10 * y + m.m20 * z + m.m30 * w;
+					float ty = m.m01 * x + m.m11 * y + m.m21 * z + m.m31 * w;
+					float tz = m.m02 * x + m.m12 * y + m.m22 * z + m.m32 * w;
+					x = tx;
+					y = ty;
+					z = tz;
+					vertices.putFloat(base, x).putFloat(base + 4, y).putFloat(base + 8, z);
+
+					// Normals are only rotated (like the normal matrix in Model.render)
+					int n = base + (compact ? VertexFormat.COMPACT_NORMAL_OFFSET : VertexData.normalByteOffset);
+					if (compact) {
+						VertexFormat.decodeNormal(vertices.getShort(n), vertices.getShort(n + 2), normal);
+					} else {
+						normal[0] = vertices.getFloat(n);
+						normal[1] = vertices.getFloat(n + 4);
+						normal[2] = vertices.getFloat(n + 8);
+					}
+					float nx = m.m00 * normal[0] + m.m10 * normal[1] + m.m20 * normal[2];
+					float ny = m.m01 * normal[0] + m.m11 * normal[1] + m.m21 * normal[2];
+					float nz = m.m02 * normal[0] + m.m12 * normal[1] + m.m22 * normal[2];
+					if (compact) {
+						VertexFormat.encodeNormal(nx, ny, nz, packed);
+						vertices.putShort(n, packed[0]).putShort(n + 2, packed[1]);
+					} else {
+						vertices.putFloat(n, nx).putFloat(n + 4, ny).putFloat(n + 8, nz);
+					}
+				}
+
+				if (min == null) {
+					min = new float[] {x, y, z};
+					max = new float[] {x, y, z};
+				}
+				min[0] = Math.min(min[0], x);
+				min[1] = Math.min(min[1], y);
+				min[2] = Math.min(min[2], z);
+				max[0] = Math.max(max[0], x);
+				max[1] = Math.max(max[1], y);
+				max[2] = Math.max(max[2], z);
+			}
+
+			ByteBuffer indices = target.indices;
+			for (int i = 0; i < source.getIndexCount(); i++) {
+				int index = source.getIndex(i) + vertexOffset;
+				if (target.indexSize == 2) {
+					indices.putShort((indexOffset + i) * 2, (short) index);
+				} else {
+					indices.putInt((indexOffset + i) * 4, index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The vertices and indices of one material. Welding uses an open-addressing hash table
+	 * over the index triples of the vertices added so far.
+	 */
+	private class Batch {
+		final Material material;
+		final FloatArray vertices = new FloatArray(1024 * VertexData.elementCount);
+		final IntArray indices = new IntArray(4096);
+
+		// Index triple of every vertex, and the hash table (vertex + 1, 0 = empty slot).
+		final IntArray refs = new IntArray(3072);
+		int[] table = new int[1024];
+
+		Batch(Material material) {
+			this.material = material;
+		}
+
+		/**
+		 * Gets the vertex for an index triple, adding it if it is new.
+		 */
+		int vertex(int[] triple, int offset) {
+			int v = triple[offset], vt = triple[offset + 1], vn = triple[offset + 2];
+			int mask = table.length - 1;
+			int slot = hash(v, vt, vn) & mask;
+
+			int entry;
+			while ((entry = table[slot]) != 0) {
+				int r = (entry - 1) * 3;
+				if (refs.get(r) == v && refs.get(r + 1) == vt && refs.get(r + 2) == vn) {
+					return entry - 1;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			int index = refs.size() / 3;
+			refs.add(v, vt, vn);
+			table[slot] = index + 1;
+			addVertex(v, vt, vn);
+
+			// Keep the load factor below 1/2.
+			if ((index + 1) * 2 > table.length) {
+				rehash();
+			}
+			return index;
+		}
+
+		/**
+		 * Appends a vertex in the VertexData layout.
+		 */
+		private void addVertex(int v, int vt, int vn) {
+			float[] st = vt == ABSENT ? NO_TEXTURE : textures;
+			int t = vt == ABSENT ? 0 : vt * 2;
+			float[] norm = vn == ABSENT ? NO_NORMAL : normals;
+			int n = vn == ABSENT ? 0 : vn * 3;
+
+			point[0] = positions[v * 3];
+			point[1] = positions[v * 3 + 1];
+			point[2] = positions[v * 3 + 2];
+			bounds.addVertex(point);
+
+			vertices.ensureCapacity(vertices.size() + VertexData.elementCount);
+			vertices.add(point[0], point[1], point[2]);
+			vertices.add(1f);
+			vertices.add(material.Kd, 0, 4);
+			vertices.add(st[t], st[t + 1]);
+			vertices.add(norm[n], norm[n + 1], norm[n + 2]);
+			vertices.add(1f);
+			vertices.add(material.Ks, 0, 3);
+			vertices.add(material.Ka, 0, 3);
+			vertices.add(material.Ns);
+		}
+
+		private void rehash() {
+			table = new int[table.length * 2];
+			int mask = table.length - 1;
+			int[] r = refs.array();
+			for (int index = 0; index < refs.size() / 3; index++) {
+				int slot = hash(r[index * 3], r[index * 3 + 1], r[index * 3 + 2]) & mask;
+				while (table[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = index + 1;
+			}
+		}
+	}
+
+	private static int hash(int v, int vt, int vn) {
+		int h = v * 0x9E3779B1 + vt * 0x85EBCA6B + vn * 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,351 @@
+package renderer.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.lwjgl.util.vector.Vector3f;
+
+import texture.Material;
+import util.ByteScanner;
+import util.Parser;
+
+/**
+ * On-disk cache of compiled meshes, so OBJ files only have to be parsed once. A cache entry
+ * holds the deduplicated, interleaved vertex buffer and the index buffer of every material
+ * batch (in the vertex format and index size of the batch), the bounds of the mesh, whether it
+ * was optimized and the MTL files needed to recreate the materials. If the mesh has levels of
+ * detail, their index buffers are stored too, so the simplification only runs on a cache miss.
+ *
+ * Entries are keyed by the canonical path of the source file and validated against its size
+ * and modification time. If only the modification time changed, the content hash of the source
+ * decides (so e.g. a fresh checkout doesn't invalidate the cache). Loading an entry memory-maps
+ * the cache file and hands out slices of the mapping, so the buffers go straight to OpenGL.
+ *
+ * @author Max
+ */
+public class MeshCache {
+	private static final int MAGIC = 0x3D55CAC8;
+	private static final int VERSION = 4;
+
+	// Written in native byte order, a cache file from a different platform won't match.
+	private static final int BYTE_ORDER_MARK = 0x01020304;
+
+	private static final String CACHE_FILE_EXTENSION = ".mesh";
+
+	// The position of the modification time of the source, after the magic, version, byte order
+	// mark and size
+	private static final int LAST_MODIFIED_OFFSET = 3 * 4 + 8;
+
+	private final File directory;
+
+	/**
+	 * Creates a cache that keeps its files in the given directory.
+	 * @param directory
+	 */
+	public MeshCache(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Loads the cached mesh of a source file.
+	 * @param source The OBJ file.
+	 * @return the mesh, or null if there is no valid cache entry
+	 * @throws IOException
+	 */
+	public Mesh load(File source) throws IOException {
+		File cacheFile = getCacheFile(source);
+		if (!cacheFile.isFile() || !source.isFile()) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteScanner.map(cacheFile).order(ByteOrder.nativeOrder());
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != BYTE_ORDER_MARK) {
+				return null;
+			}
+
+			long size = buffer.getLong();
+			long lastModified = buffer.getLong();
+			long hash = buffer.getLong();
+			String path = getString(buffer);
+			if (!path.equals(source.getCanonicalPath()) || size != source.length()) {
+				return null;
+			}
+			if (lastModified != source.lastModified()) {
+				if (hash != contentHash(source)) {
+					return null;
+				}
+
+				// Same content, store the new time so the next load doesn't hash the source again
+				updateLastModified(cacheFile, source.lastModified());
+			}
+
+			// The corners are always written, zeros for a mesh without vertices
+			boolean hasBounds = buffer.getInt() != 0;
+			Vector3f lowerLeftFront = new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+			Vector3f upperRightBack = new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+			BoundingBox bounds = hasBounds ? new BoundingBox(lowerLeftFront, upperRightBack) : new BoundingBox();
+
+			boolean optimized = buffer.getInt() != 0;
+
+			List<String> libraries = new ArrayList<>();
+			int libraryCount = buffer.getInt();
+			for (int i = 0; i < libraryCount; i++) {
+				libraries.add(getString(buffer));
+			}
+
+			Map<String, Material> materials = new Parser().loadMaterials(source, libraries);
+
+			List<MeshBatch> batches = new ArrayList<>();
+			int batchCount = buffer.getInt();
+			for (int i = 0; i < batchCount; i++) {
+				String materialName = getString(buffer);
+				VertexFormat format = VertexFormat.values()[buffer.getInt()];
+				int indexSize = buffer.getInt();
+				int vertexCount = buffer.getInt();
+				int indexCount = buffer.getInt();
+				int vertexOffset = buffer.getInt();
+				int indexOffset = buffer.getInt();
+
+				// Like the parser, every batch without a known material gets a material of its own
+				Material material = materials.get(materialName);
+				if (material == null) {
+					material = new Material();
+				}
+
+				batches.add(new MeshBatch(material, format,
+						slice(buffer, vertexOffset, vertexCount * format.getStride()), vertexCount,
+						slice(buffer, indexOffset, indexCount * indexSize), indexCount, indexSize));
+			}
+
+			Mesh mesh = new Mesh(batches, bounds, optimized);
+			int levelCount = buffer.getInt();
+			if (levelCount == 0) {
+				return mesh;
+			}
+
+			float[] triangleRatios = new float[levelCount];
+			float[] screenSizes = new float[levelCount];
+			for (int level = 0; level < levelCount; level++) {
+				triangleRatios[level] = buffer.getFloat();
+			}
+			for (int level = 0; level < levelCount; level++) {
+				screenSizes[level] = buffer.getFloat();
+			}
+
+			List<ByteBuffer[]> batchIndices = new ArrayList<>();
+			List<int[]> batchIndexCounts = new ArrayList<>();
+			List<Integer> batchIndexSizes = new ArrayList<>();
+			for (MeshBatch batch : batches) {
+				ByteBuffer[] levels = new ByteBuffer[levelCount];
+				int[] counts = new int[levelCount];
+				levels[0] = batch.getIndices();
+				counts[0] = batch.getIndexCount();
+				for (int level = 1; level < levelCount; level++) {
+					counts[level] = buffer.getInt();
+					levels[level] = slice(buffer, buffer.getInt(), counts[level] * batch.getIndexSize());
+				}
+				batchIndices.add(levels);
+				batchIndexCounts.add(counts);
+				batchIndexSizes.add(batch.getIndexSize());
+			}
+
+			return new Mesh(mesh, new LodChain(triangleRatios, screenSizes, batchIndices, batchIndexCounts, batchIndexSizes));
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+			System.err.println("Ignoring corrupt mesh cache file " + cacheFile);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a mesh for a source file, replacing any previous entry.
+	 * @param source The OBJ file the mesh was built from.
+	 * @param mesh The mesh.
+	 * @param materialLibraries The MTL files referenced by the OBJ file.
+	 * @throws IOException
+	 */
+	public void store(File source, Mesh mesh, List<String> materialLibraries) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create mesh cache directory " + directory);
+		}
+
+		List<MeshBatch> batches = mesh.getBatches();
+		List<byte[]> strings = new ArrayList<>();
+		strings.add(source.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+		for (String library : materialLibraries) {
+			strings.add(library.getBytes(StandardCharsets.UTF_8));
+		}
+		for (MeshBatch batch : batches) {
+			strings.add(batch.getMaterial().getName().getBytes(StandardCharsets.UTF_8));
+		}
+
+		// Work out the header size so the data offsets are known up front.
+		int headerSize = 3 * 4 + 3 * 8 + 4 + 6 * 4 + 4 + 4 + 4 + batches.size() * 6 * 4;
+		LodChain lodChain = mesh.getLodChain();
+		int levelCount = lodChain == null ? 0 : lodChain.getLevelCount();
+		headerSize += 4 + levelCount * 2 * 4 + batches.size() * Math.max(levelCount - 1, 0) * 2 * 4;
+		for (byte[] string : strings) {
+			headerSize += 4 + align(string.length);
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.nativeOrder());
+		header.putInt(MAGIC).putInt(VERSION).putInt(BYTE_ORDER_MARK);
+		header.putLong(source.length()).putLong(source.lastModified()).putLong(contentHash(source));
+		putString(header, strings.get(0));
+
+		BoundingBox bounds = mesh.getBoundingBox();
+		if (bounds.getLowerLeftFront() != null) {
+			Vector3f llf = bounds.getLowerLeftFront();
+			Vector3f urb = bounds.getUpperRightBack();
+			header.putInt(1).putFloat(llf.x).putFloat(llf.y).putFloat(llf.z).putFloat(urb.x).putFloat(urb.y).putFloat(urb.z);
+		} else {
+			header.putInt(0).putFloat(0).putFloat(0).putFloat(0).putFloat(0).putFloat(0).putFloat(0);
+		}
+
+		header.putInt(mesh.isOptimized() ? 1 : 0);
+		header.putInt(materialLibraries.size());
+		for (int i = 0; i < materialLibraries.size(); i++) {
+			putString(header, strings.get(1 + i));
+		}
+
+		header.putInt(batches.size());
+		int offset = headerSize;
+		int[] vertexOffsets = new int[batches.size()];
+		int[] indexOffsets = new int[batches.size()];
+		for (int i = 0; i < batches.size(); i++) {
+			MeshBatch batch = batches.get(i);
+			putString(header, strings.get(1 + materialLibraries.size() + i));
+			header.putInt(batch.getFormat().ordinal()).putInt(batch.getIndexSize());
+			header.putInt(batch.getVertexCount()).putInt(batch.getIndexCount());
+			vertexOffsets[i] = offset;
+			header.putInt(offset);
+			offset += align(batch.getVertexCount() * batch.getFormat().getStride());
+			indexOffsets[i] = offset;
+			header.putInt(offset);
+			offset += align(batch.getIndexCount() * batch.getIndexSize());
+		}
+
+		// The levels of detail, level 0 are the indices of the batch
+		header.putInt(levelCount);
+		for (int level = 0; level < levelCount; level++) {
+			header.putFloat(lodChain.getTriangleRatio(level));
+		}
+		for (int level = 0; level < levelCount; level++) {
+			header.putFloat(lodChain.getScreenSize(level));
+		}
+		int[][] levelOffsets = new int[batches.size()][levelCount];
+		for (int i = 0; i < batches.size(); i++) {
+			for (int level = 1; level < levelCount; level++) {
+				header.putInt(lodChain.getIndexCount(i, level));
+				levelOffsets[i][level] = offset;
+				header.putInt(offset);
+				offset += align(lodChain.getIndexCount(i, level) * batches.get(i).getIndexSize());
+			}
+		}
+		header.flip();
+
+		// Write to a temporary file first so a crash (or a concurrent load of the same model) never
+		// leaves a half written entry behind.
+		File cacheFile = getCacheFile(source);
+		File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+		RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			writeFully(channel, header, 0);
+			for (int i = 0; i < batches.size(); i++) {
+				writeFully(channel, batches.get(i).getVertices(), vertexOffsets[i]);
+				writeFully(channel, batches.get(i).getIndices(), indexOffsets[i]);
+				for (int level = 1; level < levelCount; level++) {
+					writeFully(channel, lodChain.getIndices(i, level), levelOffsets[i][level]);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+
+		if (cacheFile.exists() && !cacheFile.delete() || !tempFile.renameTo(cacheFile)) {
+			tempFile.delete();
+			throw new IOException("Cannot replace mesh cache file " + cacheFile);
+		}
+	}
+
+	/**
+	 * Overwrites the modification time of the source in a cache entry.
+	 */
+	private static void updateLastModified(File cacheFile, long lastModified) {
+		ByteBuffer time = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+		time.putLong(lastModified).flip();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+			try {
+				writeFully(raf.getChannel(), time, LAST_MODIFIED_OFFSET);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to update mesh cache file " + cacheFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the cache file for a source file. The name contains a hash of the full path
+	 * so equally named models in different directories don't collide.
+	 */
+	private File getCacheFile(File source) throws IOException {
+		String path = source.getCanonicalPath();
+		return new File(directory, source.getName() + "." + Integer.toHexString(path.hashCode()) + CACHE_FILE_EXTENSION);
+	}
+
+	/**
+	 * Hashes the contents of a file.
+	 */
+	private static long contentHash(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(ByteScanner.map(file));
+		return crc.getValue();
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.clear().position(offset);
+		view.limit(offset + length);
+		return view.slice().order(ByteOrder.nativeOrder());
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] string) {
+		buffer.putInt(string.length);
+		buffer.put(string);
+		for (int i = string.length; i < align(string.length); i++) {
+			buffer.put((byte) 0);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] string = new byte[buffer.getInt()];
+		buffer.get(string);
+		buffer.position(buffer.position() + align(string.length) - string.length);
+		return new String(string, StandardCharsets.UTF_8);
+	}
+
+	// Keeps all data 4 byte aligned.
+	private static int align(int length) {
+		return (length + 3) & ~3;
+	}
+}
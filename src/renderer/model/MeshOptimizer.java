@@ -0,0 +1,311 @@
+package renderer.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Reorders the index and vertex buffers of meshes for the GPU, without changing what is drawn.
+ *
+ * Triangles are reordered for the post-transform vertex cache with Tom Forsyth's linear-speed
+ * algorithm: triangles are greedily emitted by a score that favours vertices which are in the
+ * (simulated LRU) cache and vertices with few triangles left. Afterwards vertices are
+ * renumbered in the order they are first used, so vertex fetches walk through memory.
+ *
+ * Everything runs on the CPU, so it can be done when a model is loaded (and then cached with the
+ * mesh, see ModelFactory).
+ *
+ * @author Max
+ */
+public class MeshOptimizer {
+	// The size of the vertex cache the triangle order is optimized for.
+	public static final int CACHE_SIZE = 32;
+
+	// The size of the FIFO cache ACMR and ATVR are measured with.
+	public static final int ANALYSIS_CACHE_SIZE = 16;
+
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+	private static final int VALENCE_TABLE_SIZE = 32;
+
+	private static final float[] cacheScores = new float[CACHE_SIZE];
+	private static final float[] valenceScores = new float[VALENCE_TABLE_SIZE];
+
+	static {
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			if (i < 3) {
+				// The vertices of the last triangle are penalized a bit, so the algorithm doesn't
+				// just keep fanning around the same vertices.
+				cacheScores[i] = LAST_TRIANGLE_SCORE;
+			} else {
+				cacheScores[i] = (float) Math.pow(1f - (i - 3) / (float) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+			}
+		}
+		for (int i = 1; i < VALENCE_TABLE_SIZE; i++) {
+			valenceScores[i] = VALENCE_BOOST_SCALE * (float) Math.pow(i, -VALENCE_BOOST_POWER);
+		}
+	}
+
+	// Private constructor to prevent instantiation.
+	private MeshOptimizer() {}
+
+	/**
+	 * Optimizes every batch of a mesh (see optimize(MeshBatch)). The cache statistics are not
+	 * measured here, Mesh.getACMR and getATVR simulate the cache when they are needed.
+	 * @param mesh
+	 * @return the optimized mesh (this mesh if it already is optimized)
+	 */
+	public static Mesh optimize(Mesh mesh) {
+		if (mesh.isOptimized()) {
+			return mesh;
+		}
+
+		List<MeshBatch> batches = new ArrayList<>(mesh.getBatches().size());
+		for (MeshBatch batch : mesh.getBatches()) {
+			batches.add(optimize(batch));
+		}
+		return new Mesh(batches, mesh.getBoundingBox(), true);
+	}
+
+	/**
+	 * Reorders the triangles of a batch for the vertex cache and then its vertices for fetch
+	 * locality. The batch keeps its vertex format and index size.
+	 * @param batch
+	 * @return the optimized batch
+	 */
+	public static MeshBatch optimize(MeshBatch batch) {
+		int vertexCount = batch.getVertexCount();
+		int indexCount = batch.getIndexCount();
+		int[] indices = new int[indexCount];
+		for (int i = 0; i < indexCount; i++) {
+			indices[i] = batch.getIndex(i);
+		}
+
+		optimizeVertexCache(indices, indexCount, vertexCount);
+		int[] remap = optimizeVertexFetch(indices, indexCount, vertexCount);
+
+		// Move the vertices (4 bytes at a time, every format is made of 4 byte multiples)
+		int stride = batch.getFormat().getStride();
+		ByteBuffer vertices = batch.getVertices();
+		ByteBuffer reordered = BufferUtils.createByteBuffer(vertexCount * stride);
+		for (int v = 0; v < vertexCount; v++) {
+			int from = v * stride;
+			int to = remap[v] * stride;
+			for (int b = 0; b < stride; b += 4) {
+				reordered.putInt(to + b, vertices.getInt(from + b));
+			}
+		}
+
+		int indexSize = batch.getIndexSize();
+		ByteBuffer indexBytes = BufferUtils.createByteBuffer(indexCount * indexSize);
+		for (int i = 0; i < indexCount; i++) {
+			if (indexSize == 2) {
+				indexBytes.putShort(i * 2, (short) indices[i]);
+			} else {
+				indexBytes.putInt(i * 4, indices[i]);
+			}
+		}
+
+		return new MeshBatch(batch.getMaterial(), batch.getFormat(), reordered, vertexCount, indexBytes, indexCount, indexSize);
+	}
+
+	/**
+	 * Reorders the triangles of an index buffer for the post-transform vertex cache. The winding
+	 * of every triangle is kept.
+	 * @param indices The triangle indices, reordered in place.
+	 * @param indexCount The number of indices (3 per triangle).
+	 * @param vertexCount The number of vertices the indices refer to.
+	 */
+	public static void optimizeVertexCache(int[] indices, int indexCount, int vertexCount) {
+		int triangleCount = indexCount / 3;
+
+		// The triangles of every vertex, the live ones first
+		int[] liveTriangles = new int[vertexCount];
+		for (int i = 0; i < triangleCount * 3; i++) {
+			liveTriangles[indices[i]]++;
+		}
+		int[] adjacencyOffsets = new int[vertexCount + 1];
+		for (int v = 0; v < vertexCount; v++) {
+			adjacencyOffsets[v + 1] = adjacencyOffsets[v] + liveTriangles[v];
+			liveTriangles[v] = 0;
+		}
+		int[] adjacency = new int[triangleCount * 3];
+		for (int t = 0; t < triangleCount; t++) {
+			for (int k = 0; k < 3; k++) {
+				int v = indices[t * 3 + k];
+				adjacency[adjacencyOffsets[v] + liveTriangles[v]++] = t;
+			}
+		}
+
+		int[] cachePositions = new int[vertexCount];
+		float[] vertexScores = new float[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			cachePositions[v] = -1;
+			vertexScores[v] = vertexScore(-1, liveTriangles[v]);
+		}
+
+		boolean[] emitted = new boolean[triangleCount];
+		int[] output = new int[triangleCount * 3];
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] nextCache = new int[CACHE_SIZE + 3];
+		int cacheCount = 0;
+		int cursor = 0;
+		int best = -1;
+
+		for (int o = 0; o < triangleCount; o++) {
+			if (best < 0) {
+				// Nothing in the cache is connected to a live triangle, continue in input order.
+				while (emitted[cursor]) {
+					cursor++;
+				}
+				best = cursor;
+			}
+
+			int a = indices[best * 3];
+			int b = indices[best * 3 + 1];
+			int c = indices[best * 3 + 2];
+			output[o * 3] = a;
+			output[o * 3 + 1] = b;
+			output[o * 3 + 2] = c;
+			emitted[best] = true;
+
+			// The vertices of the triangle move to the front of the cache
+			int nextCount = 0;
+			for (int k = 0; k < 3; k++) {
+				int v = indices[best * 3 + k];
+				nextCache[nextCount++] = v;
+
+				int start = adjacencyOffsets[v];
+				int last = start + --liveTriangles[v];
+				for (int i = start; i <= last; i++) {
+					if (adjacency[i] == best) {
+						adjacency[i] = adjacency[last];
+						adjacency[last] = best;
+						break;
+					}
+				}
+			}
+			for (int i = 0; i < cacheCount; i++) {
+				int v = cache[i];
+				if (v != a && v != b && v != c) {
+					nextCache[nextCount++] = v;
+				}
+			}
+
+			int[] swap = cache;
+			cache = nextCache;
+			nextCache = swap;
+
+			// Rescore the vertices in (or just evicted from) the cache and their triangles
+			for (int i = 0; i < nextCount; i++) {
+				int v = cache[i];
+				cachePositions[v] = i < CACHE_SIZE ? i : -1;
+				vertexScores[v] = vertexScore(cachePositions[v], liveTriangles[v]);
+			}
+
+			best = -1;
+			float bestScore = -1f;
+			for (int i = 0; i < nextCount; i++) {
+				int v = cache[i];
+				for (int j = adjacencyOffsets[v]; j < adjacencyOffsets[v] + liveTriangles[v]; j++) {
+					int t = adjacency[j];
+					float score = vertexScores[indices[t * 3]] + vertexScores[indices[t * 3 + 1]] + vertexScores[indices[t * 3 + 2]];
+					if (score > bestScore) {
+						bestScore = score;
+						best = t;
+					}
+				}
+			}
+			cacheCount = Math.min(nextCount, CACHE_SIZE);
+		}
+
+		System.arraycopy(output, 0, indices, 0, triangleCount * 3);
+	}
+
+	/**
+	 * Renumbers the vertices in the order the index buffer first uses them. Unused vertices
+	 * are moved to the end.
+	 * @param indices The triangle indices, rewritten in place.
+	 * @param indexCount The number of indices.
+	 * @param vertexCount The number of vertices the indices refer to.
+	 * @return the new index of every vertex
+	 */
+	public static int[] optimizeVertexFetch(int[] indices, int indexCount, int vertexCount) {
+		int[] remap = new int[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			remap[v] = -1;
+		}
+
+		int next = 0;
+		for (int i = 0; i < indexCount; i++) {
+			int v = indices[i];
+			if (remap[v] < 0) {
+				remap[v] = next++;
+			}
+			indices[i] = remap[v];
+		}
+
+		for (int v = 0; v < vertexCount; v++) {
+			if (remap[v] < 0) {
+				remap[v] = next++;
+			}
+		}
+		return remap;
+	}
+
+	/**
+	 * Counts the vertex shader invocations of an index buffer with a FIFO vertex cache.
+	 * @param indices The triangle indices.
+	 * @param indexCount The number of indices.
+	 * @param vertexCount The number of vertices the indices refer to.
+	 * @param cacheSize The number of vertices in the cache.
+	 * @return the number of cache misses
+	 */
+	public static int countCacheMisses(int[] indices, int indexCount, int vertexCount, int cacheSize) {
+		// The time each vertex entered the cache
+		int[] timestamps = new int[vertexCount];
+		int time = cacheSize + 1;
+		int misses = 0;
+		for (int i = 0; i < indexCount; i++) {
+			int v = indices[i];
+			if (time - timestamps[v] > cacheSize) {
+				timestamps[v] = time++;
+				misses++;
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 * Counts the vertex shader invocations of a batch (see countCacheMisses) with a cache of
+	 * ANALYSIS_CACHE_SIZE vertices.
+	 * @param batch
+	 * @return the number of cache misses
+	 */
+	public static int countCacheMisses(MeshBatch batch) {
+		int[] indices = new int[batch.getIndexCount()];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = batch.getIndex(i);
+		}
+		return countCacheMisses(indices, indices.length, batch.getVertexCount(), ANALYSIS_CACHE_SIZE);
+	}
+
+	private static float vertexScore(int cachePosition, int liveTriangles) {
+		if (liveTriangles == 0) {
+			// No triangles left to draw with this vertex
+			return -1f;
+		}
+
+		float score = cachePosition < 0 ? 0f : cacheScores[cachePosition];
+		if (liveTriangles < VALENCE_TABLE_SIZE) {
+			score += valenceScores[liveTriangles];
+		} else {
+			score += VALENCE_BOOST_SCALE * (float) Math.pow(liveTriangles, -VALENCE_BOOST_POWER);
+		}
+		return score;
+	}
+}
@@ -0,0 +1,254 @@
+package renderer.model;
+
+import java.util.Arrays;
+
+/**
+ * Reduces the triangle count of index buffers with quadric error metric edge collapses
+ * (Garland and Heckbert). Every vertex accumulates the planes of its triangles, and the edges
+ * whose collapse moves the surface the least are collapsed first.
+ *
+ * Edges are collapsed onto one of their vertices, so the simplified index buffer still refers
+ * to the original vertices (and their normals and texture coordinates). Vertices on open edges
+ * are never moved: since vertices are only shared within a material batch and with equal
+ * texture coordinates and normals, this keeps mesh borders as well as UV, normal and material
+ * seams intact.
+ *
+ * @author Max
+ */
+public class MeshSimplifier {
+	// Only the cheapest part of the candidate collapses is done per pass, so the error
+	// estimates stay reasonably up to date.
+	private static final int CANDIDATES_PER_PASS_DIVISOR = 4;
+
+	// Private constructor to prevent instantiation.
+	private MeshSimplifier() {}
+
+	/**
+	 * Simplifies an index buffer.
+	 * @param indices The triangle indices, simplified in place.
+	 * @param indexCount The number of indices (3 per triangle).
+	 * @param positions xyz of every vertex.
+	 * @param vertexCount The number of vertices.
+	 * @param targetIndexCount The number of indices to reduce to (it may not be reached if the
+	 * mesh has too many locked vertices).
+	 * @return the new number of indices
+	 */
+	public static int simplify(int[] indices, int indexCount, float[] positions, int vertexCount, int targetIndexCount) {
+		int triangleCount = indexCount / 3;
+		int targetTriangleCount = targetIndexCount / 3;
+		if (triangleCount <= targetTriangleCount) {
+			return triangleCount * 3;
+		}
+
+		double[] quadrics = computeQuadrics(indices, triangleCount, positions, vertexCount);
+		boolean[] locked = findOpenEdgeVertices(indices, triangleCount, vertexCount);
+
+		int[] collapseTo = new int[vertexCount];
+		boolean[] touched = new boolean[vertexCount];
+		int[] adjacencyOffsets = new int[vertexCount + 1];
+		int[] adjacency = new int[triangleCount * 3];
+		int[] collapseFrom = new int[triangleCount * 3];
+		int[] collapseOnto = new int[triangleCount * 3];
+		long[] candidates = new long[triangleCount * 3];
+
+		while (triangleCount > targetTriangleCount) {
+			buildAdjacency(indices, triangleCount, vertexCount, adjacencyOffsets, adjacency);
+
+			// Every directed edge a-b of a triangle is a candidate for collapsing a onto b.
+			// Candidates are sorted by their error, which is stored in the high bits.
+			int candidateCount = 0;
+			for (int t = 0; t < triangleCount; t++) {
+				for (int k = 0; k < 3; k++) {
+					int a = indices[t * 3 + k];
+					int b = indices[t * 3 + (k + 1) % 3];
+					if (locked[a] || a == b) {
+						continue;
+					}
+
+					float error = (float) collapseError(quadrics, a, b, positions);
+					collapseFrom[candidateCount] = a;
+					collapseOnto[candidateCount] = b;
+					candidates[candidateCount] = ((long) Float.floatToIntBits(error) << 32) | candidateCount;
+					candidateCount++;
+				}
+			}
+			Arrays.sort(candidates, 0, candidateCount);
+
+			Arrays.fill(touched, false);
+			for (int v = 0; v < vertexCount; v++) {
+				collapseTo[v] = v;
+			}
+
+			int removed = 0;
+			int limit = Math.max(candidateCount / CANDIDATES_PER_PASS_DIVISOR, 1);
+			for (int i = 0; i < limit && triangleCount - removed > targetTriangleCount; i++) {
+				int c = (int) candidates[i];
+				int a = collapseFrom[c];
+				int b = collapseOnto[c];
+				if (touched[a] || touched[b] || flips(indices, adjacencyOffsets, adjacency, positions, a, b)) {
+					continue;
+				}
+
+				collapseTo[a] = b;
+				for (int q = 0; q < 10; q++) {
+					quadrics[b * 10 + q] += quadrics[a * 10 + q];
+				}
+
+				// The neighbourhood of a changes, so nothing around it collapses in this pass.
+				for (int j = adjacencyOffsets[a]; j < adjacencyOffsets[a + 1]; j++) {
+					int t = adjacency[j];
+					touched[indices[t * 3]] = true;
+					touched[indices[t * 3 + 1]] = true;
+					touched[indices[t * 3 + 2]] = true;
+					if (indices[t * 3] == b || indices[t * 3 + 1] == b || indices[t * 3 + 2] == b) {
+						removed++;
+					}
+				}
+			}
+
+			if (removed == 0) {
+				break;
+			}
+
+			// Apply the collapses and drop the triangles that became degenerate
+			int kept = 0;
+			for (int t = 0; t < triangleCount; t++) {
+				int a = collapseTo[indices[t * 3]];
+				int b = collapseTo[indices[t * 3 + 1]];
+				int c = collapseTo[indices[t * 3 + 2]];
+				if (a != b && b != c && c != a) {
+					indices[kept * 3] = a;
+					indices[kept * 3 + 1] = b;
+					indices[kept * 3 + 2] = c;
+					kept++;
+				}
+			}
+			triangleCount = kept;
+		}
+
+		return triangleCount * 3;
+	}
+
+	/**
+	 * Sums the area weighted plane quadrics of the triangles of every vertex. A quadric is stored
+	 * as the 10 distinct entries of the symmetric 4x4 matrix (aa, ab, ac, ad, bb, bc, bd, cc, cd, dd).
+	 */
+	private static double[] computeQuadrics(int[] indices, int triangleCount, float[] positions, int vertexCount) {
+		double[] quadrics = new double[vertexCount * 10];
+		for (int t = 0; t < triangleCount; t++) {
+			int i0 = indices[t * 3] * 3, i1 = indices[t * 3 + 1] * 3, i2 = indices[t * 3 + 2] * 3;
+			double ux = positions[i1] - positions[i0], uy = positions[i1 + 1] - positions[i0 + 1], uz = positions[i1 + 2] - positions[i0 + 2];
+			double vx = positions[i2] - positions[i0], vy = positions[i2 + 1] - positions[i0 + 1], vz = positions[i2 + 2] - positions[i0 + 2];
+			double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+			double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length == 0) {
+				continue;
+			}
+
+			double a = nx / length, b = ny / length, c = nz / length;
+			double d = -(a * positions[i0] + b * positions[i0 + 1] + c * positions[i0 + 2]);
+			double weight = length / 2;
+			for (int k = 0; k < 3; k++) {
+				int q = indices[t * 3 + k] * 10;
+				quadrics[q] += weight * a * a;
+				quadrics[q + 1] += weight * a * b;
+				quadrics[q + 2] += weight * a * c;
+				quadrics[q + 3] += weight * a * d;
+				quadrics[q + 4] += weight * b * b;
+				quadrics[q + 5] += weight * b * c;
+				quadrics[q + 6] += weight * b * d;
+				quadrics[q + 7] += weight * c * c;
+				quadrics[q + 8] += weight * c * d;
+				quadrics[q + 9] += weight * d * d;
+			}
+		}
+		return quadrics;
+	}
+
+	/**
+	 * Finds the vertices on edges that don't have exactly two triangles.
+	 */
+	private static boolean[] findOpenEdgeVertices(int[] indices, int triangleCount, int vertexCount) {
+		long[] edges = new long[triangleCount * 3];
+		for (int t = 0; t < triangleCount; t++) {
+			for (int k = 0; k < 3; k++) {
+				int a = indices[t * 3 + k];
+				int b = indices[t * 3 + (k + 1) % 3];
+				edges[t * 3 + k] = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+			}
+		}
+		Arrays.sort(edges);
+
+		boolean[] locked = new boolean[vertexCount];
+		for (int i = 0; i < edges.length;) {
+			int run = 1;
+			while (i + run < edges.length && edges[i + run] == edges[i]) {
+				run++;
+			}
+			if (run != 2) {
+				locked[(int) (edges[i] >>> 32)] = true;
+				locked[(int) edges[i]] = true;
+			}
+			i += run;
+		}
+		return locked;
+	}
+
+	private static void buildAdjacency(int[] indices, int triangleCount, int vertexCount, int[] offsets, int[] adjacency) {
+		Arrays.fill(offsets, 0);
+		for (int i = 0; i < triangleCount * 3; i++) {
+			offsets[indices[i] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = Arrays.copyOf(offsets, vertexCount);
+		for (int t = 0; t < triangleCount; t++) {
+			for (int k = 0; k < 3; k++) {
+				adjacency[fill[indices[t * 3 + k]]++] = t;
+			}
+		}
+	}
+
+	/**
+	 * The error of moving a onto b: the combined quadric evaluated at the position of b.
+	 */
+	private static double collapseError(double[] quadrics, int a, int b, float[] positions) {
+		double x = positions[b * 3], y = positions[b * 3 + 1], z = positions[b * 3 + 2];
+		int qa = a * 10, qb = b * 10;
+		double error = 0;
+		double[] q = quadrics;
+		error += (q[qa] + q[qb]) * x * x + 2 * (q[qa + 1] + q[qb + 1]) * x * y + 2 * (q[qa + 2] + q[qb + 2]) * x * z + 2 * (q[qa + 3] + q[qb + 3]) * x;
+		error += (q[qa + 4] + q[qb + 4]) * y * y + 2 * (q[qa + 5] + q[qb + 5]) * y * z + 2 * (q[qa + 6] + q[qb + 6]) * y;
+		error += (q[qa + 7] + q[qb + 7]) * z * z + 2 * (q[qa + 8] + q[qb + 8]) * z + (q[qa + 9] + q[qb + 9]);
+
+		// Rounding can make the error slightly negative, which would break the sort order.
+		return Math.max(error, 0);
+	}
+
+	/**
+	 * Checks if moving a onto b would flip (or collapse) one of the remaining triangles of a.
+	 */
+	private static boolean flips(int[] indices, int[] adjacencyOffsets, int[] adjacency, float[] positions, int a, int b) {
+		for (int j = adjacencyOffsets[a]; j < adjacencyOffsets[a + 1]; j++) {
+			int t = adjacency[j];
+			int i0 = indices[t * 3], i1 = indices[t * 3 + 1], i2 = indices[t * 3 + 2];
+			if (i0 == b || i1 == b || i2 == b) {
+				continue;
+			}
+
+			float[] before = normal(positions, i0, i1, i2);
+			float[] after = normal(positions, i0 == a ? b : i0, i1 == a ? b : i1, i2 == a ? b : i2);
+			if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static float[] normal(float[] positions, int i0, int i1, int i2) {
+		float ux = positions[i1 * 3] - positions[i0 * 3], uy = positions[i1 * 3 + 1] - positions[i0 * 3 + 1], uz = positions[i1 * 3 + 2] - positions[i0 * 3 + 2];
+		float vx = positions[i2 * 3] - positions[i0 * 3], vy = positions[i2 * 3 + 1] - positions[i0 * 3 + 1], vz = positions[i2 * 3 + 2] - positions[i0 * 3 + 2];
+		return new float[] {uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx};
+	}
+}
@@ -1,8 +1,6 @@
 package renderer.model;
 
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -19,6 +17,7 @@ import org.lwjgl.util.vector.Vector3f;
 import org.lwjgl.util.vector.Vector4f;
 
 import renderer.Renderable;
+import renderer.Renderer;
 import renderer.light.Light;
 import renderer.light.LightHandle;
 import renderer.shader.ShaderController;
@@ -43,18 +42,29 @@ public abstract class Model implements Cullable {
 	protected boolean enableCulling = true;
 	
 	// Map of VBOs and indices for each material in the Model
+	protected Map<Material, Integer> mapVBOIds;
 	protected Map<Material, Integer> mapVBOIndexIds;
 	protected Map<Material, Integer> mapIndiceCount;
+	protected Map<Material, MeshBatch> mapBatches;
 
 	// Vertex Array Objects
 	protected Map<Material, Integer> mapVAOIds;
 
+	// Index count and byte offset of every level of detail in the index VBO of each material
+	protected Map<Material, int[]> mapLodIndexCounts;
+	protected Map<Material, int[]> mapLodIndexOffsets;
+
+	// The level of detail picked for the current frame (see LodChain).
+	protected int lodLevel = 0;
+
 	// The Model matrix assosciated with this Model.
 	protected Matrix4f modelMatrix;
 
-	// Faces that make up this Model.
+	// Faces that make up this Model (empty if the Model was created from a Mesh).
 	protected List<Face> faces;
-	protected Map<Material, List<Face>> mapMaterialToFaces;
+	
+	// Geometry that gets uploaded when the Model is bound.
+	protected Mesh mesh;
 	
 	// LightHandle of the Model
 	protected LightHandle mLightHandle = null;
@@ -99,8 +109,25 @@ public abstract class Model implements Cullable {
 		setup();
 	}
 	
+	public Model(Mesh m, Vector3f pos) {
+		this.faces = new ArrayList<>();
+		this.mesh = m;
+		this.initialPos = pos;
+		this.modelMatrix = new Matrix4f();
+		Matrix4f.translate(pos, modelMatrix, modelMatrix);
+		setup();
+	}
+	
+	public Model(Mesh m) {
+		this.faces = new ArrayList<>();
+		this.mesh = m;
+		this.initialPos = new Vector3f(DEFAULT_INITIAL_POSITION);
+		this.modelMatrix = new Matrix4f();
+		setup();
+	}
+	
 	public Model(Model model, Vector3f pos) {
-		// Copy the Model faces
+		// Copy the Model faces (a Mesh is never modified, so copies share the Mesh of the original)
 		List<Face> faceList = new ArrayList<>();
 		for (Face face : model.faces) {
 			faceList.add(new Face(face));
@@ -108,6 +135,7 @@ public abstract class Model implements Cullable {
 
 		// Set member variables (Note the model matrix does nothing in the case of ModelInt, controlled by physics)
 		this.faces = faceList;
+		this.mesh = model.getMesh();
 		this.initialPos = pos;
 		this.modelMatrix = new Matrix4f();
 		Matrix4f.translate(pos, modelMatrix, modelMatrix);
@@ -123,100 +151,95 @@ public abstract class Model implements Cullable {
 		if(isBound)
 			return false;
 
-		// Split face list into a list of face lists, each having their own material.
-		mapMaterialToFaces = new HashMap<>();
 		mapVAOIds = new HashMap<>();
+		mapVBOIds = new HashMap<>();
 		mapVBOIndexIds = new HashMap<>();
 		mapIndiceCount = new HashMap<>();
-
-		Material currentMaterial = null;
-
-		// Generate bounding box
-		boundBox = new BoundingBox();
-
-		// Split the faces up by material
-		for(Face face : this.faces) {
-			currentMaterial = face.getMaterial();
-
-			// If already in the map append to the list (else make new entry)
-			if(mapMaterialToFaces.containsKey(currentMaterial)) {
-				List<Face> faceList = mapMaterialToFaces.get(currentMaterial);
-				faceList.add(face);
-			} else {
-				List<Face> faceList = new ArrayList<>();
-				faceList.add(face);
-				mapMaterialToFaces.put(currentMaterial, faceList);
-			}
+		mapBatches = new HashMap<>();
+		mapLodIndexCounts = new HashMap<>();
+		mapLodIndexOffsets = new HashMap<>();
+
+		// Upload each material's batch of the mesh
+		Mesh bindMesh = getMesh();
+		List<MeshBatch> batches = bindMesh.getBatches();
+		for(int i = 0; i < batches.size(); i++) {
+			upload(batches.get(i), i, bindMesh.getLodChain());
 		}
 
-		for(Material material : mapMaterialToFaces.keySet()) {
-			List<Face> materialFaces = mapMaterialToFaces.get(material);
-
-			// Put each 'Vertex' in one FloatBuffer (guarenteed to be triangulated by this point
-			ByteBuffer verticesByteBuffer = BufferUtils.createByteBuffer(materialFaces.size() *  3 * VertexData.stride);
-			FloatBuffer verticesFloatBuffer = verticesByteBuffer.asFloatBuffer();
-
-			Map<VertexData, Integer> vboIndexMap = new HashMap<VertexData, Integer>();
-			List<Integer> vboIndex = new ArrayList<Integer>();
-			VertexData tempVertexData;
-
-			// VBO index (# of unique vertices)
-			int iVertex = 0;
-			// For each face in the list, process the data and add to the byte buffer.
-			for(Face face: materialFaces){			
-				//Add first vertex of the face			
-				tempVertexData = face.faceData.get(0);
-				if(!vboIndexMap.containsKey(tempVertexData)){
-					vboIndexMap.put(tempVertexData, iVertex);
-					verticesFloatBuffer.put(tempVertexData.getElements());
-					boundBox.addVertex(tempVertexData.getXYZ());
-					vboIndex.add(iVertex++);
-				} else {
-					vboIndex.add(vboIndexMap.get(tempVertexData));
-				}
+		// Deselect (bind to 0) the VAO
+		GL30.glBindVertexArray(0);
 
-				//Add second vertex of the face
-				tempVertexData = face.faceData.get(1);
-				if(!vboIndexMap.containsKey(tempVertexData)){
-					vboIndexMap.put(tempVertexData, iVertex);
-					verticesFloatBuffer.put(tempVertexData.getElements());
-					boundBox.addVertex(tempVertexData.getXYZ());
-					vboIndex.add(iVertex++);
-				} else {
-					vboIndex.add(vboIndexMap.get(tempVertexData));
-				}
+		// Bind all the textures
+		for(Material material : mapVAOIds.keySet()) {
+			TextureManager tm = TextureManager.getInstance();
+			Texture tex = material.mapKdTexture;
+			int unitId = tm.getTextureSlot();
+			tex.bind(unitId, ShaderController.getTexSamplerLocation());
+			tm.returnTextureSlot(unitId);
+		}
 
-				//Add third vertex of the face
-				tempVertexData = face.faceData.get(2);
-				if(!vboIndexMap.containsKey(tempVertexData)){
-					vboIndexMap.put(tempVertexData, iVertex);
-					verticesFloatBuffer.put(tempVertexData.getElements());
-					boundBox.addVertex(tempVertexData.getXYZ());
-					vboIndex.add(iVertex++);
-				} else {
-					vboIndex.add(vboIndexMap.get(tempVertexData));
-				}			
-			}
+		// Bind the bounding box
+		boundBox = new BoundingBox(bindMesh.getBoundingBox());
+		boundBox.bind();
 
-			// Create VBO Index buffer
-			verticesFloatBuffer.flip();
-			int [] indices = new int[vboIndex.size()];
-			int indicesCount = vboIndex.size();
-			mapIndiceCount.put(material, indicesCount);
+		//Initialize flags
+		renderFlag = true;
+		isBound = true;
 
-			for(int i = 0; i < vboIndex.size(); i++) {
-				indices[i] = vboIndex.get(i); 
-			}
+		return true;
+	}
+	
+	/**
+	 * Deletes the OpenGL buffers of the Model, e.g. when a new Mesh replaces it. Textures are
+	 * shared between models and stay loaded. The Model can be bound again afterwards.
+	 */
+	public void release() {
+		if(!isBound)
+			return;
 
-			IntBuffer indicesBuffer = BufferUtils.createIntBuffer(vboIndex.size());
-			indicesBuffer.put(indices);
-			indicesBuffer.flip();
+		for(Material material : mapVAOIds.keySet()) {
+			GL30.glDeleteVertexArrays(mapVAOIds.get(material));
+			GL15.glDeleteBuffers(mapVBOIds.get(material));
+			GL15.glDeleteBuffers(mapVBOIndexIds.get(material));
+		}
+		boundBox.release();
+		isBound = false;
+	}
 
-			// Create a new Vertex Array Object in memory and select it (bind)
-			int vaoID = GL30.glGenVertexArrays();
-			mapVAOIds.put(material, vaoID);
-			GL30.glBindVertexArray(vaoID);
+	/**
+	 * Uploads the vertex and index buffers of one material to OpenGL. The indices of all levels
+	 * of detail go into the same index buffer, one after the other.
+	 * @param batch
+	 * @param batchIndex The index of the batch in the mesh.
+	 * @param lodChain The levels of detail of the mesh (null if there are none).
+	 */
+	private void upload(MeshBatch batch, int batchIndex, LodChain lodChain) {
+		Material material = batch.getMaterial();
+		mapIndiceCount.put(material, batch.getIndexCount());
+		mapBatches.put(material, batch);
+
+		// Create a new Vertex Array Object in memory and select it (bind)
+		int vaoID = GL30.glGenVertexArrays();
+		mapVAOIds.put(material, vaoID);
+		GL30.glBindVertexArray(vaoID);
+
+		// Create a new Vertex Buffer Object in memory and select it (bind)
+		int vboId = GL15.glGenBuffers();
+		mapVBOIds.put(material, vboId);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, batch.getVertices(), GL15.GL_STATIC_DRAW);
+
+		if(batch.getFormat() == VertexFormat.COMPACT) {
+			// Only position, normal and texture are per vertex, the material terms are set per draw (see drawBatch)
+			int stride = VertexFormat.COMPACT.getStride();
+			GL20.glEnableVertexAttribArray(0); //position
+			GL20.glEnableVertexAttribArray(2); //texture
+			GL20.glEnableVertexAttribArray(3); //normal
 
+			GL20.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, stride, VertexFormat.COMPACT_POSITION_OFFSET);
+			GL20.glVertexAttribPointer(2, 2, GL30.GL_HALF_FLOAT, false, stride, VertexFormat.COMPACT_TEXTURE_OFFSET);
+			GL20.glVertexAttribPointer(3, 2, GL11.GL_SHORT, true, stride, VertexFormat.COMPACT_NORMAL_OFFSET);
+		} else {
 			// Enable the attributes
 			GL20.glEnableVertexAttribArray(0); //position
 			GL20.glEnableVertexAttribArray(1); //color
@@ -226,11 +249,6 @@ public abstract class Model implements Cullable {
 			GL20.glEnableVertexAttribArray(5);
 			GL20.glEnableVertexAttribArray(6);
 
-			// Create a new Vertex Buffer Object in memory and select it (bind)
-			int vboId = GL15.glGenBuffers();
-			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
-			GL15.glBufferData(GL15.GL_ARRAY_BUFFER, verticesFloatBuffer, GL15.GL_STATIC_DRAW);
-
 			// Put the position coordinates in attribute list 0
 			GL20.glVertexAttribPointer(0, VertexData.positionElementCount, GL11.GL_FLOAT,
 					false, VertexData.stride, VertexData.positionByteOffset);
@@ -258,39 +276,112 @@ public abstract class Model implements Cullable {
 			// Put the normal coordinates in attribute list 6
 			GL20.glVertexAttribPointer(6, VertexData.specularPowerElementCount, GL11.GL_FLOAT,
 					false, VertexData.stride, VertexData.specularPowerElementByteOffset);
-
-			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);			
-
-			// Create a new VBO for the indices and select it (bind) - INDICES
-			int vboIndId = GL15.glGenBuffers();
-			mapVBOIndexIds.put(material, vboIndId);
-			GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vboIndId);
-			GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL15.GL_STATIC_DRAW);
-			GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);				
 		}
 
-		// Deselect (bind to 0) the VAO
-		GL30.glBindVertexArray(0);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);			
+
+		// Create a new VBO for the indices and select it (bind) - INDICES
+		int vboIndId = GL15.glGenBuffers();
+		mapVBOIndexIds.put(material, vboIndId);
+		GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vboIndId);
+		if(lodChain == null) {
+			GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, batch.getIndices(), GL15.GL_STATIC_DRAW);
+			mapLodIndexCounts.put(material, new int[] {batch.getIndexCount()});
+			mapLodIndexOffsets.put(material, new int[] {0});
+		} else {
+			int levelCount = lodChain.getLevelCount();
+			int[] counts = new int[levelCount];
+			int[] offsets = new int[levelCount];
+			int size = 0;
+			for(int level = 0; level < levelCount; level++) {
+				counts[level] = lodChain.getIndexCount(batchIndex, level);
+				offsets[level] = size;
+				size += counts[level] * batch.getIndexSize();
+			}
 
-		// Bind all the textures
-		for(Material material : this.mapMaterialToFaces.keySet()) {
-			TextureManager tm = TextureManager.getInstance();
-			Texture tex = material.mapKdTexture;
-			int unitId = tm.getTextureSlot();
-			tex.bind(unitId, ShaderController.getTexSamplerLocation());
-			tm.returnTextureSlot(unitId);
+			GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, size, GL15.GL_STATIC_DRAW);
+			for(int level = 0; level < levelCount; level++) {
+				GL15.glBufferSubData(GL15.GL_ELEMENT_ARRAY_BUFFER, offsets[level], lodChain.getIndices(batchIndex, level));
+			}
+			mapLodIndexCounts.put(material, counts);
+			mapLodIndexOffsets.put(material, offsets);
+		}
+		GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * Draws the batch of a material at the current level of detail (its textures have to be bound already).
+	 * @param material
+	 */
+	protected void drawBatch(Material material) {
+		MeshBatch batch = mapBatches.get(material);
+		boolean compact = batch.getFormat() == VertexFormat.COMPACT;
+
+		// The compact format has no per vertex material terms, so they are set as constant attributes
+		if(compact) {
+			GL20.glVertexAttrib4f(1, material.Kd[0], material.Kd[1], material.Kd[2], material.Kd[3]);
+			GL20.glVertexAttrib3f(4, material.Ks[0], material.Ks[1], material.Ks[2]);
+			GL20.glVertexAttrib3f(5, material.Ka[0], material.Ka[1], material.Ka[2]);
+			GL20.glVertexAttrib1f(6, material.Ns);
+		}
+		GL20.glUniform1i(ShaderController.getPackedNormalsLocation(), compact ? 1 : 0);
+
+		// Bind to the index VBO that has all the information about the order of the vertices and draw the vertices
+		GL30.glBindVertexArray(mapVAOIds.get(material));
+		GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, mapVBOIndexIds.get(material));
+		int[] counts = mapLodIndexCounts.get(material);
+		int level = Math.min(lodLevel, counts.length - 1);
+		GL11.glDrawElements(GL11.GL_TRIANGLES, counts[level], 
+				batch.getIndexSize() == 2 ? GL11.GL_UNSIGNED_SHORT : GL11.GL_UNSIGNED_INT, mapLodIndexOffsets.get(material)[level]);
+	}
+	
+	/**
+	 * Picks the level of detail for this frame from the size of the bounding box on screen.
+	 * @param currModelMatrix
+	 * @param viewMatrix
+	 */
+	protected void selectLodLevel(Matrix4f currModelMatrix, Matrix4f viewMatrix) {
+		LodChain lodChain = getMesh().getLodChain();
+		if(lodChain == null) {
+			lodLevel = 0;
+			return;
 		}
 
-		// Bind the bounding box
-		boundBox.bind();
+		Vector3f centre = boundBox.getCentre();
+		Vector4f eyeCentre = new Vector4f(centre.x, centre.y, centre.z, 1.0f);
+		Matrix4f.transform(currModelMatrix, eyeCentre, eyeCentre);
+		Matrix4f.transform(viewMatrix, eyeCentre, eyeCentre);
+		float distance = (float) Math.sqrt(eyeCentre.x * eyeCentre.x + eyeCentre.y * eyeCentre.y + eyeCentre.z * eyeCentre.z);
 
-		//Initialize flags
-		renderFlag = true;
-		isBound = true;
+		// The bounding sphere grows with the largest scale of the model matrix
+		float scale = Math.max(new Vector3f(currModelMatrix.m00, currModelMatrix.m01, currModelMatrix.m02).length(),
+				Math.max(new Vector3f(currModelMatrix.m10, currModelMatrix.m11, currModelMatrix.m12).length(),
+						new Vector3f(currModelMatrix.m20, currModelMatrix.m21, currModelMatrix.m22).length()));
+		float radius = boundBox.getWidth().length() / 2 * scale;
 
-		return true;
+		lodLevel = lodChain.selectLevel(LodChain.computeScreenSize(radius, distance, Renderer.DEFAULT_FOV));
+	}
+	
+	/**
+	 * Gets the Mesh of this Model. Models constructed from faces build it on first use.
+	 * @return the mesh
+	 */
+	public Mesh getMesh() {
+		if(mesh == null) {
+			mesh = Mesh.fromFaces(faces, VertexWelder.forVertexData(getWeldStep("weldPositionStep"), 
+					getWeldStep("weldNormalStep"), getWeldStep("weldTextureStep")));
+		}
+		return mesh;
 	}
 	
+	/**
+	 * Gets a welding quantization step from the rendering settings (0 if not set).
+	 */
+	private float getWeldStep(String key) {
+		Float step = settings.get("rendering", key, Float.class);
+		return step == null ? 0f : step;
+	}
+
 	/**
 	 * Derived class defines how the model matrix is generated
 	 * @param parentMatrix
@@ -313,6 +404,7 @@ public abstract class Model implements Cullable {
 		buffer.flip();
 
 		GL20.glUniformMatrix4(ShaderController.getModelMatrixLocation(), false, buffer);
+		selectLodLevel(currModelMatrix, viewMatrix);
 		
 		//TODO(MZ): If not orthogonal (ie, scale) need Matrix4f.transpose(Matrix4f.invert(Matrix4f.mul(viewMatrix, modelMatrix, null), null), null);
 		Matrix4f normMatrix = Matrix4f.mul(viewMatrix, currModelMatrix, null); 
@@ -323,7 +415,7 @@ public abstract class Model implements Cullable {
 		TextureManager tm = TextureManager.getInstance();
 
 		// Do bind and draw for each material's faces
-		for(Material material : mapMaterialToFaces.keySet()) {
+		for(Material material : mapVAOIds.keySet()) {
 			List<Integer> rgiUsedSlots = new ArrayList<>();
 			// Loop through all texture IDs for a given material
 			for(Integer tex : material.getActiveTextureIds()) {
@@ -340,11 +432,7 @@ public abstract class Model implements Cullable {
 				rgiUsedSlots.add(unitId);
 			}
 
-			GL30.glBindVertexArray(mapVAOIds.get(material));
-			// Bind to the index VBO that has all the information about the order of the vertices
-			GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, mapVBOIndexIds.get(material));
-			// Draw the vertices
-			GL11.glDrawElements(GL11.GL_TRIANGLES, mapIndiceCount.get(material), GL11.GL_UNSIGNED_INT, 0);
+			drawBatch(material);
 			
 			for(Integer iUsed : rgiUsedSlots) {
 				tm.returnTextureSlot(iUsed);
@@ -371,6 +459,7 @@ public abstract class Model implements Cullable {
 		buffer.flip();
 
 		GL20.glUniformMatrix4(ShaderController.getModelMatrixLocation(), false, buffer);
+		selectLodLevel(currModelMatrix, viewMatrix);
 		
 		//TODO(MZ): If not orthogonal (ie, scale) need Matrix4f.transpose(Matrix4f.invert(Matrix4f.mul(viewMatrix, modelMatrix, null), null), null);
 		Matrix4f normMatrix = Matrix4f.mul(viewMatrix, currModelMatrix, null); 
@@ -381,7 +470,7 @@ public abstract class Model implements Cullable {
 		TextureManager tm = TextureManager.getInstance();
 
 		// Do bind and draw for each material's faces
-		for(Material material : mapMaterialToFaces.keySet()) {
+		for(Material material : mapVAOIds.keySet()) {
 			List<Integer> rgiUsedSlots = new ArrayList<>();
 			// Loop through all texture IDs for a given material
 			for(Integer tex : material.getActiveTextureIds()) {
@@ -398,10 +487,7 @@ public abstract class Model implements Cullable {
 				rgiUsedSlots.add(unitId);
 			}
 
-			// Bind to the index VBO that has all the information about the order of the vertices and draw the vertices
-			GL30.glBindVertexArray(mapVAOIds.get(material));
-			GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, mapVBOIndexIds.get(material));
-			GL11.glDrawElements(GL11.GL_TRIANGLES, mapIndiceCount.get(material), GL11.GL_UNSIGNED_INT, 0);
+			drawBatch(material);
 			
 			for(Integer iUsed : rgiUsedSlots) {
 				tm.returnTextureSlot(iUsed);
@@ -449,7 +535,8 @@ public abstract class Model implements Cullable {
 	}
 	
 	/**
-	 * Returns the list of faces that make up this ModelInt.
+	 * Returns the list of faces that make up this ModelInt. Models created from a Mesh
+	 * have no faces, use getMesh() instead.
 	 * @return the list of faces
 	 */
 	public List<Face> getFaceList () {
@@ -521,33 +608,9 @@ public abstract class Model implements Cullable {
 	}
 	
 	/**
-	 * Setup the Model
+	 * Setup the Model (polygons are triangulated when the Mesh is built, see Mesh.fromFaces)
 	 */
 	private void setup() {
 		isBound = false;
-		
-		// Strip any quads / polygons. 
-		triangulate();
-	}
-	
-	/**
-	 * Remove the non-triangle faces from the Model (triangulates quads)
-	 * @param List to remove non-triangles from
-	 */
-	private void triangulate() {
-		List<Face> removeFaces = new ArrayList<Face>();
-		List<Face> addFaces = new ArrayList<Face>();
-		for (Face face : this.faces) {
-			if (face.faceData.size() == 4) {
-				removeFaces.add(face);
-				addFaces.add(new Face(face.getVertex(0) , face.getVertex(1) , face.getVertex(2), face.getMaterial()));
-				addFaces.add(new Face(face.getVertex(0) , face.getVertex(2) , face.getVertex(3), face.getMaterial()));
-			} else if (face.faceData.size() > 4){
-				removeFaces.add(face); //TODO(MZ): Currently just culls any face > 4 vertices
-			}
-		}
-
-		this.faces.removeAll(removeFaces);
-		this.faces.addAll(addFaces); 
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -3,11 +3,12 @@ package renderer.model;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.lwjgl.util.vector.Vector3f;
 
 import physics.PhysicsModelProperties;
+import system.Settings;
 import util.Parser;
 
 /**
@@ -18,6 +19,21 @@ import util.Parser;
  */
 public class ModelFactory {
 	
+	// Cache of compiled meshes (null if disabled).
+	private static final MeshCache meshCache = createMeshCache();
+	
+	// If models are stored in the compact vertex format (see VertexFormat).
+	private static final boolean compactVertices = Boolean.TRUE.equals(
+			Settings.getInstance().get("rendering", "compactVertices", Boolean.class));
+	
+	// If meshes are reordered for the vertex cache when they are loaded (see MeshOptimizer).
+	private static final boolean optimizeMeshes = Boolean.TRUE.equals(
+			Settings.getInstance().get("rendering", "optimizeMeshes", Boolean.class));
+	
+	// Levels of detail generated for loaded meshes (see LodChain), null if disabled.
+	private static final float[] lodTriangleRatios = parseFloats(Settings.getInstance().get("rendering", "lodTriangleRatios"));
+	private static final float[] lodScreenSizes = parseFloats(Settings.getInstance().get("rendering", "lodScreenSizes"));
+	
 	// Private constructor to prevent instantiation.
 	private ModelFactory() {}
 	
@@ -29,14 +45,9 @@ public class ModelFactory {
 	 * @throws IOException
 	 */
 	public static ModelInt loadObjModel(File file) throws InterruptedException, IOException {
-		List<Face> faces;
-
-		Parser parseFile = new Parser();
-		parseFile.parseOBJFile(file);
-		
-		faces = parseFile.getFaces();
+		Mesh mesh = loadMesh(file);
 		
-		ModelInt m = new ModelInt(faces, new PhysicsModelProperties());
+		ModelInt m = new ModelInt(mesh, new PhysicsModelProperties());
 		return m;
 	}
 	
@@ -49,14 +60,9 @@ public class ModelFactory {
 	 * @throws IOException
 	 */
 	public static ModelInt loadObjModel(File file, Vector3f pos) throws InterruptedException, IOException {
-		List<Face> faces;
-
-		Parser parseFile = new Parser();
-		parseFile.parseOBJFile(file);
-		
-		faces = parseFile.getFaces();
+		Mesh mesh = loadMesh(file);
 		
-		ModelInt m = new ModelInt(faces, pos, new PhysicsModelProperties());
+		ModelInt m = new ModelInt(mesh, pos, new PhysicsModelProperties());
 		return m;
 	}
 	
@@ -69,14 +75,9 @@ public class ModelFactory {
 	 * @throws IOException
 	 */
 	public static ModelInt loadObjModel(File file, PhysicsModelProperties rigidBodyProp) throws InterruptedException, IOException {
-		List<Face> faces;
-
-		Parser parseFile = new Parser();
-		parseFile.parseOBJFile(file);
-		
-		faces = parseFile.getFaces();
+		Mesh mesh = loadMesh(file);
 		
-		ModelInt m = new ModelInt(faces, rigidBodyProp);
+		ModelInt m = new ModelInt(mesh, rigidBodyProp);
 		return m;
 	}
 
@@ -90,14 +91,108 @@ public class ModelFactory {
 	 * @throws IOException
 	 */
 	public static ModelInt loadObjModel(File file, Vector3f pos, PhysicsModelProperties rigidBodyProp) throws InterruptedException, IOException {
-		List<Face> faces;
-
+		Mesh mesh = loadMesh(file);
+		
+		ModelInt m = new ModelInt(mesh, pos, rigidBodyProp);
+		return m;
+	}
+	
+	/**
+	 * Loads a 3D model in the background (see AssetLoader). The model is not bound yet, so it
+	 * should be handed to the render thread (e.g. with World.addModelSync) when the future completes.
+	 * @param file
+	 * @return a future for the model
+	 */
+	public static CompletableFuture<ModelInt> loadObjModelAsync(File file) {
+		return AssetLoader.getInstance().loadObjModel(file, new Vector3f(Model.DEFAULT_INITIAL_POSITION), new PhysicsModelProperties());
+	}
+	
+	/**
+	 * Loads a 3D model at an initial position in the background.
+	 * @param file
+	 * @param pos
+	 * @return a future for the model
+	 */
+	public static CompletableFuture<ModelInt> loadObjModelAsync(File file, Vector3f pos) {
+		return AssetLoader.getInstance().loadObjModel(file, pos, new PhysicsModelProperties());
+	}
+	
+	/**
+	 * Loads a 3D model at an initial position and with specified physics properties in the background.
+	 * @param file
+	 * @param pos
+	 * @param rigidBodyProp
+	 * @return a future for the model
+	 */
+	public static CompletableFuture<ModelInt> loadObjModelAsync(File file, Vector3f pos, PhysicsModelProperties rigidBodyProp) {
+		return AssetLoader.getInstance().loadObjModel(file, pos, rigidBodyProp);
+	}
+	
+	/**
+	 * Loads the mesh of an OBJ file from the mesh cache, or parses the file, generates its levels
+	 * of detail (and caches the result) if there is no valid cache entry.
+	 * @param file
+	 * @return the mesh
+	 * @throws IOException
+	 */
+	private static Mesh loadMesh(File file) throws IOException {
+		boolean lod = lodTriangleRatios != null && lodScreenSizes != null && lodTriangleRatios.length == lodScreenSizes.length;
+		if (meshCache != null) {
+			try {
+				Mesh mesh = meshCache.load(file);
+				if (mesh != null && mesh.isCompact() == compactVertices && mesh.isOptimized() == optimizeMeshes
+						&& (lod ? mesh.getLodChain() != null && mesh.getLodChain().hasLevels(lodTriangleRatios, lodScreenSizes)
+								: mesh.getLodChain() == null)) {
+					return mesh;
+				}
+			} catch (IOException e) {
+				System.err.println("Failed to read the mesh cache for " + file + ": " + e.getMessage());
+			}
+		}
+		
 		Parser parseFile = new Parser();
-		parseFile.parseOBJFile(file);
+		Mesh mesh = parseFile.parseOBJMesh(file);
+		if (optimizeMeshes) {
+			mesh = MeshOptimizer.optimize(mesh);
+		}
+		if (compactVertices) {
+			mesh = mesh.compact();
+		}
+		if (lod) {
+			mesh = mesh.withLodChain(lodTriangleRatios, lodScreenSizes);
+		}
 		
-		faces = parseFile.getFaces();
+		if (meshCache != null) {
+			try {
+				meshCache.store(file, mesh, parseFile.getMaterialLibraries());
+			} catch (IOException e) {
+				System.err.println("Failed to write the mesh cache for " + file + ": " + e.getMessage());
+			}
+		}
 		
-		ModelInt m = new ModelInt(faces, pos, rigidBodyProp);
-		return m;
+		return mesh;
+	}
+	
+	/**
+	 * Parses a comma separated list of floats.
+	 * @param list
+	 * @return the floats, or null if the list is not set
+	 */
+	private static float[] parseFloats(String list) {
+		if (list == null || list.trim().isEmpty()) {
+			return null;
+		}
+		
+		String[] values = list.split(",");
+		float[] floats = new float[values.length];
+		for (int i = 0; i < values.length; i++) {
+			floats[i] = Float.parseFloat(values[i].trim());
+		}
+		return floats;
+	}
+	
+	private static MeshCache createMeshCache() {
+		String path = Settings.getInstance().get("paths", "mesh_cache_path");
+		return path == null ? null : new MeshCache(new File(path));
 	}
 }
\ No newline at end of file
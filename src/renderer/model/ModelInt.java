@@ -1,7 +1,9 @@
 package renderer.model;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import javax.vecmath.Quat4f;
@@ -13,7 +15,6 @@ import org.lwjgl.opengl.GL20;
 import org.lwjgl.opengl.GL30;
 import org.lwjgl.util.vector.Matrix4f;
 import org.lwjgl.util.vector.Vector3f;
-import org.lwjgl.util.vector.Vector4f;
 
 import physics.PhysicsModel;
 import physics.PhysicsModelProperties;
@@ -23,12 +24,17 @@ import renderer.light.LightHandle;
 import renderer.shader.ShaderController;
 import texture.Material;
 import util.ColourUtils;
+import util.FloatArray;
+import util.IntArray;
 import util.MathUtils;
 import util.Plane;
 
 import com.bulletphysics.collision.dispatch.CollisionObject;
+import com.bulletphysics.collision.shapes.BvhTriangleMeshShape;
+import com.bulletphysics.collision.shapes.CollisionShape;
 import com.bulletphysics.collision.shapes.ConvexHullShape;
 import com.bulletphysics.collision.shapes.ConvexShape;
+import com.bulletphysics.collision.shapes.TriangleIndexVertexArray;
 import com.bulletphysics.dynamics.RigidBody;
 import com.bulletphysics.dynamics.RigidBodyConstructionInfo;
 import com.bulletphysics.linearmath.DefaultMotionState;
@@ -85,38 +91,7 @@ public class ModelInt extends Model {
 	 * @return the merged ModelInt
 	 */
 	public static ModelInt merge (ModelInt a, ModelInt b, PhysicsModelProperties props, boolean transform) {
-		List<Face> mergedList = new ArrayList<Face>();
-
-		if(transform) {
-			Matrix4f mMatrixA = a.getPhysicsModel().getTransformMatrix();
-			Matrix4f mMatrixB = b.getPhysicsModel().getTransformMatrix();
-
-			for (Face face : a.getFaceList()) {
-				List<VertexData> transformedVertices = new ArrayList<>();
-				for (VertexData v : face.getVertices()) {
-					float[] pos = v.getXYZW();
-					Vector4f position = new Vector4f(pos[0], pos[1], pos[2], pos[3]);
-					Matrix4f.transform(mMatrixA, position, position);
-					transformedVertices.add(new VertexData(v, position));
-				}
-				mergedList.add(new Face(transformedVertices, face.getMaterial()));
-			}
-			for (Face face : b.getFaceList()) {
-				List<VertexData> transformedVertices = new ArrayList<>();
-				for (VertexData v : face.getVertices()) {
-					float[] pos = v.getXYZW();
-					Vector4f position = new Vector4f(pos[0], pos[1], pos[2], pos[3]);
-					Matrix4f.transform(mMatrixB, position, position);
-					transformedVertices.add(new VertexData(v, position));
-				}
-				mergedList.add(new Face(transformedVertices, face.getMaterial()));
-			}
-		} else {
-			mergedList.addAll(a.getFaceList());
-			mergedList.addAll(b.getFaceList());
-		}
-
-		return new ModelInt(mergedList, props);
+		return merge(Arrays.asList(a, b), props, transform);
 	}
 
 	/**
@@ -141,27 +116,28 @@ public class ModelInt extends Model {
 			throw new IllegalArgumentException("Requires a list of size greater than one.");
 		}
 
-		ModelInt mergedModel = merge(modelList, 0, modelList.size() - 1, props);
-
-		return mergedModel;
+		return merge(modelList, props, true);
 	}
 
 	/**
-	 * Divide and conquer the task of merging
+	 * Merges the meshes of the models in one pass (see MeshBuilder.merge), so only the merged
+	 * ModelInt builds a physics shape.
 	 * @param modelList
-	 * @param i
-	 * @param j
 	 * @param props
-	 * @return
+	 * @param transform Whether the models should be transformed in world space first
+	 * @return the merged ModelInt
 	 */
-	private static ModelInt merge(List<ModelInt> modelList, int i, int j, PhysicsModelProperties props) {
-		if(i >= j) {
-			return modelList.get(i); 
-		} else {
-			ModelInt a = merge(modelList, i, i + (j - i) / 2, props);
-			ModelInt b = merge(modelList, i + (j - i) / 2 + 1, j, props);
-			return i - j > 1 ? merge(a, b, props, false) : merge(a, b, props, true);
+	private static ModelInt merge(List<ModelInt> modelList, PhysicsModelProperties props, boolean transform) {
+		List<Mesh> meshes = new ArrayList<>(modelList.size());
+		List<Matrix4f> transforms = transform ? new ArrayList<Matrix4f>(modelList.size()) : null;
+		for (ModelInt model : modelList) {
+			meshes.add(model.getMesh());
+			if (transform) {
+				transforms.add(model.getPhysicsModel().getTransformMatrix());
+			}
 		}
+
+		return new ModelInt(MeshBuilder.merge(meshes, transforms), props);
 	}
 
 	/**
@@ -222,6 +198,37 @@ public class ModelInt extends Model {
 		setupPhysicsModel();
 	}
 
+	/**
+	 * Constructs a ModelInt from a Mesh (a representation of a 3D object).
+	 * @param m The mesh of the ModelInt.
+	 * @param pos The initial position of the ModelInt.
+	 * @param rigidBodyProp Custom physics properties this ModelInt should have.
+	 */
+	public ModelInt(Mesh m, Vector3f pos, PhysicsModelProperties rigidBodyProp) {
+		super(m, pos);
+		this.physicsProps = rigidBodyProp;
+
+		// Set the ID to the hash code
+		uniqueIdColour = ColourUtils.encodeColour(hashCode());
+		uniqueId = ColourUtils.decodeColour(uniqueIdColour.x, uniqueIdColour.y, uniqueIdColour.z);
+		setupPhysicsModel();
+	}
+
+	/**
+	 * Constructs a ModelInt from a Mesh (a representation of a 3D object).
+	 * @param m The mesh of the ModelInt.
+	 * @param rigidBodyProp Custom physics properties this ModelInt should have.
+	 */
+	public ModelInt(Mesh m, PhysicsModelProperties rigidBodyProp) {
+		super(m);
+		this.physicsProps = rigidBodyProp;
+
+		// Set the ID to the hash code
+		uniqueIdColour = ColourUtils.encodeColour(hashCode());
+		uniqueId = ColourUtils.decodeColour(uniqueIdColour.x, uniqueIdColour.y, uniqueIdColour.z);
+		setupPhysicsModel();
+	}
+
 	/**
 	 * Constructs a ModelInt (a representation of a 3D object). This constructor
 	 * uses default physicsmodel properties.
@@ -286,14 +293,8 @@ public class ModelInt extends Model {
 
 
 			// Do bind and draw for each material's faces
-			for(Material material : mapMaterialToFaces.keySet()) {
-				GL30.glBindVertexArray(mapVAOIds.get(material));
-
-				// Bind to the index VBO that has all the information about the order of the vertices
-				GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, mapVBOIndexIds.get(material));
-
-				// Draw the vertices
-				GL11.glDrawElements(GL11.GL_TRIANGLES, mapIndiceCount.get(material), GL11.GL_UNSIGNED_INT, 0);
+			for(Material material : mapVAOIds.keySet()) {
+				drawBatch(material);
 			}
 		}
 	}
@@ -311,7 +312,7 @@ public class ModelInt extends Model {
 	/**
 	 * Render a ModelInt that has already been set up
 	 * @TODO: Make a class for the HashMaps (a struct) - will keep it cleaner
-	 */
+	 */
 	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix) {
 		super.render(parentMatrix, viewMatrix);
 		if(!renderFlag)
@@ -508,12 +509,24 @@ public class ModelInt extends Model {
 	 * @return
 	 */
 	private void setupPhysicsModel() {
-		// Setup the physics object (@TODO: Support for other collision shapes)
+		if (PhysicsModelProperties.COLLISION_SHAPE_TRIANGLE_MESH.equals(physicsProps.getProperty("collisionShape"))) {
+			setupRigidBody(createTriangleMeshShape());
+			return;
+		}
+
+		// Setup the physics object as the convex hull of the vertices
 		ObjectArrayList<javax.vecmath.Vector3f> modelShapePoints = new ObjectArrayList<>();
 
-		for (Face face : faces) {
-			for (VertexData vertex : face.getVertices()) {
-				modelShapePoints.add(new javax.vecmath.Vector3f(vertex.getXYZ()));
+		if (faces.isEmpty() && mesh != null) {
+			float[] positions = mesh.getPositions();
+			for (int i = 0; i < positions.length; i += 3) {
+				modelShapePoints.add(new javax.vecmath.Vector3f(positions[i], positions[i + 1], positions[i + 2]));
+			}
+		} else {
+			for (Face face : faces) {
+				for (VertexData vertex : face.getVertices()) {
+					modelShapePoints.add(new javax.vecmath.Vector3f(vertex.getXYZ()));
+				}
 			}
 		}
 
@@ -523,6 +536,50 @@ public class ModelInt extends Model {
 		// TODO: Optimize convex hull shape by removing unnecessary vertices.
 		// See http://www.bulletphysics.org/mediawiki-1.5.8/index.php/BtShapeHull_vertex_reduction_utility.
 		// The issue is that this simplification takes quite a while.
+		setupRigidBody(modelShape);
+	}
+
+	/**
+	 * Creates the static triangle mesh shape of the Model: every triangle of the mesh (with
+	 * vertices of equal positions shared) in a bounding volume hierarchy.
+	 * @return the shape
+	 */
+	private BvhTriangleMeshShape createTriangleMeshShape() {
+		Mesh shapeMesh = getMesh();
+		VertexWelder welder = new VertexWelder(3, new float[] {0f, 0f, 0f});
+		IntArray indices = new IntArray(shapeMesh.getTriangleCount() * 3);
+		float[] position = new float[3];
+
+		for (MeshBatch batch : shapeMesh.getBatches()) {
+			int[] remap = new int[batch.getVertexCount()];
+			for (int v = 0; v < remap.length; v++) {
+				position[0] = batch.getElement(v, 0);
+				position[1] = batch.getElement(v, 1);
+				position[2] = batch.getElement(v, 2);
+				remap[v] = welder.add(position, 0);
+			}
+			for (int i = 0; i < batch.getIndexCount(); i++) {
+				indices.add(remap[batch.getIndex(i)]);
+			}
+		}
+
+		ByteBuffer indexBytes = BufferUtils.createByteBuffer(indices.size() * 4);
+		indexBytes.asIntBuffer().put(indices.array(), 0, indices.size());
+		FloatArray vertices = welder.getVertices();
+		ByteBuffer vertexBytes = BufferUtils.createByteBuffer(vertices.size() * 4);
+		vertexBytes.asFloatBuffer().put(vertices.array(), 0, vertices.size());
+
+		TriangleIndexVertexArray triangles = new TriangleIndexVertexArray(indices.size() / 3, indexBytes, 12,
+				welder.getVertexCount(), vertexBytes, 12);
+		return new BvhTriangleMeshShape(triangles, true);
+	}
+
+	/**
+	 * Creates the rigid body of the Model with its physics properties.
+	 * @param modelShape
+	 */
+	private void setupRigidBody(CollisionShape modelShape) {
+		boolean triangleMesh = modelShape instanceof BvhTriangleMeshShape;
 
 		// Set up the ModelInt in the initial position
 		MotionState modelMotionState = new DefaultMotionState(new Transform(new javax.vecmath.Matrix4f(new Quat4f(0, 0, 0, 1), 
@@ -531,7 +588,10 @@ public class ModelInt extends Model {
 
 		javax.vecmath.Vector3f modelInertia = new javax.vecmath.Vector3f();
 
-		modelShape.calculateLocalInertia(1.0f, modelInertia);
+		// Triangle meshes can't move, so they have no inertia
+		if (!triangleMesh) {
+			modelShape.calculateLocalInertia(1.0f, modelInertia);
+		}
 		RigidBodyConstructionInfo modelConstructionInfo = new RigidBodyConstructionInfo(1.0f, modelMotionState, modelShape, modelInertia);
 
 		// Retrieve the properties from the PhysicsModelProperties
@@ -541,6 +601,10 @@ public class ModelInt extends Model {
 		modelConstructionInfo.linearDamping = physicsProps.getProperty("linearDamping") == null ? settings.get("physics", "defaultLinearDamping", float.class) : (Float)physicsProps.getProperty("linearDamping");
 		modelConstructionInfo.friction = physicsProps.getProperty("friction") == null ? settings.get("physics", "defaultFriction", float.class) : (Float)physicsProps.getProperty("friction");
 
+		if (triangleMesh && modelConstructionInfo.mass != 0f) {
+			throw new IllegalArgumentException("Triangle mesh collision shapes are only supported for static models (mass 0)");
+		}
+
 		RigidBody modelRigidBody = new RigidBody(modelConstructionInfo);
 		modelRigidBody.setCollisionFlags((Integer) (physicsProps.getProperty("collisionFlags") == null ? modelRigidBody.getCollisionFlags() :
 			physicsProps.getProperty("collisionFlags")));
@@ -558,4 +622,4 @@ public class ModelInt extends Model {
 	public List<Renderable> getChildren() {
 		return Collections.emptyList();
 	}
-}
+}
@@ -20,6 +20,10 @@ public class ModelScene extends Model {
 		super(f);
 	}
 
+	public ModelScene(Mesh m) {
+		super(m);
+	}
+
 	public ModelScene(Model base, Vector3f origin) {
 		super(base, origin);
 	}
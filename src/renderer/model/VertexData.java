@@ -197,7 +197,17 @@ public class VertexData {
 	// Getters	
 	public float[] getElements() {
 		float[] out = new float[VertexData.elementCount];
-		int i = 0;
+		getElements(out, 0);
+		return out;
+	}
+	
+	/**
+	 * Writes the elements (see getElements) into an existing array, without allocating.
+	 * @param out
+	 * @param offset The index the first element is written to.
+	 */
+	public void getElements(float[] out, int offset) {
+		int i = offset;
 		
 		// Insert XYZW elements
 		out[i++] = this.xyzw[0];
@@ -225,8 +235,6 @@ public class VertexData {
 		out[i++] = this.ambRefl[1];
 		out[i++] = this.ambRefl[2];
 		out[i++] = this.specPower;
-		
-		return out;
 	}
 	
 	public float[] getXYZW() {
@@ -281,7 +289,7 @@ public class VertexData {
 			   other.st[1] == this.st[1] &&
 			   other.rgba[0] == this.rgba[0] &&
 			   other.rgba[1] == this.rgba[1] &&
-			   other.rgba[2] == this.rgba[2];
+			   other.rgba[2] == this.rgba[2];
 	}
 	
 	@Override
@@ -289,6 +297,6 @@ public class VertexData {
 		int code = Arrays.hashCode(xyzw);
 		code += Arrays.hashCode(st);
 		code += Arrays.hashCode(rgba);
-		return code;
+		return code;
 	}	
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+package renderer.model;
+
+/**
+ * Vertex layouts a MeshBatch can be stored and uploaded in.
+ *
+ * STANDARD is the VertexData layout (21 floats, including the material terms of the vertex).
+ * COMPACT only stores what changes per vertex: the position as 3 floats, the normal octahedral
+ * encoded in 2 signed normalized shorts and the texture coordinates as 2 half floats (20 bytes).
+ * The material terms (diffuse, specular, ambient, specular power) are set once per draw instead.
+ *
+ * @author Max
+ */
+public enum VertexFormat {
+	STANDARD(VertexData.stride),
+	COMPACT(20);
+
+	// Byte offsets of the COMPACT layout
+	public static final int COMPACT_POSITION_OFFSET = 0;
+	public static final int COMPACT_NORMAL_OFFSET = 12;
+	public static final int COMPACT_TEXTURE_OFFSET = 16;
+
+	private final int stride;
+
+	private VertexFormat(int stride) {
+		this.stride = stride;
+	}
+
+	/**
+	 * @return the size of a vertex in bytes
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Encodes a unit normal with the octahedral mapping, which spends the bits of the two stored
+	 * components evenly over the sphere.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param out Receives the two components as signed normalized shorts.
+	 */
+	public static void encodeNormal(float x, float y, float z, short[] out) {
+		float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		float u = 0f, v = 0f;
+		if (l1 > 0f) {
+			u = x / l1;
+			v = y / l1;
+			if (z < 0f) {
+				float fu = (1f - Math.abs(v)) * (u >= 0f ? 1f : -1f);
+				float fv = (1f - Math.abs(u)) * (v >= 0f ? 1f : -1f);
+				u = fu;
+				v = fv;
+			}
+		}
+		out[0] = toSnorm16(u);
+		out[1] = toSnorm16(v);
+	}
+
+	/**
+	 * Decodes an octahedral encoded normal (the same as the vertex shader does).
+	 * @param u
+	 * @param v
+	 * @param out Receives the normalized xyz.
+	 */
+	public static void decodeNormal(short u, short v, float[] out) {
+		float x = Math.max(u / 32767f, -1f);
+		float y = Math.max(v / 32767f, -1f);
+		float z = 1f - Math.abs(x) - Math.abs(y);
+		if (z < 0f) {
+			float fx = (1f - Math.abs(y)) * (x >= 0f ? 1f : -1f);
+			float fy = (1f - Math.abs(x)) * (y >= 0f ? 1f : -1f);
+			x = fx;
+			y = fy;
+		}
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		out[0] = x / length;
+		out[1] = y / length;
+		out[2] = z / length;
+	}
+
+	/**
+	 * Converts a float to an IEEE 754 half float (round to nearest).
+	 * @param f
+	 * @return the bits of the half float
+	 */
+	public static short toHalfFloat(float f) {
+		int bits = Float.floatToIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int abs = bits & 0x7fffffff;
+		int rounded = abs + 0x1000;
+
+		if (abs >= 0x7f800000) {
+			// Infinity or NaN
+			return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+		}
+		if (rounded >= 0x47800000) {
+			// Too large, becomes infinity
+			return (short) (sign | 0x7c00);
+		}
+		if (rounded >= 0x38800000) {
+			// Normal half float
+			return (short) (sign | ((rounded - 0x38000000) >>> 13));
+		}
+		if (abs < 0x33000000) {
+			// Too small, becomes zero
+			return (short) sign;
+		}
+
+		// Subnormal half float
+		int exponent = abs >>> 23;
+		int mantissa = (abs & 0x7fffff) | 0x800000;
+		return (short) (sign | ((mantissa + (0x800000 >>> (exponent - 102))) >>> (126 - exponent)));
+	}
+
+	/**
+	 * Converts an IEEE 754 half float to a float.
+	 * @param half The bits of the half float.
+	 * @return the float
+	 */
+	public static float fromHalfFloat(short half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+
+		if (exponent == 0x1f) {
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		if (exponent == 0) {
+			float value = mantissa / 16777216f; // 2^-24
+			return sign == 0 ? value : -value;
+		}
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+	private static short toSnorm16(float value) {
+		return (short) Math.round(Math.max(-1f, Math.min(1f, value)) * 32767f);
+	}
+}
@@ -0,0 +1,153 @@
+package renderer.model;
+
+import java.util.Arrays;
+
+import util.FloatArray;
+
+/**
+ * Welds (deduplicates) vertices that are given as packed float data. Each element of a vertex
+ * can be quantized before vertices are compared, so vertices that only differ by rounding errors
+ * are merged. Lookups use an open-addressing int hash table over the stored vertices, so no
+ * objects are created per vertex.
+ *
+ * A welder is not thread-safe.
+ *
+ * @author Max
+ */
+public class VertexWelder {
+	private final int elementCount;
+	private final float[] steps;
+
+	private final FloatArray vertices;
+	private int vertexCount = 0;
+
+	// Hash table of vertex + 1 (0 = empty slot)
+	private int[] table = new int[1024];
+
+	/**
+	 * Creates a welder for vertices in the VertexData layout (see VertexData.getElements).
+	 * @param positionStep Quantization step of the position, 0 to only weld exact matches.
+	 * @param normalStep Quantization step of the normal, 0 to only weld exact matches.
+	 * @param textureStep Quantization step of the texture coordinates, 0 to only weld exact matches.
+	 * @return the welder
+	 */
+	public static VertexWelder forVertexData(float positionStep, float normalStep, float textureStep) {
+		float[] steps = new float[VertexData.elementCount];
+		Arrays.fill(steps, VertexData.positionByteOffset / VertexData.elementBytes,
+				VertexData.colorByteOffset / VertexData.elementBytes, positionStep);
+		Arrays.fill(steps, VertexData.textureByteOffset / VertexData.elementBytes,
+				VertexData.normalByteOffset / VertexData.elementBytes, textureStep);
+		Arrays.fill(steps, VertexData.normalByteOffset / VertexData.elementBytes,
+				VertexData.specularElementByteOffset / VertexData.elementBytes, normalStep);
+		return new VertexWelder(VertexData.elementCount, steps);
+	}
+
+	/**
+	 * Creates a welder.
+	 * @param elementCount The number of floats per vertex.
+	 * @param steps The quantization step of each element (0 to only weld exact matches).
+	 */
+	public VertexWelder(int elementCount, float[] steps) {
+		this.elementCount = elementCount;
+		this.steps = steps.clone();
+		this.vertices = new FloatArray(1024 * elementCount);
+	}
+
+	/**
+	 * Adds a vertex, or finds the vertex it welds with.
+	 * @param vertex The packed vertex data.
+	 * @param offset Offset of the vertex in the array.
+	 * @return the index of the vertex
+	 */
+	public int add(float[] vertex, int offset) {
+		int mask = table.length - 1;
+		int slot = hash(vertex, offset) & mask;
+
+		int entry;
+		while ((entry = table[slot]) != 0) {
+			if (matches(vertex, offset, entry - 1)) {
+				return entry - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int index = vertexCount++;
+		vertices.add(vertex, offset, elementCount);
+		table[slot] = index + 1;
+
+		// Keep the load factor below 1/2.
+		if (vertexCount * 2 > table.length) {
+			rehash();
+		}
+		return index;
+	}
+
+	/**
+	 * @return the number of distinct vertices
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Returns the distinct vertices (the first vertex added of every group of welded vertices).
+	 * @return the packed vertex data
+	 */
+	public FloatArray getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Removes all vertices.
+	 */
+	public void clear() {
+		vertices.clear();
+		vertexCount = 0;
+		Arrays.fill(table, 0);
+	}
+
+	private boolean matches(float[] vertex, int offset, int index) {
+		float[] data = vertices.array();
+		int base = index * elementCount;
+		for (int e = 0; e < elementCount; e++) {
+			if (quantize(vertex[offset + e], e) != quantize(data[base + e], e)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int hash(float[] vertex, int offset) {
+		int h = 0;
+		for (int e = 0; e < elementCount; e++) {
+			h = h * 0x9E3779B1 + quantize(vertex[offset + e], e);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Maps a value to the integer it is compared by.
+	 */
+	private int quantize(float value, int element) {
+		float step = steps[element];
+		if (step > 0f) {
+			return (int) Math.floor(value / step + 0.5f);
+		}
+
+		// Exact comparison (with 0 and -0 being equal)
+		return value == 0f ? 0 : Float.floatToIntBits(value);
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		int mask = table.length - 1;
+		float[] data = vertices.array();
+		for (int index = 0; index < vertexCount; index++) {
+			int slot = hash(data, index * elementCount) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = index + 1;
+		}
+	}
+}
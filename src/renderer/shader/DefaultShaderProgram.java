@@ -45,6 +45,9 @@ public class DefaultShaderProgram extends ShaderProgram {
 		shaderUniformLocations.put("mvMatrix", GL20.glGetUniformLocation(getProgram(), "mvMatrix"));
 		shaderUniformLocations.put("normMatrix", GL20.glGetUniformLocation(getProgram(), "normMatrix"));
 		
+		// Set if the normals of the current mesh are octahedral encoded (see VertexFormat)
+		shaderUniformLocations.put("packedNormals", GL20.glGetUniformLocation(getProgram(), "packedNormals"));
+		
 		// Light uniform location
 		shaderUniformLocations.put("La", GL20.glGetUniformLocation(getProgram(), "La"));
 
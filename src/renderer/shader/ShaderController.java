@@ -89,6 +89,10 @@ public class ShaderController {
 		return uniformLocations.containsKey("normMatrix") ? uniformLocations.get("normMatrix") : -1;
 	}
 	
+	public static int getPackedNormalsLocation(){
+		return uniformLocations.containsKey("packedNormals") ? uniformLocations.get("packedNormals") : -1;
+	}
+	
 	public static int getAmbientLocation(){
 		return uniformLocations.containsKey("La") ? uniformLocations.get("La") : -1;
 	}
@@ -6,6 +6,7 @@ uniform mat4 modelMatrix;
 
 uniform mat4 mvMatrix; // Unused
 uniform mat4 normMatrix;
+uniform bool packedNormals; // Normals are octahedral encoded in in_Normal.xy
 
 in vec4 in_Position;
 in vec4 in_Color;
@@ -87,10 +88,18 @@ vec3 sh_light(vec3 normal, SHC l){
     );
 }
 
+vec3 decodeNormal(vec2 e) {
+    vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (n.z < 0.0) {
+        n.xy = (1.0 - abs(n.yx)) * vec2(n.x >= 0.0 ? 1.0 : -1.0, n.y >= 0.0 ? 1.0 : -1.0);
+    }
+    return n;
+}
+
 void main(void) {
 	mat4 vm = viewMatrix * modelMatrix;
 	posEye = (vm * in_Position).xyz;
-	normEye = normalize(mat3(normMatrix) * in_Normal.xyz);
+	normEye = normalize(mat3(normMatrix) * (packedNormals ? decodeNormal(in_Normal.xy) : in_Normal.xyz));
 	
 	sKs = Ks;
 	sKd = normalize(in_Color.rgb); 
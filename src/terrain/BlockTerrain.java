@@ -1,105 +1,124 @@
 package terrain;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import org.lwjgl.util.vector.Matrix4f;
-import org.lwjgl.util.vector.Vector3f;
-
 import physics.PhysicsModelProperties;
-import renderer.Renderable;
-import renderer.model.Model;
+import renderer.model.Mesh;
 import renderer.model.ModelInt;
-import renderer.model.ModelType;
-import util.Plane;
-import util.Primitives;
-
-import com.bulletphysics.collision.dispatch.CollisionFlags;
 
 /**
- * A 3D block terrain class
+ * A 3D block terrain class. The volume is split into chunks of chunkSize^3 blocks, every chunk
+ * has its own model (and so its own bounding box, culling and rigid body).
+ *
+ * setBlock only marks the chunk of the block (and the chunks next to it if the block is on a
+ * border) dirty. Dirty chunks are remeshed on a pool of mesher threads and the new models are
+ * swapped in on the render thread, so an edit costs one chunk remesh instead of the whole terrain
+ * (see ChunkedTerrain and ChunkGridTerrain).
  * @author Max
  *
  */
-public class BlockTerrain implements Renderable {
-	public Model blockModel;
-
-	private int data [][][];
+public class BlockTerrain extends ChunkGridTerrain {
+	private VoxelVolume data;
 	private int cSize;
-	
+
+	private final GreedyMesher mesher = new GreedyMesher();
+
 	public BlockTerrain(int [][][] data, int cubeSize) {
+		this(VoxelVolume.fromArray(data), cubeSize, DEFAULT_CHUNK_SIZE);
+	}
+
+	public BlockTerrain(VoxelVolume data, int cubeSize) {
+		this(data, cubeSize, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates the terrain, returning once every chunk is meshed.
+	 * @param data The blocks (0 is empty). Use setBlock for changes afterwards.
+	 * @param cubeSize The edge length of a block.
+	 * @param chunkSize The edge length of a chunk in blocks.
+	 */
+	public BlockTerrain(VoxelVolume data, int cubeSize, int chunkSize) {
+		super(data.getSizeX(), data.getSizeY(), data.getSizeZ(), chunkSize);
 		this.data = data;
 		this.cSize = cubeSize;
-		setup();
+		meshChunks();
 	}
-	
-	private void setup() {
-		List<ModelInt> modelsToMerge = new ArrayList<>();
-		ModelInt base = (ModelInt) Primitives.getCube(cSize, ModelType.INTERACTIVE);
-		
-		long start = System.currentTimeMillis();
-		for (int x = 0; x < data.length; x++) {
-			for (int y = 0; y < data[0].length; y++) {
-				for (int z = 0; z < data[0][0].length; z++) {
-					if(data[x][y][z] != 0) { 
-						ModelInt copy = new ModelInt(base, new Vector3f(x * cSize, y * cSize, z * cSize));
-						modelsToMerge.add(copy);
-					}
-				}
-			}
-		}
-		long end = System.currentTimeMillis();
-		System.out.println("Time 1: " + (end - start));
-		
-		PhysicsModelProperties groundProps = new PhysicsModelProperties();
-		groundProps.setProperty("mass", 0f);
-		groundProps.setProperty("restitution", 0.9f);
-		groundProps.setProperty("damping", 0.9f);
-		groundProps.setProperty("collisionFlags", CollisionFlags.STATIC_OBJECT);
-		
-		start = System.currentTimeMillis();
-		this.blockModel = ModelInt.merge(modelsToMerge, groundProps);
-		end = System.currentTimeMillis();
-		System.out.println("Time 2: " + (end - start));
 
+	/**
+	 * Gets a block.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the block type (0 is empty)
+	 */
+	public int getBlock(int x, int y, int z) {
+		return data.get(x, y, z);
 	}
 
-	@Override
-	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix) {
-		blockModel.render(parentMatrix, viewMatrix);
-	}
-	
-	@Override
-	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix, Plane[] frustumPlanes) {
-		blockModel.render(parentMatrix, viewMatrix, frustumPlanes);
+	/**
+	 * Sets a block and queues a remesh of the chunks whose faces it changes. The new models show
+	 * up in a later frame.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param type The block type (0 is empty).
+	 */
+	public void setBlock(int x, int y, int z, int type) {
+		if (data.get(x, y, z) == type) {
+			return;
+		}
+		data.set(x, y, z, type);
+
+		int cx = x / chunkSize, cy = y / chunkSize, cz = z / chunkSize;
+		markDirty(cx, cy, cz);
+
+		// The faces between the block and the blocks of another chunk belong to that chunk
+		int lx = x % chunkSize, ly = y % chunkSize, lz = z % chunkSize;
+		if (lx == 0) markDirty(cx - 1, cy, cz);
+		if (lx == chunkSize - 1) markDirty(cx + 1, cy, cz);
+		if (ly == 0) markDirty(cx, cy - 1, cz);
+		if (ly == chunkSize - 1) markDirty(cx, cy + 1, cz);
+		if (lz == 0) markDirty(cx, cy, cz - 1);
+		if (lz == chunkSize - 1) markDirty(cx, cy, cz + 1);
 	}
 
-	@Override
-	public boolean bind() {
-		return false;
+	/**
+	 * @return the blocks of the terrain (change them with setBlock, so the chunks are remeshed)
+	 */
+	public VoxelVolume getVolume() {
+		return data;
 	}
 
-	@Override
-	public boolean hasChildren() {
-		// TODO Auto-generated method stub
-		return false;
+	/**
+	 * @return if remeshes are queued or running
+	 */
+	public boolean isRemeshing() {
+		return activeTasks.get() > 0;
 	}
 
-	@Override
-	public List<Renderable> getChildren() {
-		// TODO Auto-generated method stub
-		return null;
+	/**
+	 * Swaps in the chunks that finished remeshing: the old models release their buffers and
+	 * rigid bodies. Has to run on the render thread, render does it every frame.
+	 */
+	public void update() {
+		swapRemeshedChunks();
 	}
 
-	@Override
-	public boolean isBound() {
-		// TODO Auto-generated method stub
-		return false;
+	private void markDirty(int cx, int cy, int cz) {
+		TerrainChunk chunk = getChunk(cx, cy, cz);
+		if (chunk != null) {
+			remesh(chunk);
+		}
 	}
 
 	@Override
-	public boolean isCullable(Matrix4f viewMatrix, Matrix4f parentMatrix, Plane[] frustumPlanes) {
-		// TODO Auto-generated method stub
-		return false;
+	protected ModelInt buildModel(TerrainChunk chunk) {
+		int x0 = chunk.x * chunkSize, y0 = chunk.y * chunkSize, z0 = chunk.z * chunkSize;
+		Mesh mesh = mesher.mesh(data, x0, y0, z0,
+				Math.min(chunkSize, sizeX - x0),
+				Math.min(chunkSize, sizeY - y0),
+				Math.min(chunkSize, sizeZ - z0), cSize);
+		if (mesh.getTriangleCount() == 0) {
+			return null;
+		}
+		return new ModelInt(mesh, new PhysicsModelProperties(groundProps));
 	}
 }
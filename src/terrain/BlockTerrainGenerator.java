@@ -1,29 +1,104 @@
 package terrain;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 public class BlockTerrainGenerator {
 
 	public BlockTerrainGenerator(int tSize, int bSize, double sFactor) {
+		this(tSize, bSize, sFactor, SimplexNoise.DEFAULT);
+	}
+	
+	/**
+	 * Creates a generator of the terrain of a noise function, e.g. a seeded SimplexNoise. Noise
+	 * instances are immutable, so generators of different worlds can run at the same time.
+	 * @param tSize The size of the terrain in blocks.
+	 * @param bSize The size of a block.
+	 * @param sFactor The noise value above which a block is solid.
+	 * @param noise The noise the blocks are sampled from.
+	 */
+	public BlockTerrainGenerator(int tSize, int bSize, double sFactor, Noise noise) {
 		this.tSize = tSize;
 		this.bSize = bSize;
 		this.sFactor = sFactor;
+		this.noise = noise;
 	}
 	
 	public BlockTerrain generateTerrain() {
-		int [][][] volume = new int [tSize][tSize][tSize];
-		double xf, yf, zf, val;
-		for(int x = 0; x < volume.length; x++) {
-			for(int y = 0; y < volume[0].length; y++) {
-				for(int z = 0; z < volume[0][0].length; z++) {
-					xf = (double)x / tSize;
-					yf = (double)y / tSize;
-					zf = (double)z / tSize;
-					val = SimplexNoise.simplex(1, xf * 3, yf * 3, zf * 3);
-					volume[x][y][z] = val > sFactor ? 1 : 0; 
-				}
+		long start = System.currentTimeMillis();
+		VoxelVolume volume = generateVolume();
+		System.out.println("Terrain Generation Time: " + (System.currentTimeMillis() - start));
+		return new BlockTerrain(volume, bSize);
+	}
+	
+	/**
+	 * Generates the blocks in parallel on the common ForkJoinPool.
+	 * @return the blocks
+	 */
+	public VoxelVolume generateVolume() {
+		return generateVolume(ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Generates the blocks in parallel slabs along x. The noise coordinates are computed once
+	 * for all rows, and every voxel gets exactly the value the point by point loop would give it,
+	 * so the volume doesn't depend on the number of threads.
+	 * @param pool The pool the slabs run on.
+	 * @return the blocks
+	 */
+	public VoxelVolume generateVolume(ForkJoinPool pool) {
+		VoxelVolume volume = new VoxelVolume(tSize, tSize, tSize);
+		
+		double [] coordinates = noiseCoordinates(0, tSize);
+		pool.invoke(new SlabTask(this, volume, coordinates, 0, tSize));
+		
+		// Sections that ended up all solid or all empty don't need their bits
+		volume.compact();
+		return volume;
+	}
+	
+	/**
+	 * Generates a box of blocks anywhere in the (unbounded) noise field of the terrain, e.g. a
+	 * chunk of a StreamingTerrain. Blocks inside [0, tSize)^3 are the same as in generateVolume.
+	 * @param x0 The first block of the box.
+	 * @param y0
+	 * @param z0
+	 * @param out The volume the box is written to (its size is the size of the box).
+	 */
+	public void generateBox(int x0, int y0, int z0, VoxelVolume out) {
+		double [] xs = noiseCoordinates(x0, out.getSizeX());
+		double [] ys = noiseCoordinates(y0, out.getSizeY());
+		double [] zs = noiseCoordinates(z0, out.getSizeZ());
+		int [] row = new int [zs.length];
+		float [] values = new float [zs.length];
+		for(int x = 0; x < xs.length; x++) {
+			for(int y = 0; y < ys.length; y++) {
+				fillRow(xs[x], ys[y], zs, values, row);
+				out.setRow(x, y, 0, row, row.length);
 			}
 		}
-		
-		return new BlockTerrain(volume, bSize);
+		out.compact();
+	}
+	
+	/**
+	 * The noise coordinates of a run of block indices (the same for all axes).
+	 */
+	private double [] noiseCoordinates(int first, int count) {
+		double [] coordinates = new double [count];
+		for(int i = 0; i < count; i++) {
+			coordinates[i] = (double)(first + i) / tSize * 3;
+		}
+		return coordinates;
+	}
+	
+	/**
+	 * Generates a row of blocks along z, sampling the whole row at once (see Noise.sampleRow).
+	 */
+	private void fillRow(double x, double y, double [] zs, float [] values, int [] row) {
+		noise.sampleRow(1, 1f, x, y, zs, values, zs.length);
+		for(int z = 0; z < zs.length; z++) {
+			row[z] = values[z] > sFactor ? 1 : 0;
+		}
 	}
 	
 	public void setTerrainSize(int tSize) {
@@ -38,7 +113,49 @@ public class BlockTerrainGenerator {
 		this.sFactor = sFactor;
 	}
 	
+	/**
+	 * Fills the blocks [from, to) along x, split into slabs of whole VoxelVolume sections.
+	 */
+	private static class SlabTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final BlockTerrainGenerator generator;
+		private final VoxelVolume volume;
+		private final double [] coordinates;
+		private final int from;
+		private final int to;
+		
+		SlabTask(BlockTerrainGenerator generator, VoxelVolume volume, double [] coordinates, int from, int to) {
+			this.generator = generator;
+			this.volume = volume;
+			this.coordinates = coordinates;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if(to - from > VoxelVolume.SECTION_SIZE) {
+				int middle = (from + (to - from) / 2) / VoxelVolume.SECTION_SIZE * VoxelVolume.SECTION_SIZE;
+				middle = Math.max(middle, from + VoxelVolume.SECTION_SIZE);
+				invokeAll(new SlabTask(generator, volume, coordinates, from, middle), new SlabTask(generator, volume, coordinates, middle, to));
+				return;
+			}
+			
+			int size = coordinates.length;
+			int [] row = new int [size];
+			float [] values = new float [size];
+			for(int x = from; x < to; x++) {
+				for(int y = 0; y < size; y++) {
+					generator.fillRow(coordinates[x], coordinates[y], coordinates, values, row);
+					volume.setRow(x, y, 0, row, size);
+				}
+			}
+		}
+	}
+	
 	private int tSize;
 	private int bSize;
 	private double sFactor;
+	private final Noise noise;
 }
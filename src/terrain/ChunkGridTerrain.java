@@ -0,0 +1,126 @@
+package terrain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import renderer.model.ModelInt;
+
+/**
+ * A ChunkedTerrain over a fixed box starting at the origin, split into chunks of chunkSize^3
+ * cells (the chunks on the far sides may be smaller). All chunks are meshed up front by
+ * meshChunks, which the subclasses call once they can build models.
+ *
+ * @author Max
+ */
+abstract class ChunkGridTerrain extends ChunkedTerrain<TerrainChunk> {
+	public static final int DEFAULT_CHUNK_SIZE = 32;
+
+	// The size of the box in cells
+	protected final int sizeX;
+	protected final int sizeY;
+	protected final int sizeZ;
+
+	protected final int chunkSize;
+	protected final int chunkCountX;
+	protected final int chunkCountY;
+	protected final int chunkCountZ;
+	private final TerrainChunk[] chunks;
+	private final List<TerrainChunk> chunkList;
+
+	/**
+	 * @param sizeX The size of the box in cells.
+	 * @param sizeY
+	 * @param sizeZ
+	 * @param chunkSize The edge length of a chunk in cells.
+	 */
+	protected ChunkGridTerrain(int sizeX, int sizeY, int sizeZ, int chunkSize) {
+		super(Long.MAX_VALUE);
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.chunkSize = chunkSize;
+		this.chunkCountX = (sizeX + chunkSize - 1) / chunkSize;
+		this.chunkCountY = (sizeY + chunkSize - 1) / chunkSize;
+		this.chunkCountZ = (sizeZ + chunkSize - 1) / chunkSize;
+		this.chunks = new TerrainChunk[chunkCountX * chunkCountY * chunkCountZ];
+		this.chunkList = Arrays.asList(chunks);
+		for (int x = 0; x < chunkCountX; x++) {
+			for (int y = 0; y < chunkCountY; y++) {
+				for (int z = 0; z < chunkCountZ; z++) {
+					chunks[chunkIndex(x, y, z)] = new TerrainChunk(x, y, z);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Meshes all chunks in parallel and returns once they are done.
+	 */
+	protected void meshChunks() {
+		long start = System.currentTimeMillis();
+		List<Callable<ModelInt>> tasks = new ArrayList<>(chunks.length);
+		for (final TerrainChunk chunk : chunks) {
+			tasks.add(new Callable<ModelInt>() {
+				@Override
+				public ModelInt call() {
+					return buildModel(chunk);
+				}
+			});
+		}
+
+		int triangles = 0;
+		try {
+			List<Future<ModelInt>> models = getMesherPool().invokeAll(tasks);
+			for (int i = 0; i < chunks.length; i++) {
+				ModelInt model = models.get(i).get();
+				chunks[i].setModel(model);
+				addChunk(chunks[i]);
+				triangles += model == null ? 0 : model.getMesh().getTriangleCount();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException("Failed to mesh the terrain", e);
+		}
+		System.out.println("Terrain Meshing Time: " + (System.currentTimeMillis() - start) + " (" + chunks.length + " chunks, " + triangles + " triangles)");
+	}
+
+	/**
+	 * Gets the model of a chunk.
+	 * @param chunkX The position of the chunk in chunks.
+	 * @param chunkY
+	 * @param chunkZ
+	 * @return the model (null if the chunk has no triangles)
+	 */
+	public ModelInt getChunkModel(int chunkX, int chunkY, int chunkZ) {
+		return getChunk(chunkX, chunkY, chunkZ).getModel();
+	}
+
+	/**
+	 * @return the edge length of a chunk in cells
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return the chunk (null if it is outside of the box)
+	 */
+	protected TerrainChunk getChunk(int chunkX, int chunkY, int chunkZ) {
+		if (chunkX < 0 || chunkY < 0 || chunkZ < 0 || chunkX >= chunkCountX || chunkY >= chunkCountY || chunkZ >= chunkCountZ) {
+			return null;
+		}
+		return chunks[chunkIndex(chunkX, chunkY, chunkZ)];
+	}
+
+	@Override
+	protected Iterable<TerrainChunk> getChunks() {
+		return chunkList;
+	}
+
+	private int chunkIndex(int x, int y, int z) {
+		return (x * chunkCountY + y) * chunkCountZ + z;
+	}
+}
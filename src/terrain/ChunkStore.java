@@ -0,0 +1,183 @@
+package terrain;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of region files (see RegionFile) that chunk volumes are saved to and loaded from.
+ * Only the regions that are used are opened, so the time to load a chunk doesn't depend on how
+ * much of the world is saved. The least recently used regions are closed once more than
+ * MAX_OPEN_REGIONS are open (a region that is being read or written is closed when it is done).
+ *
+ * The store only locks to look a region up, every region locks on its own, so chunks of
+ * different regions load and save in parallel.
+ *
+ * @author Max
+ */
+public class ChunkStore implements Closeable {
+	public static final int MAX_OPEN_REGIONS = 16;
+
+	private final File directory;
+	private final int volumeSize;
+	private final LinkedHashMap<String, Region> regions = new LinkedHashMap<>(16, 0.75f, true);
+
+	// Regions past the open limit that are still in use
+	private final Map<String, Region> closingRegions = new HashMap<>();
+
+	/**
+	 * Opens a chunk store.
+	 * @param directory The directory of the region files (created if it doesn't exist).
+	 * @param volumeSize The edge length of the chunk volumes.
+	 * @throws IOException if the directory can't be created
+	 */
+	public ChunkStore(File directory, int volumeSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the directory \"" + directory.getAbsolutePath() + "\".");
+		}
+		this.directory = directory;
+		this.volumeSize = volumeSize;
+	}
+
+	/**
+	 * @return the edge length of the chunk volumes
+	 */
+	public int getVolumeSize() {
+		return volumeSize;
+	}
+
+	/**
+	 * Checks if a chunk is saved.
+	 * @param chunkX The position of the chunk in chunks.
+	 * @param chunkY
+	 * @param chunkZ
+	 * @return if the chunk is saved
+	 * @throws IOException
+	 */
+	public boolean contains(int chunkX, int chunkY, int chunkZ) throws IOException {
+		Region region = acquire(chunkX, chunkY, chunkZ, false);
+		if (region == null) {
+			return false;
+		}
+		try {
+			return region.file.contains(RegionFile.chunkIndex(chunkX, chunkY, chunkZ));
+		} finally {
+			release(region);
+		}
+	}
+
+	/**
+	 * Loads a chunk.
+	 * @param chunkX The position of the chunk in chunks.
+	 * @param chunkY
+	 * @param chunkZ
+	 * @param out The volume the chunk is written to.
+	 * @return false if the chunk isn't saved
+	 * @throws IOException
+	 */
+	public boolean load(int chunkX, int chunkY, int chunkZ, VoxelVolume out) throws IOException {
+		Region region = acquire(chunkX, chunkY, chunkZ, false);
+		if (region == null) {
+			return false;
+		}
+		try {
+			return region.file.read(RegionFile.chunkIndex(chunkX, chunkY, chunkZ), out);
+		} finally {
+			release(region);
+		}
+	}
+
+	/**
+	 * Saves a chunk.
+	 * @param chunkX The position of the chunk in chunks.
+	 * @param chunkY
+	 * @param chunkZ
+	 * @param volume The chunk.
+	 * @throws IOException
+	 */
+	public void save(int chunkX, int chunkY, int chunkZ, VoxelVolume volume) throws IOException {
+		Region region = acquire(chunkX, chunkY, chunkZ, true);
+		try {
+			region.file.write(RegionFile.chunkIndex(chunkX, chunkY, chunkZ), volume);
+		} finally {
+			release(region);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for (Region region : regions.values()) {
+			region.file.close();
+		}
+		for (Region region : closingRegions.values()) {
+			region.file.close();
+		}
+		regions.clear();
+		closingRegions.clear();
+	}
+
+	/**
+	 * Gets the region of a chunk, opening it if needed, and marks it in use.
+	 * @param create If the region file should be created if it doesn't exist.
+	 * @return the region (null if it doesn't exist and create is false)
+	 */
+	private synchronized Region acquire(int chunkX, int chunkY, int chunkZ, boolean create) throws IOException {
+		String name = "r." + Math.floorDiv(chunkX, RegionFile.REGION_SIZE) + "." + Math.floorDiv(chunkY, RegionFile.REGION_SIZE)
+				+ "." + Math.floorDiv(chunkZ, RegionFile.REGION_SIZE) + ".region";
+		Region region = regions.get(name);
+		if (region == null) {
+			// Still open if it was closed while in use, there must only be one RegionFile per file
+			region = closingRegions.remove(name);
+			if (region == null) {
+				File path = new File(directory, name);
+				if (!create && !path.isFile()) {
+					return null;
+				}
+				region = new Region(name, new RegionFile(path, volumeSize, volumeSize, volumeSize));
+			}
+			regions.put(name, region);
+
+			if (regions.size() > MAX_OPEN_REGIONS) {
+				Iterator<Region> eldest = regions.values().iterator();
+				Region closed = eldest.next();
+				eldest.remove();
+				if (closed.users == 0) {
+					closed.file.close();
+				} else {
+					closingRegions.put(closed.name, closed);
+				}
+			}
+		}
+		region.users++;
+		return region;
+	}
+
+	/**
+	 * Marks a region as no longer in use by the caller, closing it if it was closed meanwhile.
+	 */
+	private synchronized void release(Region region) throws IOException {
+		region.users--;
+		if (region.users == 0 && closingRegions.get(region.name) == region) {
+			closingRegions.remove(region.name);
+			region.file.close();
+		}
+	}
+
+	/**
+	 * An open region file and the number of loads and saves using it.
+	 */
+	private static class Region {
+		final String name;
+		final RegionFile file;
+		int users = 0;
+
+		Region(String name, RegionFile file) {
+			this.name = name;
+			this.file = file;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package terrain;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lwjgl.util.vector.Matrix4f;
+
+import physics.PhysicsContainer;
+import physics.PhysicsModelProperties;
+import renderer.Renderable;
+import renderer.model.ModelInt;
+import util.Plane;
+
+import com.bulletphysics.collision.dispatch.CollisionFlags;
+import com.bulletphysics.dynamics.DynamicsWorld;
+
+/**
+ * The parts shared by the terrains made of chunks (BlockTerrain, StreamingTerrain and
+ * SmoothTerrain): every chunk has its own model, and so its own bounding box, culling and rigid
+ * body. The subclasses only mesh the chunks (see buildModel).
+ *
+ * Models built on the mesher threads are taken over on the render thread with addChunk, which
+ * adds their rigid bodies and queues their uploads. Uploads run at the start of every frame until
+ * the upload budget is used up. Chunks passed to remesh are remeshed on the mesher threads and
+ * swapped in with swapRemeshedChunks.
+ *
+ * @author Max
+ */
+abstract class ChunkedTerrain<C extends TerrainChunk> implements Renderable, PhysicsContainer {
+	private static final Object mesherPoolLock = new Object();
+	private static ExecutorService mesherPool = null;
+
+	protected final PhysicsModelProperties groundProps;
+
+	// Mesher tasks that are queued or running
+	protected final AtomicInteger activeTasks = new AtomicInteger();
+
+	// Chunks with a finished remesh, and chunks waiting for the upload of their model
+	private final ConcurrentLinkedQueue<C> remeshedChunks = new ConcurrentLinkedQueue<>();
+	private final ArrayDeque<C> uploadQueue = new ArrayDeque<>();
+	private final long uploadBudget;
+
+	// The physics world the rigid bodies of the chunks are in (null if not added to a World)
+	private DynamicsWorld dynamicsWorld = null;
+
+	/**
+	 * @param uploadBudget The nanoseconds per frame that can be spent uploading chunks (at least one
+	 * chunk is uploaded per frame), Long.MAX_VALUE to upload every chunk when it is first rendered.
+	 */
+	protected ChunkedTerrain(long uploadBudget) {
+		this.uploadBudget = uploadBudget;
+
+		groundProps = new PhysicsModelProperties();
+		groundProps.setProperty("mass", 0f);
+		groundProps.setProperty("restitution", 0.9f);
+		groundProps.setProperty("damping", 0.9f);
+		groundProps.setProperty("collisionFlags", CollisionFlags.STATIC_OBJECT);
+		groundProps.setProperty("collisionShape", PhysicsModelProperties.COLLISION_SHAPE_TRIANGLE_MESH);
+	}
+
+	/**
+	 * @return the chunks that may be rendered, in rendering order
+	 */
+	protected abstract Iterable<C> getChunks();
+
+	/**
+	 * Meshes a chunk (on any thread, the model is not bound).
+	 * @return the model (null if the chunk has no triangles)
+	 */
+	protected abstract ModelInt buildModel(C chunk);
+
+	/**
+	 * @return if the render thread took the chunk over and it is still part of the terrain
+	 */
+	protected boolean isActive(C chunk) {
+		return true;
+	}
+
+	/**
+	 * Takes over the model of a chunk: adds its rigid body and queues its upload. Has to run on
+	 * the render thread.
+	 */
+	protected void addChunk(C chunk) {
+		ModelInt model = chunk.getModel();
+		if (model == null) {
+			return;
+		}
+		if (dynamicsWorld != null) {
+			dynamicsWorld.addRigidBody(model.getPhysicsModel().getRigidBody());
+		}
+		uploadQueue.add(chunk);
+	}
+
+	/**
+	 * Removes the rigid body of the model of a chunk and releases its buffers. Has to run on the
+	 * render thread.
+	 */
+	protected void removeChunk(C chunk) {
+		ModelInt model = chunk.getModel();
+		if (model == null) {
+			return;
+		}
+		if (dynamicsWorld != null) {
+			dynamicsWorld.removeRigidBody(model.getPhysicsModel().getRigidBody());
+		}
+		model.release();
+	}
+
+	/**
+	 * Replaces the model of a chunk (see addChunk and removeChunk).
+	 * @param model The new model (null if the chunk has no triangles).
+	 */
+	protected void setChunkModel(C chunk, ModelInt model) {
+		removeChunk(chunk);
+		chunk.setModel(model);
+		addChunk(chunk);
+	}
+
+	/**
+	 * Queues a remesh of a chunk on the mesher threads, the new model is swapped in by a later
+	 * swapRemeshedChunks.
+	 */
+	protected void remesh(final C chunk) {
+		chunk.version.incrementAndGet();
+
+		// One queued remesh per chunk is enough, it reads the version when it starts
+		if (!chunk.queued.compareAndSet(false, true)) {
+			return;
+		}
+		activeTasks.incrementAndGet();
+		getMesherPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					chunk.queued.set(false);
+					if (!isActive(chunk)) {
+						return;
+					}
+					int version = chunk.version.get();
+					if (chunk.setRemeshed(version, buildModel(chunk))) {
+						remeshedChunks.add(chunk);
+					}
+				} finally {
+					activeTasks.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Swaps in the chunks that finished remeshing: the old models release their buffers and
+	 * rigid bodies. Has to run on the render thread, render does it every frame.
+	 */
+	protected void swapRemeshedChunks() {
+		C chunk;
+		while ((chunk = remeshedChunks.poll()) != null) {
+			if (isActive(chunk) && chunk.hasRemeshed()) {
+				setChunkModel(chunk, chunk.takeRemeshed());
+			}
+		}
+	}
+
+	/**
+	 * Creates the OpenGL buffers of the queued chunks, in the order they were queued, until the
+	 * upload budget of the frame is used up.
+	 */
+	private void upload() {
+		long start = System.nanoTime();
+		C chunk;
+		while ((chunk = uploadQueue.poll()) != null) {
+			// A chunk is queued again when it is remeshed before its upload
+			if (!isActive(chunk) || chunk.getModel() == null || chunk.getModel().isBound()) {
+				continue;
+			}
+			chunk.getModel().bind();
+			if (System.nanoTime() - start > uploadBudget) {
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void setDynamicsWorld(DynamicsWorld dynamicsWorld) {
+		for (C chunk : getChunks()) {
+			ModelInt model = chunk.getModel();
+			if (model == null || !isActive(chunk)) {
+				continue;
+			}
+			if (this.dynamicsWorld != null) {
+				this.dynamicsWorld.removeRigidBody(model.getPhysicsModel().getRigidBody());
+			}
+			if (dynamicsWorld != null) {
+				dynamicsWorld.addRigidBody(model.getPhysicsModel().getRigidBody());
+			}
+		}
+		this.dynamicsWorld = dynamicsWorld;
+	}
+
+	/**
+	 * @return the daemon threads chunks are generated and meshed on
+	 */
+	static ExecutorService getMesherPool() {
+		synchronized (mesherPoolLock) {
+			if (mesherPool == null) {
+				int threadCount = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+				mesherPool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "TerrainMesher-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return mesherPool;
+		}
+	}
+
+	@Override
+	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix) {
+		swapRemeshedChunks();
+		upload();
+		for (C chunk : getChunks()) {
+			ModelInt model = chunk.getModel();
+			if (model != null && model.isBound()) {
+				model.render(parentMatrix, viewMatrix);
+			}
+		}
+	}
+
+	@Override
+	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix, Plane[] frustumPlanes) {
+		swapRemeshedChunks();
+		upload();
+		for (C chunk : getChunks()) {
+			// Every chunk is culled by its own bounding box
+			ModelInt model = chunk.getModel();
+			if (model != null && model.isBound()) {
+				model.render(parentMatrix, viewMatrix, frustumPlanes);
+			}
+		}
+	}
+
+	@Override
+	public boolean bind() {
+		return false;
+	}
+
+	@Override
+	public boolean hasChildren() {
+		return false;
+	}
+
+	@Override
+	public List<Renderable> getChildren() {
+		return null;
+	}
+
+	@Override
+	public boolean isBound() {
+		// The chunks are bound when they are uploaded
+		return true;
+	}
+
+	@Override
+	public boolean isCullable(Matrix4f viewMatrix, Matrix4f parentMatrix, Plane[] frustumPlanes) {
+		return false;
+	}
+}
@@ -0,0 +1,29 @@
+package terrain;
+
+/**
+ * A scalar field over space whose isosurface is a smooth terrain (see MarchingCubesMesher).
+ * Points with a density above the iso level are solid. Fields are sampled from several mesher
+ * threads at once, so they have to be thread safe.
+ *
+ * @author Max
+ */
+public interface DensityField {
+
+	/**
+	 * @param x The world position.
+	 * @param y
+	 * @param z
+	 * @return the density
+	 */
+	public float getDensity(float x, float y, float z);
+
+	/**
+	 * Computes the unit normal of the isosurface through a point, pointing down the gradient
+	 * (from solid to empty space).
+	 * @param x The world position.
+	 * @param y
+	 * @param z
+	 * @param normal The normal is written to normal[0..2].
+	 */
+	public void getNormal(float x, float y, float z, float[] normal);
+}
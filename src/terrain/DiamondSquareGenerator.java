@@ -1,98 +1,222 @@
 package terrain;
 
-import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Generates a random 2D grid using diamond square
+ *
+ * Every stride level is a diamond pass (the centres of the squares) followed by a square pass
+ * (the midpoints of their edges). The points of a pass only read points of earlier passes, so
+ * each pass is split into rows on a ForkJoinPool. The random offset of a point is a hash of the
+ * seed and its position instead of a shared Random, so the heights only depend on the seed and
+ * not on the number of threads.
  * @author Max
  *
  */
 public class DiamondSquareGenerator extends TerrainGenerator {
+	// Passes are split until a task has fewer points than this
+	private static final int MIN_TASK_POINTS = 1 << 14;
 
 	public DiamondSquareGenerator(int size, int minHeight, int maxHeight, double roughness) {
+		this(size, minHeight, maxHeight, roughness, System.nanoTime());
+	}
+
+	/**
+	 * @param size The number of points along each side, 2^n + 1.
+	 * @param minHeight The range of the corner heights.
+	 * @param maxHeight
+	 * @param roughness The random offsets shrink by 2^roughness every stride level.
+	 * @param seed
+	 */
+	public DiamondSquareGenerator(int size, int minHeight, int maxHeight, double roughness, long seed) {
+		if(size < 2 || Integer.bitCount(size - 1) != 1) {
+			throw new IllegalArgumentException("The size must be 2^n + 1, not " + size + ".");
+		}
 		this.size = size;
 		this.minHeight = minHeight;
 		this.maxHeight = maxHeight;
 		this.roughness = Math.pow(2, roughness);
-		this.grid = new int[size][size];
+		this.seed = seed;
 	}
-	
+
 	@Override
 	public Terrain generateTerrain() {
-		int h = maxHeight - minHeight;
-	    Random rand = new Random();
-	    
-	    // Seed the corners
-	    grid[0][0] = rand.nextInt(h + 1) + minHeight;
-	    grid[0][size - 1] = rand.nextInt(h + 1) + minHeight;
-	    grid[size - 1][0] = rand.nextInt(h + 1) + minHeight;
-	    grid[size - 1][size - 1] = rand.nextInt(h + 1) + minHeight;
-	    
-		for(int stride = (size - 1) / 2; stride > 0; stride /= 2, h /= roughness) {
+		long start = System.currentTimeMillis();
+		float [] heights = generateHeights();
+		System.out.println("Terrain Generation Time: " + (System.currentTimeMillis() - start));
+		return new Terrain(heights, size, cellSize);
+	}
+
+	/**
+	 * Generates the heights in parallel on the common ForkJoinPool.
+	 * @return the heights, size * size with the height of (x, z) at x * size + z
+	 */
+	public float [] generateHeights() {
+		return generateHeights(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Generates the heights.
+	 * @param pool The pool the passes run on.
+	 * @return the heights, size * size with the height of (x, z) at x * size + z
+	 */
+	public float [] generateHeights(ForkJoinPool pool) {
+		float [] grid = new float [size * size];
+		int last = size - 1;
+
+		// Seed the corners
+		float range = maxHeight - minHeight;
+		grid[index(0, 0)] = minHeight + range * random(0, 0);
+		grid[index(0, last)] = minHeight + range * random(0, last);
+		grid[index(last, 0)] = minHeight + range * random(last, 0);
+		grid[index(last, last)] = minHeight + range * random(last, last);
+
+		float h = range / 2;
+		for(int stride = last / 2; stride > 0; stride /= 2, h /= roughness) {
 			//1. Diamond
-			for(int x = stride; x < size - 1; x += stride * 2) {
-				for(int z = stride; z < size - 1; z += stride * 2) {
-					diamond(x, z, stride, h, rand);
-				}
-			}
-			
+			pool.invoke(new PassTask(this, grid, stride, h, true, 0, last / (stride * 2)));
+
 			//2. Square
-			boolean flag = false;
-			for(int z = 0; z < size; z += stride) {
-				int start =  flag ? 0 : stride;
-				flag = !flag;
-				for(int x = start; x < size; x += stride) {
-					if(grid[x][z] == 0) {
-						square(x, z, stride, h, rand);
-					}	
-				}
-			}
+			pool.invoke(new PassTask(this, grid, stride, h, false, 0, last / stride + 1));
 		}
-		
-		return null;
+
+		return grid;
 	}
-	
+
+	public void setCellSize(float cellSize) {
+		this.cellSize = cellSize;
+	}
+
 	@Override
 	public String toString() {
-		StringBuilder sb = new StringBuilder();
-		for(int i = 0; i < grid.length; i++) {
-			for(int j = 0; j < grid[0].length; j++) {
-				sb.append(" " + grid[i][j] + " ");
-			}
-			sb.append("\n");
-		}
-		return sb.toString();
+		// Only the parameters, the heights are as expensive as generating the terrain
+		return "DiamondSquareGenerator [size=" + size + ", minHeight=" + minHeight + ", maxHeight=" + maxHeight
+				+ ", roughness=" + Math.log(roughness) / Math.log(2) + ", seed=" + seed + ", cellSize=" + cellSize + "]";
+	}
+
+	private int index(int x, int z) {
+		return x * size + z;
+	}
+
+	/**
+	 * The random value in [0, 1) of a point, a SplitMix64 hash of the seed and the position.
+	 */
+	private float random(int x, int z) {
+		long h = seed + (x * (long)size + z + 1) * 0x9E3779B97F4A7C15L;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h ^= h >>> 31;
+		return (h >>> 40) * 0x1.0p-24f;
 	}
-	
-	private void diamond(int x, int z, int stride, int h, Random rand) {
-		int average = grid[x - stride][z - stride] + 
-				grid[x - stride][z + stride] +
-				grid[x + stride][z - stride] +
-				grid[x + stride][z + stride];
-		
-		grid[x][z] = (average / 4) + (rand.nextInt(h + 1) + minHeight);
+
+	private void diamond(float [] grid, int x, int z, int stride, float h) {
+		float average = (grid[index(x - stride, z - stride)] +
+				grid[index(x - stride, z + stride)] +
+				grid[index(x + stride, z - stride)] +
+				grid[index(x + stride, z + stride)]) / 4;
+
+		grid[index(x, z)] = average + h * (2 * random(x, z) - 1);
 	}
-	
-	private void square(int x, int z, int stride, int h, Random rand) {
-		int average = grid[(x - stride + (size - 1)) % (size - 1)][z] + 
-				grid[x][(z + stride + (size - 1)) % (size - 1)] +
-				grid[(x + stride + (size - 1)) % (size - 1)][z] +
-				grid[x][(z + stride + (size - 1)) % (size - 1)];
-
-		grid[x][z] = (average / 4) + (rand.nextInt(h + 1) + minHeight);
+
+	/**
+	 * On the sides of the grid only the 3 neighbours inside it are averaged.
+	 */
+	private void square(float [] grid, int x, int z, int stride, float h) {
+		float sum = 0;
+		int count = 0;
+		if(x >= stride) {
+			sum += grid[index(x - stride, z)];
+			count++;
+		}
+		if(x + stride < size) {
+			sum += grid[index(x + stride, z)];
+			count++;
+		}
+		if(z >= stride) {
+			sum += grid[index(x, z - stride)];
+			count++;
+		}
+		if(z + stride < size) {
+			sum += grid[index(x, z + stride)];
+			count++;
+		}
+
+		grid[index(x, z)] = sum / count + h * (2 * random(x, z) - 1);
 	}
-	
+
 	public static void main(String[] args) {
-		TerrainGenerator tg = new DiamondSquareGenerator(5, 0, 10, 0.5);
-		tg.generateTerrain();
+		DiamondSquareGenerator tg = new DiamondSquareGenerator(5, 0, 10, 0.5);
 		System.out.println(tg);
+		float [] grid = tg.generateHeights();
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < tg.size; i++) {
+			for(int j = 0; j < tg.size; j++) {
+				sb.append(String.format(" %.1f ", grid[tg.index(i, j)]));
+			}
+			sb.append("\n");
+		}
+		System.out.print(sb);
+	}
+
+	/**
+	 * Runs rows [from, to) of a diamond or square pass. Diamond row r holds the square centres
+	 * at x = stride + 2 * r * stride, square row r the edge midpoints at x = r * stride.
+	 */
+	private static class PassTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final DiamondSquareGenerator generator;
+		private final float [] grid;
+		private final int stride;
+		private final float h;
+		private final boolean diamond;
+		private final int from;
+		private final int to;
+
+		PassTask(DiamondSquareGenerator generator, float [] grid, int stride, float h, boolean diamond, int from, int to) {
+			this.generator = generator;
+			this.grid = grid;
+			this.stride = stride;
+			this.h = h;
+			this.diamond = diamond;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int rowPoints = generator.size / stride;
+			if(to - from > 1 && (long)(to - from) * rowPoints > MIN_TASK_POINTS) {
+				int middle = from + (to - from) / 2;
+				invokeAll(new PassTask(generator, grid, stride, h, diamond, from, middle),
+						new PassTask(generator, grid, stride, h, diamond, middle, to));
+				return;
+			}
+
+			int size = generator.size;
+			for(int r = from; r < to; r++) {
+				if(diamond) {
+					int x = stride + 2 * r * stride;
+					for(int z = stride; z < size - 1; z += stride * 2) {
+						generator.diamond(grid, x, z, stride, h);
+					}
+				} else {
+					// Rows through square centres start at z = 0, the others between them
+					int x = r * stride;
+					for(int z = r % 2 == 0 ? stride : 0; z < size; z += stride * 2) {
+						generator.square(grid, x, z, stride, h);
+					}
+				}
+			}
+		}
 	}
 
 	private int size;
 	private int minHeight;
 	private int maxHeight;
 	private double roughness;
-	private int [][] grid;
-	
-}
+	private long seed;
+	private float cellSize = 1;
 
+}
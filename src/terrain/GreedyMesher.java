@@ -0,0 +1,304 @@
+package terrain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.BufferUtils;
+
+import renderer.model.BoundingBox;
+import renderer.model.Mesh;
+import renderer.model.MeshBatch;
+import renderer.model.VertexData;
+import texture.Material;
+import util.FloatArray;
+import util.IntArray;
+
+/**
+ * Builds the Mesh of a block volume. Only faces between a solid block and an empty one are
+ * emitted, and coplanar faces of the same block type are merged into maximal rectangles
+ * (greedy meshing), so a flat wall of any size becomes two triangles.
+ *
+ * A voxel value of 0 is empty, any other value is a block type. Block (x, y, z) is a cube of
+ * blockSize centred on (x, y, z) * blockSize (the same as a Primitives cube at that position).
+ * Vertices are written straight into the buffers of the Mesh, one batch per material.
+ *
+ * @author Max
+ */
+public class GreedyMesher {
+	private final Material defaultMaterial;
+	private final Map<Integer, Material> materials = new HashMap<>();
+
+	/**
+	 * Creates a mesher that draws every block type with the default material.
+	 */
+	public GreedyMesher() {
+		this(new Material());
+	}
+
+	/**
+	 * Creates a mesher.
+	 * @param defaultMaterial The material of block types without their own material.
+	 */
+	public GreedyMesher(Material defaultMaterial) {
+		this.defaultMaterial = defaultMaterial;
+	}
+
+	/**
+	 * Sets the material of a block type.
+	 * @param type
+	 * @param material
+	 */
+	public void setMaterial(int type, Material material) {
+		materials.put(type, material);
+	}
+
+	/**
+	 * Meshes a whole volume.
+	 * @param volume The voxels, indexed [x][y][z].
+	 * @param blockSize The edge length of a block.
+	 * @return the mesh
+	 */
+	public Mesh mesh(int[][][] volume, float blockSize) {
+		return mesh(volume, 0, 0, 0, volume.length, volume[0].length, volume[0][0].length, blockSize);
+	}
+
+	/**
+	 * Meshes a whole volume.
+	 * @param volume
+	 * @param blockSize The edge length of a block.
+	 * @return the mesh
+	 */
+	public Mesh mesh(VoxelVolume volume, float blockSize) {
+		return mesh(volume, 0, 0, 0, volume.getSizeX(), volume.getSizeY(), volume.getSizeZ(), blockSize);
+	}
+
+	/**
+	 * Meshes a box of a volume. Blocks outside the box (but inside the volume) still hide the
+	 * faces of the blocks next to them.
+	 * @param volume The voxels, indexed [x][y][z].
+	 * @param x0 The first block of the box.
+	 * @param y0
+	 * @param z0
+	 * @param sizeX The size of the box in blocks.
+	 * @param sizeY
+	 * @param sizeZ
+	 * @param blockSize The edge length of a block.
+	 * @return the mesh
+	 */
+	public Mesh mesh(int[][][] volume, int x0, int y0, int z0, int sizeX, int sizeY, int sizeZ, float blockSize) {
+		int[] voxels = new int[(sizeX + 2) * (sizeY + 2) * (sizeZ + 2)];
+		int n = 0;
+		for (int x = x0 - 1; x <= x0 + sizeX; x++) {
+			for (int y = y0 - 1; y <= y0 + sizeY; y++) {
+				for (int z = z0 - 1; z <= z0 + sizeZ; z++) {
+					boolean inside = x >= 0 && y >= 0 && z >= 0 && x < volume.length && y < volume[0].length && z < volume[0][0].length;
+					voxels[n++] = inside ? volume[x][y][z] : 0;
+				}
+			}
+		}
+		return mesh(voxels, new int[] {x0, y0, z0}, new int[] {sizeX, sizeY, sizeZ}, blockSize);
+	}
+
+	/**
+	 * Meshes a box of a volume. Blocks outside the box (but inside the volume) still hide the
+	 * faces of the blocks next to them.
+	 * @param volume
+	 * @param x0 The first block of the box.
+	 * @param y0
+	 * @param z0
+	 * @param sizeX The size of the box in blocks.
+	 * @param sizeY
+	 * @param sizeZ
+	 * @param blockSize The edge length of a block.
+	 * @return the mesh
+	 */
+	public Mesh mesh(VoxelVolume volume, int x0, int y0, int z0, int sizeX, int sizeY, int sizeZ, float blockSize) {
+		int[] voxels = new int[(sizeX + 2) * (sizeY + 2) * (sizeZ + 2)];
+		volume.copy(x0 - 1, y0 - 1, z0 - 1, sizeX + 2, sizeY + 2, sizeZ + 2, voxels);
+		return mesh(voxels, new int[] {x0, y0, z0}, new int[] {sizeX, sizeY, sizeZ}, blockSize);
+	}
+
+	/**
+	 * Meshes a box.
+	 * @param voxels The box with a border of one block on every side, indexed
+	 * ((x + 1) * (sizeY + 2) + y + 1) * (sizeZ + 2) + z + 1.
+	 * @param origin The position of the first block of the box.
+	 * @param size The size of the box in blocks.
+	 */
+	private Mesh mesh(int[] voxels, int[] origin, int[] size, float blockSize) {
+		// The index step of each axis in the voxels
+		int[] steps = {(size[1] + 2) * (size[2] + 2), size[2] + 2, 1};
+		int[] position = new int[3];
+		Map<Material, Batch> batches = new LinkedHashMap<>();
+		BoundingBox bounds = new BoundingBox();
+
+		for (int d = 0; d < 3; d++) {
+			int u = (d + 1) % 3;
+			int v = (d + 2) % 3;
+
+			// The faces of one slice: +type for faces towards +d, -type for faces towards -d
+			int[] mask = new int[size[u] * size[v]];
+
+			for (int i = 0; i <= size[d]; i++) {
+				int n = 0;
+				for (int b = 0; b < size[v]; b++) {
+					for (int a = 0; a < size[u]; a++) {
+						position[u] = a + 1;
+						position[v] = b + 1;
+						position[d] = i;
+						int p = position[0] * steps[0] + position[1] * steps[1] + position[2];
+						int behind = voxels[p];
+						int front = voxels[p + steps[d]];
+
+						// Faces on the sides of the box belong to the block inside it
+						if (behind != 0 && front == 0 && i > 0) {
+							mask[n++] = behind;
+						} else if (behind == 0 && front != 0 && i < size[d]) {
+							mask[n++] = -front;
+						} else {
+							mask[n++] = 0;
+						}
+					}
+				}
+
+				// Cover the mask with maximal rectangles
+				n = 0;
+				for (int b = 0; b < size[v]; b++) {
+					for (int a = 0; a < size[u];) {
+						int type = mask[n];
+						if (type == 0) {
+							a++;
+							n++;
+							continue;
+						}
+
+						int width = 1;
+						while (a + width < size[u] && mask[n + width] == type) {
+							width++;
+						}
+
+						int height = 1;
+						grow: while (b + height < size[v]) {
+							for (int k = 0; k < width; k++) {
+								if (mask[n + k + height * size[u]] != type) {
+									break grow;
+								}
+							}
+							height++;
+						}
+
+						Batch batch = getBatch(batches, Math.abs(type));
+						batch.addQuad(d, origin[d] + i, origin[u] + a, origin[v] + b, width, height, type > 0, blockSize, bounds);
+
+						for (int h = 0; h < height; h++) {
+							for (int k = 0; k < width; k++) {
+								mask[n + k + h * size[u]] = 0;
+							}
+						}
+						a += width;
+						n += width;
+					}
+				}
+			}
+		}
+
+		List<MeshBatch> meshBatches = new ArrayList<>(batches.size());
+		for (Batch batch : batches.values()) {
+			meshBatches.add(batch.build());
+		}
+		return new Mesh(meshBatches, bounds);
+	}
+
+	private Batch getBatch(Map<Material, Batch> batches, int type) {
+		Material material = materials.get(type);
+		if (material == null) {
+			material = defaultMaterial;
+		}
+
+		Batch batch = batches.get(material);
+		if (batch == null) {
+			batch = new Batch(material);
+			batches.put(material, batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * The vertices (in the VertexData layout) and indices of one material.
+	 */
+	private static class Batch {
+		final Material material;
+		final FloatArray vertices = new FloatArray(1024 * VertexData.elementCount);
+		final IntArray indices = new IntArray(1536);
+		final float[] corner = new float[3];
+		final float[] normal = new float[3];
+
+		Batch(Material material) {
+			this.material = material;
+		}
+
+		/**
+		 * Adds a rectangle of faces.
+		 * @param d The axis the rectangle faces.
+		 * @param layer The block boundary along d (the rectangle lies between blocks layer - 1 and layer).
+		 * @param a The first block along the axis after d.
+		 * @param b The first block along the axis after that.
+		 * @param width The number of blocks along a.
+		 * @param height The number of blocks along b.
+		 * @param positive If the rectangle faces +d.
+		 */
+		void addQuad(int d, int layer, int a, int b, int width, int height, boolean positive, float blockSize, BoundingBox bounds) {
+			int u = (d + 1) % 3;
+			int v = (d + 2) % 3;
+			int first = vertices.size() / VertexData.elementCount;
+
+			normal[0] = normal[1] = normal[2] = 0f;
+			normal[d] = positive ? 1f : -1f;
+
+			for (int k = 0; k < 4; k++) {
+				int du = k == 1 || k == 2 ? width : 0;
+				int dv = k >= 2 ? height : 0;
+				corner[d] = (layer - 0.5f) * blockSize;
+				corner[u] = (a + du - 0.5f) * blockSize;
+				corner[v] = (b + dv - 0.5f) * blockSize;
+				bounds.addVertex(corner);
+
+				vertices.ensureCapacity(vertices.size() + VertexData.elementCount);
+				vertices.add(corner[0], corner[1], corner[2]);
+				vertices.add(1f);
+				vertices.add(material.Kd, 0, 4);
+				vertices.add(du, dv);
+				vertices.add(normal[0], normal[1], normal[2]);
+				vertices.add(1f);
+				vertices.add(material.Ks, 0, 3);
+				vertices.add(material.Ka, 0, 3);
+				vertices.add(material.Ns);
+			}
+
+			// Counter-clockwise seen from the side the rectangle faces
+			if (positive) {
+				indices.add(first, first + 1, first + 2);
+				indices.add(first, first + 2, first + 3);
+			} else {
+				indices.add(first, first + 2, first + 1);
+				indices.add(first, first + 3, first + 2);
+			}
+		}
+
+		MeshBatch build() {
+			int vertexCount = vertices.size() / VertexData.elementCount;
+			int indexCount = indices.size();
+
+			ByteBuffer vertexBytes = BufferUtils.createByteBuffer(vertexCount * VertexData.stride);
+			vertexBytes.asFloatBuffer().put(vertices.array(), 0, vertices.size());
+			ByteBuffer indexBytes = BufferUtils.createByteBuffer(indexCount * 4);
+			indexBytes.asIntBuffer().put(indices.array(), 0, indexCount);
+
+			return new MeshBatch(material, vertexBytes, vertexCount, indexBytes, indexCount);
+		}
+	}
+}
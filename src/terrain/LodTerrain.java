@@ -0,0 +1,411 @@
+package terrain;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+
+import renderer.Renderable;
+import renderer.Renderer;
+import renderer.model.BoundingBox;
+import renderer.model.VertexFormat;
+import renderer.shader.ShaderController;
+import texture.Material;
+import texture.Texture;
+import texture.TextureManager;
+import util.Plane;
+
+/**
+ * A heightfield terrain drawn with a level of detail per tile (see TerrainQuadtree). Every frame
+ * the quadtree selects the nodes from the camera position, and each is drawn from its own vertex
+ * buffer with one of the 16 stitched index patterns, which all nodes share.
+ *
+ * The vertices of a node are built on the mesher threads (see ChunkedTerrain.getMesherPool) the
+ * first time it is selected, and at most MAX_UPLOADS_PER_FRAME finished nodes are uploaded per
+ * frame. Until a node is uploaded its nearest uploaded ancestor is drawn in its place. Nodes that
+ * weren't drawn for EVICTION_FRAMES frames release their buffers.
+ *
+ * The camera and the frustum are taken into the space of the heights with the inverse of the
+ * parent matrix, so the terrain can be placed anywhere.
+ * @author Max
+ *
+ */
+public class LodTerrain implements Renderable {
+	// The default largest error on screen, as a fraction of the screen height
+	public static final float DEFAULT_MAX_SCREEN_ERROR = 0.002f;
+
+	// The most node vertex buffers uploaded in one frame
+	public static final int MAX_UPLOADS_PER_FRAME = 4;
+
+	// The frames after which a node that isn't drawn releases its buffers
+	public static final int EVICTION_FRAMES = 600;
+
+	private final TerrainQuadtree tree;
+	private final float [] normals;
+	private final TerrainQuadtree.Selection selection = new TerrainQuadtree.Selection();
+	private final Material material = new Material();
+	private float maxScreenError = DEFAULT_MAX_SCREEN_ERROR;
+
+	// Per level, per node (x * nodes + z): the VAO and VBO (0 until the node is uploaded) and the
+	// last frame the node was drawn
+	private final int [][] vaoIds;
+	private final int [][] vboIds;
+	private final int [][] lastDrawnFrames;
+	private int frame = 0;
+
+	// The vertices of the nodes being built on the mesher threads, by nodeKey
+	private final Map<Long, Future<ByteBuffer>> builds = new HashMap<>();
+
+	// The shared index buffer holds every stitch variant, the index count and byte offset of each
+	private int indexBufferId = 0;
+	private final int [] indexCounts = new int [TerrainQuadtree.STITCH_VARIANTS];
+	private final int [] indexOffsets = new int [TerrainQuadtree.STITCH_VARIANTS];
+
+	/**
+	 * @param heights The heights (not copied), see Terrain for the layout.
+	 * @param size The number of points along each side, tileSize * 2^n + 1.
+	 * @param cellSize The distance between two points.
+	 * @param tileSize The number of cells along each side of a node, a power of 2 up to 128 (so
+	 * the indices fit 16 bits).
+	 */
+	public LodTerrain(float [] heights, int size, float cellSize, int tileSize) {
+		this(heights, null, size, cellSize, tileSize);
+	}
+
+	/**
+	 * @param heights The heights (not copied), see Terrain for the layout.
+	 * @param normals The unit normals (not copied), see Terrain, or null to compute them from the
+	 * heights.
+	 * @param size The number of points along each side, tileSize * 2^n + 1.
+	 * @param cellSize The distance between two points.
+	 * @param tileSize The number of cells along each side of a node, a power of 2 up to 128.
+	 */
+	public LodTerrain(float [] heights, float [] normals, int size, float cellSize, int tileSize) {
+		if(tileSize > 128) {
+			throw new IllegalArgumentException("The tile size can be at most 128, not " + tileSize + ".");
+		}
+		this.tree = new TerrainQuadtree(heights, size, cellSize, tileSize);
+		this.normals = normals;
+		this.vaoIds = new int [tree.getLevelCount()][];
+		this.vboIds = new int [tree.getLevelCount()][];
+		this.lastDrawnFrames = new int [tree.getLevelCount()][];
+		for(int level = 0; level < tree.getLevelCount(); level++) {
+			int nodes = tree.getNodeCount(level);
+			vaoIds[level] = new int [nodes * nodes];
+			vboIds[level] = new int [nodes * nodes];
+			lastDrawnFrames[level] = new int [nodes * nodes];
+		}
+	}
+
+	public TerrainQuadtree getQuadtree() {
+		return tree;
+	}
+
+	/**
+	 * @return the nodes drawn in the last frame
+	 */
+	public TerrainQuadtree.Selection getSelection() {
+		return selection;
+	}
+
+	/**
+	 * @param maxScreenError The largest error allowed, as a fraction of the screen height.
+	 */
+	public void setMaxScreenError(float maxScreenError) {
+		this.maxScreenError = maxScreenError;
+	}
+
+	public float getMaxScreenError() {
+		return maxScreenError;
+	}
+
+	@Override
+	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix) {
+		render(parentMatrix, viewMatrix, null);
+	}
+
+	@Override
+	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix, Plane[] frustumPlanes) {
+		if(indexBufferId == 0) {
+			bindShared();
+		}
+
+		frame++;
+
+		// The camera is at the origin of view space, the quadtree works in the space of the heights
+		Matrix4f modelView = Matrix4f.mul(viewMatrix, parentMatrix, null);
+		Matrix4f inverse = Matrix4f.invert(modelView, null);
+		Vector3f eye = new Vector3f(inverse.m30, inverse.m31, inverse.m32);
+		tree.select(eye, modelView, frustumPlanes, Renderer.DEFAULT_FOV, maxScreenError, selection);
+
+		FloatBuffer buffer = BufferUtils.createFloatBuffer(16);
+		parentMatrix.store(buffer);
+		buffer.flip();
+		GL20.glUniformMatrix4(ShaderController.getModelMatrixLocation(), false, buffer);
+
+		modelView.store(buffer);
+		buffer.flip();
+		GL20.glUniformMatrix4(ShaderController.getNormalMatrixLocation(), false, buffer);
+
+		TextureManager tm = TextureManager.getInstance();
+		List<Integer> rgiUsedSlots = new ArrayList<>();
+		for(Integer tex : material.getActiveTextureIds()) {
+			Integer unitId = tm.getTextureSlot();
+
+			if(unitId == null) {
+				continue;
+			}
+
+			GL20.glUniform1i(ShaderController.getTexSamplerLocation(), unitId - GL13.GL_TEXTURE0);
+			GL13.glActiveTexture(unitId);
+			GL11.glBindTexture(GL11.GL_TEXTURE_2D, tex);
+			rgiUsedSlots.add(unitId);
+		}
+
+		// The compact format has no per vertex material terms (see Model.drawBatch)
+		GL20.glVertexAttrib4f(1, material.Kd[0], material.Kd[1], material.Kd[2], material.Kd[3]);
+		GL20.glVertexAttrib3f(4, material.Ks[0], material.Ks[1], material.Ks[2]);
+		GL20.glVertexAttrib3f(5, material.Ka[0], material.Ka[1], material.Ka[2]);
+		GL20.glVertexAttrib1f(6, material.Ns);
+		GL20.glUniform1i(ShaderController.getPackedNormalsLocation(), 1);
+
+		int uploads = 0;
+		for(int i = 0; i < selection.getCount(); i++) {
+			int level = selection.getLevel(i);
+			int nodeX = selection.getNodeX(i), nodeZ = selection.getNodeZ(i);
+			int node = nodeX * tree.getNodeCount(level) + nodeZ;
+			lastDrawnFrames[level][node] = frame;
+			if(vaoIds[level][node] == 0 && uploads < MAX_UPLOADS_PER_FRAME && uploadNode(level, nodeX, nodeZ)) {
+				uploads++;
+			}
+
+			if(vaoIds[level][node] != 0) {
+				drawNode(level, node, selection.getStitchMask(i));
+				continue;
+			}
+
+			// Draw the nearest uploaded ancestor instead (once, it may stand in for several nodes)
+			for(int parent = level + 1; parent < tree.getLevelCount(); parent++) {
+				int p = (nodeX >> (parent - level)) * tree.getNodeCount(parent) + (nodeZ >> (parent - level));
+				if(vaoIds[parent][p] != 0) {
+					if(lastDrawnFrames[parent][p] != frame) {
+						lastDrawnFrames[parent][p] = frame;
+						drawNode(parent, p, 0);
+					}
+					break;
+				}
+			}
+		}
+		GL30.glBindVertexArray(0);
+
+		evictNodes();
+
+		for(Integer iUsed : rgiUsedSlots) {
+			tm.returnTextureSlot(iUsed);
+		}
+	}
+
+	/**
+	 * Uploads the stitch variants into one index buffer and binds the texture.
+	 */
+	private void bindShared() {
+		int [][] variants = new int [TerrainQuadtree.STITCH_VARIANTS][];
+		int total = 0;
+		for(int mask = 0; mask < variants.length; mask++) {
+			variants[mask] = TerrainQuadtree.getStitchedIndices(tree.getTileSize(), mask);
+			indexCounts[mask] = variants[mask].length;
+			indexOffsets[mask] = total * 2;
+			total += variants[mask].length;
+		}
+
+		ByteBuffer indices = BufferUtils.createByteBuffer(total * 2);
+		for(int [] variant : variants) {
+			for(int index : variant) {
+				indices.putShort((short)index);
+			}
+		}
+		indices.flip();
+
+		indexBufferId = GL15.glGenBuffers();
+		GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+		GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indices, GL15.GL_STATIC_DRAW);
+		GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+		TextureManager tm = TextureManager.getInstance();
+		Texture tex = material.mapKdTexture;
+		int unitId = tm.getTextureSlot();
+		tex.bind(unitId, ShaderController.getTexSamplerLocation());
+		tm.returnTextureSlot(unitId);
+	}
+
+	private void drawNode(int level, int node, int mask) {
+		GL30.glBindVertexArray(vaoIds[level][node]);
+		GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+		GL11.glDrawElements(GL11.GL_TRIANGLES, indexCounts[mask], GL11.GL_UNSIGNED_SHORT, indexOffsets[mask]);
+	}
+
+	/**
+	 * Uploads the vertices of a node once they are built, starting the build the first time.
+	 * @return if the node was uploaded
+	 */
+	private boolean uploadNode(int level, int nodeX, int nodeZ) {
+		long key = nodeKey(level, nodeX * tree.getNodeCount(level) + nodeZ);
+		Future<ByteBuffer> build = builds.get(key);
+		if(build == null) {
+			builds.put(key, buildNode(level, nodeX, nodeZ));
+			return false;
+		}
+		if(!build.isDone()) {
+			return false;
+		}
+		builds.remove(key);
+
+		ByteBuffer vertices;
+		try {
+			vertices = build.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Failed to build a terrain node", e);
+		}
+
+		int stride = VertexFormat.COMPACT.getStride();
+		int vaoId = GL30.glGenVertexArrays();
+		GL30.glBindVertexArray(vaoId);
+
+		int vboId = GL15.glGenBuffers();
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertices, GL15.GL_STATIC_DRAW);
+
+		GL20.glEnableVertexAttribArray(0); //position
+		GL20.glEnableVertexAttribArray(2); //texture
+		GL20.glEnableVertexAttribArray(3); //normal
+		GL20.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, stride, VertexFormat.COMPACT_POSITION_OFFSET);
+		GL20.glVertexAttribPointer(2, 2, GL30.GL_HALF_FLOAT, false, stride, VertexFormat.COMPACT_TEXTURE_OFFSET);
+		GL20.glVertexAttribPointer(3, 2, GL11.GL_SHORT, true, stride, VertexFormat.COMPACT_NORMAL_OFFSET);
+
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+		GL30.glBindVertexArray(0);
+
+		int node = nodeX * tree.getNodeCount(level) + nodeZ;
+		vaoIds[level][node] = vaoId;
+		vboIds[level][node] = vboId;
+		return true;
+	}
+
+	/**
+	 * Builds the vertices of a node on the mesher threads, every 2^level-th point of its cells.
+	 */
+	private Future<ByteBuffer> buildNode(final int level, final int nodeX, final int nodeZ) {
+		return ChunkedTerrain.getMesherPool().submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() {
+				int tileSize = tree.getTileSize();
+				int step = 1 << level;
+				int points = tileSize + 1;
+				ByteBuffer vertices = BufferUtils.createByteBuffer(points * points * VertexFormat.COMPACT.getStride());
+				Terrain.writeVertices(tree.getHeights(), normals, tree.getSize(), tree.getCellSize(), nodeX * tileSize * step,
+						nodeZ * tileSize * step, step, points, points, vertices, new BoundingBox());
+				return vertices;
+			}
+		});
+	}
+
+	/**
+	 * Releases the buffers of the nodes, and drops the builds of the nodes, that weren't drawn for
+	 * EVICTION_FRAMES frames.
+	 */
+	private void evictNodes() {
+		for(int level = 0; level < vaoIds.length; level++) {
+			for(int node = 0; node < vaoIds[level].length; node++) {
+				if(vaoIds[level][node] != 0 && frame - lastDrawnFrames[level][node] > EVICTION_FRAMES) {
+					releaseNode(level, node);
+				}
+			}
+		}
+
+		Iterator<Map.Entry<Long, Future<ByteBuffer>>> iterator = builds.entrySet().iterator();
+		while(iterator.hasNext()) {
+			Map.Entry<Long, Future<ByteBuffer>> build = iterator.next();
+			int level = (int)(build.getKey() >>> 32);
+			int node = (int)(long)build.getKey();
+			if(frame - lastDrawnFrames[level][node] > EVICTION_FRAMES) {
+				build.getValue().cancel(false);
+				iterator.remove();
+			}
+		}
+	}
+
+	private void releaseNode(int level, int node) {
+		GL30.glDeleteVertexArrays(vaoIds[level][node]);
+		GL15.glDeleteBuffers(vboIds[level][node]);
+		vaoIds[level][node] = 0;
+		vboIds[level][node] = 0;
+	}
+
+	private static long nodeKey(int level, int node) {
+		return (long)level << 32 | node;
+	}
+
+	/**
+	 * Deletes the OpenGL buffers of every node and the index buffer. They are built again when
+	 * the terrain is next rendered.
+	 */
+	public void release() {
+		for(int level = 0; level < vaoIds.length; level++) {
+			for(int node = 0; node < vaoIds[level].length; node++) {
+				if(vaoIds[level][node] != 0) {
+					releaseNode(level, node);
+				}
+			}
+		}
+		for(Future<ByteBuffer> build : builds.values()) {
+			build.cancel(false);
+		}
+		builds.clear();
+		if(indexBufferId != 0) {
+			GL15.glDeleteBuffers(indexBufferId);
+			indexBufferId = 0;
+		}
+	}
+
+	@Override
+	public boolean bind() {
+		return false;
+	}
+
+	@Override
+	public boolean hasChildren() {
+		return false;
+	}
+
+	@Override
+	public List<Renderable> getChildren() {
+		return null;
+	}
+
+	@Override
+	public boolean isBound() {
+		// The buffers are built when they are first drawn
+		return true;
+	}
+
+	@Override
+	public boolean isCullable(Matrix4f viewMatrix, Matrix4f parentMatrix, Plane[] frustumPlanes) {
+		// The quadtree culls its nodes itself
+		return false;
+	}
+}
@@ -0,0 +1,247 @@
+package terrain;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.lwjgl.BufferUtils;
+
+import renderer.model.BoundingBox;
+import renderer.model.Mesh;
+import renderer.model.MeshBatch;
+import renderer.model.VertexData;
+import texture.Material;
+import util.FloatArray;
+import util.IntArray;
+
+/**
+ * Builds the Mesh of the isosurface of a density field with marching cubes. The field is sampled
+ * on a grid of cells, and every cell with solid and empty corners gets the triangles of its case,
+ * their vertices on the cell edges where the density crosses the iso level.
+ *
+ * A vertex on an edge is shared by the (up to 4) cells around it through an edge cache, so the
+ * mesh is indexed and smooth shaded. The normals come from the gradient of the field
+ * (DensityField.getNormal) instead of the triangles. Meshes of boxes next to each other put the
+ * vertices of their shared sides at the same positions, so chunks line up without cracks.
+ *
+ * The triangles of the 256 cases are built when the class is loaded instead of being written
+ * out: the surface crosses every side of a cell along segments between its crossed edges, and
+ * following the segments around the cell gives the polygons of the case. A side with two solid
+ * corners diagonally across always separates them, seen from either cell, so the surface has no
+ * holes.
+ *
+ * @author Max
+ */
+public class MarchingCubesMesher {
+	// Corner i of a cell is at (i & 1, (i >> 1) & 1, (i >> 2) & 1). Edge a * 4 + k runs along
+	// axis a from the k-th corner that is at 0 along a.
+	private static final int [] EDGE_AXES = new int [12];
+	private static final int [] EDGE_CORNERS = new int [12];
+	private static final int [][] EDGES = new int [8][8];
+
+	// The edges of the triangles of every case (bit i set if corner i is solid), counter-clockwise
+	// seen from empty space
+	private static final int [][] TRIANGLES = new int [256][];
+
+	static {
+		for(int a = 0; a < 3; a++) {
+			int k = 0;
+			for(int corner = 0; corner < 8; corner++) {
+				if((corner & (1 << a)) == 0) {
+					int edge = a * 4 + k++;
+					EDGE_AXES[edge] = a;
+					EDGE_CORNERS[edge] = corner;
+					EDGES[corner][corner | (1 << a)] = edge;
+					EDGES[corner | (1 << a)][corner] = edge;
+				}
+			}
+		}
+
+		for(int c = 0; c < 256; c++) {
+			TRIANGLES[c] = triangulate(c);
+		}
+	}
+
+	/**
+	 * Builds the triangles of a case.
+	 */
+	private static int [] triangulate(int c) {
+		// The segment of the surface on a side of the cell from one crossed edge to the next
+		int [] next = new int [12];
+		Arrays.fill(next, -1);
+		int [] corners = new int [4];
+		int [] crossed = new int [4];
+		boolean [] entering = new boolean [4];
+		for(int a = 0; a < 3; a++) {
+			int u = (a + 1) % 3, v = (a + 2) % 3;
+			for(int side = 0; side < 2; side++) {
+				// The corners of the side, counter-clockwise seen from outside the cell
+				for(int i = 0; i < 4; i++) {
+					int cu = i == 1 || i == 2 ? 1 : 0;
+					int cv = i >= 2 ? 1 : 0;
+					corners[side == 1 ? i : 3 - i] = side << a | cu << u | cv << v;
+				}
+
+				int count = 0;
+				for(int i = 0; i < 4; i++) {
+					int from = corners[i], to = corners[(i + 1) % 4];
+					boolean solidFrom = (c & (1 << from)) != 0, solidTo = (c & (1 << to)) != 0;
+					if(solidFrom != solidTo) {
+						crossed[count] = EDGES[from][to];
+						entering[count++] = solidTo;
+					}
+				}
+
+				// Crossings alternate between entering and leaving the solid corners, joining an
+				// entering one to the leaving one after it cuts off the solid corners one by one
+				for(int i = 0; i < count; i++) {
+					if(entering[i]) {
+						next[crossed[i]] = crossed[(i + 1) % count];
+					}
+				}
+			}
+		}
+
+		// Every crossed edge enters on one side and leaves on the other, so the segments close
+		// into polygons, which are split into fans
+		IntArray triangles = new IntArray(15);
+		boolean [] visited = new boolean [12];
+		int [] polygon = new int [12];
+		for(int edge = 0; edge < 12; edge++) {
+			if(next[edge] < 0 || visited[edge]) {
+				continue;
+			}
+
+			int count = 0;
+			for(int e = edge; !visited[e]; e = next[e]) {
+				visited[e] = true;
+				polygon[count++] = e;
+			}
+			for(int i = 1; i < count - 1; i++) {
+				triangles.add(polygon[0], polygon[i], polygon[i + 1]);
+			}
+		}
+		return triangles.toArray();
+	}
+
+	private final Material material;
+
+	/**
+	 * Creates a mesher that draws the surface with the default material.
+	 */
+	public MarchingCubesMesher() {
+		this(new Material());
+	}
+
+	/**
+	 * Creates a mesher.
+	 * @param material The material of the surface.
+	 */
+	public MarchingCubesMesher(Material material) {
+		this.material = material;
+	}
+
+	/**
+	 * Meshes the isosurface in a box of cells.
+	 * @param field The density field.
+	 * @param isoLevel The density of the surface, points above it are solid.
+	 * @param x0 The world position of the first corner of the box.
+	 * @param y0
+	 * @param z0
+	 * @param sizeX The size of the box in cells.
+	 * @param sizeY
+	 * @param sizeZ
+	 * @param cellSize The edge length of a cell.
+	 * @return the mesh (without triangles if the surface doesn't cross the box)
+	 */
+	public Mesh mesh(DensityField field, float isoLevel, float x0, float y0, float z0, int sizeX, int sizeY, int sizeZ,
+			float cellSize) {
+		// The index step of each axis in the grid points
+		int [] steps = {(sizeY + 1) * (sizeZ + 1), sizeZ + 1, 1};
+		float [] densities = new float [(sizeX + 1) * steps[0]];
+		int n = 0;
+		for(int x = 0; x <= sizeX; x++) {
+			for(int y = 0; y <= sizeY; y++) {
+				for(int z = 0; z <= sizeZ; z++) {
+					densities[n++] = field.getDensity(x0 + x * cellSize, y0 + y * cellSize, z0 + z * cellSize);
+				}
+			}
+		}
+
+		// The vertex on the edge from every point along every axis (-1 until it is made)
+		int [] edgeVertices = new int [densities.length * 3];
+		Arrays.fill(edgeVertices, -1);
+
+		FloatArray vertices = new FloatArray(1024 * VertexData.elementCount);
+		IntArray indices = new IntArray(1536);
+		BoundingBox bounds = new BoundingBox();
+		float [] origin = {x0, y0, z0};
+		float [] position = new float [3];
+		float [] normal = new float [3];
+		int [] cellOffsets = new int [8];
+		for(int corner = 0; corner < 8; corner++) {
+			cellOffsets[corner] = (corner & 1) * steps[0] + (corner >> 1 & 1) * steps[1] + (corner >> 2 & 1);
+		}
+
+		for(int x = 0; x < sizeX; x++) {
+			for(int y = 0; y < sizeY; y++) {
+				for(int z = 0; z < sizeZ; z++) {
+					int cell = x * steps[0] + y * steps[1] + z;
+					int c = 0;
+					for(int corner = 0; corner < 8; corner++) {
+						if(densities[cell + cellOffsets[corner]] > isoLevel) {
+							c |= 1 << corner;
+						}
+					}
+
+					for(int edge : TRIANGLES[c]) {
+						int point = cell + cellOffsets[EDGE_CORNERS[edge]];
+						int axis = EDGE_AXES[edge];
+						int key = point * 3 + axis;
+						if(edgeVertices[key] < 0) {
+							edgeVertices[key] = vertices.size() / VertexData.elementCount;
+
+							// Where the density crosses the iso level between the two points
+							float from = densities[point], to = densities[point + steps[axis]];
+							float t = (isoLevel - from) / (to - from);
+							position[0] = origin[0] + (point / steps[0]) * cellSize;
+							position[1] = origin[1] + (point / steps[1] % (sizeY + 1)) * cellSize;
+							position[2] = origin[2] + (point % steps[1]) * cellSize;
+							position[axis] += t * cellSize;
+							bounds.addVertex(position);
+							field.getNormal(position[0], position[1], position[2], normal);
+							addVertex(vertices, position, normal, cellSize);
+						}
+						indices.add(edgeVertices[key]);
+					}
+				}
+			}
+		}
+
+		int vertexCount = vertices.size() / VertexData.elementCount;
+		int indexCount = indices.size();
+		ByteBuffer vertexBytes = BufferUtils.createByteBuffer(vertexCount * VertexData.stride);
+		vertexBytes.asFloatBuffer().put(vertices.array(), 0, vertices.size());
+		ByteBuffer indexBytes = BufferUtils.createByteBuffer(indexCount * 4);
+		indexBytes.asIntBuffer().put(indices.array(), 0, indexCount);
+
+		MeshBatch batch = new MeshBatch(material, vertexBytes, vertexCount, indexBytes, indexCount);
+		return new Mesh(Collections.singletonList(batch), bounds);
+	}
+
+	/**
+	 * Adds a vertex in the VertexData layout, the texture repeating every cell along x and z.
+	 */
+	private void addVertex(FloatArray vertices, float [] position, float [] normal, float cellSize) {
+		vertices.ensureCapacity(vertices.size() + VertexData.elementCount);
+		vertices.add(position[0], position[1], position[2]);
+		vertices.add(1f);
+		vertices.add(material.Kd, 0, 4);
+		vertices.add(position[0] / cellSize, position[2] / cellSize);
+		vertices.add(normal[0], normal[1], normal[2]);
+		vertices.add(1f);
+		vertices.add(material.Ks, 0, 3);
+		vertices.add(material.Ka, 0, 3);
+		vertices.add(material.Ns);
+	}
+}
@@ -0,0 +1,135 @@
+package terrain;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A coherent noise function. Implementations are immutable, so one instance can be sampled by
+ * any number of threads, e.g. to generate several seeded worlds at the same time.
+ *
+ * @author Max
+ */
+public interface Noise {
+	/**
+	 * Samples 2D noise.
+	 * @param x
+	 * @param y
+	 * @return the noise value
+	 */
+	public double sample(double x, double y);
+
+	/**
+	 * Samples 3D noise.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the noise value
+	 */
+	public double sample(double x, double y, double z);
+
+	/**
+	 * Samples 2D noise and its analytic gradient, for about the cost of the value alone.
+	 * @param x
+	 * @param y
+	 * @param gradient The gradient (d/dx, d/dy) is written to gradient[0..1].
+	 * @return the noise value, the same as sample(x, y)
+	 */
+	public double sampleGradient(double x, double y, float[] gradient);
+
+	/**
+	 * Samples 3D noise and its analytic gradient.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param gradient The gradient is written to gradient[0..2].
+	 * @return the noise value, the same as sample(x, y, z)
+	 */
+	public double sampleGradient(double x, double y, double z, float[] gradient);
+
+	/**
+	 * Samples 3D fractal noise for a row of points that only differ in z. Octave i adds noise at
+	 * 2^i times the frequency, weighted by persistence^i, summed in float precision.
+	 * @param octaves
+	 * @param persistence
+	 * @param x
+	 * @param y
+	 * @param zs The z of every point.
+	 * @param out The values are written to out[0..count).
+	 * @param count The number of points.
+	 */
+	public void sampleRow(int octaves, float persistence, double x, double y, double[] zs, float[] out, int count);
+
+	/**
+	 * Samples 2D fractal noise (like sampleRow) for a sizeX * sizeY grid of points starting at
+	 * (originX, originY), step apart.
+	 * @param octaves
+	 * @param persistence
+	 * @param originX
+	 * @param originY
+	 * @param step
+	 * @param sizeX
+	 * @param sizeY
+	 * @param out The values are written to out[offset + x * sizeY + y].
+	 * @param offset
+	 */
+	public void sampleGrid(int octaves, float persistence, double originX, double originY, double step,
+			int sizeX, int sizeY, float[] out, int offset);
+
+	/**
+	 * Samples 3D fractal noise (like sampleRow) for a sizeX * sizeY * sizeZ grid of points.
+	 * @param octaves
+	 * @param persistence
+	 * @param originX
+	 * @param originY
+	 * @param originZ
+	 * @param step
+	 * @param sizeX
+	 * @param sizeY
+	 * @param sizeZ
+	 * @param out The values are written to out[offset + (x * sizeY + y) * sizeZ + z].
+	 * @param offset
+	 */
+	public void sampleGrid(int octaves, float persistence, double originX, double originY, double originZ,
+			double step, int sizeX, int sizeY, int sizeZ, float[] out, int offset);
+
+	/**
+	 * Samples the 2D grid of sampleGrid into a buffer, e.g. a direct buffer for OpenGL.
+	 * @param out The values are written to out[position + x * sizeY + y] (the position isn't changed).
+	 */
+	public default void sampleGrid(int octaves, float persistence, double originX, double originY, double step,
+			int sizeX, int sizeY, FloatBuffer out) {
+		if(out.hasArray()) {
+			sampleGrid(octaves, persistence, originX, originY, step, sizeX, sizeY, out.array(), out.arrayOffset() + out.position());
+			return;
+		}
+		float[] row = new float[sizeY];
+		for(int x = 0; x < sizeX; x++) {
+			sampleGrid(octaves, persistence, originX + x * step, originY, step, 1, sizeY, row, 0);
+			for(int y = 0; y < sizeY; y++) {
+				out.put(out.position() + x * sizeY + y, row[y]);
+			}
+		}
+	}
+
+	/**
+	 * Samples the 3D grid of sampleGrid into a buffer, e.g. a direct buffer for OpenGL.
+	 * @param out The values are written to out[position + (x * sizeY + y) * sizeZ + z] (the
+	 * position isn't changed).
+	 */
+	public default void sampleGrid(int octaves, float persistence, double originX, double originY, double originZ,
+			double step, int sizeX, int sizeY, int sizeZ, FloatBuffer out) {
+		if(out.hasArray()) {
+			sampleGrid(octaves, persistence, originX, originY, originZ, step, sizeX, sizeY, sizeZ,
+					out.array(), out.arrayOffset() + out.position());
+			return;
+		}
+		float[] row = new float[sizeZ];
+		for(int x = 0; x < sizeX; x++) {
+			for(int y = 0; y < sizeY; y++) {
+				sampleGrid(octaves, persistence, originX + x * step, originY + y * step, originZ, step, 1, 1, sizeZ, row, 0);
+				for(int z = 0; z < sizeZ; z++) {
+					out.put(out.position() + (x * sizeY + y) * sizeZ + z, row[z]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package terrain;
+
+/**
+ * The density of fractal 3D noise, octave i sampled at 2^i times the frequency and weighted by
+ * persistence^i. The normals come from the analytic gradient of the noise (see
+ * TerrainNormals.density), so they need no extra samples.
+ *
+ * The iso level has to match the range of the noise: 3D SimplexNoise is in [0, 2], so its
+ * octaves add up around 1 + persistence + persistence^2 + ...
+ *
+ * @author Max
+ */
+public class NoiseDensityField implements DensityField {
+	private final Noise noise;
+	private final int octaves;
+	private final float persistence;
+	private final float frequency;
+
+	/**
+	 * @param noise The noise the density is sampled from.
+	 * @param octaves
+	 * @param persistence
+	 * @param frequency The noise coordinates per world unit.
+	 */
+	public NoiseDensityField(Noise noise, int octaves, float persistence, float frequency) {
+		this.noise = noise;
+		this.octaves = octaves;
+		this.persistence = persistence;
+		this.frequency = frequency;
+	}
+
+	@Override
+	public float getDensity(float x, float y, float z) {
+		// The same samples as TerrainNormals.density
+		double px = x * frequency, py = y * frequency, pz = z * frequency;
+		double density = 0;
+		double amplitude = 1, scale = 1;
+		for(int i = 0; i < octaves; i++) {
+			density += amplitude * noise.sample(px * scale, py * scale, pz * scale);
+			amplitude *= persistence;
+			scale *= 2;
+		}
+		return (float)density;
+	}
+
+	@Override
+	public void getNormal(float x, float y, float z, float[] normal) {
+		TerrainNormals.density(noise, octaves, persistence, frequency, x, y, z, normal);
+	}
+}
@@ -0,0 +1,107 @@
+package terrain;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates a heightfield of fractal noise together with its normals (see
+ * TerrainNormals.heightfield), so the Terrain doesn't have to estimate them from the heights.
+ *
+ * The rows of the grid are split into bands on a ForkJoinPool.
+ * @author Max
+ *
+ */
+public class NoiseTerrainGenerator extends TerrainGenerator {
+	// Bands are split until a task has fewer points than this
+	private static final int MIN_TASK_POINTS = 1 << 14;
+
+	private final Noise noise;
+	private final int size;
+	private final int octaves;
+	private final float persistence;
+	private final float frequency;
+	private final float heightScale;
+	private float cellSize = 1;
+
+	/**
+	 * @param noise The noise the heights are sampled from.
+	 * @param size The number of points along each side.
+	 * @param octaves
+	 * @param persistence
+	 * @param frequency The noise coordinates per world unit.
+	 * @param heightScale The height of a noise value of 1.
+	 */
+	public NoiseTerrainGenerator(Noise noise, int size, int octaves, float persistence, float frequency, float heightScale) {
+		this.noise = noise;
+		this.size = size;
+		this.octaves = octaves;
+		this.persistence = persistence;
+		this.frequency = frequency;
+		this.heightScale = heightScale;
+	}
+
+	@Override
+	public Terrain generateTerrain() {
+		long start = System.currentTimeMillis();
+		float [] heights = new float [size * size];
+		float [] normals = new float [3 * size * size];
+		generate(ForkJoinPool.commonPool(), heights, normals);
+		System.out.println("Terrain Generation Time: " + (System.currentTimeMillis() - start));
+		return new Terrain(heights, normals, size, cellSize);
+	}
+
+	/**
+	 * Generates the heights and normals.
+	 * @param pool The pool the bands run on.
+	 * @param heights The heights are written to heights[x * size + z].
+	 * @param normals The unit normals are written to normals[3 * (x * size + z) ..].
+	 */
+	public void generate(ForkJoinPool pool, float [] heights, float [] normals) {
+		pool.invoke(new BandTask(this, heights, normals, 0, size));
+	}
+
+	public void setCellSize(float cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Generates the rows [from, to) along x.
+	 */
+	private static class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final NoiseTerrainGenerator generator;
+		private final float [] heights;
+		private final float [] normals;
+		private final int from;
+		private final int to;
+
+		BandTask(NoiseTerrainGenerator generator, float [] heights, float [] normals, int from, int to) {
+			this.generator = generator;
+			this.heights = heights;
+			this.normals = normals;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int size = generator.size;
+			if(to - from > 1 && (long)(to - from) * size > MIN_TASK_POINTS) {
+				int middle = from + (to - from) / 2;
+				invokeAll(new BandTask(generator, heights, normals, from, middle),
+						new BandTask(generator, heights, normals, middle, to));
+				return;
+			}
+
+			// heightfield writes from index 0, so the band goes through its own arrays
+			int rows = to - from;
+			float [] bandHeights = new float [rows * size];
+			float [] bandNormals = new float [3 * rows * size];
+			TerrainNormals.heightfield(generator.noise, generator.octaves, generator.persistence, generator.frequency,
+					generator.heightScale, from * generator.cellSize, 0, generator.cellSize, rows, size, bandHeights, bandNormals);
+			System.arraycopy(bandHeights, 0, heights, from * size, bandHeights.length);
+			System.arraycopy(bandNormals, 0, normals, 3 * from * size, bandNormals.length);
+		}
+	}
+}
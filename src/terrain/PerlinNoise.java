@@ -1,5 +1,286 @@
 package terrain;
 
-public class PerlinNoise {
+import java.util.Arrays;
 
+/**
+ * Ken Perlin's improved noise (2002): quintic fade curves and gradients picked from the 12 cube
+ * edge directions by hashing the lattice corner. Values are in about [-1, 1] and 0 on integer
+ * lattice points. The permutation table is built from a seed, or is Perlin's reference table.
+ *
+ * Instances never change their table after construction, so they are safe to share between
+ * threads.
+ *
+ * @author Max
+ */
+public class PerlinNoise implements Noise {
+	// The gradients picked by grad(hash, ...), for the analytic derivatives
+	private static final double GRAD2_X[] = new double[4];
+	private static final double GRAD2_Y[] = new double[4];
+	private static final double GRAD3_X[] = new double[16];
+	private static final double GRAD3_Y[] = new double[16];
+	private static final double GRAD3_Z[] = new double[16];
+	static {
+		for(int h = 0; h < 4; h++) {
+			GRAD2_X[h] = grad(h, 1, 0);
+			GRAD2_Y[h] = grad(h, 0, 1);
+		}
+		for(int h = 0; h < 16; h++) {
+			GRAD3_X[h] = grad(h, 1, 0, 0);
+			GRAD3_Y[h] = grad(h, 0, 1, 0);
+			GRAD3_Z[h] = grad(h, 0, 0, 1);
+		}
+	}
+
+	private final short perm[];
+
+	/**
+	 * Creates the noise of Perlin's reference permutation table.
+	 */
+	public PerlinNoise() {
+		perm = SimplexNoise.permutation();
+	}
+
+	/**
+	 * Creates the noise of a permutation table shuffled by a seed.
+	 * @param seed
+	 */
+	public PerlinNoise(long seed) {
+		perm = SimplexNoise.permutation(seed);
+	}
+
+	@Override
+	public double sample(double x, double y) {
+		int xi = fastfloor(x);
+		int yi = fastfloor(y);
+		int X = xi & 255;
+		int Y = yi & 255;
+		x -= xi;
+		y -= yi;
+		double u = fade(x);
+		double v = fade(y);
+
+		int A = perm[X] + Y;
+		int B = perm[X + 1] + Y;
+		return lerp(v, lerp(u, grad(perm[A], x, y), grad(perm[B], x - 1, y)),
+				lerp(u, grad(perm[A + 1], x, y - 1), grad(perm[B + 1], x - 1, y - 1)));
+	}
+
+	@Override
+	public double sample(double x, double y, double z) {
+		int xi = fastfloor(x);
+		int yi = fastfloor(y);
+		int zi = fastfloor(z);
+		int X = xi & 255;
+		int Y = yi & 255;
+		int Z = zi & 255;
+		x -= xi;
+		y -= yi;
+		z -= zi;
+		double u = fade(x);
+		double v = fade(y);
+		double w = fade(z);
+
+		// Hash the 8 corners of the cube
+		int A = perm[X] + Y;
+		int AA = perm[A] + Z;
+		int AB = perm[A + 1] + Z;
+		int B = perm[X + 1] + Y;
+		int BA = perm[B] + Z;
+		int BB = perm[B + 1] + Z;
+
+		return lerp(w,
+				lerp(v, lerp(u, grad(perm[AA], x, y, z), grad(perm[BA], x - 1, y, z)),
+						lerp(u, grad(perm[AB], x, y - 1, z), grad(perm[BB], x - 1, y - 1, z))),
+				lerp(v, lerp(u, grad(perm[AA + 1], x, y, z - 1), grad(perm[BA + 1], x - 1, y, z - 1)),
+						lerp(u, grad(perm[AB + 1], x, y - 1, z - 1), grad(perm[BB + 1], x - 1, y - 1, z - 1))));
+	}
+
+	/**
+	 * The value is computed like sample(x, y). Its derivative along x is the bilinear blend of the
+	 * corner gradients' x plus fade'(x) times the difference along x of the corner values, and
+	 * the same for y.
+	 */
+	@Override
+	public double sampleGradient(double x, double y, float[] gradient) {
+		int xi = fastfloor(x);
+		int yi = fastfloor(y);
+		int X = xi & 255;
+		int Y = yi & 255;
+		x -= xi;
+		y -= yi;
+		double u = fade(x);
+		double v = fade(y);
+
+		int A = perm[X] + Y;
+		int B = perm[X + 1] + Y;
+		int ha = perm[A] & 3, hb = perm[B] & 3, hc = perm[A + 1] & 3, hd = perm[B + 1] & 3;
+		double a = grad(ha, x, y);
+		double b = grad(hb, x - 1, y);
+		double c = grad(hc, x, y - 1);
+		double d = grad(hd, x - 1, y - 1);
+
+		gradient[0] = (float)(lerp(v, lerp(u, GRAD2_X[ha], GRAD2_X[hb]), lerp(u, GRAD2_X[hc], GRAD2_X[hd]))
+				+ dfade(x) * lerp(v, b - a, d - c));
+		gradient[1] = (float)(lerp(v, lerp(u, GRAD2_Y[ha], GRAD2_Y[hb]), lerp(u, GRAD2_Y[hc], GRAD2_Y[hd]))
+				+ dfade(y) * (lerp(u, c, d) - lerp(u, a, b)));
+		return lerp(v, lerp(u, a, b), lerp(u, c, d));
+	}
+
+	/**
+	 * Like the 2D version, with trilinear blends.
+	 */
+	@Override
+	public double sampleGradient(double x, double y, double z, float[] gradient) {
+		int xi = fastfloor(x);
+		int yi = fastfloor(y);
+		int zi = fastfloor(z);
+		int X = xi & 255;
+		int Y = yi & 255;
+		int Z = zi & 255;
+		x -= xi;
+		y -= yi;
+		z -= zi;
+		double u = fade(x);
+		double v = fade(y);
+		double w = fade(z);
+
+		int A = perm[X] + Y;
+		int AA = perm[A] + Z;
+		int AB = perm[A + 1] + Z;
+		int B = perm[X + 1] + Y;
+		int BA = perm[B] + Z;
+		int BB = perm[B + 1] + Z;
+
+		// The corners, named by their offsets along x, y and z
+		int h000 = perm[AA] & 15, h100 = perm[BA] & 15, h010 = perm[AB] & 15, h110 = perm[BB] & 15;
+		int h001 = perm[AA + 1] & 15, h101 = perm[BA + 1] & 15, h011 = perm[AB + 1] & 15, h111 = perm[BB + 1] & 15;
+		double n000 = grad(h000, x, y, z);
+		double n100 = grad(h100, x - 1, y, z);
+		double n010 = grad(h010, x, y - 1, z);
+		double n110 = grad(h110, x - 1, y - 1, z);
+		double n001 = grad(h001, x, y, z - 1);
+		double n101 = grad(h101, x - 1, y, z - 1);
+		double n011 = grad(h011, x, y - 1, z - 1);
+		double n111 = grad(h111, x - 1, y - 1, z - 1);
+
+		double x00 = lerp(u, n000, n100), x10 = lerp(u, n010, n110);
+		double x01 = lerp(u, n001, n101), x11 = lerp(u, n011, n111);
+		double xy0 = lerp(v, x00, x10), xy1 = lerp(v, x01, x11);
+
+		gradient[0] = (float)(blend(GRAD3_X, u, v, w, h000, h100, h010, h110, h001, h101, h011, h111)
+				+ dfade(x) * lerp(w, lerp(v, n100 - n000, n110 - n010), lerp(v, n101 - n001, n111 - n011)));
+		gradient[1] = (float)(blend(GRAD3_Y, u, v, w, h000, h100, h010, h110, h001, h101, h011, h111)
+				+ dfade(y) * lerp(w, x10 - x00, x11 - x01));
+		gradient[2] = (float)(blend(GRAD3_Z, u, v, w, h000, h100, h010, h110, h001, h101, h011, h111)
+				+ dfade(z) * (xy1 - xy0));
+		return lerp(w, xy0, xy1);
+	}
+
+	@Override
+	public void sampleRow(int octaves, float persistence, double x, double y, double[] zs, float[] out, int count) {
+		Arrays.fill(out, 0, count, 0.0f);
+		float amplitude = 1.0f;
+		double scale = 1.0;
+		for(int i = 0; i < octaves; i++) {
+			double xs = x * scale;
+			double ys = y * scale;
+			for(int n = 0; n < count; n++) {
+				out[n] += amplitude * sample(xs, ys, zs[n] * scale);
+			}
+			amplitude *= persistence;
+			scale *= 2;
+		}
+	}
+
+	@Override
+	public void sampleGrid(int octaves, float persistence, double originX, double originY, double step,
+			int sizeX, int sizeY, float[] out, int offset) {
+		Arrays.fill(out, offset, offset + sizeX * sizeY, 0.0f);
+		for(int x = 0; x < sizeX; x++) {
+			int row = offset + x * sizeY;
+			float amplitude = 1.0f;
+			double scale = 1.0;
+			for(int i = 0; i < octaves; i++) {
+				double xs = (originX + x * step) * scale;
+				for(int y = 0; y < sizeY; y++) {
+					out[row + y] += amplitude * sample(xs, (originY + y * step) * scale);
+				}
+				amplitude *= persistence;
+				scale *= 2;
+			}
+		}
+	}
+
+	@Override
+	public void sampleGrid(int octaves, float persistence, double originX, double originY, double originZ,
+			double step, int sizeX, int sizeY, int sizeZ, float[] out, int offset) {
+		for(int x = 0; x < sizeX; x++) {
+			for(int y = 0; y < sizeY; y++) {
+				int row = offset + (x * sizeY + y) * sizeZ;
+				Arrays.fill(out, row, row + sizeZ, 0.0f);
+				float amplitude = 1.0f;
+				double scale = 1.0;
+				for(int i = 0; i < octaves; i++) {
+					double xs = (originX + x * step) * scale;
+					double ys = (originY + y * step) * scale;
+					for(int z = 0; z < sizeZ; z++) {
+						out[row + z] += amplitude * sample(xs, ys, (originZ + z * step) * scale);
+					}
+					amplitude *= persistence;
+					scale *= 2;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Trilinearly blends one component of the corner gradients.
+	 */
+	private static double blend(double[] component, double u, double v, double w, int h000, int h100, int h010, int h110,
+			int h001, int h101, int h011, int h111) {
+		return lerp(w,
+				lerp(v, lerp(u, component[h000], component[h100]), lerp(u, component[h010], component[h110])),
+				lerp(v, lerp(u, component[h001], component[h101]), lerp(u, component[h011], component[h111])));
+	}
+
+	private static int fastfloor(double x) {
+		int xi = (int) x;
+		return x < xi ? xi - 1 : xi;
+	}
+
+	/**
+	 * 6t^5 - 15t^4 + 10t^3, which has no discontinuity in the second derivative at the lattice.
+	 */
+	private static double fade(double t) {
+		return t * t * t * (t * (t * 6 - 15) + 10);
+	}
+
+	/**
+	 * The derivative of fade, 30t^4 - 60t^3 + 30t^2.
+	 */
+	private static double dfade(double t) {
+		return 30 * t * t * (t * (t - 2) + 1);
+	}
+
+	private static double lerp(double t, double a, double b) {
+		return a + t * (b - a);
+	}
+
+	/**
+	 * The dot product with one of the 4 diagonal gradients (+-1, +-1).
+	 */
+	private static double grad(int hash, double x, double y) {
+		return ((hash & 1) == 0 ? x : -x) + ((hash & 2) == 0 ? y : -y);
+	}
+
+	/**
+	 * The dot product with one of the 12 cube edge gradients (16 with 4 repeated, so the hash
+	 * only needs a mask).
+	 */
+	private static double grad(int hash, double x, double y, double z) {
+		int h = hash & 15;
+		double u = h < 8 ? x : y;
+		double v = h < 4 ? y : h == 12 || h == 14 ? x : z;
+		return ((h & 1) == 0 ? u : -u) + ((h & 2) == 0 ? v : -v);
+	}
 }
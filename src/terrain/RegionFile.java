@@ -0,0 +1,268 @@
+package terrain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A file of REGION_SIZE^3 chunk volumes. The file starts with a table of the offset, length and
+ * slot capacity of every chunk, followed by the chunks: run-length encoded voxels, deflated.
+ *
+ * Chunks are read through a memory-mapped view of the file, so loading one is a table lookup
+ * plus a decompress. The rest of the file is split into sectors of SECTOR_SIZE bytes and every
+ * chunk has a slot of whole sectors. Writing a chunk never overwrites its current slot: the
+ * payload goes into the first free sectors it fits (or the end of the file), then the table
+ * entry is pointed at it and the old sectors are freed. So an interrupted write leaves the
+ * old chunk, and the sectors of chunks that moved are reused by the next writes.
+ *
+ * The payloads are encoded and decoded outside of the lock of the region, only the sector
+ * bookkeeping and the file access are serialized.
+ *
+ * @author Max
+ */
+public class RegionFile implements Closeable {
+	public static final int REGION_SIZE = 8;
+	public static final int REGION_CHUNKS = REGION_SIZE * REGION_SIZE * REGION_SIZE;
+
+	private static final int MAGIC = 0x52474e31;
+	private static final int VERSION = 2;
+
+	// magic, version, volume size and then offset (long), length and capacity (int) per chunk
+	private static final int HEADER_SIZE = 20;
+	private static final int ENTRY_SIZE = 16;
+	private static final int TABLE_END = HEADER_SIZE + REGION_CHUNKS * ENTRY_SIZE;
+
+	public static final int SECTOR_SIZE = 512;
+
+	// The table takes the first sectors
+	private static final int FIRST_SECTOR = (TABLE_END + SECTOR_SIZE - 1) / SECTOR_SIZE;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int sizeX;
+	private final int sizeY;
+	private final int sizeZ;
+	private final long[] offsets = new long[REGION_CHUNKS];
+	private final int[] lengths = new int[REGION_CHUNKS];
+	private final int[] capacities = new int[REGION_CHUNKS];
+
+	// The sectors held by the table and the chunks
+	private final BitSet usedSectors = new BitSet();
+	private MappedByteBuffer mapped;
+
+	/**
+	 * Opens a region file, creating it if it doesn't exist.
+	 * @param path
+	 * @param sizeX The size of the chunk volumes.
+	 * @param sizeY
+	 * @param sizeZ
+	 * @throws IOException if the file can't be opened or is a region of other volumes
+	 */
+	public RegionFile(File path, int sizeX, int sizeY, int sizeZ) throws IOException {
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+
+		if (channel.size() == 0) {
+			ByteBuffer header = ByteBuffer.allocate(TABLE_END);
+			header.putInt(MAGIC).putInt(VERSION).putInt(sizeX).putInt(sizeY).putInt(sizeZ);
+			header.clear();
+			writeFully(header, 0);
+		}
+
+		mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		if (channel.size() < TABLE_END || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+			close();
+			throw new IOException("\"" + path + "\" is not a region file");
+		}
+		if (mapped.getInt(8) != sizeX || mapped.getInt(12) != sizeY || mapped.getInt(16) != sizeZ) {
+			close();
+			throw new IOException("\"" + path + "\" holds volumes of another size");
+		}
+
+		for (int i = 0; i < REGION_CHUNKS; i++) {
+			int entry = HEADER_SIZE + i * ENTRY_SIZE;
+			offsets[i] = mapped.getLong(entry);
+			lengths[i] = mapped.getInt(entry + 8);
+			capacities[i] = mapped.getInt(entry + 12);
+			if (lengths[i] > 0) {
+				int sector = (int) (offsets[i] / SECTOR_SIZE);
+				usedSectors.set(sector, sector + capacities[i] / SECTOR_SIZE);
+			}
+		}
+		usedSectors.set(0, FIRST_SECTOR);
+	}
+
+	/**
+	 * The index of a chunk in its region.
+	 * @param chunkX The position of the chunk in chunks.
+	 * @param chunkY
+	 * @param chunkZ
+	 * @return the index
+	 */
+	public static int chunkIndex(int chunkX, int chunkY, int chunkZ) {
+		int x = Math.floorMod(chunkX, REGION_SIZE);
+		int y = Math.floorMod(chunkY, REGION_SIZE);
+		int z = Math.floorMod(chunkZ, REGION_SIZE);
+		return (x * REGION_SIZE + y) * REGION_SIZE + z;
+	}
+
+	/**
+	 * @param index The index of the chunk in the region.
+	 * @return if the chunk is stored
+	 */
+	public synchronized boolean contains(int index) {
+		return lengths[index] > 0;
+	}
+
+	/**
+	 * Reads a chunk.
+	 * @param index The index of the chunk in the region.
+	 * @param out The volume the chunk is written to.
+	 * @return false if the chunk isn't stored
+	 * @throws IOException
+	 */
+	public boolean read(int index, VoxelVolume out) throws IOException {
+		byte[] payload;
+		synchronized (this) {
+			if (lengths[index] == 0) {
+				return false;
+			}
+
+			// The file may have grown since it was mapped
+			if (offsets[index] + lengths[index] > mapped.capacity()) {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+
+			payload = new byte[lengths[index]];
+			ByteBuffer slice = mapped.duplicate();
+			slice.position((int) offsets[index]);
+			slice.get(payload);
+		}
+		decode(payload, out);
+		return true;
+	}
+
+	/**
+	 * Writes a chunk into the first free sectors it fits, then points its table entry at them
+	 * and frees its old sectors.
+	 * @param index The index of the chunk in the region.
+	 * @param volume The chunk.
+	 * @throws IOException
+	 */
+	public void write(int index, VoxelVolume volume) throws IOException {
+		byte[] payload = encode(volume);
+		int sectorCount = (payload.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+		synchronized (this) {
+			int sector = findFreeSectors(sectorCount);
+			usedSectors.set(sector, sector + sectorCount);
+			writeFully(ByteBuffer.wrap(payload), (long) sector * SECTOR_SIZE);
+
+			ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+			entry.putLong((long) sector * SECTOR_SIZE).putInt(payload.length).putInt(sectorCount * SECTOR_SIZE);
+			entry.clear();
+			writeFully(entry, HEADER_SIZE + index * ENTRY_SIZE);
+
+			if (lengths[index] > 0) {
+				int oldSector = (int) (offsets[index] / SECTOR_SIZE);
+				usedSectors.clear(oldSector, oldSector + capacities[index] / SECTOR_SIZE);
+			}
+			offsets[index] = (long) sector * SECTOR_SIZE;
+			lengths[index] = payload.length;
+			capacities[index] = sectorCount * SECTOR_SIZE;
+		}
+	}
+
+	/**
+	 * Finds the first run of free sectors, the sectors after the last used one are all free.
+	 */
+	private int findFreeSectors(int count) {
+		int start = usedSectors.nextClearBit(FIRST_SECTOR);
+		while (true) {
+			int next = usedSectors.nextSetBit(start);
+			if (next < 0 || next - start >= count) {
+				return start;
+			}
+			start = usedSectors.nextClearBit(next);
+		}
+	}
+
+	/**
+	 * @return the end of the used sectors (the file isn't truncated, free sectors at its end
+	 * are written again first)
+	 */
+	public synchronized long length() {
+		return (long) usedSectors.length() * SECTOR_SIZE;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		mapped = null;
+		channel.close();
+		file.close();
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Run-length encodes the voxels (in copy order) and deflates them.
+	 */
+	private byte[] encode(VoxelVolume volume) throws IOException {
+		int[] voxels = new int[sizeX * sizeY * sizeZ];
+		volume.copy(0, 0, 0, sizeX, sizeY, sizeZ, voxels);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+			for (int i = 0; i < voxels.length;) {
+				int run = 1;
+				while (i + run < voxels.length && voxels[i + run] == voxels[i]) {
+					run++;
+				}
+				out.writeInt(run);
+				out.writeInt(voxels[i]);
+				i += run;
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private void decode(byte[] payload, VoxelVolume out) throws IOException {
+		int[] row = new int[sizeZ];
+		int x = 0, y = 0, z = 0;
+		try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload)))) {
+			while (x < sizeX) {
+				int run = in.readInt();
+				int value = in.readInt();
+				for (int r = 0; r < run; r++) {
+					row[z++] = value;
+					if (z == sizeZ) {
+						out.setRow(x, y, 0, row, sizeZ);
+						z = 0;
+						if (++y == sizeY) {
+							y = 0;
+							x++;
+						}
+					}
+				}
+			}
+		}
+		out.compact();
+	}
+}
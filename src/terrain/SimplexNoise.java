@@ -1,5 +1,9 @@
 package terrain;
 
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 /*
  * A speed-improved simplex noise algorithm for 2D, 3D and 4D in Java.
  *
@@ -17,7 +21,7 @@ package terrain;
  *
  */
 
-public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
+public class SimplexNoise implements Noise {  // Simplex noise in 2D, 3D and 4D
 	private static Grad grad3[] = {new Grad(1,1,0),new Grad(-1,1,0),new Grad(1,-1,0),new Grad(-1,-1,0),
 		new Grad(1,0,1),new Grad(-1,0,1),new Grad(1,0,-1),new Grad(-1,0,-1),
 		new Grad(0,1,1),new Grad(0,-1,1),new Grad(0,1,-1),new Grad(0,-1,-1)};
@@ -56,6 +60,74 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
 		}
 	}
 
+	// An instance with the permutation table of the static methods (after the table is filled)
+	public static final SimplexNoise DEFAULT = new SimplexNoise();
+
+	// A doubled permutation table of 0..255 shuffled by a seed
+	static short[] permutation(long seed) {
+		short shuffled[] = new short[256];
+		for(int i = 0; i < 256; i++) {
+			shuffled[i] = (short)i;
+		}
+		Random random = new Random(seed);
+		for(int i = 255; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			short swap = shuffled[i];
+			shuffled[i] = shuffled[j];
+			shuffled[j] = swap;
+		}
+		short doubled[] = new short[512];
+		for(int i = 0; i < 512; i++) {
+			doubled[i] = shuffled[i & 255];
+		}
+		return doubled;
+	}
+
+	// The doubled reference permutation table of Ken Perlin
+	static short[] permutation() {
+		return perm.clone();
+	}
+
+	private final short instancePerm[];
+	private final short instancePermMod12[];
+
+	// Instances only read their tables after construction, so they can be shared between threads
+	private SimplexNoise() {
+		this(perm);
+	}
+
+	public SimplexNoise(long seed) {
+		this(permutation(seed));
+	}
+
+	private SimplexNoise(short perm[]) {
+		instancePerm = perm;
+		instancePermMod12 = new short[512];
+		for(int i = 0; i < 512; i++) {
+			instancePermMod12[i] = (short)(perm[i] % 12);
+		}
+	}
+
+	@Override
+	public double sample(double x, double y) {
+		return noise(instancePerm, instancePermMod12, x, y);
+	}
+
+	@Override
+	public double sample(double x, double y, double z) {
+		return noise(instancePerm, instancePermMod12, x, y, z);
+	}
+
+	@Override
+	public double sampleGradient(double x, double y, float[] gradient) {
+		return noise(instancePerm, instancePermMod12, x, y, gradient);
+	}
+
+	@Override
+	public double sampleGradient(double x, double y, double z, float[] gradient) {
+		return noise(instancePerm, instancePermMod12, x, y, z, gradient);
+	}
+
 	// Skewing and unskewing factors for 2, 3, and 4 dimensions
 	private static final double F2 = 0.5*(Math.sqrt(3.0)-1.0);
 	private static final double G2 = (3.0-Math.sqrt(3.0))/6.0;
@@ -85,6 +157,26 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
 
 	// 2D simplex noise
 	public static double noise(double xin, double yin) {
+		return noise(perm, permMod12, xin, yin);
+	}
+
+	// 3D simplex noise
+	public static double noise(double xin, double yin, double zin) {
+		return noise(perm, permMod12, xin, yin, zin);
+	}
+
+	// 2D simplex noise that also writes its analytic gradient (d/dx, d/dy) to gradient[0..1]
+	public static double noise(double xin, double yin, float gradient[]) {
+		return noise(perm, permMod12, xin, yin, gradient);
+	}
+
+	// 3D simplex noise that also writes its analytic gradient to gradient[0..2]
+	public static double noise(double xin, double yin, double zin, float gradient[]) {
+		return noise(perm, permMod12, xin, yin, zin, gradient);
+	}
+
+	// 2D simplex noise of a permutation table
+	private static double noise(short perm[], short permMod12[], double xin, double yin) {
 		double n0, n1, n2; // Noise contributions from the three corners
 		// Skew the input space to determine which simplex cell we're in
 		double s = (xin + yin) * F2; // Hairy factor for 2D
@@ -138,8 +230,8 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
 	}
 
 
-	// 3D simplex noise
-	public static double noise(double xin, double yin, double zin) {
+	// 3D simplex noise of a permutation table
+	private static double noise(short perm[], short permMod12[], double xin, double yin, double zin) {
 		double n0, n1, n2, n3; // Noise contributions from the four corners
 		// Skew the input space to determine which simplex cell we're in
 		double s = (xin + yin + zin)*F3; // Very nice and simple skew factor for 3D
@@ -221,6 +313,150 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
 	}
 
 
+	// 2D simplex noise with its gradient. The value is computed exactly like noise(xin, yin).
+	// Each corner contributes t^4 * (g.d) with t = 0.5 - d.d, so its gradient is
+	// t^4 * g - 8 * t^3 * (g.d) * d.
+	private static double noise(short perm[], short permMod12[], double xin, double yin, float gradient[]) {
+		double s = (xin + yin) * F2;
+		int i = fastfloor(xin + s);
+		int j = fastfloor(yin + s);
+		double t = (i + j)*G2;
+		double x0 = xin-(i-t);
+		double y0 = yin-(j-t);
+		int i1, j1;
+		if(x0>y0) {i1=1; j1=0;}
+		else {i1=0; j1=1;}
+		double x1 = x0 - i1 + G2;
+		double y1 = y0 - j1 + G2;
+		double x2 = x0 - 1.0 + 2.0 * G2;
+		double y2 = y0 - 1.0 + 2.0 * G2;
+		int ii = i & 255;
+		int jj = j & 255;
+		Grad g0 = grad3[permMod12[ii+perm[jj]]];
+		Grad g1 = grad3[permMod12[ii+i1+perm[jj+j1]]];
+		Grad g2 = grad3[permMod12[ii+1+perm[jj+1]]];
+		double n0 = 0.0, n1 = 0.0, n2 = 0.0;
+		double dx = 0.0, dy = 0.0;
+		double t0 = 0.5 - x0*x0-y0*y0;
+		if(t0>=0) {
+			double t20 = t0 * t0;
+			double dot = dot(g0, x0, y0);
+			n0 = t20 * t20 * dot;
+			double f = -8.0 * t20 * t0 * dot;
+			dx += t20 * t20 * g0.x + f * x0;
+			dy += t20 * t20 * g0.y + f * y0;
+		}
+		double t1 = 0.5 - x1*x1-y1*y1;
+		if(t1>=0) {
+			double t21 = t1 * t1;
+			double dot = dot(g1, x1, y1);
+			n1 = t21 * t21 * dot;
+			double f = -8.0 * t21 * t1 * dot;
+			dx += t21 * t21 * g1.x + f * x1;
+			dy += t21 * t21 * g1.y + f * y1;
+		}
+		double t2 = 0.5 - x2*x2-y2*y2;
+		if(t2>=0) {
+			double t22 = t2 * t2;
+			double dot = dot(g2, x2, y2);
+			n2 = t22 * t22 * dot;
+			double f = -8.0 * t22 * t2 * dot;
+			dx += t22 * t22 * g2.x + f * x2;
+			dy += t22 * t22 * g2.y + f * y2;
+		}
+		gradient[0] = (float)(70.0 * dx);
+		gradient[1] = (float)(70.0 * dy);
+		return 70.0 * (n0 + n1 + n2);
+	}
+
+	// 3D simplex noise with its gradient, like the 2D version with t = 0.6 - d.d. The value is
+	// computed exactly like noise(xin, yin, zin).
+	private static double noise(short perm[], short permMod12[], double xin, double yin, double zin, float gradient[]) {
+		double s = (xin + yin + zin)*F3;
+		int i = fastfloor(xin + s);
+		int j = fastfloor(yin + s);
+		int k = fastfloor(zin + s);
+		double t = (i + j + k) * G3;
+		double x0 = xin - (i - t);
+		double y0 = yin - (j - t);
+		double z0 = zin - (k - t);
+		int i1, j1, k1;
+		int i2, j2, k2;
+		if(x0>=y0) {
+			if(y0>=z0)
+			{ i1=1; j1=0; k1=0; i2=1; j2=1; k2=0; }
+			else if(x0>=z0) { i1=1; j1=0; k1=0; i2=1; j2=0; k2=1; }
+			else { i1=0; j1=0; k1=1; i2=1; j2=0; k2=1; }
+		}
+		else {
+			if(y0<z0) { i1=0; j1=0; k1=1; i2=0; j2=1; k2=1; }
+			else if(x0<z0) { i1=0; j1=1; k1=0; i2=0; j2=1; k2=1; }
+			else { i1=0; j1=1; k1=0; i2=1; j2=1; k2=0; }
+		}
+		double x1 = x0 - i1 + G3;
+		double y1 = y0 - j1 + G3;
+		double z1 = z0 - k1 + G3;
+		double x2 = x0 - i2 + 2.0*G3;
+		double y2 = y0 - j2 + 2.0*G3;
+		double z2 = z0 - k2 + 2.0*G3;
+		double x3 = x0 - 1.0 + 3.0*G3;
+		double y3 = y0 - 1.0 + 3.0*G3;
+		double z3 = z0 - 1.0 + 3.0*G3;
+		int ii = i & 255;
+		int jj = j & 255;
+		int kk = k & 255;
+		Grad g0 = grad3[permMod12[ii+perm[jj+perm[kk]]]];
+		Grad g1 = grad3[permMod12[ii+i1+perm[jj+j1+perm[kk+k1]]]];
+		Grad g2 = grad3[permMod12[ii+i2+perm[jj+j2+perm[kk+k2]]]];
+		Grad g3 = grad3[permMod12[ii+1+perm[jj+1+perm[kk+1]]]];
+		double n0 = 0.0, n1 = 0.0, n2 = 0.0, n3 = 0.0;
+		double dx = 0.0, dy = 0.0, dz = 0.0;
+		double t0 = 0.6 - x0*x0 - y0*y0 - z0*z0;
+		if(t0>=0) {
+			double t20 = t0 * t0;
+			double dot = dot(g0, x0, y0, z0);
+			n0 = t20 * t20 * dot;
+			double f = -8.0 * t20 * t0 * dot;
+			dx += t20 * t20 * g0.x + f * x0;
+			dy += t20 * t20 * g0.y + f * y0;
+			dz += t20 * t20 * g0.z + f * z0;
+		}
+		double t1 = 0.6 - x1*x1 - y1*y1 - z1*z1;
+		if(t1>=0) {
+			double t21 = t1 * t1;
+			double dot = dot(g1, x1, y1, z1);
+			n1 = t21 * t21 * dot;
+			double f = -8.0 * t21 * t1 * dot;
+			dx += t21 * t21 * g1.x + f * x1;
+			dy += t21 * t21 * g1.y + f * y1;
+			dz += t21 * t21 * g1.z + f * z1;
+		}
+		double t2 = 0.6 - x2*x2 - y2*y2 - z2*z2;
+		if(t2>=0) {
+			double t22 = t2 * t2;
+			double dot = dot(g2, x2, y2, z2);
+			n2 = t22 * t22 * dot;
+			double f = -8.0 * t22 * t2 * dot;
+			dx += t22 * t22 * g2.x + f * x2;
+			dy += t22 * t22 * g2.y + f * y2;
+			dz += t22 * t22 * g2.z + f * z2;
+		}
+		double t3 = 0.6 - x3*x3 - y3*y3 - z3*z3;
+		if(t3>=0) {
+			double t23 = t3 * t3;
+			double dot = dot(g3, x3, y3, z3);
+			n3 = t23 * t23 * dot;
+			double f = -8.0 * t23 * t3 * dot;
+			dx += t23 * t23 * g3.x + f * x3;
+			dy += t23 * t23 * g3.y + f * y3;
+			dz += t23 * t23 * g3.z + f * z3;
+		}
+		gradient[0] = (float)(16.0 * dx);
+		gradient[1] = (float)(16.0 * dy);
+		gradient[2] = (float)(16.0 * dz);
+		return 16.0 * (n0 + n1 + n2 + n3) + 1.0;
+	}
+
 	// 4D simplex noise, better simplex rank ordering method 2012-03-09
 	public static double noise(double x, double y, double z, double w) {
 
@@ -339,19 +575,142 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
 		return 27.0 * (n0 + n1 + n2 + n3 + n4);
 	}
 	
+	// Octave i samples the noise at OCTAVE_SCALES[i] = 2^i times the frequency
+	public static final int MAX_OCTAVES = 31;
+	private static final double OCTAVE_SCALES[] = new double[MAX_OCTAVES];
+	static {
+		for(int i = 0; i < MAX_OCTAVES; i++) {
+			OCTAVE_SCALES[i] = 1 << i;
+		}
+	}
+
 	// 3D simplex noise using octaves
 	public static double simplex(int octaves, double xin, double yin, double zin) {
 		float val = 0.0f;
 	    for(int i=0; i<octaves; i++){
+	        double scale = OCTAVE_SCALES[i];
 	        val += noise(
-	            xin * Math.pow(2, i),
-	            yin * Math.pow(2, i),
-	            zin * Math.pow(2, i)
+	            xin * scale,
+	            yin * scale,
+	            zin * scale
 	        );
 	    }
 	    return val;
 	}
 
+	// 3D simplex noise using octaves for a row of points that only differ in z. Every value is
+	// the same as simplex(octaves, xin, yin, zin[n]), the octave scales are only computed once.
+	public static void simplex(int octaves, double xin, double yin, double[] zin, double[] out, int count) {
+		float[] row = scratch(count);
+		DEFAULT.sampleRow(octaves, 1.0f, xin, yin, zin, row, count);
+		for(int n = 0; n < count; n++) {
+			out[n] = row[n];
+		}
+	}
+
+	// 2D fractal noise of the static table, see sampleGrid
+	public static void grid(int octaves, float persistence, double originX, double originY, double step,
+			int sizeX, int sizeY, float[] out, int offset) {
+		DEFAULT.sampleGrid(octaves, persistence, originX, originY, step, sizeX, sizeY, out, offset);
+	}
+
+	// 3D fractal noise of the static table, see sampleGrid. With a persistence of 1 every value
+	// is the same as simplex(octaves, x, y, z) of its point.
+	public static void grid(int octaves, float persistence, double originX, double originY, double originZ,
+			double step, int sizeX, int sizeY, int sizeZ, float[] out, int offset) {
+		DEFAULT.sampleGrid(octaves, persistence, originX, originY, originZ, step, sizeX, sizeY, sizeZ, out, offset);
+	}
+
+	@Override
+	public void sampleRow(int octaves, float persistence, double x, double y, double[] zs, float[] out, int count) {
+		checkOctaves(octaves);
+		Arrays.fill(out, 0, count, 0.0f);
+		float amplitude = 1.0f;
+		for(int i = 0; i < octaves; i++) {
+			double scale = OCTAVE_SCALES[i];
+			double xs = x * scale;
+			double ys = y * scale;
+			for(int n = 0; n < count; n++) {
+				out[n] += amplitude * noise(instancePerm, instancePermMod12, xs, ys, zs[n] * scale);
+			}
+			amplitude *= persistence;
+		}
+	}
+
+	// The values are written to out[offset + x * sizeY + y], without allocating anything.
+	@Override
+	public void sampleGrid(int octaves, float persistence, double originX, double originY, double step,
+			int sizeX, int sizeY, float[] out, int offset) {
+		checkOctaves(octaves);
+		Arrays.fill(out, offset, offset + sizeX * sizeY, 0.0f);
+		for(int x = 0; x < sizeX; x++) {
+			int row = offset + x * sizeY;
+			float amplitude = 1.0f;
+			for(int i = 0; i < octaves; i++) {
+				double scale = OCTAVE_SCALES[i];
+				double xs = (originX + x * step) * scale;
+				for(int y = 0; y < sizeY; y++) {
+					out[row + y] += amplitude * noise(instancePerm, instancePermMod12, xs, (originY + y * step) * scale);
+				}
+				amplitude *= persistence;
+			}
+		}
+	}
+
+	@Override
+	public void sampleGrid(int octaves, float persistence, double originX, double originY, double originZ,
+			double step, int sizeX, int sizeY, int sizeZ, float[] out, int offset) {
+		checkOctaves(octaves);
+		Arrays.fill(out, offset, offset + sizeX * sizeY * sizeZ, 0.0f);
+		for(int x = 0; x < sizeX; x++) {
+			double xin = originX + x * step;
+			for(int y = 0; y < sizeY; y++) {
+				double yin = originY + y * step;
+				int row = offset + (x * sizeY + y) * sizeZ;
+				float amplitude = 1.0f;
+				for(int i = 0; i < octaves; i++) {
+					double scale = OCTAVE_SCALES[i];
+					double xs = xin * scale;
+					double ys = yin * scale;
+					for(int z = 0; z < sizeZ; z++) {
+						out[row + z] += amplitude * noise(instancePerm, instancePermMod12, xs, ys, (originZ + z * step) * scale);
+					}
+					amplitude *= persistence;
+				}
+			}
+		}
+	}
+
+	// The 2D grid of the static table written to a buffer, see Noise.sampleGrid
+	public static void grid(int octaves, float persistence, double originX, double originY, double step,
+			int sizeX, int sizeY, FloatBuffer out) {
+		DEFAULT.sampleGrid(octaves, persistence, originX, originY, step, sizeX, sizeY, out);
+	}
+
+	// The 3D grid of the static table written to a buffer, see Noise.sampleGrid
+	public static void grid(int octaves, float persistence, double originX, double originY, double originZ,
+			double step, int sizeX, int sizeY, int sizeZ, FloatBuffer out) {
+		DEFAULT.sampleGrid(octaves, persistence, originX, originY, originZ, step, sizeX, sizeY, sizeZ, out);
+	}
+
+	private static void checkOctaves(int octaves) {
+		if(octaves < 0 || octaves > MAX_OCTAVES) {
+			throw new IllegalArgumentException("Octaves must be between 0 and " + MAX_OCTAVES + ".");
+		}
+	}
+
+	// A row buffer per thread for writing rows to doubles, only grown when needed
+	private static final ThreadLocal<float[]> scratch = new ThreadLocal<float[]>();
+
+	private static float[] scratch(int length) {
+		float[] row = scratch.get();
+		if(row == null || row.length < length) {
+			row = new float[length];
+			scratch.set(row);
+		}
+		return row;
+	}
+
 	// Inner class to speed upp gradient computations
 	// (array access is a lot slower than member access)
 	private static class Grad
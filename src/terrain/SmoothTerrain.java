@@ -0,0 +1,54 @@
+package terrain;
+
+import physics.PhysicsModelProperties;
+import renderer.model.Mesh;
+import renderer.model.ModelInt;
+
+/**
+ * A smooth terrain: the isosurface of a density field in a box of cells, meshed with marching
+ * cubes. Like BlockTerrain the box is split into chunks of chunkSize^3 cells (see ChunkGridTerrain),
+ * meshed on the mesher threads.
+ * @author Max
+ *
+ */
+public class SmoothTerrain extends ChunkGridTerrain {
+	private final DensityField field;
+	private final float isoLevel;
+	private final float cellSize;
+	private final MarchingCubesMesher mesher = new MarchingCubesMesher();
+
+	public SmoothTerrain(DensityField field, float isoLevel, int sizeX, int sizeY, int sizeZ, float cellSize) {
+		this(field, isoLevel, sizeX, sizeY, sizeZ, cellSize, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates the terrain and meshes the surface of every chunk before returning.
+	 * @param field The density field, sampled from the mesher threads.
+	 * @param isoLevel The density of the surface, points above it are solid.
+	 * @param sizeX The size of the box in cells, starting at the origin.
+	 * @param sizeY
+	 * @param sizeZ
+	 * @param cellSize The edge length of a cell.
+	 * @param chunkSize The edge length of a chunk in cells.
+	 */
+	public SmoothTerrain(DensityField field, float isoLevel, int sizeX, int sizeY, int sizeZ, float cellSize, int chunkSize) {
+		super(sizeX, sizeY, sizeZ, chunkSize);
+		this.field = field;
+		this.isoLevel = isoLevel;
+		this.cellSize = cellSize;
+		meshChunks();
+	}
+
+	@Override
+	protected ModelInt buildModel(TerrainChunk chunk) {
+		int x0 = chunk.x * chunkSize, y0 = chunk.y * chunkSize, z0 = chunk.z * chunkSize;
+		Mesh mesh = mesher.mesh(field, isoLevel, x0 * cellSize, y0 * cellSize, z0 * cellSize,
+				Math.min(chunkSize, sizeX - x0),
+				Math.min(chunkSize, sizeY - y0),
+				Math.min(chunkSize, sizeZ - z0), cellSize);
+		if (mesh.getTriangleCount() == 0) {
+			return null;
+		}
+		return new ModelInt(mesh, new PhysicsModelProperties(groundProps));
+	}
+}
@@ -0,0 +1,480 @@
+package terrain;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.lwjgl.util.vector.Vector3f;
+
+import physics.PhysicsModelProperties;
+import renderer.model.Mesh;
+import renderer.model.MeshBatch;
+import renderer.model.ModelInt;
+import system.Settings;
+
+/**
+ * A block terrain without bounds, generated chunk by chunk around a position (e.g. the one of the
+ * Player). Call update with the position every frame.
+ *
+ * Chunks within loadRadius chunks of the position are generated and meshed on the mesher threads.
+ * Their OpenGL buffers are created on the render thread, as many per frame as fit in the upload
+ * budget, so moving around doesn't stall a frame. Chunks outside of the radius stay loaded (and
+ * rendered) until the terrain takes more than its memory cap, then the least recently used
+ * ones are evicted first. The rendering and physics of the chunks are the ones of ChunkedTerrain.
+ *
+ * With a ChunkStore, chunks are loaded from it instead of generated when they were saved before.
+ * Generated and edited chunks (see setBlock) are dirty until they are saved, which happens when
+ * they are evicted or on save.
+ *
+ * @author Max
+ */
+public class StreamingTerrain extends ChunkedTerrain<StreamingTerrain.Chunk> {
+	private final BlockTerrainGenerator generator;
+	private final int cSize;
+	private final int chunkSize;
+	private final int loadRadius;
+	private final long maxMemory;
+	private final GreedyMesher mesher = new GreedyMesher();
+
+	// The offsets of the chunks within the radius, nearest first
+	private final int[] radiusOffsets;
+
+	// All chunks that are loading or loaded, least recently used first
+	private final LinkedHashMap<Long, Chunk> chunks = new LinkedHashMap<>(64, 0.75f, true);
+
+	// Chunks the mesher threads are done loading
+	private final ConcurrentLinkedQueue<Chunk> builtChunks = new ConcurrentLinkedQueue<>();
+
+	// The bytes of the loaded chunks (voxels and meshes)
+	private long memoryUsage = 0;
+
+	// The chunk the position is in
+	private int centreX, centreY, centreZ;
+	private boolean hasCentre = false;
+
+	// Where chunks are saved (null if they aren't), and the evicted chunks whose saves haven't
+	// been written yet by key (a save removes its chunk once it is written)
+	private ChunkStore store = null;
+	private final ConcurrentHashMap<Long, Chunk> savingChunks = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a streaming terrain with the [terrain] settings.
+	 * @param generator The generator of the blocks.
+	 * @param cubeSize The edge length of a block.
+	 */
+	public StreamingTerrain(BlockTerrainGenerator generator, int cubeSize) {
+		this(generator, cubeSize,
+				Settings.getInstance().get("terrain", "chunkSize", int.class),
+				Settings.getInstance().get("terrain", "loadRadius", int.class),
+				Settings.getInstance().get("terrain", "maxMemory", long.class) * 1024 * 1024,
+				Settings.getInstance().get("terrain", "uploadBudget", float.class));
+	}
+
+	/**
+	 * Creates a streaming terrain.
+	 * @param generator The generator of the blocks.
+	 * @param cubeSize The edge length of a block.
+	 * @param chunkSize The edge length of a chunk in blocks.
+	 * @param loadRadius The distance in chunks around the position that is kept loaded.
+	 * @param maxMemory The bytes of voxels and meshes above which chunks outside of the radius are evicted.
+	 * @param uploadBudget The milliseconds per frame that can be spent uploading chunks (at least one
+	 * chunk is uploaded per frame).
+	 */
+	public StreamingTerrain(BlockTerrainGenerator generator, int cubeSize, int chunkSize, int loadRadius, long maxMemory, float uploadBudget) {
+		super((long) (uploadBudget * 1000000));
+		this.generator = generator;
+		this.cSize = cubeSize;
+		this.chunkSize = chunkSize;
+		this.loadRadius = loadRadius;
+		this.maxMemory = maxMemory;
+
+		List<int[]> offsets = new ArrayList<>();
+		for (int x = -loadRadius; x <= loadRadius; x++) {
+			for (int y = -loadRadius; y <= loadRadius; y++) {
+				for (int z = -loadRadius; z <= loadRadius; z++) {
+					if (x * x + y * y + z * z <= loadRadius * loadRadius) {
+						offsets.add(new int[] {x, y, z, x * x + y * y + z * z});
+					}
+				}
+			}
+		}
+		Collections.sort(offsets, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[3], b[3]);
+			}
+		});
+		radiusOffsets = new int[offsets.size() * 3];
+		for (int i = 0; i < offsets.size(); i++) {
+			System.arraycopy(offsets.get(i), 0, radiusOffsets, i * 3, 3);
+		}
+	}
+
+	/**
+	 * Streams the terrain around a position: requests the missing chunks within the radius,
+	 * takes over the chunks that finished loading and evicts chunks if the terrain takes more
+	 * than its memory cap. Call it every frame on the game thread.
+	 * @param position The position in world space (e.g. Player.getPosition()).
+	 */
+	public void update(Vector3f position) {
+		int x = chunkCoordinate(position.x);
+		int y = chunkCoordinate(position.y);
+		int z = chunkCoordinate(position.z);
+		if (!hasCentre || x != centreX || y != centreY || z != centreZ) {
+			centreX = x;
+			centreY = y;
+			centreZ = z;
+			hasCentre = true;
+			requestChunks();
+		}
+
+		Chunk chunk;
+		while ((chunk = builtChunks.poll()) != null) {
+			if (chunk.evicted) {
+				continue;
+			}
+			chunk.loaded = true;
+			memoryUsage += chunk.memory;
+			addChunk(chunk);
+		}
+
+		// Swap in the models of edited chunks
+		swapRemeshedChunks();
+
+		// Evict the least recently used chunks outside of the radius
+		Iterator<Chunk> iterator = chunks.values().iterator();
+		while (memoryUsage > maxMemory && iterator.hasNext()) {
+			chunk = iterator.next();
+			if (chunk.loaded && !isInRadius(chunk)) {
+				iterator.remove();
+				unload(chunk);
+			}
+		}
+	}
+
+	/**
+	 * @return if chunks are being generated or meshed
+	 */
+	public boolean isLoading() {
+		return activeTasks.get() > 0;
+	}
+
+	/**
+	 * Checks if a chunk is loaded (generated and meshed, its model may not be uploaded yet).
+	 * @param chunkX The position of the chunk in chunks.
+	 * @param chunkY
+	 * @param chunkZ
+	 * @return if the chunk is loaded
+	 */
+	public boolean isLoaded(int chunkX, int chunkY, int chunkZ) {
+		// Marks the chunk as recently used, like the lookups of requestChunks
+		Chunk chunk = chunks.get(key(chunkX, chunkY, chunkZ));
+		return chunk != null && chunk.loaded;
+	}
+
+	/**
+	 * Sets a block of the loaded terrain and queues a remesh of the chunks holding it, the new
+	 * models show up in a later update. A block on the side of a chunk is also in the border of
+	 * its neighbours, so they are updated too. The changed chunks are dirty.
+	 * @param x The position of the block in blocks.
+	 * @param y
+	 * @param z
+	 * @param value The block, 0 for air.
+	 * @return false if the chunk of the block isn't loaded
+	 */
+	public boolean setBlock(int x, int y, int z, int value) {
+		int chunkX = Math.floorDiv(x, chunkSize), chunkY = Math.floorDiv(y, chunkSize), chunkZ = Math.floorDiv(z, chunkSize);
+		if (!isLoaded(chunkX, chunkY, chunkZ)) {
+			return false;
+		}
+
+		for (int cx = Math.floorDiv(x - 1, chunkSize); cx <= Math.floorDiv(x + 1, chunkSize); cx++) {
+			for (int cy = Math.floorDiv(y - 1, chunkSize); cy <= Math.floorDiv(y + 1, chunkSize); cy++) {
+				for (int cz = Math.floorDiv(z - 1, chunkSize); cz <= Math.floorDiv(z + 1, chunkSize); cz++) {
+					Chunk chunk = chunks.get(key(cx, cy, cz));
+					if (chunk == null || !chunk.loaded) {
+						continue;
+					}
+
+					// The volume starts one block before the chunk
+					int lx = x - cx * chunkSize + 1, ly = y - cy * chunkSize + 1, lz = z - cz * chunkSize + 1;
+					if (chunk.volume.get(lx, ly, lz) != value) {
+						chunk.volume.set(lx, ly, lz, value);
+						chunk.dirty = store != null;
+						remesh(chunk);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of chunks that are loading or loaded
+	 */
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * @return the bytes of the voxels and meshes of the loaded chunks
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	/**
+	 * Sets the store chunks are loaded from and saved to. Set it before the first update.
+	 * @param store The store of volumes of chunkSize + 2 (a chunk with its border), null to not save chunks.
+	 */
+	public void setChunkStore(ChunkStore store) {
+		if (store != null && store.getVolumeSize() != chunkSize + 2) {
+			throw new IllegalArgumentException("The store holds volumes of " + store.getVolumeSize() + ", chunks need " + (chunkSize + 2));
+		}
+		this.store = store;
+	}
+
+	/**
+	 * Saves the loaded chunks that are dirty (e.g. before exiting) and waits for the saves of
+	 * evicted chunks, which run on the mesher threads.
+	 * @return the number of loaded chunks saved
+	 * @throws IOException
+	 */
+	public int save() throws IOException {
+		int saved = 0;
+		if (store == null) {
+			return saved;
+		}
+
+		for (Chunk pending : savingChunks.values()) {
+			try {
+				pending.saving.get();
+			} catch (InterruptedException | ExecutionException e) {
+				// A failed save stays pending, try it again here so the failure reaches the caller
+				store.save(pending.x, pending.y, pending.z, pending.volume);
+				savingChunks.remove(key(pending.x, pending.y, pending.z), pending);
+			}
+		}
+
+		for (Chunk chunk : chunks.values()) {
+			if (chunk.loaded && chunk.dirty) {
+				store.save(chunk.x, chunk.y, chunk.z, chunk.volume);
+				chunk.dirty = false;
+				saved++;
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * Requests the chunks within the radius that aren't loading yet (nearest first) and drops the
+	 * loads that haven't finished and are no longer needed.
+	 */
+	private void requestChunks() {
+		Iterator<Chunk> iterator = chunks.values().iterator();
+		while (iterator.hasNext()) {
+			Chunk chunk = iterator.next();
+			if (!chunk.loaded && !isInRadius(chunk)) {
+				iterator.remove();
+				chunk.evicted = true;
+			}
+		}
+
+		for (int i = 0; i < radiusOffsets.length; i += 3) {
+			int x = centreX + radiusOffsets[i];
+			int y = centreY + radiusOffsets[i + 1];
+			int z = centreZ + radiusOffsets[i + 2];
+			long key = key(x, y, z);
+
+			// Looking the chunk up also marks it as recently used
+			if (chunks.get(key) == null) {
+				Chunk chunk = new Chunk(x, y, z);
+				chunks.put(key, chunk);
+				load(chunk);
+			}
+		}
+	}
+
+	/**
+	 * Generates and meshes a chunk on the mesher threads.
+	 */
+	private void load(final Chunk chunk) {
+		activeTasks.incrementAndGet();
+		getMesherPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (chunk.evicted) {
+						return;
+					}
+
+					// The chunk with a border of one block, so faces towards other chunks are hidden
+					int x0 = chunk.x * chunkSize - 1, y0 = chunk.y * chunkSize - 1, z0 = chunk.z * chunkSize - 1;
+					VoxelVolume volume = new VoxelVolume(chunkSize + 2, chunkSize + 2, chunkSize + 2);
+					Chunk saving = savingChunks.get(key(chunk.x, chunk.y, chunk.z));
+					if (saving != null) {
+						// The store may not have the last copy yet, take it from the pending save
+						copyVolume(saving.volume, volume);
+					} else if (!loadStored(chunk, volume)) {
+						generator.generateBox(x0, y0, z0, volume);
+						chunk.dirty = store != null;
+					}
+					chunk.volume = volume;
+					chunk.setModel(buildModel(chunk));
+					chunk.memory = getMemoryUsage(chunk);
+					builtChunks.add(chunk);
+				} finally {
+					activeTasks.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	@Override
+	protected ModelInt buildModel(Chunk chunk) {
+		Mesh mesh = mesher.mesh(chunk.volume, 1, 1, 1, chunkSize, chunkSize, chunkSize, cSize);
+		if (mesh.getTriangleCount() == 0) {
+			return null;
+		}
+		int x0 = chunk.x * chunkSize - 1, y0 = chunk.y * chunkSize - 1, z0 = chunk.z * chunkSize - 1;
+		return new ModelInt(mesh, new Vector3f(x0 * cSize, y0 * cSize, z0 * cSize), new PhysicsModelProperties(groundProps));
+	}
+
+	/**
+	 * @return the bytes of the volume and mesh of a chunk
+	 */
+	private static long getMemoryUsage(Chunk chunk) {
+		long memory = chunk.volume.getMemoryUsage();
+		if (chunk.getModel() != null) {
+			for (MeshBatch batch : chunk.getModel().getMesh().getBatches()) {
+				memory += batch.getVertices().capacity() + batch.getIndices().capacity();
+			}
+		}
+		return memory;
+	}
+
+	@Override
+	protected Iterable<Chunk> getChunks() {
+		return chunks.values();
+	}
+
+	@Override
+	protected boolean isActive(Chunk chunk) {
+		return chunk.loaded && !chunk.evicted;
+	}
+
+	@Override
+	protected void setChunkModel(Chunk chunk, ModelInt model) {
+		memoryUsage -= chunk.memory;
+		super.setChunkModel(chunk, model);
+		chunk.memory = getMemoryUsage(chunk);
+		memoryUsage += chunk.memory;
+	}
+
+	/**
+	 * Loads a chunk from the store.
+	 * @return false if there is no store or the chunk isn't saved in it
+	 */
+	private boolean loadStored(Chunk chunk, VoxelVolume volume) {
+		if (store == null) {
+			return false;
+		}
+		try {
+			return store.load(chunk.x, chunk.y, chunk.z, volume);
+		} catch (IOException e) {
+			// Generate the chunk instead
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static void copyVolume(VoxelVolume from, final VoxelVolume to) {
+		from.forEach(new VoxelVolume.Visitor() {
+			@Override
+			public void visit(int x, int y, int z, int value) {
+				to.set(x, y, z, value);
+			}
+		});
+	}
+
+	/**
+	 * Releases the buffers and rigid body of an evicted chunk, and saves it on the mesher threads
+	 * if it is dirty. Until the save is written, loads of the chunk copy its volume.
+	 */
+	private void unload(final Chunk chunk) {
+		removeChunk(chunk);
+		chunk.evicted = true;
+		if (chunk.dirty) {
+			chunk.dirty = false;
+			final long key = key(chunk.x, chunk.y, chunk.z);
+			final Chunk previous = savingChunks.put(key, chunk);
+			chunk.saving = getMesherPool().submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					// An older save of the chunk started first, it must not be written over this one
+					if (previous != null) {
+						try {
+							previous.saving.get();
+						} catch (InterruptedException | ExecutionException e) {
+							// This save replaces it
+						}
+					}
+					store.save(chunk.x, chunk.y, chunk.z, chunk.volume);
+					savingChunks.remove(key, chunk);
+					return null;
+				}
+			});
+		}
+		memoryUsage -= chunk.memory;
+	}
+
+	private boolean isInRadius(Chunk chunk) {
+		int dx = chunk.x - centreX, dy = chunk.y - centreY, dz = chunk.z - centreZ;
+		return dx * dx + dy * dy + dz * dz <= loadRadius * loadRadius;
+	}
+
+	private int chunkCoordinate(float position) {
+		// Blocks are centred on their index times the block size
+		int block = (int) Math.floor(position / cSize + 0.5f);
+		return Math.floorDiv(block, chunkSize);
+	}
+
+	private static long key(int x, int y, int z) {
+		return ((long) (x & 0x1fffff) << 42) | ((long) (y & 0x1fffff) << 21) | (z & 0x1fffff);
+	}
+
+	/**
+	 * A chunk of the terrain. The mesher threads fill in the volume and model, the game thread
+	 * takes the chunk over once it is in builtChunks.
+	 */
+	static class Chunk extends TerrainChunk {
+		// The blocks of the chunk with a border of one block
+		VoxelVolume volume;
+		long memory;
+
+		// If the game thread took the chunk over
+		boolean loaded = false;
+
+		// If the chunk was generated or edited and isn't saved yet
+		boolean dirty = false;
+
+		// Set once the chunk is no longer needed, a load that hasn't started is skipped
+		volatile boolean evicted = false;
+
+		// The save of the evicted chunk (null if it wasn't dirty)
+		Future<?> saving;
+
+		Chunk(int x, int y, int z) {
+			super(x, y, z);
+		}
+	}
+}
@@ -1,14 +1,396 @@
 package terrain;
 
-import renderer.model.Model;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-public class Terrain {
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector4f;
 
-	public int getAltitude(int x, int z) {
-		return 0;
+import renderer.Renderable;
+import renderer.model.BoundingBox;
+import renderer.model.Mesh;
+import renderer.model.MeshBatch;
+import renderer.model.ModelScene;
+import renderer.model.VertexFormat;
+import texture.Material;
+import util.MathUtils;
+import util.Plane;
+
+/**
+ * A heightfield terrain: a size * size grid of heights, cellSize apart along x and z, with the
+ * height of (x, z) at heights[x * size + z]. The normals are given with the heights (e.g. the
+ * analytic normals of NoiseTerrainGenerator) or computed from the differences of the heights.
+ *
+ * The grid is meshed in tiles of TILE_SIZE^2 cells, each an indexed grid in the COMPACT vertex
+ * format with 16-bit indices and its own model, so tiles are culled by their own bounding box.
+ * A tile is only meshed (on the mesher threads, see ChunkedTerrain.getMesherPool) once it is first
+ * in view, so a large terrain only holds the vertices of the tiles that were seen. Until then a
+ * tile is culled by the height range of its points, and it is bound when first rendered.
+ * @author Max
+ *
+ */
+public class Terrain implements Renderable {
+	public static final int TILE_SIZE = 64;
+
+	private final float [] heights;
+	private final float [] normals;
+	private final int size;
+	private final float cellSize;
+	private final int tileCount;
+
+	// Per tile: the model (null until meshed), the meshing in progress and the height range
+	private final ModelScene [] tiles;
+	private final List<Future<ModelScene>> meshing;
+	private final float [] tileMinHeights;
+	private final float [] tileMaxHeights;
+
+	// The corners of the tile being culled, only used on the render thread
+	private final Vector4f [] corners = new Vector4f [8];
+
+	/**
+	 * @param heights The heights (not copied).
+	 * @param size The number of points along each side.
+	 * @param cellSize The distance between two points.
+	 */
+	public Terrain(float [] heights, int size, float cellSize) {
+		this(heights, null, size, cellSize);
+	}
+
+	/**
+	 * @param heights The heights (not copied).
+	 * @param normals The unit normals (not copied), the normal of (x, z) at 3 * (x * size + z),
+	 * or null to compute them from the heights.
+	 * @param size The number of points along each side.
+	 * @param cellSize The distance between two points.
+	 */
+	public Terrain(float [] heights, float [] normals, int size, float cellSize) {
+		if(heights.length != size * size) {
+			throw new IllegalArgumentException("Expected " + size * size + " heights, got " + heights.length + ".");
+		}
+		if(normals != null && normals.length != 3 * size * size) {
+			throw new IllegalArgumentException("Expected " + 3 * size * size + " normal components, got " + normals.length + ".");
+		}
+		this.heights = heights;
+		this.normals = normals;
+		this.size = size;
+		this.cellSize = cellSize;
+		this.tileCount = Math.max((size - 2) / TILE_SIZE + 1, 1);
+		this.tiles = new ModelScene [tileCount * tileCount];
+
+		this.meshing = new ArrayList<>(Collections.<Future<ModelScene>>nCopies(tiles.length, null));
+		this.tileMinHeights = new float [tiles.length];
+		this.tileMaxHeights = new float [tiles.length];
+		Arrays.fill(tileMinHeights, Float.POSITIVE_INFINITY);
+		Arrays.fill(tileMaxHeights, Float.NEGATIVE_INFINITY);
+
+		// The points on the side between two tiles belong to both
+		for(int x = 0; x < size; x++) {
+			int txFirst = Math.max(x - 1, 0) / TILE_SIZE, txLast = Math.min(x / TILE_SIZE, tileCount - 1);
+			for(int z = 0; z < size; z++) {
+				int tzFirst = Math.max(z - 1, 0) / TILE_SIZE, tzLast = Math.min(z / TILE_SIZE, tileCount - 1);
+				float height = heights[x * size + z];
+				for(int tx = txFirst; tx <= txLast; tx++) {
+					for(int tz = tzFirst; tz <= tzLast; tz++) {
+						int tile = tx * tileCount + tz;
+						tileMinHeights[tile] = Math.min(tileMinHeights[tile], height);
+						tileMaxHeights[tile] = Math.max(tileMaxHeights[tile], height);
+					}
+				}
+			}
+		}
+		for(int i = 0; i < corners.length; i++) {
+			corners[i] = new Vector4f();
+		}
+	}
+
+	/**
+	 * @return the heights (not a copy)
+	 */
+	public float [] getHeights() {
+		return heights;
+	}
+
+	/**
+	 * @return the normals (not a copy), null if they are computed from the heights
+	 */
+	public float [] getNormals() {
+		return normals;
+	}
+
+	public int getSize() {
+		return size;
 	}
-	
-	public Model getColour(int x, int z) {
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @param x The point along x.
+	 * @param z The point along z.
+	 * @return the height of a grid point
+	 */
+	public float getAltitude(int x, int z) {
+		return heights[x * size + z];
+	}
+
+	/**
+	 * Interpolates the height bilinearly between the grid points, clamped to the grid.
+	 * @param x The world position.
+	 * @param z
+	 * @return the height
+	 */
+	public float getHeight(float x, float z) {
+		float gx = Math.min(Math.max(x / cellSize, 0), size - 1);
+		float gz = Math.min(Math.max(z / cellSize, 0), size - 1);
+		int x0 = Math.min((int)gx, size - 2);
+		int z0 = Math.min((int)gz, size - 2);
+		float fx = gx - x0;
+		float fz = gz - z0;
+		float near = getAltitude(x0, z0) + (getAltitude(x0, z0 + 1) - getAltitude(x0, z0)) * fz;
+		float far = getAltitude(x0 + 1, z0) + (getAltitude(x0 + 1, z0 + 1) - getAltitude(x0 + 1, z0)) * fz;
+		return near + (far - near) * fx;
+	}
+
+	/**
+	 * @return the number of tiles along each side
+	 */
+	public int getTileCount() {
+		return tileCount;
+	}
+
+	/**
+	 * Gets the model of a tile, meshing it now if it isn't yet.
+	 * @param tileX The position of the tile in tiles.
+	 * @param tileZ
+	 * @return the model of the tile
+	 */
+	public ModelScene getTile(int tileX, int tileZ) {
+		return getTile(tileX * tileCount + tileZ, true);
+	}
+
+	/**
+	 * @param tileX The position of the tile in tiles.
+	 * @param tileZ
+	 * @return if the tile is meshed
+	 */
+	public boolean isMeshed(int tileX, int tileZ) {
+		return tiles[tileX * tileCount + tileZ] != null;
+	}
+
+	/**
+	 * Gets the model of a tile, queueing its meshing on the mesher threads the first time.
+	 * @param wait If the meshing should be waited for.
+	 * @return the model (null if it is still being meshed and wait is false)
+	 */
+	private ModelScene getTile(int index, boolean wait) {
+		if(tiles[index] != null) {
+			return tiles[index];
+		}
+
+		Future<ModelScene> future = meshing.get(index);
+		if(future == null) {
+			final int x0 = index / tileCount * TILE_SIZE;
+			final int z0 = index % tileCount * TILE_SIZE;
+			future = ChunkedTerrain.getMesherPool().submit(new Callable<ModelScene>() {
+				@Override
+				public ModelScene call() {
+					return new ModelScene(meshTile(x0, z0));
+				}
+			});
+			meshing.set(index, future);
+		}
+		if(!wait && !future.isDone()) {
+			return null;
+		}
+
+		try {
+			tiles[index] = future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("Failed to mesh the terrain", e);
+		}
+		meshing.set(index, null);
+		return tiles[index];
+	}
+
+	/**
+	 * Checks if a tile is outside of the frustum, by the height range of its points.
+	 * @param modelViewMatrix The view matrix times the parent matrix of the terrain.
+	 */
+	private boolean isCulled(int index, Matrix4f modelViewMatrix, Plane[] frustumPlanes) {
+		float extent = TILE_SIZE * cellSize;
+		int tx = index / tileCount, tz = index % tileCount;
+		for(int c = 0; c < 8; c++) {
+			corners[c].set((tx + (c & 1)) * extent, (c & 2) == 0 ? tileMinHeights[index] : tileMaxHeights[index],
+					(tz + (c >> 2)) * extent, 1f);
+			Matrix4f.transform(modelViewMatrix, corners[c], corners[c]);
+		}
+
+		for(Plane plane : frustumPlanes) {
+			boolean outside = true;
+			for(Vector4f corner : corners) {
+				outside &= MathUtils.dotPlaneWithVector(plane, corner) < 0f;
+			}
+			if(outside) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Meshes the cells [x0, x0 + TILE_SIZE) * [z0, z0 + TILE_SIZE) (cut off at the grid).
+	 */
+	private Mesh meshTile(int x0, int z0) {
+		int cellsX = Math.min(TILE_SIZE, size - 1 - x0);
+		int cellsZ = Math.min(TILE_SIZE, size - 1 - z0);
+		int pointsZ = cellsZ + 1;
+		int vertexCount = (cellsX + 1) * pointsZ;
+
+		ByteBuffer vertices = BufferUtils.createByteBuffer(vertexCount * VertexFormat.COMPACT.getStride());
+		BoundingBox bounds = new BoundingBox();
+		writeVertices(heights, normals, size, cellSize, x0, z0, 1, cellsX + 1, pointsZ, vertices, bounds);
+
+		// Two triangles per cell, counter-clockwise seen from above
+		int indexCount = cellsX * cellsZ * 6;
+		ByteBuffer indices = BufferUtils.createByteBuffer(indexCount * 2);
+		int i = 0;
+		for(int x = 0; x < cellsX; x++) {
+			for(int z = 0; z < cellsZ; z++) {
+				int corner = x * pointsZ + z;
+				indices.putShort(2 * i++, (short)corner);
+				indices.putShort(2 * i++, (short)(corner + 1));
+				indices.putShort(2 * i++, (short)(corner + pointsZ));
+				indices.putShort(2 * i++, (short)(corner + pointsZ));
+				indices.putShort(2 * i++, (short)(corner + 1));
+				indices.putShort(2 * i++, (short)(corner + pointsZ + 1));
+			}
+		}
+
+		MeshBatch batch = new MeshBatch(new Material(), VertexFormat.COMPACT, vertices, vertexCount, indices, indexCount, 2);
+		return new Mesh(Collections.singletonList(batch), bounds);
+	}
+
+	/**
+	 * Writes every step-th point of a heightfield from (x0, z0) in the COMPACT vertex format, the
+	 * point (x, z) at vertex x * pointsZ + z. Without normals they are the central differences
+	 * of the heights step points apart, one-sided on the sides of the grid.
+	 * @param heights
+	 * @param normals The unit normals of the points, or null.
+	 * @param size
+	 * @param cellSize
+	 * @param x0 The first point.
+	 * @param z0
+	 * @param step The distance between two written points in points.
+	 * @param pointsX The number of points written along x.
+	 * @param pointsZ The number of points written along z.
+	 * @param vertices The buffer the vertices are written to (absolute puts).
+	 * @param bounds The bounding box the positions are added to.
+	 */
+	static void writeVertices(float [] heights, float [] normals, int size, float cellSize, int x0, int z0, int step,
+			int pointsX, int pointsZ, ByteBuffer vertices, BoundingBox bounds) {
+		int stride = VertexFormat.COMPACT.getStride();
+		float [] position = new float [3];
+		short [] normal = new short [2];
+		for(int x = 0; x < pointsX; x++) {
+			for(int z = 0; z < pointsZ; z++) {
+				int gx = x0 + x * step;
+				int gz = z0 + z * step;
+				position[0] = gx * cellSize;
+				position[1] = heights[gx * size + gz];
+				position[2] = gz * cellSize;
+				bounds.addVertex(position);
+
+				if(normals != null) {
+					int n = 3 * (gx * size + gz);
+					VertexFormat.encodeNormal(normals[n], normals[n + 1], normals[n + 2], normal);
+				} else {
+					int left = Math.max(gx - step, 0), right = Math.min(gx + step, size - 1);
+					int back = Math.max(gz - step, 0), front = Math.min(gz + step, size - 1);
+					float dx = (heights[right * size + gz] - heights[left * size + gz]) / ((right - left) * cellSize);
+					float dz = (heights[gx * size + front] - heights[gx * size + back]) / ((front - back) * cellSize);
+					float length = (float)Math.sqrt(dx * dx + 1 + dz * dz);
+					VertexFormat.encodeNormal(-dx / length, 1 / length, -dz / length, normal);
+				}
+
+				int offset = (x * pointsZ + z) * stride;
+				vertices.putFloat(offset + VertexFormat.COMPACT_POSITION_OFFSET, position[0]);
+				vertices.putFloat(offset + VertexFormat.COMPACT_POSITION_OFFSET + 4, position[1]);
+				vertices.putFloat(offset + VertexFormat.COMPACT_POSITION_OFFSET + 8, position[2]);
+				vertices.putShort(offset + VertexFormat.COMPACT_NORMAL_OFFSET, normal[0]);
+				vertices.putShort(offset + VertexFormat.COMPACT_NORMAL_OFFSET + 2, normal[1]);
+				vertices.putShort(offset + VertexFormat.COMPACT_TEXTURE_OFFSET, VertexFormat.toHalfFloat(x * step));
+				vertices.putShort(offset + VertexFormat.COMPACT_TEXTURE_OFFSET + 2, VertexFormat.toHalfFloat(z * step));
+			}
+		}
+	}
+
+	@Override
+	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix) {
+		for(int i = 0; i < tiles.length; i++) {
+			ModelScene tile = getTile(i, false);
+			if(tile == null) {
+				continue;
+			}
+			if(!tile.isBound()) {
+				tile.bind();
+			}
+			tile.render(parentMatrix, viewMatrix);
+		}
+	}
+
+	@Override
+	public void render(Matrix4f parentMatrix, Matrix4f viewMatrix, Plane[] frustumPlanes) {
+		// The tiles are placed by the parent matrix, like the culling of ModelInt
+		Matrix4f modelViewMatrix = Matrix4f.mul(viewMatrix, parentMatrix, null);
+		for(int i = 0; i < tiles.length; i++) {
+			// Tiles that were never in view aren't meshed
+			if(tiles[i] == null && isCulled(i, modelViewMatrix, frustumPlanes)) {
+				continue;
+			}
+			ModelScene tile = getTile(i, false);
+			if(tile == null) {
+				continue;
+			}
+			if(!tile.isBound()) {
+				tile.bind();
+			}
+
+			// Every tile is culled by its own bounding box
+			tile.render(parentMatrix, viewMatrix, frustumPlanes);
+		}
+	}
+
+	@Override
+	public boolean bind() {
+		return false;
+	}
+
+	@Override
+	public boolean hasChildren() {
+		return false;
+	}
+
+	@Override
+	public List<Renderable> getChildren() {
 		return null;
 	}
+
+	@Override
+	public boolean isBound() {
+		// The tiles are bound when they are first rendered
+		return true;
+	}
+
+	@Override
+	public boolean isCullable(Matrix4f viewMatrix, Matrix4f parentMatrix, Plane[] frustumPlanes) {
+		return false;
+	}
 }
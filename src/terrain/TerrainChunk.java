@@ -0,0 +1,82 @@
+package terrain;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import renderer.model.ModelInt;
+
+/**
+ * A fixed-size box of a ChunkedTerrain with its own model. Edits bump the version of the
+ * chunk and queue one remesh on the mesher threads; the finished model is handed back to the
+ * render thread, which swaps it in (see ChunkedTerrain.remesh).
+ *
+ * @author Max
+ */
+class TerrainChunk {
+	// The position of the chunk in chunks, its first block is (x, y, z) * chunk size
+	final int x;
+	final int y;
+	final int z;
+
+	// Bumped by every edit of the chunk (or of a block next to it)
+	final AtomicInteger version = new AtomicInteger();
+
+	// If a remesh is queued and hasn't started yet
+	final AtomicBoolean queued = new AtomicBoolean();
+
+	// The model that is rendered (null if the chunk has no faces), only used on the render thread
+	private ModelInt model;
+
+	// The newest finished remesh that hasn't been swapped in yet
+	private ModelInt remeshedModel;
+	private int remeshedVersion = -1;
+	private boolean hasRemeshed = false;
+
+	TerrainChunk(int x, int y, int z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	ModelInt getModel() {
+		return model;
+	}
+
+	void setModel(ModelInt model) {
+		this.model = model;
+	}
+
+	/**
+	 * Hands over a finished remesh. Remeshes can finish out of order, an older one is dropped.
+	 * @param version The version of the chunk the model was built from.
+	 * @param model The new model (null if the chunk has no faces).
+	 * @return false if a newer remesh was handed over already
+	 */
+	synchronized boolean setRemeshed(int version, ModelInt model) {
+		if (version <= remeshedVersion) {
+			return false;
+		}
+		remeshedVersion = version;
+		remeshedModel = model;
+		hasRemeshed = true;
+		return true;
+	}
+
+	/**
+	 * @return if there is a remesh to swap in
+	 */
+	synchronized boolean hasRemeshed() {
+		return hasRemeshed;
+	}
+
+	/**
+	 * Takes the newest finished remesh.
+	 * @return the model (null if the chunk has no faces)
+	 */
+	synchronized ModelInt takeRemeshed() {
+		ModelInt taken = remeshedModel;
+		remeshedModel = null;
+		hasRemeshed = false;
+		return taken;
+	}
+}
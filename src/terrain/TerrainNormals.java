@@ -0,0 +1,100 @@
+package terrain;
+
+/**
+ * Generates fractal noise terrain together with its normals. The normals come from the analytic
+ * gradients of the noise (see Noise.sampleGradient), so they cost about as much as the heights
+ * alone instead of the extra samples of finite differences.
+ *
+ * Octave i samples the noise at 2^i times the frequency, weighted by persistence^i.
+ *
+ * @author Max
+ */
+public class TerrainNormals {
+
+	private TerrainNormals() {
+	}
+
+	/**
+	 * Generates a heightfield y = h(x, z) on a grid and its unit normals.
+	 * @param noise The noise the heights are sampled from.
+	 * @param octaves
+	 * @param persistence
+	 * @param frequency The noise coordinates per world unit.
+	 * @param heightScale The height of a noise value of 1.
+	 * @param originX The world position of the first point.
+	 * @param originZ
+	 * @param spacing The distance between two points.
+	 * @param sizeX The number of points along x.
+	 * @param sizeZ The number of points along z.
+	 * @param heights The heights are written to heights[x * sizeZ + z].
+	 * @param normals The normals are written to normals[3 * (x * sizeZ + z) ..].
+	 */
+	public static void heightfield(Noise noise, int octaves, float persistence, float frequency, float heightScale,
+			float originX, float originZ, float spacing, int sizeX, int sizeZ, float[] heights, float[] normals) {
+		float[] gradient = new float[2];
+		for(int x = 0; x < sizeX; x++) {
+			for(int z = 0; z < sizeZ; z++) {
+				double px = (originX + x * spacing) * frequency;
+				double pz = (originZ + z * spacing) * frequency;
+				double height = 0, dx = 0, dz = 0;
+				double amplitude = 1, scale = 1;
+				for(int i = 0; i < octaves; i++) {
+					height += amplitude * noise.sampleGradient(px * scale, pz * scale, gradient);
+					// Chain rule: the octave is sampled at scale * frequency * x
+					dx += amplitude * scale * gradient[0];
+					dz += amplitude * scale * gradient[1];
+					amplitude *= persistence;
+					scale *= 2;
+				}
+
+				int index = x * sizeZ + z;
+				heights[index] = (float)(heightScale * height);
+				setNormal(-heightScale * frequency * dx, 1, -heightScale * frequency * dz, normals, 3 * index);
+			}
+		}
+	}
+
+	/**
+	 * Samples a density field and its unit normal, which points down the gradient (from dense to
+	 * empty space), e.g. for the vertices of an isosurface.
+	 * @param noise The noise the density is sampled from.
+	 * @param octaves
+	 * @param persistence
+	 * @param frequency The noise coordinates per world unit.
+	 * @param x The world position.
+	 * @param y
+	 * @param z
+	 * @param normal The normal is written to normal[0..2].
+	 * @return the density
+	 */
+	public static double density(Noise noise, int octaves, float persistence, float frequency, float x, float y, float z,
+			float[] normal) {
+		double px = x * frequency, py = y * frequency, pz = z * frequency;
+		double density = 0, dx = 0, dy = 0, dz = 0;
+		double amplitude = 1, scale = 1;
+		for(int i = 0; i < octaves; i++) {
+			density += amplitude * noise.sampleGradient(px * scale, py * scale, pz * scale, normal);
+			dx += amplitude * scale * normal[0];
+			dy += amplitude * scale * normal[1];
+			dz += amplitude * scale * normal[2];
+			amplitude *= persistence;
+			scale *= 2;
+		}
+		setNormal(-dx, -dy, -dz, normal, 0);
+		return density;
+	}
+
+	private static void setNormal(double x, double y, double z, float[] out, int offset) {
+		double length = Math.sqrt(x * x + y * y + z * z);
+		if(length == 0) {
+			// A flat point of the field, any direction is as good
+			out[offset] = 0;
+			out[offset + 1] = 1;
+			out[offset + 2] = 0;
+			return;
+		}
+		out[offset] = (float)(x / length);
+		out[offset + 1] = (float)(y / length);
+		out[offset + 2] = (float)(z / length);
+	}
+}
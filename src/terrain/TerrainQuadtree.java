@@ -0,0 +1,545 @@
+package terrain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+import org.lwjgl.util.vector.Vector4f;
+
+import util.MathUtils;
+import util.Plane;
+
+/**
+ * A quadtree of geomipmapped tiles over a heightfield (see Terrain for the layout of the heights).
+ * The leaves are tiles of tileSize^2 cells at full resolution. A node of level L covers 2^L * 2^L
+ * leaves and is drawn as a (tileSize + 1)^2 grid that only uses every 2^L-th point.
+ *
+ * Every node has a precomputed error: the largest vertical distance between the full resolution
+ * heights and its coarse triangles, and never less than the errors of its children. Selecting
+ * the nodes of a frame is a CPU step without OpenGL: nodes outside the frustum are skipped, and a
+ * node is drawn when its error projected on screen is small enough, otherwise its children are
+ * tried. The selection is then balanced so neighbouring nodes differ by at most one level, and a
+ * node next to a coarser one stitches that side (see getStitchedIndices), so there are no cracks.
+ * @author Max
+ *
+ */
+public class TerrainQuadtree {
+	// Bits of a stitch mask, one per side of a node
+	public static final int STITCH_MIN_X = 1;
+	public static final int STITCH_MAX_X = 2;
+	public static final int STITCH_MIN_Z = 4;
+	public static final int STITCH_MAX_Z = 8;
+	public static final int STITCH_VARIANTS = 16;
+
+	private final float [] heights;
+	private final int size;
+	private final float cellSize;
+	private final int tileSize;
+	private final int levelCount;
+	private final int leafCount;
+
+	// Per level, per node (x * nodes + z): the height range and the error
+	private final float [][] minHeights;
+	private final float [][] maxHeights;
+	private final float [][] errors;
+
+	// The corners of the node being culled, so select can run every frame without allocating
+	private final Vector4f [] corners = new Vector4f [8];
+
+	/**
+	 * @param heights The heights (not copied).
+	 * @param size The number of points along each side, tileSize * 2^n + 1.
+	 * @param cellSize The distance between two points.
+	 * @param tileSize The number of cells along each side of a node, a power of 2.
+	 */
+	public TerrainQuadtree(float [] heights, int size, float cellSize, int tileSize) {
+		if(tileSize < 2 || Integer.bitCount(tileSize) != 1 || (size - 1) % tileSize != 0
+				|| Integer.bitCount((size - 1) / tileSize) != 1) {
+			throw new IllegalArgumentException("The size must be tileSize * 2^n + 1 with tileSize a power of 2.");
+		}
+		this.heights = heights;
+		this.size = size;
+		this.cellSize = cellSize;
+		this.tileSize = tileSize;
+		this.leafCount = (size - 1) / tileSize;
+		this.levelCount = Integer.numberOfTrailingZeros(leafCount) + 1;
+		this.minHeights = new float [levelCount][];
+		this.maxHeights = new float [levelCount][];
+		this.errors = new float [levelCount][];
+
+		for(int level = 0; level < levelCount; level++) {
+			int nodes = leafCount >> level;
+			minHeights[level] = new float [nodes * nodes];
+			maxHeights[level] = new float [nodes * nodes];
+			errors[level] = new float [nodes * nodes];
+		}
+		for(int c = 0; c < corners.length; c++) {
+			corners[c] = new Vector4f();
+		}
+		ForkJoinPool.commonPool().invoke(new ErrorTask(this, 0, leafCount));
+
+		// Parents bound their children, so a node that is accurate enough covers its subtree
+		for(int level = 1; level < levelCount; level++) {
+			int nodes = leafCount >> level;
+			for(int x = 0; x < nodes; x++) {
+				for(int z = 0; z < nodes; z++) {
+					int node = x * nodes + z;
+					for(int child = 0; child < 4; child++) {
+						int c = (2 * x + (child >> 1)) * 2 * nodes + 2 * z + (child & 1);
+						minHeights[level][node] = child == 0 ? minHeights[level - 1][c] : Math.min(minHeights[level][node], minHeights[level - 1][c]);
+						maxHeights[level][node] = child == 0 ? maxHeights[level - 1][c] : Math.max(maxHeights[level][node], maxHeights[level - 1][c]);
+						errors[level][node] = Math.max(errors[level][node], errors[level - 1][c]);
+					}
+				}
+			}
+		}
+	}
+
+	public int getLevelCount() {
+		return levelCount;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @return the heights (not a copy)
+	 */
+	public float [] getHeights() {
+		return heights;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @param level
+	 * @return the number of nodes of a level along each side
+	 */
+	public int getNodeCount(int level) {
+		return leafCount >> level;
+	}
+
+	/**
+	 * @param level
+	 * @param nodeX The position of the node in nodes of its level.
+	 * @param nodeZ
+	 * @return the largest height error of the node's triangles (0 for leaves)
+	 */
+	public float getError(int level, int nodeX, int nodeZ) {
+		return errors[level][nodeX * getNodeCount(level) + nodeZ];
+	}
+
+	public float getMinHeight(int level, int nodeX, int nodeZ) {
+		return minHeights[level][nodeX * getNodeCount(level) + nodeZ];
+	}
+
+	public float getMaxHeight(int level, int nodeX, int nodeZ) {
+		return maxHeights[level][nodeX * getNodeCount(level) + nodeZ];
+	}
+
+	/**
+	 * Selects the nodes to draw. Selections share scratch space, so only one thread may select at
+	 * a time.
+	 * @param eye The position of the camera in the space of the heightfield.
+	 * @param viewMatrix The matrix from the space of the heightfield to the view space the frustum
+	 * planes are in, e.g. the view matrix times the model matrix (not used without planes).
+	 * @param frustumPlanes The planes of the view frustum in view space (null to draw everything).
+	 * @param fovY The vertical field of view (degrees).
+	 * @param maxScreenError The largest error allowed, as a fraction of the screen height.
+	 * @param out The selection (cleared first, so it can be reused every frame).
+	 */
+	public void select(Vector3f eye, Matrix4f viewMatrix, Plane[] frustumPlanes, float fovY, float maxScreenError, Selection out) {
+		out.clear(leafCount);
+		// The screen is 2 * tan(fovY / 2) * distance high at a distance
+		float errorScale = 1f / (2 * (float)Math.tan(Math.toRadians(fovY / 2)) * maxScreenError);
+		int root = levelCount - 1;
+		for(int x = 0; x < getNodeCount(root); x++) {
+			for(int z = 0; z < getNodeCount(root); z++) {
+				selectNode(root, x, z, eye, viewMatrix, frustumPlanes, errorScale, out);
+			}
+		}
+
+		balance(viewMatrix, frustumPlanes, out);
+
+		for(int i = 0; i < out.count; i++) {
+			out.stitchMasks[i] = stitchMask(out.levels[i], out.nodeXs[i], out.nodeZs[i], out);
+		}
+	}
+
+	/**
+	 * Selects a node if its error is small enough on screen, or else its children.
+	 */
+	private void selectNode(int level, int x, int z, Vector3f eye, Matrix4f viewMatrix, Plane[] frustumPlanes,
+			float errorScale, Selection out) {
+		if(isCulled(level, x, z, viewMatrix, frustumPlanes)) {
+			return;
+		}
+
+		if(level == 0 || getError(level, x, z) * errorScale <= distance(level, x, z, eye)) {
+			out.add(level, x, z);
+			return;
+		}
+		for(int child = 0; child < 4; child++) {
+			selectNode(level - 1, 2 * x + (child >> 1), 2 * z + (child & 1), eye, viewMatrix, frustumPlanes, errorScale, out);
+		}
+	}
+
+	/**
+	 * Splits selected nodes that are more than one level coarser than a neighbour until no such
+	 * node is left. Splitting only makes nodes finer, so this ends.
+	 */
+	private void balance(Matrix4f viewMatrix, Plane[] frustumPlanes, Selection out) {
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(int i = 0; i < out.count; i++) {
+				int level = out.levels[i];
+				if(level < 2 || finestNeighbour(level, out.nodeXs[i], out.nodeZs[i], out) >= level - 1) {
+					continue;
+				}
+
+				int x = out.nodeXs[i];
+				int z = out.nodeZs[i];
+				out.remove(i--);
+				for(int child = 0; child < 4; child++) {
+					int cx = 2 * x + (child >> 1);
+					int cz = 2 * z + (child & 1);
+					if(!isCulled(level - 1, cx, cz, viewMatrix, frustumPlanes)) {
+						out.add(level - 1, cx, cz);
+					}
+				}
+				changed = true;
+			}
+		}
+	}
+
+	/**
+	 * @return the finest level of the selected nodes along the sides of a node (the node's own
+	 * level if none are selected)
+	 */
+	private int finestNeighbour(int level, int x, int z, Selection out) {
+		int leaves = 1 << level;
+		int lx = x * leaves, lz = z * leaves;
+		int finest = level;
+		for(int k = 0; k < leaves; k++) {
+			finest = Math.min(finest, levelAt(lx - 1, lz + k, level, out));
+			finest = Math.min(finest, levelAt(lx + leaves, lz + k, level, out));
+			finest = Math.min(finest, levelAt(lx + k, lz - 1, level, out));
+			finest = Math.min(finest, levelAt(lx + k, lz + leaves, level, out));
+		}
+		return finest;
+	}
+
+	private int stitchMask(int level, int x, int z, Selection out) {
+		int leaves = 1 << level;
+		int lx = x * leaves, lz = z * leaves;
+		int mask = 0;
+		if(levelAt(lx - 1, lz, -1, out) > level) {
+			mask |= STITCH_MIN_X;
+		}
+		if(levelAt(lx + leaves, lz, -1, out) > level) {
+			mask |= STITCH_MAX_X;
+		}
+		if(levelAt(lx, lz - 1, -1, out) > level) {
+			mask |= STITCH_MIN_Z;
+		}
+		if(levelAt(lx, lz + leaves, -1, out) > level) {
+			mask |= STITCH_MAX_Z;
+		}
+		return mask;
+	}
+
+	/**
+	 * @return the level of the selected node over a leaf, or fallback if there is none
+	 */
+	private int levelAt(int leafX, int leafZ, int fallback, Selection out) {
+		if(leafX < 0 || leafZ < 0 || leafX >= leafCount || leafZ >= leafCount) {
+			return fallback;
+		}
+		int level = out.leafLevels[leafX * leafCount + leafZ];
+		return level < 0 ? fallback : level;
+	}
+
+	/**
+	 * @return the distance from the eye to the bounding box of a node
+	 */
+	private float distance(int level, int x, int z, Vector3f eye) {
+		float extent = (tileSize << level) * cellSize;
+		float dx = Math.max(Math.max(x * extent - eye.x, eye.x - (x + 1) * extent), 0);
+		float dz = Math.max(Math.max(z * extent - eye.z, eye.z - (z + 1) * extent), 0);
+		float dy = Math.max(Math.max(getMinHeight(level, x, z) - eye.y, eye.y - getMaxHeight(level, x, z)), 0);
+		return (float)Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Checks the bounding box of a node against the frustum, the same way Model.isCullable does.
+	 */
+	private boolean isCulled(int level, int x, int z, Matrix4f viewMatrix, Plane[] frustumPlanes) {
+		if(frustumPlanes == null) {
+			return false;
+		}
+
+		float extent = (tileSize << level) * cellSize;
+		for(int c = 0; c < 8; c++) {
+			corners[c].set((x + (c & 1)) * extent,
+					(c & 2) == 0 ? getMinHeight(level, x, z) : getMaxHeight(level, x, z),
+					(z + (c >> 2)) * extent, 1f);
+			Matrix4f.transform(viewMatrix, corners[c], corners[c]);
+		}
+
+		for(Plane plane : frustumPlanes) {
+			boolean outside = true;
+			for(Vector4f corner : corners) {
+				outside &= MathUtils.dotPlaneWithVector(plane, corner) < 0f;
+			}
+			if(outside) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Builds the triangles of a node grid ((tileSize + 1)^2 points, the point (x, z) at index
+	 * x * (tileSize + 1) + z, two counter-clockwise triangles per cell like Terrain). On a
+	 * stitched side every odd point is collapsed onto the even point before it, so the side only
+	 * uses the points a node of the next level has there. Triangles that collapse to a line are left
+	 * out.
+	 * @param tileSize
+	 * @param stitchMask The stitched sides (STITCH_ bits).
+	 * @return the indices
+	 */
+	public static int [] getStitchedIndices(int tileSize, int stitchMask) {
+		int points = tileSize + 1;
+		int [] indices = new int [tileSize * tileSize * 6];
+		int count = 0;
+		int [] cell = new int [4];
+		for(int x = 0; x < tileSize; x++) {
+			for(int z = 0; z < tileSize; z++) {
+				// a = (x, z), b = (x, z + 1), c = (x + 1, z), d = (x + 1, z + 1)
+				cell[0] = stitch(x, z, tileSize, stitchMask, points);
+				cell[1] = stitch(x, z + 1, tileSize, stitchMask, points);
+				cell[2] = stitch(x + 1, z, tileSize, stitchMask, points);
+				cell[3] = stitch(x + 1, z + 1, tileSize, stitchMask, points);
+				count = addTriangle(indices, count, cell[0], cell[1], cell[2], points);
+				count = addTriangle(indices, count, cell[2], cell[1], cell[3], points);
+			}
+		}
+
+		int [] trimmed = new int [count];
+		System.arraycopy(indices, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	private static int stitch(int x, int z, int tileSize, int stitchMask, int points) {
+		if(((stitchMask & STITCH_MIN_X) != 0 && x == 0) || ((stitchMask & STITCH_MAX_X) != 0 && x == tileSize)) {
+			z &= ~1;
+		}
+		if(((stitchMask & STITCH_MIN_Z) != 0 && z == 0) || ((stitchMask & STITCH_MAX_Z) != 0 && z == tileSize)) {
+			x &= ~1;
+		}
+		return x * points + z;
+	}
+
+	private static int addTriangle(int [] indices, int count, int a, int b, int c, int points) {
+		// Collapsed triangles have a repeated point, or three in a row at the corner of two stitched sides
+		int ux = b / points - a / points, uz = b % points - a % points;
+		int vx = c / points - a / points, vz = c % points - a % points;
+		if(uz * vx - ux * vz == 0) {
+			return count;
+		}
+		indices[count] = a;
+		indices[count + 1] = b;
+		indices[count + 2] = c;
+		return count + 3;
+	}
+
+	/**
+	 * Computes the height range of the leaves [from, to) along x, and their share of the errors of
+	 * their ancestors (merged with the other leaves of the ancestor under a lock).
+	 */
+	private static class ErrorTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final TerrainQuadtree tree;
+		private final int from;
+		private final int to;
+
+		ErrorTask(TerrainQuadtree tree, int from, int to) {
+			this.tree = tree;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int middle = from + (to - from) / 2;
+				invokeAll(new ErrorTask(tree, from, middle), new ErrorTask(tree, middle, to));
+				return;
+			}
+
+			for(int z = 0; z < tree.leafCount; z++) {
+				leaf(from, z);
+			}
+		}
+
+		/**
+		 * The range of a leaf, and the largest error of its points in the nodes above it.
+		 */
+		private void leaf(int leafX, int leafZ) {
+			int tileSize = tree.tileSize;
+			int size = tree.size;
+			float [] heights = tree.heights;
+			float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+			for(int x = leafX * tileSize; x <= (leafX + 1) * tileSize; x++) {
+				for(int z = leafZ * tileSize; z <= (leafZ + 1) * tileSize; z++) {
+					min = Math.min(min, heights[x * size + z]);
+					max = Math.max(max, heights[x * size + z]);
+				}
+			}
+			tree.minHeights[0][leafX * tree.leafCount + leafZ] = min;
+			tree.maxHeights[0][leafX * tree.leafCount + leafZ] = max;
+
+			// The leaf's share of the error of every ancestor
+			for(int level = 1; level < tree.levelCount; level++) {
+				int step = 1 << level;
+				float error = 0;
+				for(int x = leafX * tileSize; x <= (leafX + 1) * tileSize; x++) {
+					for(int z = leafZ * tileSize; z <= (leafZ + 1) * tileSize; z++) {
+						error = Math.max(error, Math.abs(heights[x * size + z] - coarseHeight(x, z, step)));
+					}
+				}
+				addError(level, leafX >> level, leafZ >> level, error);
+			}
+		}
+
+		private void addError(int level, int nodeX, int nodeZ, float error) {
+			float [] errors = tree.errors[level];
+			int node = nodeX * tree.getNodeCount(level) + nodeZ;
+			synchronized(errors) {
+				errors[node] = Math.max(errors[node], error);
+			}
+		}
+
+		/**
+		 * The height of the triangles of the grid with every step-th point at (x, z).
+		 */
+		private float coarseHeight(int x, int z, int step) {
+			int size = tree.size;
+			int x0 = Math.min(x / step * step, size - 1 - step);
+			int z0 = Math.min(z / step * step, size - 1 - step);
+			float fx = (float)(x - x0) / step, fz = (float)(z - z0) / step;
+			float [] heights = tree.heights;
+			float b = heights[x0 * size + z0 + step];
+			float c = heights[(x0 + step) * size + z0];
+			if(fx + fz <= 1) {
+				float a = heights[x0 * size + z0];
+				return a + (c - a) * fx + (b - a) * fz;
+			}
+			float d = heights[(x0 + step) * size + z0 + step];
+			return d + (b - d) * (1 - fx) + (c - d) * (1 - fz);
+		}
+	}
+
+	/**
+	 * The nodes picked by select, reused between frames.
+	 */
+	public static class Selection {
+		private int count = 0;
+		private int [] levels = new int [64];
+		private int [] nodeXs = new int [64];
+		private int [] nodeZs = new int [64];
+		private int [] stitchMasks = new int [64];
+		// The level of the selected node over every leaf (-1 if there is none)
+		private int [] leafLevels = new int [0];
+		private int leafCount;
+
+		public int getCount() {
+			return count;
+		}
+
+		public int getLevel(int i) {
+			return levels[i];
+		}
+
+		public int getNodeX(int i) {
+			return nodeXs[i];
+		}
+
+		public int getNodeZ(int i) {
+			return nodeZs[i];
+		}
+
+		/**
+		 * @param i
+		 * @return the sides of the node next to a coarser node (STITCH_ bits)
+		 */
+		public int getStitchMask(int i) {
+			return stitchMasks[i];
+		}
+
+		/**
+		 * @return the selected nodes as {level, nodeX, nodeZ}
+		 */
+		public List<int []> toList() {
+			List<int []> nodes = new ArrayList<>(count);
+			for(int i = 0; i < count; i++) {
+				nodes.add(new int [] {levels[i], nodeXs[i], nodeZs[i]});
+			}
+			return nodes;
+		}
+
+		private void clear(int leafCount) {
+			count = 0;
+			if(leafLevels.length != leafCount * leafCount) {
+				leafLevels = new int [leafCount * leafCount];
+			}
+			Arrays.fill(leafLevels, -1);
+			this.leafCount = leafCount;
+		}
+
+		private void add(int level, int x, int z) {
+			if(count == levels.length) {
+				levels = Arrays.copyOf(levels, count * 2);
+				nodeXs = Arrays.copyOf(nodeXs, count * 2);
+				nodeZs = Arrays.copyOf(nodeZs, count * 2);
+				stitchMasks = Arrays.copyOf(stitchMasks, count * 2);
+			}
+			levels[count] = level;
+			nodeXs[count] = x;
+			nodeZs[count] = z;
+			count++;
+			setLeafLevels(level, x, z, level);
+		}
+
+		/**
+		 * Removes a node by moving the last one into its place.
+		 */
+		private void remove(int i) {
+			setLeafLevels(levels[i], nodeXs[i], nodeZs[i], -1);
+			count--;
+			levels[i] = levels[count];
+			nodeXs[i] = nodeXs[count];
+			nodeZs[i] = nodeZs[count];
+		}
+
+		private void setLeafLevels(int level, int x, int z, int value) {
+			int leaves = 1 << level;
+			for(int lx = x * leaves; lx < (x + 1) * leaves; lx++) {
+				Arrays.fill(leafLevels, lx * leafCount + z * leaves, lx * leafCount + (z + 1) * leaves, value);
+			}
+		}
+	}
+}
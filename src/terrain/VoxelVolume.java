@@ -0,0 +1,381 @@
+package terrain;
+
+import java.util.Arrays;
+
+/**
+ * A compact box of voxels. The volume is stored in sections of SECTION_SIZE^3 voxels, each with
+ * its own palette of the values in it. A section only stores the palette index of every voxel,
+ * bit-packed with as many bits as its palette needs, so a solid/empty section takes 1 bit per
+ * voxel and a section of a single value (e.g. all air) takes no voxel data at all.
+ *
+ * Reads and writes can happen on different threads (e.g. edits on the game thread and meshing on
+ * the mesher threads): every section is locked while it is read or changed.
+ *
+ * @author Max
+ */
+public class VoxelVolume {
+	public static final int SECTION_BITS = 4;
+	public static final int SECTION_SIZE = 1 << SECTION_BITS;
+
+	private static final int SECTION_MASK = SECTION_SIZE - 1;
+	private static final int SECTION_VOLUME = SECTION_SIZE * SECTION_SIZE * SECTION_SIZE;
+
+	/**
+	 * Receives the voxels of a bulk iteration (see forEach).
+	 */
+	public interface Visitor {
+		public void visit(int x, int y, int z, int value);
+	}
+
+	private final int sizeX;
+	private final int sizeY;
+	private final int sizeZ;
+	private final int sectionCountX;
+	private final int sectionCountY;
+	private final int sectionCountZ;
+	private final Section[] sections;
+
+	/**
+	 * Creates an empty volume (every voxel is 0).
+	 * @param sizeX
+	 * @param sizeY
+	 * @param sizeZ
+	 */
+	public VoxelVolume(int sizeX, int sizeY, int sizeZ) {
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.sectionCountX = (sizeX + SECTION_MASK) >> SECTION_BITS;
+		this.sectionCountY = (sizeY + SECTION_MASK) >> SECTION_BITS;
+		this.sectionCountZ = (sizeZ + SECTION_MASK) >> SECTION_BITS;
+		this.sections = new Section[sectionCountX * sectionCountY * sectionCountZ];
+		for (int i = 0; i < sections.length; i++) {
+			sections[i] = new Section();
+		}
+	}
+
+	/**
+	 * Creates a volume with the voxels of an array.
+	 * @param voxels The voxels, indexed [x][y][z].
+	 * @return the volume
+	 */
+	public static VoxelVolume fromArray(int[][][] voxels) {
+		VoxelVolume volume = new VoxelVolume(voxels.length, voxels[0].length, voxels[0][0].length);
+		int[] row = new int[volume.sizeZ];
+		for (int x = 0; x < volume.sizeX; x++) {
+			for (int y = 0; y < volume.sizeY; y++) {
+				System.arraycopy(voxels[x][y], 0, row, 0, row.length);
+				volume.setRow(x, y, 0, row, row.length);
+			}
+		}
+		return volume;
+	}
+
+	public int getSizeX() {
+		return sizeX;
+	}
+
+	public int getSizeY() {
+		return sizeY;
+	}
+
+	public int getSizeZ() {
+		return sizeZ;
+	}
+
+	/**
+	 * Gets a voxel.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the value (0 outside of the volume)
+	 */
+	public int get(int x, int y, int z) {
+		if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ) {
+			return 0;
+		}
+		return getSection(x, y, z).get(localIndex(x, y, z));
+	}
+
+	/**
+	 * Sets a voxel.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param value
+	 */
+	public void set(int x, int y, int z, int value) {
+		if (x < 0 || y < 0 || z < 0 || x >= sizeX || y >= sizeY || z >= sizeZ) {
+			throw new IndexOutOfBoundsException("Voxel (" + x + ", " + y + ", " + z + ") is outside of the volume");
+		}
+		getSection(x, y, z).set(localIndex(x, y, z), value);
+	}
+
+	/**
+	 * Sets a row of voxels along z.
+	 * @param x
+	 * @param y
+	 * @param z The first voxel of the row.
+	 * @param values
+	 * @param length The number of voxels.
+	 */
+	public void setRow(int x, int y, int z, int[] values, int length) {
+		for (int i = 0; i < length;) {
+			int lz = (z + i) & SECTION_MASK;
+			int run = Math.min(SECTION_SIZE - lz, length - i);
+			getSection(x, y, z + i).setRow(localIndex(x, y, z + i), values, i, run);
+			i += run;
+		}
+	}
+
+	/**
+	 * Copies a box of voxels into a flat array, one section at a time. Voxels of the box outside
+	 * of the volume are 0.
+	 * @param x0 The first voxel of the box (may be outside of the volume).
+	 * @param y0
+	 * @param z0
+	 * @param lengthX The size of the box.
+	 * @param lengthY
+	 * @param lengthZ
+	 * @param out The voxels, indexed (x * lengthY + y) * lengthZ + z.
+	 */
+	public void copy(int x0, int y0, int z0, int lengthX, int lengthY, int lengthZ, int[] out) {
+		Arrays.fill(out, 0, lengthX * lengthY * lengthZ, 0);
+		int fromX = Math.max(x0, 0), toX = Math.min(x0 + lengthX, sizeX);
+		int fromY = Math.max(y0, 0), toY = Math.min(y0 + lengthY, sizeY);
+		int fromZ = Math.max(z0, 0), toZ = Math.min(z0 + lengthZ, sizeZ);
+
+		for (int sx = fromX >> SECTION_BITS; sx <= (toX - 1) >> SECTION_BITS && fromX < toX; sx++) {
+			for (int sy = fromY >> SECTION_BITS; sy <= (toY - 1) >> SECTION_BITS && fromY < toY; sy++) {
+				for (int sz = fromZ >> SECTION_BITS; sz <= (toZ - 1) >> SECTION_BITS && fromZ < toZ; sz++) {
+					Section section = sections[sectionIndex(sx, sy, sz)];
+					int bx = sx << SECTION_BITS, by = sy << SECTION_BITS, bz = sz << SECTION_BITS;
+					section.copy(Math.max(fromX, bx) - bx, Math.max(fromY, by) - by, Math.max(fromZ, bz) - bz,
+							Math.min(toX, bx + SECTION_SIZE) - bx, Math.min(toY, by + SECTION_SIZE) - by, Math.min(toZ, bz + SECTION_SIZE) - bz,
+							bx - x0, by - y0, bz - z0, lengthY, lengthZ, out);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visits every voxel that isn't 0, section by section. Sections that are all 0 are skipped
+	 * without looking at their voxels.
+	 * @param visitor
+	 */
+	public void forEach(Visitor visitor) {
+		int[] voxels = new int[SECTION_VOLUME];
+		for (int sx = 0; sx < sectionCountX; sx++) {
+			for (int sy = 0; sy < sectionCountY; sy++) {
+				for (int sz = 0; sz < sectionCountZ; sz++) {
+					Section section = sections[sectionIndex(sx, sy, sz)];
+					if (section.isUniform(0)) {
+						continue;
+					}
+
+					int bx = sx << SECTION_BITS, by = sy << SECTION_BITS, bz = sz << SECTION_BITS;
+					section.copy(0, 0, 0, SECTION_SIZE, SECTION_SIZE, SECTION_SIZE, 0, 0, 0, SECTION_SIZE, SECTION_SIZE, voxels);
+					int lengthX = Math.min(SECTION_SIZE, sizeX - bx);
+					int lengthY = Math.min(SECTION_SIZE, sizeY - by);
+					int lengthZ = Math.min(SECTION_SIZE, sizeZ - bz);
+					for (int x = 0; x < lengthX; x++) {
+						for (int y = 0; y < lengthY; y++) {
+							int i = (x * SECTION_SIZE + y) * SECTION_SIZE;
+							for (int z = 0; z < lengthZ; z++) {
+								if (voxels[i + z] != 0) {
+									visitor.visit(bx + x, by + y, bz + z, voxels[i + z]);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shrinks the palettes to the values that are still used (values overwritten by set stay in
+	 * a palette until then), turning sections of a single value back into uniform sections.
+	 */
+	public void compact() {
+		for (Section section : sections) {
+			section.compact();
+		}
+	}
+
+	/**
+	 * @return the (approximate) number of bytes the voxels take
+	 */
+	public long getMemoryUsage() {
+		long bytes = 0;
+		for (Section section : sections) {
+			bytes += section.getMemoryUsage();
+		}
+		return bytes;
+	}
+
+	private Section getSection(int x, int y, int z) {
+		return sections[sectionIndex(x >> SECTION_BITS, y >> SECTION_BITS, z >> SECTION_BITS)];
+	}
+
+	private int sectionIndex(int sx, int sy, int sz) {
+		return (sx * sectionCountY + sy) * sectionCountZ + sz;
+	}
+
+	private static int localIndex(int x, int y, int z) {
+		return (((x & SECTION_MASK) << SECTION_BITS | (y & SECTION_MASK)) << SECTION_BITS) | (z & SECTION_MASK);
+	}
+
+	/**
+	 * The voxels of one section: a palette and the palette index of every voxel, packed into
+	 * longs with bits per entry (entries don't cross longs). With one palette entry there is no
+	 * packed data.
+	 */
+	private static class Section {
+		private int[] palette = new int[] {0};
+		private int paletteSize = 1;
+		private int bits = 0;
+		private long[] data = null;
+
+		synchronized boolean isUniform(int value) {
+			return bits == 0 && palette[0] == value;
+		}
+
+		synchronized int get(int index) {
+			if (bits == 0) {
+				return palette[0];
+			}
+			return palette[getEntry(index)];
+		}
+
+		synchronized void set(int index, int value) {
+			setEntry(index, paletteIndex(value));
+		}
+
+		synchronized void setRow(int index, int[] values, int offset, int length) {
+			for (int i = 0; i < length; i++) {
+				setEntry(index + i, paletteIndex(values[offset + i]));
+			}
+		}
+
+		/**
+		 * Copies the voxels [fromX, toX) x [fromY, toY) x [fromZ, toZ) of the section to
+		 * out[((x + dx) * lengthY + y + dy) * lengthZ + z + dz].
+		 */
+		synchronized void copy(int fromX, int fromY, int fromZ, int toX, int toY, int toZ,
+				int dx, int dy, int dz, int lengthY, int lengthZ, int[] out) {
+			for (int x = fromX; x < toX; x++) {
+				for (int y = fromY; y < toY; y++) {
+					int o = ((x + dx) * lengthY + y + dy) * lengthZ + dz;
+					if (bits == 0) {
+						Arrays.fill(out, o + fromZ, o + toZ, palette[0]);
+						continue;
+					}
+
+					int index = (x << SECTION_BITS | y) << SECTION_BITS;
+					for (int z = fromZ; z < toZ; z++) {
+						out[o + z] = palette[getEntry(index + z)];
+					}
+				}
+			}
+		}
+
+		synchronized void compact() {
+			if (bits == 0) {
+				return;
+			}
+
+			int[] counts = new int[paletteSize];
+			for (int i = 0; i < SECTION_VOLUME; i++) {
+				counts[getEntry(i)]++;
+			}
+
+			int[] remap = new int[paletteSize];
+			int[] used = new int[paletteSize];
+			int usedCount = 0;
+			for (int p = 0; p < paletteSize; p++) {
+				if (counts[p] > 0) {
+					remap[p] = usedCount;
+					used[usedCount++] = palette[p];
+				}
+			}
+			if (usedCount == paletteSize) {
+				return;
+			}
+
+			int[] entries = new int[SECTION_VOLUME];
+			for (int i = 0; i < SECTION_VOLUME; i++) {
+				entries[i] = remap[getEntry(i)];
+			}
+			palette = Arrays.copyOf(used, Math.max(usedCount, 1));
+			paletteSize = usedCount;
+			pack(entries, bitsFor(usedCount));
+		}
+
+		synchronized long getMemoryUsage() {
+			return palette.length * 4L + (data == null ? 0 : data.length * 8L);
+		}
+
+		/**
+		 * Finds a value in the palette, adding it (and widening the entries) if needed.
+		 */
+		private int paletteIndex(int value) {
+			for (int p = 0; p < paletteSize; p++) {
+				if (palette[p] == value) {
+					return p;
+				}
+			}
+
+			if (paletteSize == palette.length) {
+				palette = Arrays.copyOf(palette, paletteSize * 2);
+			}
+			palette[paletteSize] = value;
+			if (bitsFor(paletteSize + 1) > bits) {
+				int[] entries = new int[SECTION_VOLUME];
+				for (int i = 0; i < SECTION_VOLUME && bits > 0; i++) {
+					entries[i] = getEntry(i);
+				}
+				pack(entries, bitsFor(paletteSize + 1));
+			}
+			return paletteSize++;
+		}
+
+		private void pack(int[] entries, int newBits) {
+			bits = newBits;
+			if (bits == 0) {
+				data = null;
+				return;
+			}
+
+			int perLong = 64 / bits;
+			data = new long[(SECTION_VOLUME + perLong - 1) / perLong];
+			for (int i = 0; i < SECTION_VOLUME; i++) {
+				setEntry(i, entries[i]);
+			}
+		}
+
+		private int getEntry(int index) {
+			int perLong = 64 / bits;
+			int shift = (index % perLong) * bits;
+			return (int) ((data[index / perLong] >>> shift) & ((1L << bits) - 1));
+		}
+
+		private void setEntry(int index, int entry) {
+			if (bits == 0) {
+				return;
+			}
+			int perLong = 64 / bits;
+			int shift = (index % perLong) * bits;
+			long mask = ((1L << bits) - 1) << shift;
+			int i = index / perLong;
+			data[i] = (data[i] & ~mask) | ((long) entry << shift);
+		}
+
+		/**
+		 * The number of bits per entry for a palette size (0 for a single value).
+		 */
+		private static int bitsFor(int paletteSize) {
+			return paletteSize <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package texture;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The materials declared in one .mtl file. Libraries are cached process-wide by the canonical
+ * path of the file, so an .mtl file that is referenced by many .obj files is only read once and
+ * every model that uses one of its materials gets the same Material instance. A library is
+ * reloaded if its file has been modified since it was cached.
+ *
+ * @author Adi
+ * @author Max
+ */
+public class MaterialLibrary {
+	// Parsing tokens in MTL files.
+	private final static String MTL_COMMENT = "#";
+	private final static String MTL_NEWMTL = "newmtl";
+	private final static String MTL_KA = "Ka";
+	private final static String MTL_KD = "Kd";
+	private final static String MTL_KS = "Ks";
+	private final static String MTL_NS = "Ns";
+	private final static String MTL_ILLUM = "illum";
+	private final static String MTL_NI = "Ni";
+	private final static String MTL_MAP_KA = "map_Ka";
+	private final static String MTL_MAP_KD = "map_Kd";
+	private final static String MTL_MAP_KS = "map_Ks";
+
+	// Loaded (or loading) libraries by canonical path.
+	private static final ConcurrentMap<String, FutureTask<MaterialLibrary>> libraries = new ConcurrentHashMap<>();
+
+	private final Map<String, Material> materials = new LinkedHashMap<>();
+	private final long lastModified;
+
+	// Material currently being parsed (the last one declared once parsing is done).
+	private Material currentMaterial = null;
+
+	private MaterialLibrary(long lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Gets the library of an .mtl file, reading it if it isn't cached yet.
+	 * @param file The .mtl file.
+	 * @return the library
+	 * @throws IOException if the file cannot be read
+	 */
+	public static MaterialLibrary load(final File file) throws IOException {
+		String path = file.getCanonicalPath();
+
+		while (true) {
+			FutureTask<MaterialLibrary> task = new FutureTask<>(new Callable<MaterialLibrary>() {
+				@Override
+				public MaterialLibrary call() throws IOException {
+					return parse(file);
+				}
+			});
+
+			// Only the first thread to ask for a library parses it, the others wait for the result.
+			FutureTask<MaterialLibrary> existing = libraries.putIfAbsent(path, task);
+			if (existing == null) {
+				existing = task;
+				task.run();
+			}
+
+			MaterialLibrary library;
+			try {
+				library = existing.get();
+			} catch (ExecutionException e) {
+				libraries.remove(path, existing);
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Cannot load MTL file " + file, e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while loading MTL file " + file, e);
+			}
+
+			if (library.lastModified == file.lastModified()) {
+				return library;
+			}
+
+			// The file changed since it was cached.
+			libraries.remove(path, existing);
+		}
+	}
+
+	/**
+	 * Removes all libraries from the cache (Materials that are in use are not affected).
+	 */
+	public static void clearCache() {
+		libraries.clear();
+	}
+
+	/**
+	 * @return the materials of this library by name (in declaration order)
+	 */
+	public Map<String, Material> getMaterials() {
+		return Collections.unmodifiableMap(materials);
+	}
+
+	/**
+	 * @return the material declared last, or null if the library is empty
+	 */
+	public Material getLastMaterial() {
+		return currentMaterial;
+	}
+
+	/**
+	 * Parses an .mtl file.
+	 * @param mtlFile
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private static MaterialLibrary parse(File mtlFile) throws IOException, FileNotFoundException {
+		MaterialLibrary library = new MaterialLibrary(mtlFile.lastModified());
+		BufferedReader br = new BufferedReader(new FileReader(mtlFile));
+
+		String line = null;
+		try {
+			while ((line = br.readLine()) != null) {
+				if (line.startsWith(MTL_COMMENT)) continue;
+				if (line.startsWith(MTL_NEWMTL)) library.parseNewMTL(line);
+				if (library.currentMaterial == null) continue;
+				if (line.startsWith(MTL_KA)) library.parseKa(line);
+				if (line.startsWith(MTL_KD)) library.parseKd(line);
+				if (line.startsWith(MTL_KS)) library.parseKs(line);
+				if (line.startsWith(MTL_ILLUM)) library.parseIllum(line);
+				if (line.startsWith(MTL_NS)) library.parseNs(line);
+				if (line.startsWith(MTL_NI)) library.parseNi(line);
+				if (line.startsWith(MTL_MAP_KA)) library.parseMapKa(line);
+				if (line.startsWith(MTL_MAP_KD)) library.parseMapKd(line);
+				if (line.startsWith(MTL_MAP_KS)) library.parseMapKs(line);
+			}
+		} finally {
+			br.close();
+		}
+
+		return library;
+	}
+
+	private void parseNewMTL (String line) {
+		line = line.substring(MTL_NEWMTL.length()).trim();
+
+		// Create a new material and set it to the current material being parsed.
+		currentMaterial = new Material(line);
+		materials.put(line, this.currentMaterial);
+	}
+
+	private void parseKa (String line) {
+		String[] tokens = line.split(" ");
+		currentMaterial.Ka = new float[] {Float.parseFloat(tokens[1]),
+				Float.parseFloat(tokens[2]),
+				Float.parseFloat(tokens[3])};
+	}
+
+	private void parseKd (String line) {
+		String[] tokens = line.split(" ");
+		if (tokens.length == 5) {
+			currentMaterial.Kd = new float[] {Float.parseFloat(tokens[1]),
+					Float.parseFloat(tokens[2]),
+					Float.parseFloat(tokens[3]),
+					Float.parseFloat(tokens[4])};
+		} else {
+			currentMaterial.Kd = new float[] {Float.parseFloat(tokens[1]),
+					Float.parseFloat(tokens[2]),
+					Float.parseFloat(tokens[3]),
+					1.0f};
+		}
+	}
+
+	private void parseIllum (String line) {
+		line = line.substring(MTL_ILLUM.length()).trim();
+		currentMaterial.illumModel = Integer.parseInt(line);
+	}
+
+	private void parseNs (String line) {
+		line = line.substring(MTL_NS.length()).trim();
+		currentMaterial.Ns = Float.parseFloat(line);
+	}
+
+	private void parseNi (String line) {
+		line = line.substring(MTL_NI.length()).trim();
+		currentMaterial.niOpticalDensity = Float.parseFloat(line);
+	}
+
+	private void parseKs (String line) {
+		String[] tokens = line.split("\\s+");
+		currentMaterial.Ks = new float[] {Float.parseFloat(tokens[1]),
+				Float.parseFloat(tokens[2]),
+				Float.parseFloat(tokens[3])};
+	}
+
+	private void parseMapKa (String line) {
+		currentMaterial.setMapKaFile(line.split(" ")[1]);
+	}
+
+	private void parseMapKd (String line) {
+		currentMaterial.setMapKdFile(line.split(" ")[1]);
+	}
+
+	private void parseMapKs (String line) {
+		currentMaterial.setMapKsFile(line.split(" ")[1]);
+	}
+}
@@ -8,6 +8,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.lwjgl.opengl.Display;
 import org.lwjgl.util.vector.Vector3f;
@@ -140,28 +142,36 @@ public class Main {
 			gameRenderer.addSkybox(sb);
 		}
 		
-		try {
-			PhysicsModelProperties bProperties = new PhysicsModelProperties();
-			bProperties.setProperty("mass", 10f);
-			bProperties.setProperty("restitution", 0.2f);
-			
-			ModelInt a = ModelFactory.loadObjModel(new File("res/obj/ATAT.obj"), new Vector3f(5, 0, 5));
-			ModelInt b = ModelFactory.loadObjModel(new File("res/obj/sphere.obj"), new Vector3f(-5, 0, -5), bProperties);
-			
-			Ground ground = new Ground(1000, 1000);
-			ground.translate(new Vector3f(0, -5, 0));
+		PhysicsModelProperties bProperties = new PhysicsModelProperties();
+		bProperties.setProperty("mass", 10f);
+		bProperties.setProperty("restitution", 0.2f);
+		
+		// Load the models in the background, they are handed to the world (and bound by the renderer) once they are ready
+		Consumer<ModelInt> addToWorld = new Consumer<ModelInt>() {
+			@Override
+			public void accept(ModelInt model) {
+				gameWorld.addModelSync(model);
+			}
+		};
+		Function<Throwable, Void> printError = new Function<Throwable, Void>() {
+			@Override
+			public Void apply(Throwable t) {
+				t.printStackTrace();
+				return null;
+			}
+		};
+		ModelFactory.loadObjModelAsync(new File("res/obj/ATAT.obj"), new Vector3f(5, 0, 5))
+			.thenAccept(addToWorld).exceptionally(printError);
+		ModelFactory.loadObjModelAsync(new File("res/obj/sphere.obj"), new Vector3f(-5, 0, -5), bProperties)
+			.thenAccept(addToWorld).exceptionally(printError);
+		
+		Ground ground = new Ground(1000, 1000);
+		ground.translate(new Vector3f(0, -5, 0));
 
-			gameWorld.addModel(a);
-			gameWorld.addModel(b);
-			gameWorld.addModel(ground);
+		gameWorld.addModel(ground);
 
-			ParticleEmitter p = new ParticleEmitter(gameWorld, new Vector3f(0, 2, 0));
-			gameWorld.addDynamicWorldObject(p);
-			p.start();
-		} catch(IOException e){
-			e.printStackTrace();
-		} catch(InterruptedException e){
-			e.printStackTrace();
-		}
+		ParticleEmitter p = new ParticleEmitter(gameWorld, new Vector3f(0, 2, 0));
+		gameWorld.addDynamicWorldObject(p);
+		p.start();
 	}
 }
\ No newline at end of file
@@ -74,7 +74,7 @@ public class MainTerrain {
 			gameRenderer.addSkybox(sb);
 		}
 
-		gameWorld.addModel((ModelInt)bt.blockModel);
+		gameWorld.addModel(bt);
 
 		Player player;
 		try {
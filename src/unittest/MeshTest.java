@@ -0,0 +1,365 @@
+package unittest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+
+import renderer.model.BoundingBox;
+import renderer.model.LodChain;
+import renderer.model.Mesh;
+import renderer.model.MeshCache;
+import renderer.model.MeshBatch;
+import renderer.model.MeshBuilder;
+import renderer.model.MeshOptimizer;
+import renderer.model.MeshSimplifier;
+import renderer.model.VertexData;
+import renderer.model.VertexFormat;
+import renderer.model.VertexWelder;
+import texture.Material;
+import util.Parser;
+
+/**
+ * Tests for converting and processing meshes on the CPU.
+ *
+ * @author Max
+ */
+public class MeshTest extends TestCase {
+
+	/**
+	 * Test that compacting a mesh keeps positions exactly and normals and texture coordinates
+	 * within the precision of their packed formats.
+	 */
+	public void testCompactMatchesStandard() throws Exception {
+		Mesh mesh = new Parser().parseOBJMesh(new File("res/obj/sphere.obj"));
+		Mesh compact = mesh.compact();
+		assertTrue(compact.isCompact());
+		assertSame(compact, compact.compact());
+
+		int n = VertexData.normalByteOffset / VertexData.elementBytes;
+		int t = VertexData.textureByteOffset / VertexData.elementBytes;
+		float[] normal = new float[3];
+
+		for (int b = 0; b < mesh.getBatches().size(); b++) {
+			MeshBatch standard = mesh.getBatches().get(b);
+			MeshBatch packed = compact.getBatches().get(b);
+			assertEquals(2, packed.getIndexSize());
+			assertEquals(standard.getVertexCount() * VertexFormat.COMPACT.getStride(), packed.getVertices().remaining());
+
+			for (int i = 0; i < standard.getIndexCount(); i++) {
+				assertEquals(standard.getIndex(i), packed.getIndex(i));
+			}
+
+			for (int v = 0; v < standard.getVertexCount(); v++) {
+				for (int e = 0; e < 3; e++) {
+					assertEquals(standard.getElement(v, e), packed.getElement(v, e));
+				}
+
+				int offset = v * VertexFormat.COMPACT.getStride();
+				VertexFormat.decodeNormal(packed.getVertices().getShort(offset + VertexFormat.COMPACT_NORMAL_OFFSET),
+						packed.getVertices().getShort(offset + VertexFormat.COMPACT_NORMAL_OFFSET + 2), normal);
+				float length = (float) Math.sqrt(standard.getElement(v, n) * standard.getElement(v, n)
+						+ standard.getElement(v, n + 1) * standard.getElement(v, n + 1)
+						+ standard.getElement(v, n + 2) * standard.getElement(v, n + 2));
+				for (int e = 0; e < 3; e++) {
+					assertEquals(standard.getElement(v, n + e) / length, normal[e], 1e-3f);
+				}
+
+				for (int e = 0; e < 2; e++) {
+					float st = standard.getElement(v, t + e);
+					float half = VertexFormat.fromHalfFloat(packed.getVertices().getShort(offset + VertexFormat.COMPACT_TEXTURE_OFFSET + e * 2));
+					assertEquals(st, half, Math.abs(st) / 1024f + 1e-7f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test half float conversion of special and boundary values.
+	 */
+	public void testHalfFloat() {
+		float[] exact = {0f, -0f, 1f, -2f, 0.5f, 65504f, 6.1035156e-5f, 5.9604645e-8f};
+		for (float f : exact) {
+			assertEquals(f, VertexFormat.fromHalfFloat(VertexFormat.toHalfFloat(f)));
+		}
+		assertEquals(Float.POSITIVE_INFINITY, VertexFormat.fromHalfFloat(VertexFormat.toHalfFloat(1e6f)));
+		assertTrue(Float.isNaN(VertexFormat.fromHalfFloat(VertexFormat.toHalfFloat(Float.NaN))));
+		assertEquals(0f, VertexFormat.fromHalfFloat(VertexFormat.toHalfFloat(1e-10f)));
+	}
+
+	/**
+	 * Test that the welder merges vertices within the quantization steps, but keeps vertices
+	 * that only differ in their normal apart.
+	 */
+	public void testWelding() {
+		int n = VertexData.normalByteOffset / VertexData.elementBytes;
+		int t = VertexData.textureByteOffset / VertexData.elementBytes;
+		VertexWelder exact = VertexWelder.forVertexData(0f, 0f, 0f);
+		VertexWelder quantized = VertexWelder.forVertexData(1e-3f, 1e-2f, 1e-3f);
+
+		// Enough vertices to grow the hash table a few times
+		float[] vertex = new float[VertexData.elementCount];
+		for (int i = 0; i < 5000; i++) {
+			vertex[0] = i;
+			vertex[n + 2] = 1f;
+			assertEquals(i, exact.add(vertex, 0));
+			assertEquals(i, quantized.add(vertex, 0));
+		}
+
+		vertex[0] = 42f;
+		vertex[n + 2] = -1f;
+		assertEquals(5000, exact.add(vertex, 0));
+		assertEquals(5000, quantized.add(vertex, 0));
+
+		vertex[0] = 42.0001f;
+		vertex[n + 2] = -0.999f;
+		vertex[t] = -0f;
+		assertEquals(5001, exact.add(vertex, 0));
+		assertEquals(5000, quantized.add(vertex, 0));
+		assertEquals(5002, exact.getVertexCount());
+		assertEquals(5001, quantized.getVertexCount());
+		assertEquals(42f, quantized.getVertices().get(5000 * VertexData.elementCount));
+	}
+
+	/**
+	 * Test that optimizing a shuffled grid keeps every triangle (with its winding and vertex data),
+	 * lowers the ACMR and leaves the vertices in the order of first use.
+	 */
+	public void testOptimizeVertexCache() {
+		int size = 64;
+		int vertexCount = (size + 1) * (size + 1);
+		List<int[]> quads = new ArrayList<>();
+		for (int z = 0; z < size; z++) {
+			for (int x = 0; x < size; x++) {
+				int v = z * (size + 1) + x;
+				quads.add(new int[] {v, v + size + 1, v + 1});
+				quads.add(new int[] {v + 1, v + size + 1, v + size + 2});
+			}
+		}
+		Collections.shuffle(quads, new Random(42));
+
+		ByteBuffer vertices = BufferUtils.createByteBuffer(vertexCount * VertexData.stride);
+		for (int v = 0; v < vertexCount; v++) {
+			vertices.putFloat(v * VertexData.stride, v);
+		}
+		ByteBuffer indices = BufferUtils.createByteBuffer(quads.size() * 3 * 4);
+		for (int t = 0; t < quads.size(); t++) {
+			for (int k = 0; k < 3; k++) {
+				indices.putInt((t * 3 + k) * 4, quads.get(t)[k]);
+			}
+		}
+
+		List<MeshBatch> batches = new ArrayList<>();
+		batches.add(new MeshBatch(null, vertices, vertexCount, indices, quads.size() * 3));
+		Mesh mesh = new Mesh(batches, new BoundingBox());
+		Mesh optimized = MeshOptimizer.optimize(mesh);
+		assertTrue(optimized.isOptimized());
+		assertTrue(optimized.getACMR() < 0.75f);
+		assertTrue(optimized.getACMR() < mesh.getACMR() / 2);
+
+		MeshBatch batch = optimized.getBatches().get(0);
+		assertEquals(vertexCount, batch.getVertexCount());
+		assertEquals(triangles(mesh.getBatches().get(0)), triangles(batch));
+
+		int next = 0;
+		for (int i = 0; i < batch.getIndexCount(); i++) {
+			assertTrue(batch.getIndex(i) <= next);
+			next = Math.max(next, batch.getIndex(i) + 1);
+		}
+	}
+
+	/**
+	 * Test that simplifying a flat grid reaches the target, keeps the area and the winding and
+	 * doesn't move the border.
+	 */
+	public void testSimplifyKeepsBorder() {
+		int size = 32;
+		int vertexCount = (size + 1) * (size + 1);
+		float[] positions = new float[vertexCount * 3];
+		for (int v = 0; v < vertexCount; v++) {
+			positions[v * 3] = v % (size + 1);
+			positions[v * 3 + 2] = v / (size + 1);
+		}
+		int[] indices = new int[size * size * 6];
+		int i = 0;
+		for (int z = 0; z < size; z++) {
+			for (int x = 0; x < size; x++) {
+				int v = z * (size + 1) + x;
+				indices[i++] = v;
+				indices[i++] = v + size + 1;
+				indices[i++] = v + 1;
+				indices[i++] = v + 1;
+				indices[i++] = v + size + 1;
+				indices[i++] = v + size + 2;
+			}
+		}
+
+		int target = indices.length / 10 / 3 * 3;
+		int count = MeshSimplifier.simplify(indices, indices.length, positions, vertexCount, target);
+		assertTrue(count <= target);
+		assertTrue(count > 0);
+
+		boolean[] used = new boolean[vertexCount];
+		float area = 0;
+		for (int t = 0; t < count; t += 3) {
+			int a = indices[t] * 3, b = indices[t + 1] * 3, c = indices[t + 2] * 3;
+			used[indices[t]] = used[indices[t + 1]] = used[indices[t + 2]] = true;
+
+			// The y component of the normal, positive for the original winding
+			float normalY = (positions[c] - positions[a]) * (positions[b + 2] - positions[a + 2])
+					- (positions[b] - positions[a]) * (positions[c + 2] - positions[a + 2]);
+			assertTrue(normalY > 0);
+			area += normalY / 2;
+		}
+		assertEquals(size * size, area, 1e-3f);
+
+		for (int v = 0; v < vertexCount; v++) {
+			int x = v % (size + 1), z = v / (size + 1);
+			if (x == 0 || z == 0 || x == size || z == size) {
+				assertTrue(used[v]);
+			}
+		}
+	}
+
+	/**
+	 * Test that a cache entry survives a new modification time of an unchanged source (and then
+	 * stores the new time), and that batches without a known material get a material each.
+	 */
+	public void testMeshCache() throws Exception {
+		File directory = Files.createTempDirectory("meshcache").toFile();
+		File source = new File(directory, "sphere.obj");
+		Files.copy(new File("res/obj/sphere.obj").toPath(), source.toPath());
+		MeshBatch batch = new Parser().parseOBJMesh(new File("res/obj/sphere.obj")).getBatches().get(0);
+		List<MeshBatch> batches = new ArrayList<>();
+		for (String name : new String[] {"first", "second"}) {
+			batches.add(new MeshBatch(new Material(name), batch.getFormat(), batch.getVertices(), batch.getVertexCount(),
+					batch.getIndices(), batch.getIndexCount(), batch.getIndexSize()));
+		}
+
+		float[] ratios = {1f, 0.5f};
+		float[] screenSizes = {1f, 0.2f};
+		LodChain lods = new Mesh(batches, new BoundingBox()).withLodChain(ratios, screenSizes).getLodChain();
+
+		MeshCache cache = new MeshCache(directory);
+		cache.store(source, new Mesh(batches, new BoundingBox()).withLodChain(ratios, screenSizes), Collections.<String>emptyList());
+		assertTrue(source.setLastModified(source.lastModified() - 60000));
+		Mesh cached = cache.load(source);
+		assertNotNull(cached);
+		assertEquals(2, cached.getBatches().size());
+		assertNotSame(cached.getBatches().get(0).getMaterial(), cached.getBatches().get(1).getMaterial());
+		assertEquals(batch.getIndex(5), cached.getBatches().get(1).getIndex(5));
+
+		// The levels of detail come back without simplifying again
+		assertTrue(cached.getLodChain().hasLevels(ratios, screenSizes));
+		assertEquals(lods.getIndexCount(1, 1), cached.getLodChain().getIndexCount(1, 1));
+		assertEquals(lods.getIndices(1, 1), cached.getLodChain().getIndices(1, 1));
+
+		// The time follows the magic, version, byte order mark and size
+		File cacheFile = null;
+		for (File file : directory.listFiles()) {
+			if (file.getName().endsWith(".mesh")) {
+				cacheFile = file;
+			}
+		}
+		ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		raf.getChannel().read(header, 20);
+		raf.close();
+		assertEquals(source.lastModified(), header.getLong(0));
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Test that the levels of detail of a model get coarser and are picked by screen size.
+	 */
+	public void testLodChain() throws Exception {
+		Mesh mesh = new Parser().parseOBJMesh(new File("res/obj/sphere.obj"));
+		LodChain lods = mesh.withLodChain(new float[] {1f, 0.5f, 0.25f}, new float[] {1f, 0.3f, 0.1f}).getLodChain();
+		assertEquals(3, lods.getLevelCount());
+		assertEquals(mesh.getTriangleCount(), lods.getTriangleCount(0));
+		assertTrue(lods.getTriangleCount(1) <= mesh.getTriangleCount() / 2);
+		assertTrue(lods.getTriangleCount(2) <= mesh.getTriangleCount() / 4);
+		assertTrue(lods.getTriangleCount(2) > 0);
+
+		assertEquals(0, lods.selectLevel(LodChain.computeScreenSize(1f, 0.5f, 45f)));
+		assertEquals(0, lods.selectLevel(0.5f));
+		assertEquals(1, lods.selectLevel(0.2f));
+		assertEquals(2, lods.selectLevel(0.05f));
+		assertTrue(LodChain.computeScreenSize(1f, 100f, 45f) < LodChain.computeScreenSize(1f, 10f, 45f));
+	}
+
+	/**
+	 * Test that merging places every source mesh at its transform, in the order of the sources.
+	 */
+	public void testMerge() throws Exception {
+		Mesh sphere = new Parser().parseOBJMesh(new File("res/obj/sphere.obj"));
+		List<Mesh> meshes = new ArrayList<>();
+		List<Matrix4f> transforms = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			meshes.add(i % 2 == 0 ? sphere : sphere.compact().compact());
+			transforms.add(new Matrix4f().translate(new Vector3f(i * 10, 0, 0)));
+		}
+
+		try {
+			MeshBuilder.merge(meshes, transforms);
+			fail("Merged different vertex formats");
+		} catch (IllegalArgumentException e) {
+		}
+
+		meshes = Collections.nCopies(100, sphere);
+		Mesh merged = MeshBuilder.merge(meshes, transforms);
+		assertEquals(sphere.getBatches().size(), merged.getBatches().size());
+		assertEquals(sphere.getTriangleCount() * 100, merged.getTriangleCount());
+		assertEquals(sphere.getVertexCount() * 100, merged.getVertexCount());
+		assertEquals(990f + sphere.getBoundingBox().getUpperRightBack().x, merged.getBoundingBox().getUpperRightBack().x, 1e-4f);
+
+		MeshBatch source = sphere.getBatches().get(0);
+		MeshBatch batch = merged.getBatches().get(0);
+		int last = source.getVertexCount() * 99;
+		for (int i = 0; i < source.getIndexCount(); i++) {
+			assertEquals(source.getIndex(i) + last, batch.getIndex(source.getIndexCount() * 99 + i));
+		}
+		for (int v = 0; v < source.getVertexCount(); v++) {
+			assertEquals(source.getElement(v, 0) + 990f, batch.getElement(last + v, 0), 1e-4f);
+			assertEquals(source.getElement(v, 1), batch.getElement(last + v, 1));
+			assertEquals(source.getElement(v, 8), batch.getElement(last + v, 8));
+		}
+	}
+
+	/**
+	 * Gets the triangles of a batch as sorted strings of the positions (first position element)
+	 * of their vertices, rotated so the winding is kept.
+	 */
+	private static List<String> triangles(MeshBatch batch) {
+		List<String> triangles = new ArrayList<>();
+		for (int i = 0; i < batch.getIndexCount(); i += 3) {
+			float[] t = new float[3];
+			int first = 0;
+			for (int k = 0; k < 3; k++) {
+				t[k] = batch.getElement(batch.getIndex(i + k), 0);
+				if (t[k] < t[first]) {
+					first = k;
+				}
+			}
+			triangles.add(Arrays.toString(new float[] {t[first], t[(first + 1) % 3], t[(first + 2) % 3]}));
+		}
+		Collections.sort(triangles);
+		return triangles;
+	}
+}
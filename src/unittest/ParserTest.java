@@ -0,0 +1,164 @@
+package unittest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import renderer.model.Face;
+import renderer.model.Mesh;
+import renderer.model.MeshBatch;
+import renderer.model.VertexData;
+import util.Parser;
+
+/**
+ * These tests make sure the memory-mapped and parallel OBJ parsing modes produce exactly
+ * the same faces as the line based parser, and that meshes streamed from OBJ files match
+ * meshes built from faces.
+ *
+ * @author Max
+ */
+public class ParserTest extends TestCase {
+
+	/**
+	 * Test that all parsing modes agree on a model shipped with the game.
+	 */
+	public void testModesMatchOnResourceModel() throws Exception {
+		File file = new File("res/obj/sphere.obj");
+
+		List<String> expected = parse(file, 0);
+		assertEquals(expected, parse(file, 1));
+		assertEquals(expected, parse(file, 2));
+	}
+
+	/**
+	 * Test that the parallel parser stitches a file that is split into many chunks
+	 * (with material switches between them) back together in order.
+	 */
+	public void testParallelMatchesSequentialOnLargeFile() throws Exception {
+		File dir = createTempDir();
+		File file = writeGridObj(dir, 200);
+		assertTrue(file.length() > (4 << 20));
+
+		List<String> expected = parse(file, 0);
+		assertEquals(200 * 200, expected.size());
+		assertEquals(expected, parse(file, 1));
+		assertEquals(expected, parse(file, 2));
+	}
+
+	/**
+	 * Test that streaming a file into a MeshBuilder gives the same triangles as building
+	 * the mesh from the parsed faces.
+	 */
+	public void testMeshMatchesFaces() throws Exception {
+		File dir = createTempDir();
+		for (File file : new File[] {new File("res/obj/sphere.obj"), writeGridObj(dir, 50)}) {
+			Parser parser = new Parser();
+			parser.parseOBJFileParallel(file);
+			List<String> expected = triangles(Mesh.fromFaces(parser.getFaces()));
+			
+			Mesh mesh = new Parser().parseOBJMesh(file);
+			assertEquals(expected, triangles(mesh));
+			assertTrue(mesh.getVertexCount() > 0);
+		}
+	}
+	
+	/**
+	 * Test that MTL libraries are only loaded once, so models share their Material instances.
+	 */
+	public void testMaterialsAreShared() throws Exception {
+		File file = writeGridObj(createTempDir(), 10);
+		
+		Parser a = new Parser();
+		a.parseOBJFileMapped(file);
+		Parser b = new Parser();
+		b.parseOBJFileParallel(file);
+		
+		assertEquals("Red", a.getFaces().get(0).getMaterial().getName());
+		assertSame(a.getFaces().get(0).getMaterial(), b.getFaces().get(0).getMaterial());
+		assertSame(a.getFaces().get(99).getMaterial(), b.getFaces().get(99).getMaterial());
+	}
+	
+	/**
+	 * Expands the triangles of a mesh into strings of their material and vertex elements.
+	 */
+	private static List<String> triangles(Mesh mesh) {
+		List<String> result = new ArrayList<String>();
+		for (MeshBatch batch : mesh.getBatches()) {
+			for (int i = 0; i < batch.getIndexCount(); i++) {
+				StringBuilder sb = new StringBuilder(batch.getMaterial().getName());
+				for (int e = 0; e < VertexData.elementCount; e++) {
+					sb.append(' ').append(batch.getElement(batch.getIndex(i), e));
+				}
+				result.add(sb.toString());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Parses a file and returns a string representation of every face (including its material).
+	 * @param mode 0 = line based, 1 = memory-mapped, 2 = parallel
+	 */
+	private static List<String> parse(File file, int mode) throws IOException, InterruptedException {
+		Parser parser = new Parser();
+		if (mode == 0) parser.parseOBJFile(file);
+		else if (mode == 1) parser.parseOBJFileMapped(file);
+		else parser.parseOBJFileParallel(file);
+
+		List<String> result = new ArrayList<String>();
+		for (Face face : parser.getFaces()) {
+			result.add(face.getMaterial().getName() + face.toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Writes a quad grid with positions, texture coordinates and normals, switching materials
+	 * every few rows.
+	 */
+	private static File writeGridObj(File dir, int size) throws IOException {
+		File mtlFile = new File(dir, "grid.mtl");
+		mtlFile.deleteOnExit();
+		PrintWriter mtl = new PrintWriter(new FileWriter(mtlFile));
+		mtl.println("newmtl Red\nKd 1 0 0\nKs 0.5 0.5 0.5\nNs 10");
+		mtl.println("newmtl Blue\nKa 0.1 0.1 0.1\nKd 0 0 1 0.5\nNs 20");
+		mtl.close();
+
+		File file = new File(dir, "grid.obj");
+		file.deleteOnExit();
+		PrintWriter obj = new PrintWriter(new FileWriter(file));
+		Random rand = new Random(7);
+		obj.println("# generated grid\nmtllib grid.mtl");
+		for (int z = 0; z <= size; z++) {
+			for (int x = 0; x <= size; x++) {
+				obj.println("v " + x * 0.25f + " " + rand.nextFloat() * 1e3f + " " + (-z * 0.123456789));
+				obj.println("vt " + (float) x / size + " " + (float) z / size);
+				obj.println("vn 0 1 " + rand.nextGaussian());
+			}
+		}
+		for (int z = 0; z < size; z++) {
+			if (z % 7 == 0) obj.println("usemtl " + (z % 2 == 0 ? "Red" : "Blue"));
+			for (int x = 0; x < size; x++) {
+				int a = z * (size + 1) + x + 1;
+				int b = a + size + 1;
+				obj.println("f " + a + "/" + a + "/" + a + " " + (a + 1) + "/" + (a + 1) + "/" + (a + 1) + " "
+						+ (b + 1) + "/" + (b + 1) + "/" + (b + 1) + " " + b + "/" + b + "/" + b);
+			}
+		}
+		obj.close();
+		return file;
+	}
+
+	private static File createTempDir() throws IOException {
+		File dir = File.createTempFile("parsertest", "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+		return dir;
+	}
+}
@@ -0,0 +1,971 @@
+package unittest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import renderer.model.BoundingBox;
+import renderer.model.Mesh;
+import renderer.model.MeshBatch;
+import renderer.model.ModelInt;
+import terrain.BlockTerrain;
+import terrain.BlockTerrainGenerator;
+import terrain.ChunkStore;
+import terrain.DensityField;
+import terrain.DiamondSquareGenerator;
+import terrain.GreedyMesher;
+import terrain.MarchingCubesMesher;
+import terrain.Noise;
+import terrain.NoiseDensityField;
+import terrain.NoiseTerrainGenerator;
+import terrain.PerlinNoise;
+import terrain.RegionFile;
+import terrain.SimplexNoise;
+import terrain.SmoothTerrain;
+import terrain.StreamingTerrain;
+import terrain.Terrain;
+import terrain.TerrainNormals;
+import terrain.TerrainQuadtree;
+import terrain.VoxelVolume;
+import texture.Material;
+
+import org.lwjgl.util.vector.Vector3f;
+
+import com.bulletphysics.collision.broadphase.DbvtBroadphase;
+import com.bulletphysics.collision.dispatch.CollisionDispatcher;
+import com.bulletphysics.collision.dispatch.CollisionWorld.ClosestRayResultCallback;
+import com.bulletphysics.collision.dispatch.DefaultCollisionConfiguration;
+import com.bulletphysics.collision.shapes.BvhTriangleMeshShape;
+import com.bulletphysics.dynamics.DiscreteDynamicsWorld;
+import com.bulletphysics.dynamics.DynamicsWorld;
+import com.bulletphysics.dynamics.constraintsolver.SequentialImpulseConstraintSolver;
+
+/**
+ * Tests for building and meshing block terrain.
+ *
+ * @author Max
+ */
+public class TerrainTest extends TestCase {
+
+	/**
+	 * Test that a solid box becomes one rectangle per side.
+	 */
+	public void testSolidBoxIsSixRectangles() {
+		int[][][] volume = new int[8][5][3];
+		fill(volume, 1);
+		Mesh mesh = new GreedyMesher().mesh(volume, 1f);
+		assertEquals(12, mesh.getTriangleCount());
+		assertEquals(-0.5f, mesh.getBoundingBox().getLowerLeftFront().x);
+		assertEquals(7.5f, mesh.getBoundingBox().getUpperRightBack().x);
+	}
+
+	/**
+	 * Test that a random volume is covered exactly by its exposed faces: the area facing every
+	 * direction matches a face by face count, and every triangle faces away from its block.
+	 */
+	public void testRandomVolumeExposedFaces() {
+		int size = 16;
+		int[][][] volume = new int[size][size][size];
+		Random random = new Random(7);
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				for (int z = 0; z < size; z++) {
+					volume[x][y][z] = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(2);
+				}
+			}
+		}
+
+		GreedyMesher mesher = new GreedyMesher();
+		mesher.setMaterial(2, new Material());
+		Mesh mesh = mesher.mesh(volume, 2f);
+		assertEquals(2, mesh.getBatches().size());
+
+		int[] expected = new int[6];
+		int[][] directions = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				for (int z = 0; z < size; z++) {
+					for (int f = 0; f < 6 && volume[x][y][z] != 0; f++) {
+						if (get(volume, x + directions[f][0], y + directions[f][1], z + directions[f][2]) == 0) {
+							expected[f]++;
+						}
+					}
+				}
+			}
+		}
+
+		float[] area = new float[6];
+		for (MeshBatch batch : mesh.getBatches()) {
+			for (int i = 0; i < batch.getIndexCount(); i += 3) {
+				float[][] p = new float[3][];
+				for (int k = 0; k < 3; k++) {
+					int v = batch.getIndex(i + k);
+					p[k] = new float[] {batch.getElement(v, 0), batch.getElement(v, 1), batch.getElement(v, 2)};
+				}
+				float[] n = cross(p[0], p[1], p[2]);
+				for (int f = 0; f < 6; f++) {
+					float dot = n[0] * directions[f][0] + n[1] * directions[f][1] + n[2] * directions[f][2];
+					if (dot > 0) {
+						area[f] += dot / 2;
+					}
+				}
+
+				// The block behind the triangle is solid, the one in front of it empty
+				float[] c = new float[3];
+				for (int k = 0; k < 3; k++) {
+					c[k] = (p[0][k] + p[1][k] + p[2][k]) / 3 / 2f;
+				}
+				float length = (float) Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+				assertTrue(get(volume, c, n, -0.25f / length) != 0);
+				assertEquals(0, get(volume, c, n, 0.25f / length));
+			}
+		}
+
+		for (int f = 0; f < 6; f++) {
+			assertEquals(expected[f] * 4f, area[f], 1e-3f);
+		}
+	}
+
+	/**
+	 * Test that a voxel volume holds the same voxels as an array while its palettes grow and
+	 * shrink, and that it meshes the same.
+	 */
+	public void testVoxelVolumeMatchesArray() {
+		int[][][] array = new int[40][20][33];
+		VoxelVolume volume = new VoxelVolume(40, 20, 33);
+		Random random = new Random(3);
+		for (int i = 0; i < 20000; i++) {
+			int x = random.nextInt(40), y = random.nextInt(20), z = random.nextInt(33);
+			int value = i < 10000 ? random.nextInt(2) : random.nextInt(40);
+			array[x][y][z] = value;
+			volume.set(x, y, z, value);
+		}
+		assertSame(array, volume);
+
+		// Clear most of the volume, so only a few sections keep values
+		for (int x = 0; x < 40; x++) {
+			for (int y = 0; y < 20; y++) {
+				for (int z = 0; z < 33; z++) {
+					if (x >= 8 || y >= 8) {
+						array[x][y][z] = 0;
+						volume.set(x, y, z, 0);
+					}
+				}
+			}
+		}
+		long before = volume.getMemoryUsage();
+		volume.compact();
+		assertTrue(volume.getMemoryUsage() < before);
+		assertSame(array, volume);
+
+		final int[] visited = new int[1];
+		volume.forEach(new VoxelVolume.Visitor() {
+			@Override
+			public void visit(int x, int y, int z, int value) {
+				assertTrue(value != 0 && x < 8 && y < 8);
+				visited[0]++;
+			}
+		});
+		int solid = 0;
+		for (int x = 0; x < 8; x++) {
+			for (int y = 0; y < 8; y++) {
+				for (int z = 0; z < 33; z++) {
+					solid += array[x][y][z] != 0 ? 1 : 0;
+				}
+			}
+		}
+		assertEquals(solid, visited[0]);
+
+		GreedyMesher mesher = new GreedyMesher();
+		assertEquals(mesher.mesh(array, 1f).getTriangleCount(), mesher.mesh(volume, 1f).getTriangleCount());
+		assertEquals(mesher.mesh(array, 3, 2, 5, 10, 10, 20, 1f).getTriangleCount(),
+				mesher.mesh(volume, 3, 2, 5, 10, 10, 20, 1f).getTriangleCount());
+	}
+
+	/**
+	 * Test that solid/empty voxels take a bit each and uniform sections almost nothing.
+	 */
+	public void testVoxelVolumeMemory() {
+		int size = 256;
+		VoxelVolume volume = new VoxelVolume(size, size, size);
+		int[] row = new int[size];
+		Random random = new Random(5);
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				for (int z = 0; z < size; z++) {
+					// Solid ground, a noisy layer and empty air
+					row[z] = y < 96 ? 1 : y < 128 ? random.nextInt(2) : 0;
+				}
+				volume.setRow(x, y, 0, row, size);
+			}
+		}
+		volume.compact();
+
+		long noisyBits = (long) size * 32 * size;
+		assertTrue(volume.getMemoryUsage() < noisyBits / 8 + 64 * 1024);
+		assertEquals(1, volume.get(10, 95, 10));
+		assertEquals(0, volume.get(10, 128, 10));
+	}
+
+	private static void assertSame(VoxelVolume expected, VoxelVolume volume) {
+		int[][][] array = new int[expected.getSizeX()][expected.getSizeY()][expected.getSizeZ()];
+		for (int x = 0; x < array.length; x++) {
+			for (int y = 0; y < array[0].length; y++) {
+				for (int z = 0; z < array[0][0].length; z++) {
+					array[x][y][z] = expected.get(x, y, z);
+				}
+			}
+		}
+		assertSame(array, volume);
+	}
+
+	private static void assertSame(int[][][] array, VoxelVolume volume) {
+		int[] copy = new int[array.length * array[0].length * array[0][0].length];
+		volume.copy(0, 0, 0, array.length, array[0].length, array[0][0].length, copy);
+		int n = 0;
+		for (int x = 0; x < array.length; x++) {
+			for (int y = 0; y < array[0].length; y++) {
+				for (int z = 0; z < array[0][0].length; z++) {
+					assertEquals(array[x][y][z], volume.get(x, y, z));
+					assertEquals(array[x][y][z], copy[n++]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test that the parallel generator gives the same blocks as evaluating the noise point by
+	 * point, whatever the number of threads.
+	 */
+	public void testParallelGenerationMatchesSequential() {
+		int size = 45;
+		double factor = 0.2;
+		BlockTerrainGenerator generator = new BlockTerrainGenerator(size, 1, factor);
+		VoxelVolume single = generator.generateVolume(new ForkJoinPool(1));
+		VoxelVolume parallel = generator.generateVolume(new ForkJoinPool(4));
+
+		int[][][] expected = new int[size][size][size];
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				for (int z = 0; z < size; z++) {
+					double value = SimplexNoise.simplex(1, (double) x / size * 3, (double) y / size * 3, (double) z / size * 3);
+					expected[x][y][z] = value > factor ? 1 : 0;
+				}
+			}
+		}
+		assertSame(expected, single);
+		assertSame(expected, parallel);
+
+		// A box of the unbounded field matches the volume where they overlap
+		VoxelVolume box = new VoxelVolume(10, 12, 14);
+		generator.generateBox(30, -2, 40, box);
+		for (int x = 0; x < 10; x++) {
+			for (int y = 2; y < 12; y++) {
+				for (int z = 0; z < 5; z++) {
+					assertEquals(expected[30 + x][y - 2][40 + z], box.get(x, y, z));
+				}
+			}
+		}
+
+		double[] z = {0.1, 1.7, 2.9};
+		double[] batch = new double[3];
+		SimplexNoise.simplex(3, 0.5, 1.25, z, batch, 3);
+		for (int i = 0; i < z.length; i++) {
+			assertEquals(SimplexNoise.simplex(3, 0.5, 1.25, z[i]), batch[i]);
+		}
+	}
+
+	/**
+	 * Test that the noise grids match the scalar noise, also when written to a direct buffer.
+	 */
+	public void testNoiseGridsMatchScalarNoise() {
+		float[] volume = new float[2 + 4 * 5 * 6];
+		SimplexNoise.grid(3, 1f, -1.5, 0.25, 2.0, 0.3, 4, 5, 6, volume, 2);
+		for (int x = 0; x < 4; x++) {
+			for (int y = 0; y < 5; y++) {
+				for (int z = 0; z < 6; z++) {
+					double expected = SimplexNoise.simplex(3, -1.5 + x * 0.3, 0.25 + y * 0.3, 2.0 + z * 0.3);
+					assertEquals((float) expected, volume[2 + (x * 5 + y) * 6 + z]);
+				}
+			}
+		}
+
+		float[] heights = new float[7 * 3];
+		SimplexNoise.grid(2, 0.5f, 3.0, -2.0, 0.1, 7, 3, heights, 0);
+		for (int x = 0; x < 7; x++) {
+			for (int y = 0; y < 3; y++) {
+				double expected = SimplexNoise.noise(3.0 + x * 0.1, -2.0 + y * 0.1)
+						+ 0.5 * SimplexNoise.noise((3.0 + x * 0.1) * 2, (-2.0 + y * 0.1) * 2);
+				assertEquals(expected, heights[x * 3 + y], 1e-6);
+			}
+		}
+
+		FloatBuffer buffer = ByteBuffer.allocateDirect(4 * 5 * 6 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		SimplexNoise.grid(3, 1f, -1.5, 0.25, 2.0, 0.3, 4, 5, 6, buffer);
+		assertEquals(0, buffer.position());
+		for (int i = 0; i < 4 * 5 * 6; i++) {
+			assertEquals(volume[2 + i], buffer.get(i));
+		}
+
+		// Far from the origin every point is still the scalar noise of its own coordinates
+		SimplexNoise.grid(1, 1f, 100000.3, -54321.7, 0.013, 7, 3, heights, 0);
+		for (int x = 0; x < 7; x++) {
+			for (int y = 0; y < 3; y++) {
+				assertEquals((float) SimplexNoise.noise(100000.3 + x * 0.013, -54321.7 + y * 0.013), heights[x * 3 + y]);
+			}
+		}
+
+		// Seeded noise fills buffers with its own values
+		Noise seeded = new SimplexNoise(5);
+		float[] seededHeights = new float[7 * 3];
+		seeded.sampleGrid(2, 0.5f, 3.0, -2.0, 0.1, 7, 3, seededHeights, 0);
+		buffer.clear();
+		seeded.sampleGrid(2, 0.5f, 3.0, -2.0, 0.1, 7, 3, buffer);
+		for (int i = 0; i < 7 * 3; i++) {
+			assertEquals(seededHeights[i], buffer.get(i));
+		}
+		SimplexNoise.grid(2, 0.5f, 3.0, -2.0, 0.1, 7, 3, heights, 0);
+		assertFalse(Arrays.equals(heights, seededHeights));
+	}
+
+	/**
+	 * Test that noise instances depend only on their seed, and that seeded worlds can be generated
+	 * at the same time.
+	 */
+	public void testSeededNoise() throws Exception {
+		Random random = new Random(5);
+		SimplexNoise simplex = new SimplexNoise(42);
+		PerlinNoise perlin = new PerlinNoise(42);
+		boolean seedsDiffer = false;
+		for (int i = 0; i < 200; i++) {
+			double x = random.nextDouble() * 600 - 300;
+			double y = random.nextDouble() * 600 - 300;
+			double z = random.nextDouble() * 600 - 300;
+			assertEquals(SimplexNoise.noise(x, y), SimplexNoise.DEFAULT.sample(x, y));
+			assertEquals(SimplexNoise.noise(x, y, z), SimplexNoise.DEFAULT.sample(x, y, z));
+			assertEquals(simplex.sample(x, y, z), new SimplexNoise(42).sample(x, y, z));
+			assertEquals(perlin.sample(x, y, z), new PerlinNoise(42).sample(x, y, z));
+			seedsDiffer |= simplex.sample(x, y, z) != new SimplexNoise(43).sample(x, y, z);
+
+			// Perlin noise is 0 on the lattice and continuous
+			assertEquals(0.0, perlin.sample(Math.floor(x), Math.floor(y), Math.floor(z)), 1e-12);
+			assertEquals(0.0, perlin.sample(Math.floor(x), Math.floor(y)), 1e-12);
+			assertEquals(perlin.sample(x, y, z), perlin.sample(x + 1e-6, y, z), 1e-4);
+			assertTrue(Math.abs(perlin.sample(x, y, z)) <= 1.1 && Math.abs(perlin.sample(x, y)) <= 1.1);
+		}
+		assertTrue(seedsDiffer);
+
+		// The batched rows and grids sample the table of their instance
+		double[] zs = {0.1, 1.7, 2.9};
+		float[] row = new float[3];
+		float[] grid = new float[2 * 2 * 3];
+		for (Noise noise : new Noise[] {simplex, perlin}) {
+			noise.sampleRow(2, 0.5f, 3.5, -1.25, zs, row, 3);
+			noise.sampleGrid(1, 1f, 0.5, 1.25, 0.1, 0.3, 2, 2, 3, grid, 0);
+			for (int i = 0; i < zs.length; i++) {
+				assertEquals(noise.sample(3.5, -1.25, zs[i]) + 0.5 * noise.sample(7.0, -2.5, zs[i] * 2), row[i], 1e-6);
+				assertEquals((float) noise.sample(0.5 + 0.3, 1.25 + 0.3, 0.1 + i * 0.3), grid[(1 * 2 + 1) * 3 + i]);
+			}
+		}
+		float[] defaultRow = new float[3];
+		simplex.sampleRow(2, 0.5f, 3.5, -1.25, zs, row, 3);
+		SimplexNoise.DEFAULT.sampleRow(2, 0.5f, 3.5, -1.25, zs, defaultRow, 3);
+		assertFalse(Arrays.equals(row, defaultRow));
+
+		final BlockTerrainGenerator first = new BlockTerrainGenerator(40, 1, 1.2, new SimplexNoise(1));
+		final BlockTerrainGenerator second = new BlockTerrainGenerator(40, 1, 1.2, new SimplexNoise(2));
+		final VoxelVolume[] parallel = new VoxelVolume[2];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				parallel[1] = second.generateVolume(new ForkJoinPool(2));
+			}
+		};
+		thread.start();
+		parallel[0] = first.generateVolume(new ForkJoinPool(2));
+		thread.join();
+
+		VoxelVolume expected = first.generateVolume(new ForkJoinPool(1));
+		assertSame(expected, parallel[0]);
+		assertSame(second.generateVolume(new ForkJoinPool(1)), parallel[1]);
+		int differences = 0;
+		for (int x = 0; x < 40; x++) {
+			for (int y = 0; y < 40; y++) {
+				for (int z = 0; z < 40; z++) {
+					differences += expected.get(x, y, z) != parallel[1].get(x, y, z) ? 1 : 0;
+				}
+			}
+		}
+		assertTrue(differences > 0);
+	}
+
+	/**
+	 * Test that the analytic noise gradients and terrain normals match finite differences.
+	 */
+	public void testNoiseGradients() {
+		Noise[] noises = {SimplexNoise.DEFAULT, new SimplexNoise(9), new PerlinNoise(9)};
+		Random random = new Random(3);
+		float[] gradient = new float[3];
+		double e = 1e-6;
+		for (Noise noise : noises) {
+			for (int i = 0; i < 200; i++) {
+				double x = random.nextDouble() * 40 - 20;
+				double y = random.nextDouble() * 40 - 20;
+				double z = random.nextDouble() * 40 - 20;
+
+				assertEquals(noise.sample(x, y), noise.sampleGradient(x, y, gradient));
+				assertEquals((noise.sample(x + e, y) - noise.sample(x - e, y)) / (2 * e), gradient[0], 1e-4);
+				assertEquals((noise.sample(x, y + e) - noise.sample(x, y - e)) / (2 * e), gradient[1], 1e-4);
+
+				assertEquals(noise.sample(x, y, z), noise.sampleGradient(x, y, z, gradient));
+				assertEquals((noise.sample(x + e, y, z) - noise.sample(x - e, y, z)) / (2 * e), gradient[0], 1e-4);
+				assertEquals((noise.sample(x, y + e, z) - noise.sample(x, y - e, z)) / (2 * e), gradient[1], 1e-4);
+				assertEquals((noise.sample(x, y, z + e) - noise.sample(x, y, z - e)) / (2 * e), gradient[2], 1e-4);
+			}
+		}
+		assertEquals(SimplexNoise.noise(1.3, -4.2, 0.7), SimplexNoise.noise(1.3, -4.2, 0.7, gradient));
+
+		// Heightfield normals against the cross product of the central differences of the heights
+		int size = 12;
+		float[] heights = new float[size * size];
+		float[] normals = new float[3 * size * size];
+		float spacing = 0.01f;
+		TerrainNormals.heightfield(new PerlinNoise(4), 3, 0.5f, 0.05f, 20f, -7f, 3f, spacing, size, size, heights, normals);
+		for (int x = 1; x < size - 1; x++) {
+			for (int z = 1; z < size - 1; z++) {
+				float dx = (heights[(x + 1) * size + z] - heights[(x - 1) * size + z]) / (2 * spacing);
+				float dz = (heights[x * size + z + 1] - heights[x * size + z - 1]) / (2 * spacing);
+				float length = (float) Math.sqrt(dx * dx + 1 + dz * dz);
+				int index = 3 * (x * size + z);
+				assertEquals(-dx / length, normals[index], 1e-3f);
+				assertEquals(1 / length, normals[index + 1], 1e-3f);
+				assertEquals(-dz / length, normals[index + 2], 1e-3f);
+			}
+		}
+
+		// The generator hands the analytic normals to the terrain
+		NoiseTerrainGenerator generator = new NoiseTerrainGenerator(new PerlinNoise(4), 150, 3, 0.5f, 0.05f, 20f);
+		float[] generatedHeights = new float[150 * 150];
+		float[] generatedNormals = new float[3 * 150 * 150];
+		generator.generate(new ForkJoinPool(3), generatedHeights, generatedNormals);
+		heights = new float[150 * 150];
+		normals = new float[3 * 150 * 150];
+		TerrainNormals.heightfield(new PerlinNoise(4), 3, 0.5f, 0.05f, 20f, 0f, 0f, 1f, 150, 150, heights, normals);
+		assertTrue(Arrays.equals(heights, generatedHeights));
+		assertTrue(Arrays.equals(normals, generatedNormals));
+		assertNotNull(generator.generateTerrain().getNormals());
+
+		// Density normals point out of the dense side
+		float[] normal = new float[3];
+		double density = TerrainNormals.density(SimplexNoise.DEFAULT, 2, 0.5f, 0.1f, 3f, 4f, 5f, normal);
+		double outside = TerrainNormals.density(SimplexNoise.DEFAULT, 2, 0.5f, 0.1f, 3f + normal[0] * 0.01f,
+				4f + normal[1] * 0.01f, 5f + normal[2] * 0.01f, new float[3]);
+		assertTrue(outside < density);
+	}
+
+	/**
+	 * Test that diamond square heights only depend on the seed, and that the terrain meshes them
+	 * into tiles of indexed grids.
+	 */
+	public void testDiamondSquareHeightfield() {
+		DiamondSquareGenerator generator = new DiamondSquareGenerator(257, 0, 100, 1.0, 12);
+		float[] single = generator.generateHeights(new ForkJoinPool(1));
+		float[] parallel = generator.generateHeights(new ForkJoinPool(4));
+		assertTrue(Arrays.equals(single, parallel));
+		assertFalse(Arrays.equals(single, new DiamondSquareGenerator(257, 0, 100, 1.0, 13).generateHeights()));
+		for (float height : single) {
+			assertTrue(height > -100 && height < 200);
+		}
+
+		try {
+			new DiamondSquareGenerator(256, 0, 100, 1.0, 12);
+			fail("Accepted a size that isn't 2^n + 1");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		// 257 points are 256 cells, 4 tiles along each side
+		Terrain terrain = new Terrain(single, 257, 2f);
+		assertEquals(4, terrain.getTileCount());
+
+		// Tiles are meshed when they are first needed
+		assertFalse(terrain.isMeshed(0, 0));
+		assertNotNull(terrain.getTile(0, 0));
+		assertTrue(terrain.isMeshed(0, 0) && !terrain.isMeshed(3, 3));
+		int triangles = 0;
+		for (int x = 0; x < 4; x++) {
+			for (int z = 0; z < 4; z++) {
+				Mesh mesh = terrain.getTile(x, z).getMesh();
+				assertEquals((Terrain.TILE_SIZE + 1) * (Terrain.TILE_SIZE + 1), mesh.getVertexCount());
+				triangles += mesh.getTriangleCount();
+			}
+		}
+		assertEquals(2 * 256 * 256, triangles);
+
+		// The front of a bounding box is its largest z
+		BoundingBox bounds = terrain.getTile(3, 3).getMesh().getBoundingBox();
+		assertEquals(512f, bounds.getUpperRightBack().x);
+		assertEquals(512f, bounds.getLowerLeftFront().z);
+		assertEquals(single[3 * 257 + 5], terrain.getHeight(6f, 10f));
+		assertEquals((single[3 * 257 + 5] + single[4 * 257 + 5]) / 2, terrain.getHeight(7f, 10f), 1e-4f);
+	}
+
+	/**
+	 * Test that the quadtree selects every leaf exactly once, finer near the eye, with neighbours
+	 * at most one level apart and the sides next to coarser nodes stitched.
+	 */
+	public void testTerrainQuadtreeSelection() {
+		float[] flat = new float[129 * 129];
+		TerrainQuadtree tree = new TerrainQuadtree(flat, 129, 1f, 16);
+		assertEquals(4, tree.getLevelCount());
+		assertEquals(0f, tree.getError(3, 0, 0));
+		TerrainQuadtree.Selection selection = new TerrainQuadtree.Selection();
+		tree.select(new Vector3f(1f, 1f, 1f), null, null, 45f, 0.001f, selection);
+		assertEquals(1, selection.getCount());
+		assertEquals(3, selection.getLevel(0));
+
+		float[] heights = new DiamondSquareGenerator(257, 0, 100, 1.0, 7).generateHeights();
+		tree = new TerrainQuadtree(heights, 257, 1f, 16);
+		assertEquals(5, tree.getLevelCount());
+		for (int level = 1; level < tree.getLevelCount(); level++) {
+			int nodes = tree.getNodeCount(level);
+			for (int x = 0; x < nodes; x++) {
+				for (int z = 0; z < nodes; z++) {
+					assertTrue(tree.getError(level, x, z) > 0);
+					for (int child = 0; child < 4; child++) {
+						int cx = 2 * x + (child >> 1), cz = 2 * z + (child & 1);
+						assertTrue(tree.getError(level, x, z) >= tree.getError(level - 1, cx, cz));
+						assertTrue(tree.getMinHeight(level, x, z) <= tree.getMinHeight(level - 1, cx, cz));
+						assertTrue(tree.getMaxHeight(level, x, z) >= tree.getMaxHeight(level - 1, cx, cz));
+					}
+				}
+			}
+		}
+
+		tree.select(new Vector3f(8f, 120f, 8f), null, null, 45f, 0.01f, selection);
+		int leaves = tree.getNodeCount(0);
+		int[] leafLevels = new int[leaves * leaves];
+		Arrays.fill(leafLevels, -1);
+		for (int i = 0; i < selection.getCount(); i++) {
+			int level = selection.getLevel(i);
+			for (int x = selection.getNodeX(i) << level; x < (selection.getNodeX(i) + 1) << level; x++) {
+				for (int z = selection.getNodeZ(i) << level; z < (selection.getNodeZ(i) + 1) << level; z++) {
+					assertEquals(-1, leafLevels[x * leaves + z]);
+					leafLevels[x * leaves + z] = level;
+				}
+			}
+		}
+		for (int x = 0; x < leaves; x++) {
+			for (int z = 0; z < leaves; z++) {
+				assertTrue(leafLevels[x * leaves + z] >= 0);
+				if (x + 1 < leaves) {
+					assertTrue(Math.abs(leafLevels[x * leaves + z] - leafLevels[(x + 1) * leaves + z]) <= 1);
+				}
+				if (z + 1 < leaves) {
+					assertTrue(Math.abs(leafLevels[x * leaves + z] - leafLevels[x * leaves + z + 1]) <= 1);
+				}
+			}
+		}
+		assertTrue(leafLevels[0] < leafLevels[leaves * leaves - 1]);
+
+		for (int i = 0; i < selection.getCount(); i++) {
+			int level = selection.getLevel(i);
+			int x = selection.getNodeX(i) << level, z = selection.getNodeZ(i) << level;
+			int mask = selection.getStitchMask(i);
+			assertEquals(x > 0 && leafLevels[(x - 1) * leaves + z] > level, (mask & TerrainQuadtree.STITCH_MIN_X) != 0);
+			assertEquals(z > 0 && leafLevels[x * leaves + z - 1] > level, (mask & TerrainQuadtree.STITCH_MIN_Z) != 0);
+		}
+
+		try {
+			new TerrainQuadtree(heights, 257, 1f, 12);
+			fail("Accepted a tile size that isn't a power of 2");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that every stitch variant covers the node with upward facing triangles and only uses
+	 * the even points of its stitched sides.
+	 */
+	public void testStitchedIndices() {
+		int tileSize = 8;
+		int points = tileSize + 1;
+		for (int mask = 0; mask < TerrainQuadtree.STITCH_VARIANTS; mask++) {
+			int[] indices = TerrainQuadtree.getStitchedIndices(tileSize, mask);
+			assertEquals(0, indices.length % 3);
+			if (mask == 0) {
+				assertEquals(tileSize * tileSize * 6, indices.length);
+			}
+
+			float area = 0;
+			for (int i = 0; i < indices.length; i += 3) {
+				float[][] triangle = new float[3][];
+				for (int k = 0; k < 3; k++) {
+					int x = indices[i + k] / points, z = indices[i + k] % points;
+					triangle[k] = new float[] {x, 0, z};
+					boolean odd = z % 2 == 1 && ((x == 0 && (mask & TerrainQuadtree.STITCH_MIN_X) != 0)
+							|| (x == tileSize && (mask & TerrainQuadtree.STITCH_MAX_X) != 0));
+					odd |= x % 2 == 1 && ((z == 0 && (mask & TerrainQuadtree.STITCH_MIN_Z) != 0)
+							|| (z == tileSize && (mask & TerrainQuadtree.STITCH_MAX_Z) != 0));
+					assertFalse(odd);
+				}
+				float up = cross(triangle[0], triangle[1], triangle[2])[1];
+				assertTrue(up > 0);
+				area += up / 2;
+			}
+			assertEquals(tileSize * tileSize, area, 1e-4f);
+		}
+	}
+
+	/**
+	 * Test that marching cubes meshes a closed sphere with shared vertices, outward triangles and
+	 * normals, and that chunks of it add up to the whole.
+	 */
+	public void testMarchingCubesSphere() {
+		// No grid point is on the sphere, so no triangle collapses
+		DensityField sphere = new DensityField() {
+			@Override
+			public float getDensity(float x, float y, float z) {
+				return 5f - (float) Math.sqrt((x - 8.5f) * (x - 8.5f) + (y - 8.5f) * (y - 8.5f) + (z - 8.5f) * (z - 8.5f));
+			}
+
+			@Override
+			public void getNormal(float x, float y, float z, float[] normal) {
+				float length = (float) Math.sqrt((x - 8.5f) * (x - 8.5f) + (y - 8.5f) * (y - 8.5f) + (z - 8.5f) * (z - 8.5f));
+				normal[0] = (x - 8.5f) / length;
+				normal[1] = (y - 8.5f) / length;
+				normal[2] = (z - 8.5f) / length;
+			}
+		};
+
+		Mesh mesh = new MarchingCubesMesher().mesh(sphere, 0f, 0f, 0f, 0f, 16, 16, 16, 1f);
+		MeshBatch batch = mesh.getBatches().get(0);
+		assertTrue(mesh.getTriangleCount() > 0);
+
+		// Closed: every edge is used once in each direction, and a sphere has V - E + F = 2
+		Map<Long, Integer> edges = new HashMap<>();
+		for (int i = 0; i < batch.getIndexCount(); i += 3) {
+			float[][] triangle = new float[3][];
+			for (int k = 0; k < 3; k++) {
+				int from = batch.getIndex(i + k), to = batch.getIndex(i + (k + 1) % 3);
+				Integer count = edges.put(((long) from << 32) | to, 1);
+				assertNull(count);
+
+				int vertex = batch.getIndex(i + k);
+				triangle[k] = new float[] {batch.getElement(vertex, 0), batch.getElement(vertex, 1), batch.getElement(vertex, 2)};
+				float radius = (float) Math.sqrt((triangle[k][0] - 8.5f) * (triangle[k][0] - 8.5f)
+						+ (triangle[k][1] - 8.5f) * (triangle[k][1] - 8.5f) + (triangle[k][2] - 8.5f) * (triangle[k][2] - 8.5f));
+				assertEquals(5f, radius, 0.1f);
+			}
+
+			// Counter-clockwise seen from outside
+			float[] normal = cross(triangle[0], triangle[1], triangle[2]);
+			assertTrue(normal[0] * (triangle[0][0] - 8.5f) + normal[1] * (triangle[0][1] - 8.5f) + normal[2] * (triangle[0][2] - 8.5f) > 0);
+		}
+		for (long edge : edges.keySet()) {
+			assertTrue(edges.containsKey((edge << 32) | (edge >>> 32)));
+		}
+		assertEquals(2, mesh.getVertexCount() - edges.size() / 2 + mesh.getTriangleCount());
+
+		SmoothTerrain terrain = new SmoothTerrain(sphere, 0f, 16, 16, 16, 1f, 8);
+		int triangles = 0;
+		for (int i = 0; i < 8; i++) {
+			triangles += terrain.getChunkModel(i >> 2, (i >> 1) & 1, i & 1).getMesh().getTriangleCount();
+		}
+		assertEquals(mesh.getTriangleCount(), triangles);
+		assertNull(new SmoothTerrain(sphere, 0f, 16, 16, 16, 1f, 4).getChunkModel(0, 0, 0));
+	}
+
+	/**
+	 * Test that a noise density field has the density and normals of its noise.
+	 */
+	public void testNoiseDensityField() {
+		Noise noise = new SimplexNoise(5);
+		NoiseDensityField field = new NoiseDensityField(noise, 3, 0.5f, 0.05f);
+		float[] normal = new float[3];
+		float[] expected = new float[3];
+		Random random = new Random(2);
+		for (int i = 0; i < 100; i++) {
+			float x = random.nextFloat() * 64, y = random.nextFloat() * 64, z = random.nextFloat() * 64;
+			double density = TerrainNormals.density(noise, 3, 0.5f, 0.05f, x, y, z, expected);
+			assertEquals((float) density, field.getDensity(x, y, z));
+			field.getNormal(x, y, z, normal);
+			assertTrue(Arrays.equals(expected, normal));
+		}
+
+		// 3D simplex noise is centred on 1, so the octaves are centred on 1.75
+		Mesh mesh = new MarchingCubesMesher().mesh(field, 1.75f, 0f, 0f, 0f, 32, 32, 32, 1f);
+		assertTrue(mesh.getTriangleCount() > 0);
+		assertTrue(mesh.getVertexCount() < mesh.getTriangleCount());
+	}
+
+	/**
+	 * Test that setBlock only remeshes the chunk of the block, and the chunk next to it when the
+	 * block is on a border.
+	 */
+	public void testSetBlockRemeshesAffectedChunks() throws InterruptedException {
+		int[][][] volume = new int[32][32][32];
+		fill(volume, 1);
+		BlockTerrain terrain = new BlockTerrain(VoxelVolume.fromArray(volume), 1, 16);
+		ModelInt[] before = chunkModels(terrain);
+		int triangles = terrain.getChunkModel(0, 0, 0).getMesh().getTriangleCount();
+
+		// A hole inside the chunk adds its six faces
+		terrain.setBlock(5, 5, 5, 0);
+		ModelInt[] after = finishRemeshing(terrain);
+		for (int i = 0; i < before.length; i++) {
+			assertEquals(i != 0, before[i] == after[i]);
+		}
+		assertEquals(triangles + 12, terrain.getChunkModel(0, 0, 0).getMesh().getTriangleCount());
+
+		// The faces of a hole on the +x border of chunk (0, 0, 0) are split with chunk (1, 0, 0)
+		before = after;
+		terrain.setBlock(15, 5, 5, 0);
+		after = finishRemeshing(terrain);
+		for (int i = 0; i < before.length; i++) {
+			assertEquals(i != 0 && i != 4, before[i] == after[i]);
+		}
+		assertEquals(triangles + 22, terrain.getChunkModel(0, 0, 0).getMesh().getTriangleCount());
+	}
+
+	/**
+	 * Test that terrain collides with its surface and not with the convex hull of its blocks: a
+	 * ray cast down between two pillars hits the floor.
+	 */
+	public void testTerrainCollidesWithTriangleMesh() {
+		int[][][] volume = new int[8][6][8];
+		for (int x = 0; x < 8; x++) {
+			for (int z = 0; z < 8; z++) {
+				volume[x][0][z] = 1;
+				for (int y = 1; y < 6 && (x == 0 || x == 7); y++) {
+					volume[x][y][z] = 1;
+				}
+			}
+		}
+		BlockTerrain terrain = new BlockTerrain(volume, 1);
+		assertTrue(terrain.getChunkModel(0, 0, 0).getPhysicsModel().getRigidBody().getCollisionShape() instanceof BvhTriangleMeshShape);
+
+		DefaultCollisionConfiguration configuration = new DefaultCollisionConfiguration();
+		DynamicsWorld world = new DiscreteDynamicsWorld(new CollisionDispatcher(configuration), new DbvtBroadphase(),
+				new SequentialImpulseConstraintSolver(), configuration);
+		terrain.setDynamicsWorld(world);
+
+		javax.vecmath.Vector3f from = new javax.vecmath.Vector3f(3.2f, 10f, 3.7f);
+		javax.vecmath.Vector3f to = new javax.vecmath.Vector3f(3.2f, -10f, 3.7f);
+		ClosestRayResultCallback callback = new ClosestRayResultCallback(from, to);
+		world.rayTest(from, to, callback);
+		assertTrue(callback.hasHit());
+		assertEquals(0.5f, callback.hitPointWorld.y, 1e-4f);
+	}
+
+	/**
+	 * Test that a streaming terrain loads the chunks around the position and, once over its
+	 * memory cap, evicts the chunks it moved away from but not the ones around it.
+	 */
+	public void testStreamingTerrainEvictsOldChunks() throws InterruptedException {
+		BlockTerrainGenerator generator = new BlockTerrainGenerator(24, 1, 0.2);
+		StreamingTerrain terrain = new StreamingTerrain(generator, 1, 8, 1, 1, 1f);
+
+		// Seven chunks within a radius of one chunk
+		terrain.update(new Vector3f(3f, 3f, 3f));
+		finishLoading(terrain, new Vector3f(3f, 3f, 3f));
+		assertEquals(7, terrain.getChunkCount());
+		assertTrue(terrain.isLoaded(0, 0, 0) && terrain.isLoaded(-1, 0, 0) && terrain.isLoaded(0, 0, 1));
+		assertTrue(terrain.getMemoryUsage() > 1);
+
+		// Everything is over the cap, but only the chunks out of the radius go
+		terrain.update(new Vector3f(83f, 3f, 3f));
+		finishLoading(terrain, new Vector3f(83f, 3f, 3f));
+		assertEquals(7, terrain.getChunkCount());
+		assertFalse(terrain.isLoaded(0, 0, 0));
+		assertTrue(terrain.isLoaded(10, 0, 0) && terrain.isLoaded(11, 0, 0));
+	}
+
+	/**
+	 * Test that chunks written to a region file read back the same after reopening it, and that
+	 * rewriting a chunk moves it to free sectors, reusing the sectors it left.
+	 */
+	public void testRegionFileRoundTrip() throws IOException {
+		File path = File.createTempFile("terrain", ".region");
+		path.delete();
+		path.deleteOnExit();
+
+		VoxelVolume noisy = new VoxelVolume(10, 10, 10);
+		VoxelVolume solid = new VoxelVolume(10, 10, 10);
+		Random random = new Random(11);
+		for (int x = 0; x < 10; x++) {
+			for (int y = 0; y < 10; y++) {
+				for (int z = 0; z < 10; z++) {
+					noisy.set(x, y, z, random.nextInt(5));
+					solid.set(x, y, z, 3);
+				}
+			}
+		}
+
+		RegionFile region = new RegionFile(path, 10, 10, 10);
+		region.write(RegionFile.chunkIndex(0, 0, 0), solid);
+		region.write(RegionFile.chunkIndex(-1, 2, 7), solid);
+		assertFalse(region.contains(RegionFile.chunkIndex(1, 0, 0)));
+
+		// A bigger chunk is appended, a smaller one goes back into the freed first sector
+		long length = region.length();
+		region.write(RegionFile.chunkIndex(0, 0, 0), noisy);
+		assertTrue(region.length() > length);
+		region.write(RegionFile.chunkIndex(0, 0, 0), solid);
+		assertEquals(length, region.length());
+		region.write(RegionFile.chunkIndex(0, 0, 0), noisy);
+		long grown = region.length();
+		region.write(RegionFile.chunkIndex(0, 0, 0), noisy);
+		region.write(RegionFile.chunkIndex(0, 0, 0), noisy);
+		assertTrue(region.length() <= grown + (grown - length));
+		region.close();
+
+		region = new RegionFile(path, 10, 10, 10);
+		VoxelVolume read = new VoxelVolume(10, 10, 10);
+		assertTrue(region.read(RegionFile.chunkIndex(0, 0, 0), read));
+		assertSame(noisy, read);
+		assertTrue(region.read(RegionFile.chunkIndex(7, 2, -1 + 8), read));
+		assertSame(solid, read);
+		assertFalse(region.read(RegionFile.chunkIndex(1, 0, 0), read));
+		region.close();
+
+		try {
+			new RegionFile(path, 8, 8, 8);
+			fail("Opened a region of other volumes");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that a streaming terrain saves the chunks it generated or edited and loads them back
+	 * instead of generating them again.
+	 */
+	public void testStreamingTerrainSavesChunks() throws IOException, InterruptedException {
+		File directory = File.createTempFile("terrain", "");
+		directory.delete();
+		BlockTerrainGenerator generator = new BlockTerrainGenerator(24, 1, 0.2);
+		ChunkStore store = new ChunkStore(directory, 10);
+
+		StreamingTerrain terrain = new StreamingTerrain(generator, 1, 8, 1, Long.MAX_VALUE, 1f);
+		terrain.setChunkStore(store);
+		terrain.update(new Vector3f(3f, 3f, 3f));
+		finishLoading(terrain, new Vector3f(3f, 3f, 3f));
+		assertFalse(store.contains(0, 0, 0));
+		assertEquals(7, terrain.save());
+		assertEquals(0, terrain.save());
+		assertTrue(store.contains(0, 0, 0) && store.contains(0, -1, 0));
+
+		VoxelVolume generated = new VoxelVolume(10, 10, 10);
+		generator.generateBox(-1, -1, -1, generated);
+		VoxelVolume loaded = new VoxelVolume(10, 10, 10);
+		assertTrue(store.load(0, 0, 0, loaded));
+		int[][][] expected = new int[10][10][10];
+		for (int x = 0; x < 10; x++) {
+			for (int y = 0; y < 10; y++) {
+				for (int z = 0; z < 10; z++) {
+					expected[x][y][z] = generated.get(x, y, z);
+				}
+			}
+		}
+		assertSame(expected, loaded);
+
+		// Loaded chunks are not dirty
+		terrain = new StreamingTerrain(generator, 1, 8, 1, Long.MAX_VALUE, 1f);
+		terrain.setChunkStore(store);
+		terrain.update(new Vector3f(3f, 3f, 3f));
+		finishLoading(terrain, new Vector3f(3f, 3f, 3f));
+		assertEquals(7, terrain.getChunkCount());
+		assertEquals(0, terrain.save());
+
+		// An edit on the side of a chunk changes the border of its neighbour too
+		int value = generated.get(1, 4, 4) == 0 ? 1 : 0;
+		assertFalse(terrain.setBlock(100, 3, 3, value));
+		assertTrue(terrain.setBlock(0, 3, 3, value));
+		finishLoading(terrain, new Vector3f(3f, 3f, 3f));
+		assertEquals(2, terrain.save());
+		assertTrue(store.load(0, 0, 0, loaded));
+		assertEquals(value, loaded.get(1, 4, 4));
+		assertTrue(store.load(-1, 0, 0, loaded));
+		assertEquals(value, loaded.get(9, 4, 4));
+
+		// Coming back to an evicted chunk right away keeps its edit, saved or not
+		terrain = new StreamingTerrain(generator, 1, 8, 1, 1, 1f);
+		terrain.setChunkStore(store);
+		terrain.update(new Vector3f(3f, 3f, 3f));
+		finishLoading(terrain, new Vector3f(3f, 3f, 3f));
+		assertTrue(terrain.setBlock(0, 3, 3, 1 - value));
+		finishLoading(terrain, new Vector3f(3f, 3f, 3f));
+		terrain.update(new Vector3f(83f, 3f, 3f));
+		finishLoading(terrain, new Vector3f(83f, 3f, 3f));
+		terrain.update(new Vector3f(3f, 3f, 3f));
+		finishLoading(terrain, new Vector3f(3f, 3f, 3f));
+		terrain.save();
+		assertTrue(store.load(0, 0, 0, loaded));
+		assertEquals(1 - value, loaded.get(1, 4, 4));
+		store.close();
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private static void finishLoading(StreamingTerrain terrain, Vector3f position) throws InterruptedException {
+		while (terrain.isLoading()) {
+			Thread.sleep(1);
+		}
+		terrain.update(position);
+	}
+
+	private static ModelInt[] chunkModels(BlockTerrain terrain) {
+		ModelInt[] models = new ModelInt[8];
+		for (int i = 0; i < models.length; i++) {
+			models[i] = terrain.getChunkModel(i >> 2, (i >> 1) & 1, i & 1);
+		}
+		return models;
+	}
+
+	private static ModelInt[] finishRemeshing(BlockTerrain terrain) throws InterruptedException {
+		while (terrain.isRemeshing()) {
+			Thread.sleep(1);
+		}
+		terrain.update();
+		return chunkModels(terrain);
+	}
+
+	private static void fill(int[][][] volume, int value) {
+		for (int[][] plane : volume) {
+			for (int[] row : plane) {
+				Arrays.fill(row, value);
+			}
+		}
+	}
+
+	private static int get(int[][][] volume, int x, int y, int z) {
+		if (x < 0 || y < 0 || z < 0 || x >= volume.length || y >= volume[0].length || z >= volume[0][0].length) {
+			return 0;
+		}
+		return volume[x][y][z];
+	}
+
+	private static int get(int[][][] volume, float[] point, float[] direction, float distance) {
+		return get(volume, Math.round(point[0] + direction[0] * distance), Math.round(point[1] + direction[1] * distance),
+				Math.round(point[2] + direction[2] * distance));
+	}
+
+	private static float[] cross(float[] a, float[] b, float[] c) {
+		float ux = b[0] - a[0], uy = b[1] - a[1], uz = b[2] - a[2];
+		float vx = c[0] - a[0], vy = c[1] - a[1], vz = c[2] - a[2];
+		return new float[] {uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx};
+	}
+}
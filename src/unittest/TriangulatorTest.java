@@ -0,0 +1,67 @@
+package unittest;
+
+import junit.framework.TestCase;
+import util.Triangulator;
+
+/**
+ * Tests for splitting convex and concave polygons into triangles.
+ *
+ * @author Max
+ */
+public class TriangulatorTest extends TestCase {
+
+	/**
+	 * Test that a convex polygon is split into a fan.
+	 */
+	public void testConvexPolygonIsFanned() {
+		float[] hexagon = new float[6 * 3];
+		for (int i = 0; i < 6; i++) {
+			hexagon[i * 3] = (float) Math.cos(i * Math.PI / 3);
+			hexagon[i * 3 + 2] = (float) Math.sin(i * Math.PI / 3);
+		}
+
+		int[] triangles = new int[4 * 3];
+		assertEquals(4, new Triangulator().triangulate(hexagon, 6, triangles));
+		for (int i = 0; i < 4; i++) {
+			assertEquals(0, triangles[i * 3]);
+			assertEquals(i + 1, triangles[i * 3 + 1]);
+			assertEquals(i + 2, triangles[i * 3 + 2]);
+		}
+	}
+
+	/**
+	 * Test that a concave polygon (in both windings and in a tilted plane) is covered exactly,
+	 * with every triangle keeping the winding of the polygon.
+	 */
+	public void testConcavePolygonIsCovered() {
+		// An L shape, area 3
+		float[][] shape = {{0, 0}, {2, 0}, {2, 1}, {1, 1}, {1, 2}, {0, 2}};
+		Triangulator triangulator = new Triangulator();
+
+		for (int winding = 0; winding < 2; winding++) {
+			float[] polygon = new float[shape.length * 3];
+			for (int i = 0; i < shape.length; i++) {
+				float[] p = shape[winding == 0 ? i : shape.length - 1 - i];
+				polygon[i * 3] = p[0];
+				polygon[i * 3 + 1] = p[1] + p[0] * 0.5f;
+				polygon[i * 3 + 2] = p[1];
+			}
+
+			int[] triangles = new int[(shape.length - 2) * 3];
+			assertEquals(shape.length - 2, triangulator.triangulate(polygon, shape.length, triangles));
+
+			float area = 0;
+			for (int t = 0; t < triangles.length; t += 3) {
+				float[] a = shape[winding == 0 ? triangles[t] : shape.length - 1 - triangles[t]];
+				float[] b = shape[winding == 0 ? triangles[t + 1] : shape.length - 1 - triangles[t + 1]];
+				float[] c = shape[winding == 0 ? triangles[t + 2] : shape.length - 1 - triangles[t + 2]];
+				float signed = ((b[0] - a[0]) * (c[1] - a[1]) - (b[1] - a[1]) * (c[0] - a[0])) / 2;
+
+				// Counter-clockwise in the original shape, clockwise when the winding is reversed
+				assertTrue(winding == 0 ? signed > 0 : signed < 0);
+				area += Math.abs(signed);
+			}
+			assertEquals(3f, area, 1e-5f);
+		}
+	}
+}
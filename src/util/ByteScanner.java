@@ -0,0 +1,301 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scans the bytes of a text file in place. This is used by the parser to read numbers and
+ * keywords straight out of a (memory-mapped) buffer without creating Strings, String arrays
+ * or regular expressions for every line.
+ *
+ * The scanner works on the region [start, end) of the buffer and never moves the buffer's
+ * own position, so several scanners can share one mapped file.
+ *
+ * @author Max
+ */
+public class ByteScanner {
+	// Powers of ten that are exactly representable as floats.
+	private static final float[] FLOAT_POW10 = {
+		1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+	};
+
+	// Largest mantissa that can be converted to a float without rounding.
+	private static final long MAX_EXACT_MANTISSA = 1L << 24;
+
+	// Mantissa digits kept before the remaining digits are only counted.
+	private static final int MAX_MANTISSA_DIGITS = 18;
+
+	private final ByteBuffer buffer;
+	private final int end;
+	private int pos;
+
+	/**
+	 * Memory-maps a file for reading.
+	 * @param file The file to map.
+	 * @return the mapped buffer
+	 * @throws IOException if the file cannot be read or is larger than 2GB
+	 */
+	public static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Cannot map " + file + ", file is larger than 2GB.");
+			}
+
+			// The mapping stays valid after the channel is closed.
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Scans the whole buffer.
+	 * @param buffer
+	 */
+	public ByteScanner(ByteBuffer buffer) {
+		this(buffer, 0, buffer.limit());
+	}
+
+	/**
+	 * Scans the region [start, end) of the buffer.
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 */
+	public ByteScanner(ByteBuffer buffer, int start, int end) {
+		this.buffer = buffer;
+		this.pos = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return true if there are bytes left to scan
+	 */
+	public boolean hasRemaining() {
+		return pos < end;
+	}
+
+	/**
+	 * @return the current offset into the buffer
+	 */
+	public int position() {
+		return pos;
+	}
+
+	/**
+	 * Skips spaces and tabs (but not line breaks).
+	 */
+	public void skipSpaces() {
+		while (pos < end) {
+			byte b = buffer.get(pos);
+			if (b != ' ' && b != '\t') break;
+			pos++;
+		}
+	}
+
+	/**
+	 * Moves to the first byte of the next line.
+	 */
+	public void nextLine() {
+		while (pos < end && buffer.get(pos++) != '\n');
+	}
+
+	/**
+	 * Checks if only whitespace is left on the current line.
+	 * @return true if the end of the line has been reached
+	 */
+	public boolean atLineEnd() {
+		skipSpaces();
+		if (pos >= end) return true;
+		byte b = buffer.get(pos);
+		return b == '\n' || b == '\r';
+	}
+
+	/**
+	 * Consumes the keyword if the current line continues with it followed by whitespace.
+	 * @param keyword ASCII bytes of the keyword
+	 * @return true if the keyword was consumed
+	 */
+	public boolean skipKeyword(byte[] keyword) {
+		int n = keyword.length;
+		if (pos + n > end) return false;
+
+		for (int i = 0; i < n; i++) {
+			if (buffer.get(pos + i) != keyword[i]) return false;
+		}
+
+		if (pos + n < end && !isWhitespace(buffer.get(pos + n))) return false;
+		pos += n;
+		return true;
+	}
+
+	/**
+	 * Consumes the given byte if it is next.
+	 * @param b
+	 * @return true if consumed
+	 */
+	public boolean skipByte(byte b) {
+		if (pos < end && buffer.get(pos) == b) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Parses a signed decimal integer.
+	 * @return the integer
+	 * @throws NumberFormatException if there is no integer at the current position
+	 */
+	public int nextInt() {
+		skipSpaces();
+		boolean negative = false;
+		if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+			negative = buffer.get(pos++) == '-';
+		}
+
+		int start = pos;
+		int value = 0;
+		while (pos < end) {
+			int d = buffer.get(pos) - '0';
+			if (d < 0 || d > 9) break;
+			value = value * 10 + d;
+			pos++;
+		}
+
+		if (pos == start) {
+			throw new NumberFormatException("Expected an integer at byte " + start);
+		}
+
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a float. Values with at most 7 significant digits and small exponents (the
+	 * common case for OBJ files) are converted with a single exact float operation, which gives
+	 * the same correctly rounded result as Float.parseFloat. Anything else falls back to
+	 * Float.parseFloat on the token.
+	 * @return the float
+	 * @throws NumberFormatException if there is no number at the current position
+	 */
+	public float nextFloat() {
+		skipSpaces();
+		int tokenStart = pos;
+		boolean negative = false;
+		if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+			negative = buffer.get(pos++) == '-';
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exp10 = 0;
+		boolean sawDigit = false;
+
+		// Integer part
+		while (pos < end) {
+			int d = buffer.get(pos) - '0';
+			if (d < 0 || d > 9) break;
+			sawDigit = true;
+			if (digits < MAX_MANTISSA_DIGITS) {
+				mantissa = mantissa * 10 + d;
+				if (mantissa != 0) digits++;
+			} else {
+				exp10++;
+			}
+			pos++;
+		}
+
+		// Fractional part
+		if (pos < end && buffer.get(pos) == '.') {
+			pos++;
+			while (pos < end) {
+				int d = buffer.get(pos) - '0';
+				if (d < 0 || d > 9) break;
+				sawDigit = true;
+				if (digits < MAX_MANTISSA_DIGITS) {
+					mantissa = mantissa * 10 + d;
+					if (mantissa != 0) digits++;
+					exp10--;
+				}
+				pos++;
+			}
+		}
+
+		// Exponent
+		if (sawDigit && pos < end && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+			pos++;
+			boolean negativeExp = false;
+			if (pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+				negativeExp = buffer.get(pos++) == '-';
+			}
+			int exp = 0;
+			while (pos < end) {
+				int d = buffer.get(pos) - '0';
+				if (d < 0 || d > 9) break;
+				if (exp < 10000) exp = exp * 10 + d;
+				pos++;
+			}
+			exp10 += negativeExp ? -exp : exp;
+		}
+
+		if (!sawDigit || (pos < end && !isDelimiter(buffer.get(pos)))) {
+			return parseFloatToken(tokenStart);
+		}
+
+		if (mantissa == 0) {
+			return negative ? -0f : 0f;
+		}
+
+		if (mantissa <= MAX_EXACT_MANTISSA && exp10 >= -10 && exp10 <= 10) {
+			float value = (float) mantissa;
+			value = exp10 < 0 ? value / FLOAT_POW10[-exp10] : value * FLOAT_POW10[exp10];
+			return negative ? -value : value;
+		}
+
+		return parseFloatToken(tokenStart);
+	}
+
+	/**
+	 * Returns the current line from the given offset as a trimmed String. Only used for the
+	 * rare records (mtllib, usemtl) which are handed to the String based parsing methods.
+	 * @param lineStart Offset of the first byte of the line.
+	 * @return the trimmed line
+	 */
+	public String lineString(int lineStart) {
+		int lineEnd = lineStart;
+		while (lineEnd < end && buffer.get(lineEnd) != '\n') lineEnd++;
+		return decode(lineStart, lineEnd).trim();
+	}
+
+	/**
+	 * Slow path for numbers the fast path can't convert exactly.
+	 */
+	private float parseFloatToken(int tokenStart) {
+		pos = tokenStart;
+		while (pos < end && !isDelimiter(buffer.get(pos))) pos++;
+		return Float.parseFloat(decode(tokenStart, pos));
+	}
+
+	private String decode(int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(from + i);
+		}
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	private static boolean isDelimiter(byte b) {
+		return isWhitespace(b) || b == '/';
+	}
+}
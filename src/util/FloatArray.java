@@ -0,0 +1,112 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive floats. Used instead of List<Float> when large amounts of
+ * vertex data are collected, to avoid boxing every element.
+ *
+ * @author Max
+ */
+public class FloatArray {
+	private float[] data;
+	private int size;
+	
+	public FloatArray() {
+		this(16);
+	}
+	
+	/**
+	 * Creates an empty array with a given initial capacity.
+	 * @param capacity
+	 */
+	public FloatArray(int capacity) {
+		data = new float[Math.max(capacity, 1)];
+		size = 0;
+	}
+	
+	public void add(float value) {
+		if (size == data.length) {
+			grow(size + 1);
+		}
+		data[size++] = value;
+	}
+	
+	public void add(float a, float b) {
+		ensureCapacity(size + 2);
+		data[size++] = a;
+		data[size++] = b;
+	}
+	
+	public void add(float a, float b, float c) {
+		ensureCapacity(size + 3);
+		data[size++] = a;
+		data[size++] = b;
+		data[size++] = c;
+	}
+	
+	/**
+	 * Appends a range of values.
+	 * @param values
+	 * @param offset
+	 * @param length
+	 */
+	public void add(float[] values, int offset, int length) {
+		ensureCapacity(size + length);
+		System.arraycopy(values, offset, data, size, length);
+		size += length;
+	}
+	
+	public float get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return data[index];
+	}
+	
+	public void set(int index, float value) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		data[index] = value;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	/**
+	 * Makes sure the array can hold at least the given number of elements without growing.
+	 * @param capacity
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			grow(capacity);
+		}
+	}
+	
+	/**
+	 * Returns the backing array. Only the first size() elements are valid, and the array is
+	 * replaced whenever this FloatArray grows.
+	 * @return the backing array
+	 */
+	public float[] array() {
+		return data;
+	}
+	
+	/**
+	 * @return a copy of the valid elements
+	 */
+	public float[] toArray() {
+		return Arrays.copyOf(data, size);
+	}
+	
+	private void grow(int minCapacity) {
+		int capacity = Math.max(minCapacity, data.length + (data.length >> 1));
+		data = Arrays.copyOf(data, capacity);
+	}
+}
@@ -0,0 +1,162 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A newline-aligned byte range of an OBJ file that can be parsed independently of the rest
+ * of the file. Vertex, texture and normal records are collected into primitive arrays and face
+ * records into a flat index stream; material directives (mtllib/usemtl) are only recorded, since
+ * they depend on the state of the preceding chunks and have to be replayed in order afterwards.
+ *
+ * Face indices that are written as absolute (positive) OBJ indices are stored as global 0-based
+ * indices. Relative (negative) indices are stored relative to this chunk and are turned into
+ * global indices with the prefix sum of the element counts of the preceding chunks (see resolve).
+ *
+ * @author Max
+ */
+public class ObjChunk extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	// Marks a missing texture or normal reference in a face vertex.
+	public static final int ABSENT = Integer.MIN_VALUE;
+
+	// Bias applied to chunk-local references so they can be told apart from global ones.
+	private static final int LOCAL_BIAS = 1 << 30;
+
+	private static final byte[] OBJ_VERTEX_TEXTURE = "vt".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OBJ_VERTEX_NORMAL = "vn".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OBJ_VERTEX = "v".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OBJ_FACE = "f".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OBJ_USEMTL = "usemtl".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] OBJ_MTLLIB = "mtllib".getBytes(StandardCharsets.US_ASCII);
+
+	private final ByteBuffer buffer;
+	private final int start;
+	private final int end;
+
+	// Parsed vertex attributes (3, 2 and 3 floats per element).
+	public final FloatArray positions = new FloatArray(1024);
+	public final FloatArray textures = new FloatArray(1024);
+	public final FloatArray normals = new FloatArray(1024);
+
+	// Number of vertices of each face, and (v, vt, vn) references for every face vertex.
+	public final IntArray faceSizes = new IntArray(1024);
+	public final IntArray faceRefs = new IntArray(4096);
+
+	// mtllib/usemtl lines in file order, and the number of faces read before each of them.
+	public final List<String> directives = new ArrayList<String>();
+	public final IntArray directiveFaces = new IntArray(4);
+
+	/**
+	 * Splits a buffer into roughly equal, newline-aligned chunks.
+	 * @param buffer The OBJ file contents.
+	 * @param chunkCount The number of chunks to aim for.
+	 * @return the chunks in file order
+	 */
+	public static List<ObjChunk> split(ByteBuffer buffer, int chunkCount) {
+		List<ObjChunk> chunks = new ArrayList<ObjChunk>(chunkCount);
+		int length = buffer.limit();
+		int chunkLength = Math.max(1, length / Math.max(1, chunkCount));
+
+		int start = 0;
+		while (start < length) {
+			int end = (int) Math.min((long) start + chunkLength, length);
+			while (end < length && buffer.get(end - 1) != '\n') end++;
+			chunks.add(new ObjChunk(buffer, start, end));
+			start = end;
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * Turns a stored face reference into a global 0-based index.
+	 * @param ref The stored reference.
+	 * @param base The number of elements of this kind in all preceding chunks.
+	 * @return the global index
+	 */
+	public static int resolve(int ref, int base) {
+		return ref >= 0 ? ref : base + ref + LOCAL_BIAS;
+	}
+
+	public ObjChunk(ByteBuffer buffer, int start, int end) {
+		this.buffer = buffer;
+		this.start = start;
+		this.end = end;
+	}
+
+	public int getVertexCount() { return positions.size() / 3; }
+	public int getTextureCount() { return textures.size() / 2; }
+	public int getNormalCount() { return normals.size() / 3; }
+	public int getFaceCount() { return faceSizes.size(); }
+
+	@Override
+	protected void compute() {
+		parse();
+	}
+
+	/**
+	 * Parses the records in this chunk.
+	 */
+	public void parse() {
+		ByteScanner scanner = new ByteScanner(buffer, start, end);
+
+		while (scanner.hasRemaining()) {
+			scanner.skipSpaces();
+			int lineStart = scanner.position();
+
+			if (scanner.skipKeyword(OBJ_VERTEX_TEXTURE)) {
+				textures.add(scanner.nextFloat(), scanner.nextFloat());
+			} else if (scanner.skipKeyword(OBJ_VERTEX_NORMAL)) {
+				normals.add(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
+			} else if (scanner.skipKeyword(OBJ_VERTEX)) {
+				positions.add(scanner.nextFloat(), scanner.nextFloat(), scanner.nextFloat());
+			} else if (scanner.skipKeyword(OBJ_FACE)) {
+				parseFace(scanner);
+			} else if (scanner.skipKeyword(OBJ_MTLLIB) || scanner.skipKeyword(OBJ_USEMTL)) {
+				directives.add(scanner.lineString(lineStart));
+				directiveFaces.add(faceSizes.size());
+			}
+
+			scanner.nextLine();
+		}
+	}
+
+	private void parseFace(ByteScanner scanner) {
+		int count = 0;
+
+		while (!scanner.atLineEnd()) {
+			int v = encode(scanner.nextInt(), getVertexCount());
+			int vt = ABSENT;
+			int vn = ABSENT;
+
+			if (scanner.skipByte((byte) '/')) {
+				if (scanner.skipByte((byte) '/')) {
+					vn = encode(scanner.nextInt(), getNormalCount());
+				} else {
+					vt = encode(scanner.nextInt(), getTextureCount());
+					if (scanner.skipByte((byte) '/')) {
+						vn = encode(scanner.nextInt(), getNormalCount());
+					}
+				}
+			}
+
+			faceRefs.add(v, vt, vn);
+			count++;
+		}
+
+		faceSizes.add(count);
+	}
+
+	/**
+	 * Absolute OBJ indices become global 0-based indices, relative ones are stored relative
+	 * to the start of this chunk (with a bias so they are always negative).
+	 */
+	private static int encode(int index, int localCount) {
+		return index < 0 ? localCount + index - LOCAL_BIAS : index - 1;
+	}
+}
@@ -80,6 +80,80 @@ public class ParseUtils {
     	return null;
 	}
 	
+	/**
+	 * Parses the vertex references of a face record straight from a byte scanner positioned
+	 * after the "f" keyword. Supports the same v, v/vt, v/vt/vn and v//vn forms as
+	 * parseFace(String, ...), and also relative (negative) indices.
+	 * @param scanner
+	 * @param vertices
+	 * @param normals
+	 * @param textures
+	 * @param currentMaterial
+	 * @return
+	 */
+	public static Face parseFace(ByteScanner scanner, List<Vector3f> vertices, List<Vector3f> normals, List<Vector2f> textures, Material currentMaterial) {
+		List<VertexData> faceData = new ArrayList<VertexData>(4);
+		
+		while (!scanner.atLineEnd()) {
+			Vector3f v = vertices.get(resolveIndex(scanner.nextInt(), vertices.size()));
+			
+			if (!scanner.skipByte((byte) '/')) {
+				faceData.add(new VertexData(v));
+			} else if (scanner.skipByte((byte) '/')) {
+				Vector3f vn = normals.get(resolveIndex(scanner.nextInt(), normals.size()));
+				faceData.add(new VertexData(v, new Vector2f(0f, 0f), vn));
+			} else {
+				Vector2f vt = textures.get(resolveIndex(scanner.nextInt(), textures.size()));
+				if (scanner.skipByte((byte) '/')) {
+					Vector3f vn = normals.get(resolveIndex(scanner.nextInt(), normals.size()));
+					faceData.add(new VertexData(v, vt, vn));
+				} else {
+					faceData.add(new VertexData(v, vt));
+				}
+			}
+		}
+		
+		return new Face(faceData, currentMaterial);
+	}
+	
+	/**
+	 * Converts an OBJ index (1-based, or negative to count back from the last element
+	 * read so far) into a list index.
+	 * @param index The index as written in the file.
+	 * @param size The number of elements read so far.
+	 * @return the 0-based list index
+	 */
+	public static int resolveIndex(int index, int size) {
+		return index < 0 ? size + index : index - 1;
+	}
+	
+	/**
+	 * Parses a list of two floats from a byte scanner.
+	 * @param scanner
+	 * @return a Vector2f with our results
+	 */
+	public static Vector2f parse2FloatList (ByteScanner scanner) {
+		Vector2f ret = new Vector2f();
+		ret.x = scanner.nextFloat();
+		ret.y = scanner.nextFloat();
+		
+		return ret;
+	}
+	
+	/**
+	 * Parses a list of three floats from a byte scanner.
+	 * @param scanner
+	 * @return a Vector3f with our results
+	 */
+	public static Vector3f parse3FloatList (ByteScanner scanner) {
+		Vector3f ret = new Vector3f();
+		ret.x = scanner.nextFloat();
+		ret.y = scanner.nextFloat();
+		ret.z = scanner.nextFloat();
+		
+		return ret;
+	}
+	
 	/**
 	 * Parses a list of two floats.
 	 * @param str
@@ -5,17 +5,27 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import org.lwjgl.util.vector.Vector2f;
 import org.lwjgl.util.vector.Vector3f;
 
 import renderer.model.Face;
+import renderer.model.Mesh;
+import renderer.model.MeshBuilder;
+import renderer.model.VertexData;
 import texture.Material;
+import texture.MaterialLibrary;
 
 /**
  * This class parses .obj and .mtl files.
@@ -37,20 +47,24 @@ public class Parser {
     private final static String OBJ_FACE = "f";
     private final static String OBJ_USEMTL = "usemtl";
     private final static String OBJ_MTLLIB = "mtllib";
-    private final static String MTL_NEWMTL = "newmtl";
-    private final static String MTL_KA = "Ka";
-    private final static String MTL_KD = "Kd";
-    private final static String MTL_KS = "Ks";
-    private final static String MTL_NS = "Ns";
-    private final static String MTL_ILLUM = "illum";
-    private final static String MTL_NI = "Ni";
-    private final static String MTL_MAP_KA = "map_Ka";
-    private final static String MTL_MAP_KD = "map_Kd";
-    private final static String MTL_MAP_KS = "map_Ks";
+    
+    // Keywords used when scanning raw bytes of memory-mapped OBJ files.
+    private final static byte[] OBJ_VERTEX_TEXTURE_BYTES = OBJ_VERTEX_TEXTURE.getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] OBJ_VERTEX_NORMAL_BYTES = OBJ_VERTEX_NORMAL.getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] OBJ_VERTEX_BYTES = OBJ_VERTEX.getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] OBJ_FACE_BYTES = OBJ_FACE.getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] OBJ_USEMTL_BYTES = OBJ_USEMTL.getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] OBJ_MTLLIB_BYTES = OBJ_MTLLIB.getBytes(StandardCharsets.US_ASCII);
+    
+    // Smallest chunk handed to a worker when parsing in parallel.
+    private final static int MIN_CHUNK_BYTES = 1 << 18;
     
     // Materials in this object.
     private Map<String, Material> materialMapping = new HashMap<String, Material>();
     
+    // Names of the MTL files referenced by this object.
+    private List<String> materialLibraries = new ArrayList<String>();
+    
     // Current material being parsed. Initialize with default material.
     private Material currentMaterial = new Material();
     
@@ -60,7 +74,7 @@ public class Parser {
     private List<Vector3f> normals;
     
     // List of faces.
-    private static List<Face> faces;
+    private List<Face> faces;
     
     // DataParser is used to slightly improve performance (does actual parsing).
     private ArrayBlockingQueue<String> parsedData;
@@ -95,7 +109,7 @@ public class Parser {
     	parserThread.start();
     	
     	while (!isDone || !parsedData.isEmpty()) {
-    		line = parsedData.poll();
+    		line = parsedData.poll(1, TimeUnit.MILLISECONDS);
     		if(line == null) continue;
     
 			line = line.trim();
@@ -111,6 +125,268 @@ public class Parser {
     	System.out.println("New OBJ Loading Time: " + (System.currentTimeMillis() - curTime));
     }
     
+    /**
+     * Parses an OBJ file by memory-mapping it and scanning the bytes in place. Vertex, texture,
+     * normal and face records are read without creating any intermediate Strings, which is much
+     * faster and produces far less garbage than parseOBJFile on large meshes. The resulting
+     * vertices, textures, normals and faces are the same as with parseOBJFile.
+     * @param file
+     * @throws IOException
+     */
+    public void parseOBJFileMapped (File file) throws IOException {
+    	objFile = file;
+    	long curTime = System.currentTimeMillis();
+    	ByteScanner scanner = new ByteScanner(ByteScanner.map(file));
+    	
+    	while (scanner.hasRemaining()) {
+    		scanner.skipSpaces();
+    		int lineStart = scanner.position();
+    		
+    		if (scanner.skipKeyword(OBJ_VERTEX_TEXTURE_BYTES)) parseTexture(scanner);
+    		else if (scanner.skipKeyword(OBJ_VERTEX_NORMAL_BYTES)) parseNormal(scanner);
+    		else if (scanner.skipKeyword(OBJ_VERTEX_BYTES)) parseVertex(scanner);
+    		else if (scanner.skipKeyword(OBJ_FACE_BYTES)) parseFace(scanner);
+    		else if (scanner.skipKeyword(OBJ_MTLLIB_BYTES)) parseMTLLib(scanner.lineString(lineStart));
+    		else if (scanner.skipKeyword(OBJ_USEMTL_BYTES)) parseUseMTL(scanner.lineString(lineStart));
+    		
+    		scanner.nextLine();
+    	}
+    	
+    	System.out.println("Mapped OBJ Loading Time: " + (System.currentTimeMillis() - curTime));
+    }
+    
+    /**
+     * Parses an OBJ file on all cores. The memory-mapped file is split into newline-aligned
+     * chunks which are parsed in parallel on the common ForkJoinPool. The chunks are then
+     * stitched together with a prefix sum over their vertex, texture, normal and face counts,
+     * so relative face indices and the order of the output stay the same as with the
+     * sequential parser. Material directives are replayed in file order between the two
+     * parallel passes.
+     * @param file
+     * @throws IOException
+     */
+    public void parseOBJFileParallel (File file) throws IOException {
+    	objFile = file;
+    	long curTime = System.currentTimeMillis();
+    	final ParsedChunks parsed = parseChunks(file);
+    	final List<ObjChunk> chunks = parsed.chunks;
+    	int n = chunks.size();
+    	
+    	final Vector3f[] vertexArray = new Vector3f[parsed.vertexBase[n]];
+    	final Vector2f[] textureArray = new Vector2f[parsed.textureBase[n]];
+    	final Vector3f[] normalArray = new Vector3f[parsed.normalBase[n]];
+    	final Face[] faceArray = new Face[parsed.faceBase[n]];
+    	
+    	List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(n);
+    	for (int i = 0; i < n; i++) {
+    		final int c = i;
+    		tasks.add(new RecursiveAction() {
+    			private static final long serialVersionUID = 1L;
+    			
+    			@Override
+    			protected void compute() {
+    				copyVectors(chunks.get(c), vertexArray, parsed.vertexBase[c], textureArray, parsed.textureBase[c], 
+    						normalArray, parsed.normalBase[c]);
+    			}
+    		});
+    	}
+    	ForkJoinTask.invokeAll(tasks);
+    	
+    	tasks.clear();
+    	for (int i = 0; i < n; i++) {
+    		final int c = i;
+    		tasks.add(new RecursiveAction() {
+    			private static final long serialVersionUID = 1L;
+    			
+    			@Override
+    			protected void compute() {
+    				buildFaces(chunks.get(c), parsed.vertexBase[c], parsed.textureBase[c], parsed.normalBase[c],
+    						vertexArray, textureArray, normalArray,
+    						parsed.startMaterials[c], parsed.directiveMaterials.get(c), faceArray, parsed.faceBase[c]);
+    			}
+    		});
+    	}
+    	ForkJoinTask.invokeAll(tasks);
+    	
+    	vertices = new ArrayList<Vector3f>(Arrays.asList(vertexArray));
+    	textures = new ArrayList<Vector2f>(Arrays.asList(textureArray));
+    	normals = new ArrayList<Vector3f>(Arrays.asList(normalArray));
+    	faces = new ArrayList<Face>(Arrays.asList(faceArray));
+    	
+    	System.out.println("Parallel OBJ Loading Time: " + (System.currentTimeMillis() - curTime));
+    }
+    
+    /**
+     * Parses an OBJ file straight into an indexed Mesh. The file is parsed in parallel like
+     * with parseOBJFileParallel, but instead of creating vectors, VertexData and Faces the
+     * records are streamed into a MeshBuilder, which keeps everything in primitive arrays and
+     * welds face vertices with the same (v, vt, vn) indices as it goes. The vertex, texture,
+     * normal and face lists of this parser stay empty.
+     * @param file
+     * @return the mesh
+     * @throws IOException
+     */
+    public Mesh parseOBJMesh (File file) throws IOException {
+    	objFile = file;
+    	long curTime = System.currentTimeMillis();
+    	ParsedChunks parsed = parseChunks(file);
+    	List<ObjChunk> chunks = parsed.chunks;
+    	int n = chunks.size();
+    	
+    	// Concatenate the attributes of all chunks.
+    	float[] positionArray = new float[parsed.vertexBase[n] * 3];
+    	float[] textureArray = new float[parsed.textureBase[n] * 2];
+    	float[] normalArray = new float[parsed.normalBase[n] * 3];
+    	for (int i = 0; i < n; i++) {
+    		ObjChunk chunk = chunks.get(i);
+    		System.arraycopy(chunk.positions.array(), 0, positionArray, parsed.vertexBase[i] * 3, chunk.positions.size());
+    		System.arraycopy(chunk.textures.array(), 0, textureArray, parsed.textureBase[i] * 2, chunk.textures.size());
+    		System.arraycopy(chunk.normals.array(), 0, normalArray, parsed.normalBase[i] * 3, chunk.normals.size());
+    	}
+    	
+    	MeshBuilder builder = new MeshBuilder(positionArray, textureArray, normalArray);
+    	int[] faceRefs = new int[12];
+    	for (int i = 0; i < n; i++) {
+    		ObjChunk chunk = chunks.get(i);
+    		Material material = parsed.startMaterials[i];
+    		List<Material> directiveMaterials = parsed.directiveMaterials.get(i);
+    		int[] sizes = chunk.faceSizes.array();
+    		int[] refs = chunk.faceRefs.array();
+    		int[] directiveFaces = chunk.directiveFaces.array();
+    		int directive = 0;
+    		int r = 0;
+    		
+    		for (int f = 0; f < chunk.getFaceCount(); f++) {
+    			while (directive < directiveMaterials.size() && directiveFaces[directive] == f) {
+    				material = directiveMaterials.get(directive++);
+    			}
+    			
+    			if (faceRefs.length < sizes[f] * 3) {
+    				faceRefs = new int[sizes[f] * 3];
+    			}
+    			for (int k = 0; k < sizes[f]; k++, r += 3) {
+    				faceRefs[k * 3] = ObjChunk.resolve(refs[r], parsed.vertexBase[i]);
+    				faceRefs[k * 3 + 1] = refs[r + 1] == ObjChunk.ABSENT ? 
+    						MeshBuilder.ABSENT : ObjChunk.resolve(refs[r + 1], parsed.textureBase[i]);
+    				faceRefs[k * 3 + 2] = refs[r + 2] == ObjChunk.ABSENT ? 
+    						MeshBuilder.ABSENT : ObjChunk.resolve(refs[r + 2], parsed.normalBase[i]);
+    			}
+    			builder.addFace(material, faceRefs, 0, sizes[f]);
+    		}
+    	}
+    	
+    	Mesh mesh = builder.build();
+    	System.out.println("Mesh OBJ Loading Time: " + (System.currentTimeMillis() - curTime));
+    	return mesh;
+    }
+    
+    /**
+     * Memory-maps a file, parses it in newline-aligned chunks on the common ForkJoinPool and
+     * replays the material directives of the chunks in file order.
+     */
+    private ParsedChunks parseChunks (File file) throws IOException {
+    	ByteBuffer buffer = ByteScanner.map(file);
+    	
+    	int chunkCount = Math.min(Runtime.getRuntime().availableProcessors() * 4, 
+    			Math.max(1, buffer.limit() / MIN_CHUNK_BYTES));
+    	ParsedChunks parsed = new ParsedChunks(ObjChunk.split(buffer, chunkCount));
+    	ForkJoinTask.invokeAll(parsed.chunks);
+    	
+    	// Prefix sums of the element counts give each chunk its offset into the global lists.
+    	int n = parsed.chunks.size();
+    	for (int i = 0; i < n; i++) {
+    		ObjChunk chunk = parsed.chunks.get(i);
+    		parsed.vertexBase[i + 1] = parsed.vertexBase[i] + chunk.getVertexCount();
+    		parsed.textureBase[i + 1] = parsed.textureBase[i] + chunk.getTextureCount();
+    		parsed.normalBase[i + 1] = parsed.normalBase[i] + chunk.getNormalCount();
+    		parsed.faceBase[i + 1] = parsed.faceBase[i] + chunk.getFaceCount();
+    	}
+    	
+    	// Replay the material directives in file order (these may read MTL files).
+    	for (int i = 0; i < n; i++) {
+    		ObjChunk chunk = parsed.chunks.get(i);
+    		List<Material> materials = new ArrayList<Material>(chunk.directives.size());
+    		parsed.startMaterials[i] = currentMaterial;
+    		for (String line : chunk.directives) {
+    			if (line.startsWith(OBJ_MTLLIB)) parseMTLLib(line);
+    			else parseUseMTL(line);
+    			materials.add(currentMaterial);
+    		}
+    		parsed.directiveMaterials.add(materials);
+    	}
+    	
+    	return parsed;
+    }
+    
+    /**
+     * Copies the parsed attributes of a chunk into the global vector arrays.
+     */
+    private static void copyVectors (ObjChunk chunk, Vector3f[] vertexArray, int vertexBase, 
+    		Vector2f[] textureArray, int textureBase, Vector3f[] normalArray, int normalBase) {
+    	float[] p = chunk.positions.array();
+    	for (int i = 0; i < chunk.getVertexCount(); i++) {
+    		vertexArray[vertexBase + i] = new Vector3f(p[3 * i], p[3 * i + 1], p[3 * i + 2]);
+    	}
+    	float[] t = chunk.textures.array();
+    	for (int i = 0; i < chunk.getTextureCount(); i++) {
+    		textureArray[textureBase + i] = new Vector2f(t[2 * i], t[2 * i + 1]);
+    	}
+    	float[] vn = chunk.normals.array();
+    	for (int i = 0; i < chunk.getNormalCount(); i++) {
+    		normalArray[normalBase + i] = new Vector3f(vn[3 * i], vn[3 * i + 1], vn[3 * i + 2]);
+    	}
+    }
+    
+    /**
+     * Builds the faces of a chunk, resolving its references against the global vector arrays.
+     */
+    private static void buildFaces (ObjChunk chunk, int vertexBase, int textureBase, int normalBase,
+    		Vector3f[] vertexArray, Vector2f[] textureArray, Vector3f[] normalArray,
+    		Material material, List<Material> directiveMaterials, Face[] faceArray, int faceBase) {
+    	int[] sizes = chunk.faceSizes.array();
+    	int[] refs = chunk.faceRefs.array();
+    	int[] directiveFaces = chunk.directiveFaces.array();
+    	int directive = 0;
+    	int r = 0;
+    	
+    	for (int f = 0; f < chunk.getFaceCount(); f++) {
+    		while (directive < directiveMaterials.size() && directiveFaces[directive] == f) {
+    			material = directiveMaterials.get(directive++);
+    		}
+    		
+    		List<VertexData> faceData = new ArrayList<VertexData>(sizes[f]);
+    		for (int k = 0; k < sizes[f]; k++, r += 3) {
+    			Vector3f v = vertexArray[ObjChunk.resolve(refs[r], vertexBase)];
+    			Vector3f vn = refs[r + 2] == ObjChunk.ABSENT ? null : normalArray[ObjChunk.resolve(refs[r + 2], normalBase)];
+    			
+    			if (refs[r + 1] == ObjChunk.ABSENT) {
+    				faceData.add(vn == null ? new VertexData(v) : new VertexData(v, new Vector2f(0f, 0f), vn));
+    			} else {
+    				Vector2f vt = textureArray[ObjChunk.resolve(refs[r + 1], textureBase)];
+    				faceData.add(vn == null ? new VertexData(v, vt) : new VertexData(v, vt, vn));
+    			}
+    		}
+    		
+    		faceArray[faceBase + f] = new Face(faceData, material);
+    	}
+    }
+    
+    private void parseTexture (ByteScanner scanner) {
+    	textures.add(ParseUtils.parse2FloatList(scanner));
+    }
+    
+    private void parseNormal (ByteScanner scanner) {
+    	normals.add(ParseUtils.parse3FloatList(scanner));
+    }
+
+    private void parseVertex (ByteScanner scanner) {
+    	vertices.add(ParseUtils.parse3FloatList(scanner));
+    }
+
+    private void parseFace (ByteScanner scanner) {
+    	faces.add(ParseUtils.parseFace(scanner, vertices, normals, textures, currentMaterial));
+    }
+    
     private void parseTexture (String line) {
     	textures.add(ParseUtils.parse2FloatList(line));
     }
@@ -137,8 +413,14 @@ public class Parser {
     	
     	if (libNames != null) {
     		for (int i = 0; i < libNames.length; i++) {
+    			materialLibraries.add(libNames[i]);
     			try {
-    				parseMTLFile(libNames[i]);
+    				// Libraries are shared between all parsers (see MaterialLibrary).
+    				MaterialLibrary library = MaterialLibrary.load(new File(objFile.getParent(), libNames[i]));
+    				materialMapping.putAll(library.getMaterials());
+    				if (library.getLastMaterial() != null) {
+    					currentMaterial = library.getLastMaterial();
+    				}
     			} catch (IOException e) {
     				System.err.println("Cannot find MTL filename " + libNames[i]);
     				e.printStackTrace();
@@ -147,104 +429,52 @@ public class Parser {
     	}
     }
 
+    // Getters.
+    public List<Vector3f> getVertices () { return vertices; }
+    public List<Vector2f> getTextures () { return textures; }
+    public List<Vector3f> getNormals () { return normals; }
+    public List<Face> getFaces () { return faces; }
+    public List<String> getMaterialLibraries () { return materialLibraries; }
+    
     /**
-     * Parses .mtl files referenced by .obj files.
-     * @param fileName
-     * @throws IOException
-     * @throws FileNotFoundException
+     * Loads the materials of MTL files referenced by an OBJ file without parsing the OBJ file
+     * itself (e.g. when its geometry comes from a cache).
+     * @param file The OBJ file the MTL file names are relative to.
+     * @param libNames The MTL file names.
+     * @return the materials by name
      */
-    private void parseMTLFile (String fileName) throws IOException, FileNotFoundException {
-        File mtlFile = new File(objFile.getParent(), fileName);
-        FileReader fr = new FileReader(mtlFile);
-        BufferedReader br = new BufferedReader(fr);
-        
-        String line = null;
-		while ((line = br.readLine()) != null) {
-			if (line.startsWith(OBJ_COMMENT)) continue;
-			if (line.startsWith(MTL_NEWMTL)) parseNewMTL(line);
-			if (line.startsWith(MTL_KA)) parseKa(line);
-			if (line.startsWith(MTL_KD)) parseKd(line);
-			if (line.startsWith(MTL_KS)) parseKs(line);
-			if (line.startsWith(MTL_ILLUM)) parseIllum(line);
-			if (line.startsWith(MTL_NS)) parseNs(line);
-			if (line.startsWith(MTL_NI)) parseNi(line);
-			if (line.startsWith(MTL_MAP_KA)) parseMapKa(line);
-			if (line.startsWith(MTL_MAP_KD)) parseMapKd(line);
-			if (line.startsWith(MTL_MAP_KS)) parseMapKs(line);
-		}
-		
-		br.close();
+    public Map<String, Material> loadMaterials (File file, List<String> libNames) {
+    	objFile = file;
+    	for (String libName : libNames) {
+    		parseMTLLib(OBJ_MTLLIB + " " + libName);
+    	}
+    	return materialMapping;
     }
     
-    private void parseNewMTL (String line) {
-    	line = line.substring(MTL_NEWMTL.length()).trim();
+    /**
+     * Parsed chunks of an OBJ file, with the offsets of each chunk into the global vertex,
+     * texture, normal and face lists and the materials its faces start with / switch to.
+     */
+    private static class ParsedChunks {
+    	final List<ObjChunk> chunks;
+    	final int[] vertexBase;
+    	final int[] textureBase;
+    	final int[] normalBase;
+    	final int[] faceBase;
+    	final Material[] startMaterials;
+    	final List<List<Material>> directiveMaterials;
     	
-    	// Create a new material and set it to the current material being parsed.
-    	currentMaterial = new Material(line);
-    	materialMapping.put(line, this.currentMaterial);
-    }
-
-    private void parseKa (String line) {
-    	String[] tokens = line.split(" ");
-    	currentMaterial.Ka = new float[] {Float.parseFloat(tokens[1]),
-					   Float.parseFloat(tokens[2]),
-					   Float.parseFloat(tokens[3])};
-    }
-
-    private void parseKd (String line) {
-    	String[] tokens = line.split(" ");
-    	if (tokens.length == 5) {
-        	currentMaterial.Kd = new float[] {Float.parseFloat(tokens[1]),
-					   Float.parseFloat(tokens[2]),
-					   Float.parseFloat(tokens[3]),
-					   Float.parseFloat(tokens[4])};
-    	} else {
-        	currentMaterial.Kd = new float[] {Float.parseFloat(tokens[1]),
-					   Float.parseFloat(tokens[2]),
-					   Float.parseFloat(tokens[3]),
-					   1.0f};
-        }
-    }
-
-    private void parseIllum (String line) {
-    	line = line.substring(MTL_ILLUM.length()).trim();
-    	currentMaterial.illumModel = Integer.parseInt(line);
-    }
-    
-    private void parseNs (String line) {
-    	line = line.substring(MTL_NS.length()).trim();
-    	currentMaterial.Ns = Float.parseFloat(line);
-    }
-
-    private void parseNi (String line) {
-    	line = line.substring(MTL_NI.length()).trim();
-    	currentMaterial.niOpticalDensity = Float.parseFloat(line);
-    }
-    
-    private void parseKs (String line) {
-    	String[] tokens = line.split("\\s+");
-    	currentMaterial.Ks = new float[] {Float.parseFloat(tokens[1]),
-					   Float.parseFloat(tokens[2]),
-					   Float.parseFloat(tokens[3])};
-    }
-
-    private void parseMapKa (String line) {
-    	currentMaterial.setMapKaFile(line.split(" ")[1]);
-    }
-    
-    private void parseMapKd (String line) {
-    	currentMaterial.setMapKdFile(line.split(" ")[1]);
-    }
-    
-    private void parseMapKs (String line) {
-    	currentMaterial.setMapKsFile(line.split(" ")[1]);
+    	ParsedChunks (List<ObjChunk> chunks) {
+    		int n = chunks.size();
+    		this.chunks = chunks;
+    		vertexBase = new int[n + 1];
+    		textureBase = new int[n + 1];
+    		normalBase = new int[n + 1];
+    		faceBase = new int[n + 1];
+    		startMaterials = new Material[n];
+    		directiveMaterials = new ArrayList<List<Material>>(n);
+    	}
     }
-   
-    // Getters.
-    public List<Vector3f> getVertices () { return vertices; }
-    public List<Vector2f> getTextures () { return textures; }
-    public List<Vector3f> getNormals () { return normals; }
-    public List<Face> getFaces () { return faces; }
     
     private class DataParser implements Runnable {
     	
@@ -0,0 +1,153 @@
+package util;
+
+/**
+ * Splits polygons (OBJ faces with any number of vertices) into triangles. Convex polygons are
+ * split into a fan around the first vertex; concave polygons are split by ear clipping in the
+ * plane the polygon is (mostly) lying in. Triangles keep the winding of the polygon.
+ *
+ * A Triangulator reuses its scratch arrays between polygons, so it is not thread-safe.
+ *
+ * @author Max
+ */
+public class Triangulator {
+	private float[] u = new float[8];
+	private float[] v = new float[8];
+	private int[] prev = new int[8];
+	private int[] next = new int[8];
+
+	/**
+	 * Triangulates a polygon.
+	 * @param positions xyz of each polygon vertex.
+	 * @param count The number of polygon vertices (at least 3).
+	 * @param triangles Receives 3 polygon vertex indices per triangle, must hold 3 * (count - 2) ints.
+	 * @return the number of triangles (count - 2)
+	 */
+	public int triangulate(float[] positions, int count, int[] triangles) {
+		if (count < 3) {
+			return 0;
+		}
+
+		if (count > 3) {
+			project(positions, count);
+			if (!isConvex(count)) {
+				return clipEars(count, triangles);
+			}
+		}
+
+		// Fan around the first vertex
+		int t = 0;
+		for (int i = 1; i < count - 1; i++) {
+			triangles[t++] = 0;
+			triangles[t++] = i;
+			triangles[t++] = i + 1;
+		}
+		return count - 2;
+	}
+
+	/**
+	 * Projects the polygon onto the axis plane its (Newell) normal is closest to, flipping the
+	 * axes if necessary so the projected polygon is counter-clockwise.
+	 */
+	private void project(float[] p, int count) {
+		if (u.length < count) {
+			u = new float[count];
+			v = new float[count];
+			prev = new int[count];
+			next = new int[count];
+		}
+
+		float nx = 0, ny = 0, nz = 0;
+		for (int i = 0, j = count - 1; i < count; j = i++) {
+			nx += (p[j * 3 + 1] - p[i * 3 + 1]) * (p[j * 3 + 2] + p[i * 3 + 2]);
+			ny += (p[j * 3 + 2] - p[i * 3 + 2]) * (p[j * 3] + p[i * 3]);
+			nz += (p[j * 3] - p[i * 3]) * (p[j * 3 + 1] + p[i * 3 + 1]);
+		}
+
+		// Drop the dominant axis of the normal
+		int a, b;
+		float n;
+		if (Math.abs(nx) >= Math.abs(ny) && Math.abs(nx) >= Math.abs(nz)) {
+			a = 1; b = 2; n = nx;
+		} else if (Math.abs(ny) >= Math.abs(nz)) {
+			a = 2; b = 0; n = ny;
+		} else {
+			a = 0; b = 1; n = nz;
+		}
+
+		float sign = n < 0 ? -1f : 1f;
+		for (int i = 0; i < count; i++) {
+			u[i] = p[i * 3 + a];
+			v[i] = p[i * 3 + b] * sign;
+		}
+	}
+
+	private boolean isConvex(int count) {
+		for (int i = 0; i < count; i++) {
+			int p = i == 0 ? count - 1 : i - 1;
+			int n = i == count - 1 ? 0 : i + 1;
+			if (cross(p, i, n) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Ear clipping on the projected polygon.
+	 */
+	private int clipEars(int count, int[] triangles) {
+		for (int i = 0; i < count; i++) {
+			prev[i] = i == 0 ? count - 1 : i - 1;
+			next[i] = i == count - 1 ? 0 : i + 1;
+		}
+
+		int t = 0;
+		int remaining = count;
+		int current = 0;
+		int tested = 0;
+		while (remaining > 3) {
+			int p = prev[current];
+			int n = next[current];
+
+			// If no ear was found after a full round the polygon is degenerate (e.g. self-intersecting),
+			// clip anyway so every polygon gets count - 2 triangles.
+			if (isEar(p, current, n) || tested > remaining) {
+				triangles[t++] = p;
+				triangles[t++] = current;
+				triangles[t++] = n;
+				next[p] = n;
+				prev[n] = p;
+				remaining--;
+				tested = 0;
+				current = n;
+			} else {
+				current = n;
+				tested++;
+			}
+		}
+
+		triangles[t++] = prev[current];
+		triangles[t++] = current;
+		triangles[t++] = next[current];
+		return count - 2;
+	}
+
+	private boolean isEar(int p, int c, int n) {
+		if (cross(p, c, n) <= 0) {
+			return false;
+		}
+
+		// No other vertex may lie inside the ear
+		for (int i = next[n]; i != p; i = next[i]) {
+			if (cross(p, c, i) >= 0 && cross(c, n, i) >= 0 && cross(n, p, i) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Twice the signed area of the projected triangle (a, b, c), positive if counter-clockwise.
+	private float cross(int a, int b, int c) {
+		return (u[b] - u[a]) * (v[c] - v[a]) - (v[b] - v[a]) * (u[c] - u[a]);
+	}
+}
@@ -6,6 +6,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 
 import javax.vecmath.Vector3f;
 
+import physics.PhysicsContainer;
 import physics.PhysicsModel;
 import renderer.Renderable;
 import renderer.Renderer;
@@ -79,16 +80,20 @@ public class World {
 		// @TODO: Fix this hack
 		if(ModelInt.class.isAssignableFrom(model.getClass())) {
 			dynamicsWorld.addRigidBody(((ModelInt)model).getPhysicsModel().getRigidBody());
+		} else if(model instanceof PhysicsContainer) {
+			((PhysicsContainer)model).setDynamicsWorld(dynamicsWorld);
 		}
 	}
 
-	public synchronized void removeModel(Renderable model) {
+	public synchronized void removeModel(Renderable model) {
 		renderer.removeModel(model);
 
 		// @TODO: Fix this hack
 		if(ModelInt.class.isAssignableFrom(model.getClass())) {
 			dynamicsWorld.removeCollisionObject(((ModelInt)model).getPhysicsModel().getRigidBody());
 			dynamicsWorld.removeRigidBody(((ModelInt)model).getPhysicsModel().getRigidBody());
+		} else if(model instanceof PhysicsContainer) {
+			((PhysicsContainer)model).setDynamicsWorld(null);
 		}
 	}
 	